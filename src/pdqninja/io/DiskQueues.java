@@ -0,0 +1,197 @@
+package pdqninja.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * I/O queues, one per disk.
+ * <p>
+ * A computation reads the splits of its input and writes its
+ * externalized data from many threads at the same time. If these
+ * threads read and write directly, two threads may well hammer one
+ * disk, seeking back and forth between two files, while another disk
+ * sits idle. Instead, the I/O operations on the files of a disk
+ * can be routed to the queue of that disk. Each queue is served by
+ * a fixed number of threads (the <em>queue depth</em>), which bounds
+ * the number of concurrent operations on the disk; the operations
+ * are performed in large chunks of {@link #CHUNK_SIZE} bytes, so
+ * that the disk spends its time transferring data rather than
+ * seeking. The streams returned by {@link #newInputStream} read
+ * ahead, and the streams returned by {@link #newOutputStream} write
+ * behind, so that the computation threads do not wait for the disks
+ * more than necessary.
+ * <p>
+ * The disks are identified by the directories registered via the
+ * {@link #register(File, int)} method. A file belongs to the
+ * registered directory that is the longest prefix of its path.
+ * I/O on the files that do not belong to any registered directory
+ * is performed directly by the calling thread.
+ *
+ * @author mvarshney
+ */
+public final class DiskQueues {
+	/**
+	 * Size of the chunks in which the data is read and written.
+	 */
+	public static final int CHUNK_SIZE = 1024 * 1024;
+
+	private DiskQueues() {}
+
+	/**
+	 * Registered directories, in decreasing order of the
+	 * length of their paths.
+	 */
+	private static final List<String> dirs = new ArrayList<String>();
+	private static final List<ExecutorService> queues =
+			new ArrayList<ExecutorService>();
+
+	/**
+	 * Registers the specified directory as a disk, whose queue is
+	 * served by the specified number of threads. Registering a
+	 * directory more than once has no effect.
+	 *
+	 * @param dir the directory
+	 * @param depth number of concurrent I/O operations on the disk
+	 * @throws IOException
+	 */
+	public static synchronized void register(File dir, int depth) throws IOException {
+		if (depth <= 0)
+			throw new IllegalArgumentException("Invalid queue depth: " + depth);
+
+		String path = dir.getCanonicalPath();
+		if (dirs.contains(path)) return;
+
+		int i = 0;
+		while (i < dirs.size() && dirs.get(i).length() >= path.length()) i++;
+
+		dirs.add(i, path);
+		queues.add(i, Executors.newFixedThreadPool(depth,
+				new QueueThreadFactory(path)));
+	}
+
+	/**
+	 * Returns the queue of the disk where the specified file
+	 * resides.
+	 *
+	 * @param file the file
+	 * @return the queue, or <tt>null</tt> if the file does
+	 * not belong to any registered directory
+	 */
+	public static synchronized ExecutorService queueFor(File file) {
+		if (dirs.isEmpty() || file == null) return null;
+
+		String path;
+		try {
+			path = file.getCanonicalPath();
+		} catch (IOException e) {
+			path = file.getAbsolutePath();
+		}
+
+		for (int i = 0; i < dirs.size(); i++) {
+			String dir = dirs.get(i);
+			if (path.equals(dir) || path.startsWith(
+					dir.endsWith(File.separator) ? dir : dir + File.separator)) {
+				return queues.get(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Creates an InputStream that reads <tt>length</tt> bytes of
+	 * the specified file, starting at the current offset of the
+	 * RandomAccessFile. The data is read ahead, in chunks, by the
+	 * queue of the disk where the file resides. The offset of the
+	 * RandomAccessFile is not changed.
+	 *
+	 * @param file the file
+	 * @param raf the file, opened for reading
+	 * @param length the number of bytes to read
+	 * @return the InputStream
+	 * @throws IOException
+	 */
+	public static InputStream newInputStream(File file, RandomAccessFile raf,
+			long length) throws IOException {
+		return new ReadAheadInputStream(raf.getChannel(),
+				raf.getFilePointer(), length, queueFor(file));
+	}
+
+	/**
+	 * Creates an OutputStream that writes to the specified file,
+	 * starting at the current offset of the RandomAccessFile. If
+	 * the file resides on a registered disk, the data is written
+	 * behind, in chunks, by the queue of the disk; the data is
+	 * guaranteed to be in the file only after the stream is flushed.
+	 * Otherwise, a plain FileOutputStream is returned.
+	 *
+	 * @param file the file
+	 * @param raf the file, opened for writing
+	 * @return the OutputStream
+	 * @throws IOException
+	 */
+	public static OutputStream newOutputStream(File file,
+			RandomAccessFile raf) throws IOException {
+		ExecutorService queue = queueFor(file);
+		if (queue == null)
+			return new FileOutputStream(raf.getFD());
+
+		return new WriteBehindOutputStream(raf.getChannel(),
+				raf.getFilePointer(), queue);
+	}
+
+	/**
+	 * Creates the daemon threads that serve a queue. The queues are
+	 * shared by all computations, therefore, the threads do not
+	 * inherit the inheritable thread locals (such as the context of
+	 * the computation) of the thread that happens to create them.
+	 */
+	static final class QueueThreadFactory implements ThreadFactory {
+		// Thread(ThreadGroup, Runnable, String, long, boolean), or
+		// null if the JVM does not have it (before Java 9)
+		static private final Constructor<Thread> noInherit = noInherit();
+		
+		final String name;
+		int count = 0;
+
+		QueueThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public synchronized Thread newThread(Runnable r) {
+			String name = "PDQ-IO-" + this.name + "-" + (count++);
+			
+			Thread thread = null;
+			if (noInherit != null) {
+				try {
+					thread = noInherit.newInstance(null, r, name, 0L, false);
+				} catch (Exception e) {
+					thread = null;
+				}
+			}
+			if (thread == null) thread = new Thread(r, name);
+			
+			thread.setDaemon(true);
+			return thread;
+		}
+		
+		private static Constructor<Thread> noInherit() {
+			try {
+				return Thread.class.getConstructor(ThreadGroup.class, 
+						Runnable.class, String.class, long.class, boolean.class);
+			} catch (NoSuchMethodException e) {
+				return null;
+			}
+		}
+	}
+}
@@ -2,18 +2,23 @@ package pdqninja.io;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Externalizable;
 import java.io.Serializable;
 import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * A file that stores a sequence of keys (and optionally, the values).
@@ -41,6 +46,9 @@ import java.io.StreamCorruptedException;
  * this key is written. One index entry is created every 
  * <tt>bytesPerIndex</tt> bytes.
  * <p>
+ * The data is written through the I/O queue of the disk where 
+ * the file resides (see {@link DiskQueues}), if any.
+ * <p>
  * This object buffers data while reading and writing by using 
  * the {@link BufferedInputStream} and {@link BufferedOutputStream},
  * respectively. The size of the buffer can be specified in the
@@ -57,6 +65,32 @@ import java.io.StreamCorruptedException;
  * are written with the {@link #write(Object)} or the
  * {@link #write(Object, Object)} methods. The first method
  * writes a key only, and the second methods writes a key and a value.
+ * <p>
+ * If <em>front coding</em> is enabled (see
+ * {@link #setFrontCoding(boolean)}), the String keys are written as
+ * the length of the prefix they share with the previous key, followed
+ * by the rest of the key. Sorted keys, such as URLs, share long
+ * prefixes, which are then written only once. The coding restarts
+ * at each index entry (and after a {@link #seek(long)}), so that
+ * the keys can be read from any indexed offset. The keys of such a
+ * file must be read with the {@link #readKey()} method.
+ * <p>
+ * If the <em>columnar</em> layout is enabled (see
+ * {@link #setColumnar(boolean)}), the records are written in blocks
+ * of about <tt>bytesPerIndex</tt> bytes. A block holds the keys
+ * of its records as one column, front coded if enabled, and the values
+ * as another column. Each block is one entry of the index, which also
+ * records the last (largest) key of the block. The columns are read
+ * only when asked for: a reader that needs only the keys skips the
+ * values with {@link #skipValue()}, and one that needs only the values
+ * skips the keys with {@link #skipKey()}. The records of a columnar file
+ * must be read with the {@link #readKey()} and {@link #read()} methods,
+ * the key first.
+ * <p>
+ * A new file begins with a short header that records the format
+ * of the file (such as whether the keys are front coded), so that
+ * the readers do not need to know how the file was written. Files
+ * without the header are read with the format set by the caller.
  * 
  * 
  * @author mvarshney
@@ -64,6 +98,31 @@ import java.io.StreamCorruptedException;
 public class MapFile<K> {
 	public static final long DEFAULT_BYTES_PER_RESET = 8196L;
 	public static final int DEFAULT_BUFFER_SIZE = 8196 * 1024;
+	public static final int DEFAULT_BYTES_PER_BLOCK = 64 * 1024;
+	
+	/**
+	 * Longest suffix written by <code>writeUTF</code>, whose encoding
+	 * is limited to 65535 bytes (of up to three bytes per char).
+	 */
+	static final int MAX_SUFFIX = 65535 / 3;
+	
+	/**
+	 * The header: the magic bytes, the version and the format flags.
+	 * A file without the header begins with a type code of the
+	 * serialized stream (0x70 to 0x7e), which is not a magic byte.
+	 */
+	static private final byte[] MAGIC = { 'P', 'D', 'Q', 'M' };
+	static private final byte VERSION = 1;
+	static private final int HEADER_LENGTH = MAGIC.length + 2;
+	static private final int FRONT_CODED = 0x01;
+	static private final int COLUMNAR = 0x02;
+	
+	/**
+	 * A block begins with the number of records, the length of the
+	 * key column, and the length of the value column (or -1 if the
+	 * records have no values).
+	 */
+	static private final int BLOCK_HEADER_LENGTH = 12;
 	
 	private final long bytesPerIndex;
 	private final long bytesPerReset;
@@ -72,7 +131,7 @@ public class MapFile<K> {
 	private final RandomAccessFile raf;
 	
 	private final BufferedInputStream bis;
-	private final ObjectInputStream ois;
+	private ObjectInputStream ois;
 	
 	private final ObjectOutputStream oos;
 	private final CountableOutputStream cos;
@@ -80,6 +139,37 @@ public class MapFile<K> {
 	private long nextResetAt = -1;
 	private long nextIndexAt = -1;
 	
+	private boolean frontCoding = false;
+	private String lastWrittenKey;
+	private String lastReadKey;
+	
+	// The length of the header, or zero if the file has none yet
+	private long headerLength = 0;
+	private boolean headerPending = false;
+	
+	private boolean columnar = false;
+	
+	// The block being written to a columnar file
+	private final ByteArrayOutputStream keyColumn = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream valueColumn = new ByteArrayOutputStream();
+	private ObjectOutputStream keyOut;
+	private ObjectOutputStream valueOut;
+	private int blockRecords = 0;
+	private boolean blockValues;
+	
+	// The block being read from a columnar file; its columns are
+	// read when first asked for
+	private long nextBlock;
+	private int records = 0;
+	private long keysAt;
+	private int keysLength;
+	private long valuesAt;
+	private int valuesLength;
+	private Object[] keys;
+	private Object[] values;
+	private int keyRecord = 0;
+	private int valueRecord = 0;
+	
 	/**
 	 * Creates an ExternalMapFile object of the specified file
 	 * and open it in the specified mode. 
@@ -174,29 +264,20 @@ public class MapFile<K> {
 		
 		if (mode.equals("r")) {
 			raf = new RandomAccessFile(file, "r");
+			readHeader();
 			cos = null;
 			oos = null;
 		} else if (mode.equals("rw")) {
 			raf = new RandomAccessFile(file, "rw");	
+			readHeader();
+			headerPending = raf.length() == 0;
 			
 			cos = new CountableOutputStream(
 					new BufferedOutputStream(
-							new FileOutputStream(raf.getFD()),
+							DiskQueues.newOutputStream(file, raf),
 							bufferSize));
 			
-			/* The writeStreamHeader method of the ObjectOutputStream 
-			 * is overridden to disable writing header. This action
-			 * is paired with overriding the readStreamHeader in the
-			 * ObjectInputStream (see few lines below) to disable
-			 * reading header (of course, since no header was
-			 * written). This allows us the ability to seek anywhere within
-			 * the file and start reading from there. 
-			 */
-			oos = new ObjectOutputStream(cos) {
-				@Override
-				protected void writeStreamHeader() throws IOException {
-				}
-			};
+			oos = newObjectOutputStream(cos);
 		} else {
 			throw new IllegalArgumentException("");
 		}
@@ -229,11 +310,40 @@ public class MapFile<K> {
 			
 		};
 		
+		ois = newObjectInputStream(bis);
+	}
+	
+	/**
+	 * Creates an ObjectOutputStream over the specified stream.
+	 */
+	static private ObjectOutputStream newObjectOutputStream(OutputStream os) 
+			throws IOException {
+		/* The writeStreamHeader method of the ObjectOutputStream 
+		 * is overridden to disable writing header. This action
+		 * is paired with overriding the readStreamHeader in the
+		 * ObjectInputStream (see below) to disable
+		 * reading header (of course, since no header was
+		 * written). This allows us the ability to seek anywhere within
+		 * the file and start reading from there. 
+		 */
+		return new ObjectOutputStream(os) {
+			@Override
+			protected void writeStreamHeader() throws IOException {
+			}
+		};
+	}
+	
+	/**
+	 * Creates an ObjectInputStream over the specified stream (the 
+	 * buffered stream of the file, or a column).
+	 */
+	static private ObjectInputStream newObjectInputStream(InputStream is) 
+			throws IOException {
 		/* Overridden readStreamHeader method to disable reading
 		 * header. See notes above, where the ObjectOutputStream
 		 * was overridden.
 		 */
-		ois = new ObjectInputStream(bis) {
+		return new ObjectInputStream(is) {
 			@Override
 			protected void readStreamHeader() throws IOException,
 					StreamCorruptedException {
@@ -241,6 +351,99 @@ public class MapFile<K> {
 		};
 	}
 	
+	/**
+	 * Reads the header of the file, if it has one, and positions
+	 * the file after it.
+	 */
+	private void readHeader() throws IOException {
+		if (raf.length() < HEADER_LENGTH)
+			return;
+		
+		byte[] header = new byte[HEADER_LENGTH];
+		raf.readFully(header);
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (header[i] != MAGIC[i]) {
+				raf.seek(0);
+				return;
+			}
+		}
+		
+		if (header[MAGIC.length] != VERSION)
+			throw new StreamCorruptedException("Unsupported MapFile version: " + 
+					header[MAGIC.length]);
+		
+		int flags = header[MAGIC.length + 1];
+		frontCoding = (flags & FRONT_CODED) != 0;
+		columnar = (flags & COLUMNAR) != 0;
+		headerLength = HEADER_LENGTH;
+		nextBlock = HEADER_LENGTH;
+	}
+	
+	/**
+	 * Writes the header before the first record of a new file. 
+	 */
+	private void writeHeader() throws IOException {
+		headerPending = false;
+		
+		byte[] header = new byte[HEADER_LENGTH];
+		System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+		header[MAGIC.length] = VERSION;
+		header[MAGIC.length + 1] = (byte) ((frontCoding ? FRONT_CODED : 0) |
+				(columnar ? COLUMNAR : 0));
+		
+		// Nothing is buffered in the object stream yet
+		cos.write(header);
+		headerLength = HEADER_LENGTH;
+		nextBlock = HEADER_LENGTH;
+	}
+	
+	/**
+	 * Enables or disables the front coding of the keys. The setting
+	 * is recorded in the header of the file, and therefore, can only
+	 * be changed before the first record is written. The files
+	 * with the header are read with the setting they were written
+	 * with.
+	 * 
+	 * @param frontCoding whether the keys are front coded
+	 * @throws IllegalStateException if the file has a header
+	 */
+	public void setFrontCoding(boolean frontCoding) {
+		if (headerLength > 0)
+			throw new IllegalStateException("The format is recorded in the file");
+		this.frontCoding = frontCoding;
+	}
+	
+	/**
+	 * Returns whether the keys are front coded.
+	 * 
+	 * @return whether the keys are front coded
+	 */
+	public boolean isFrontCoding() {
+		return frontCoding;
+	}
+	
+	/**
+	 * Enables or disables the columnar layout of the records. Like the
+	 * front coding, the setting is recorded in the header of the file.
+	 * 
+	 * @param columnar whether the records are written in column blocks
+	 * @throws IllegalStateException if the file has a header
+	 */
+	public void setColumnar(boolean columnar) {
+		if (headerLength > 0)
+			throw new IllegalStateException("The format is recorded in the file");
+		this.columnar = columnar;
+	}
+	
+	/**
+	 * Returns whether the records are written in column blocks.
+	 * 
+	 * @return whether the records are written in column blocks
+	 */
+	public boolean isColumnar() {
+		return columnar;
+	}
+	
 	
 	/**
 	 * Returns the index object used by this object.
@@ -261,13 +464,31 @@ public class MapFile<K> {
 	}
 	
 	/**
-	 * Seek to the specified offset
+	 * Seek to the specified offset. The offsets within the header
+	 * seek to the first record.
 	 * @param offset the offset to seek
 	 * @throws IOException
 	 */
 	public void seek(long offset) throws IOException {
+		if (offset < headerLength)
+			offset = headerLength;
+		
+		if (columnar) {
+			// The blocks are read at their offsets, and the file 
+			// pointer is left for the writer
+			nextBlock = offset;
+			records = keyRecord = valueRecord = 0;
+			keys = values = null;
+			return;
+		}
+		
 		raf.seek(offset);
 		bis.reset();
+		
+		// The ObjectInputStream may have buffered data too
+		ois = newObjectInputStream(bis);
+		lastReadKey = null;
+		lastWrittenKey = null;
 	}
 	
 	/**
@@ -278,9 +499,139 @@ public class MapFile<K> {
 	 * @throws ClassNotFoundException
 	 */
 	public Object read() throws IOException, ClassNotFoundException {
+		if (columnar) {
+			if (valueRecord == records) readBlock();
+			if (valuesLength < 0)
+				throw new StreamCorruptedException("The records have no values");
+			if (values == null) values = readColumn(valuesAt, valuesLength, false);
+			return values[valueRecord++];
+		}
+		
 		return ois.readUnshared();
 	}
 	
+	/**
+	 * Read the next key in the file. Unless the keys are front
+	 * coded, this method is the same as {@link #read()}.
+	 * 
+	 * @return the next key in the file
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public Object readKey() throws IOException, ClassNotFoundException {
+		if (columnar) {
+			if (keyRecord == records) readBlock();
+			if (keys == null) keys = readColumn(keysAt, keysLength, true);
+			return keys[keyRecord++];
+		}
+		
+		return readKey(ois);
+	}
+	
+	/**
+	 * Skips the next key in the file. The keys of a block of a
+	 * columnar file are not read if all of them are skipped.
+	 * 
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public void skipKey() throws IOException, ClassNotFoundException {
+		if (columnar) {
+			if (keyRecord == records) readBlock();
+			keyRecord ++;
+		} else {
+			readKey();
+		}
+	}
+	
+	/**
+	 * Skips the next value in the file. The values of a block of a
+	 * columnar file are not read if all of them are skipped.
+	 * 
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public void skipValue() throws IOException, ClassNotFoundException {
+		if (columnar) {
+			if (valueRecord == records) readBlock();
+			valueRecord ++;
+		} else {
+			ois.readUnshared();
+		}
+	}
+	
+	/**
+	 * Reads the header of the next block of a columnar file. 
+	 */
+	private void readBlock() throws IOException {
+		byte[] header = new byte[BLOCK_HEADER_LENGTH];
+		readFully(nextBlock, header);
+		
+		ByteBuffer buffer = ByteBuffer.wrap(header);
+		records = buffer.getInt();
+		keysLength = buffer.getInt();
+		valuesLength = buffer.getInt();
+		
+		keysAt = nextBlock + BLOCK_HEADER_LENGTH;
+		valuesAt = keysAt + keysLength;
+		nextBlock = valuesAt + Math.max(valuesLength, 0);
+		
+		keys = values = null;
+		keyRecord = valueRecord = 0;
+	}
+	
+	/**
+	 * Reads and decodes a column of the current block.
+	 */
+	private Object[] readColumn(long position, int length, boolean isKey) 
+			throws IOException, ClassNotFoundException {
+		byte[] bytes = new byte[length];
+		readFully(position, bytes);
+		
+		ObjectInputStream in = newObjectInputStream(
+				new ByteArrayInputStream(bytes));
+		Object[] column = new Object[records];
+		lastReadKey = null;
+		for (int i = 0; i < records; i++) {
+			column[i] = isKey ? readKey(in) : in.readUnshared();
+		}
+		return column;
+	}
+	
+	/**
+	 * Reads the bytes at the specified position, without moving the
+	 * file pointer.
+	 */
+	private void readFully(long position, byte[] bytes) throws IOException {
+		FileChannel channel = raf.getChannel();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException();
+		}
+	}
+	
+	/**
+	 * Reads a key from the specified stream. 
+	 */
+	private Object readKey(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+		if (! frontCoding)
+			return ois.readUnshared();
+		
+		int shared = readLength(ois) - 1;
+		if (shared < 0) {
+			Object key = ois.readUnshared();
+			lastReadKey = key instanceof String ? (String) key : null;
+			return key;
+		}
+		
+		String suffix = ois.readUTF();
+		String key = shared == 0 ? suffix : 
+			lastReadKey.substring(0, shared).concat(suffix);
+		lastReadKey = key;
+		return key;
+	}
+	
 	/**
 	 * Write the specified key to the file.  
 	 * 
@@ -290,8 +641,13 @@ public class MapFile<K> {
 	public void write(K key) throws IOException {
 		if (oos == null)
 			throw new IOException("ExternalMapFile is opened in read only mode");
+		if (headerPending) writeHeader();
+		if (columnar) {
+			writeRecord(key, null, false);
+			return;
+		}
 		checkResetAndIndex(key);
-		oos.writeUnshared(key);
+		writeKey(oos, key);
 	}
 	
 	/**
@@ -304,19 +660,137 @@ public class MapFile<K> {
 	public void write(K key, Object value) throws IOException {
 		if (oos == null)
 			throw new IOException("ExternalMapFile is opened in read only mode");
+		if (headerPending) writeHeader();
+		if (columnar) {
+			writeRecord(key, value, true);
+			return;
+		}
 		checkResetAndIndex(key);
-		oos.writeUnshared(key);
+		writeKey(oos, key);
 		oos.writeUnshared(value);
 	}
 	
 	/**
-	 * Flushes the output stream.
+	 * Adds a record to the block of a columnar file, and writes the
+	 * block once it has <tt>bytesPerIndex</tt> bytes. Each block is
+	 * one entry of the index.
+	 */
+	private void writeRecord(K key, Object value, boolean hasValue) throws IOException {
+		long bytesPerBlock = bytesPerIndex > 0 ? bytesPerIndex : DEFAULT_BYTES_PER_BLOCK;
+		
+		if (blockRecords > 0 && (hasValue != blockValues ||
+				keyColumn.size() + valueColumn.size() >= bytesPerBlock)) {
+			writeBlock();
+		}
+		
+		if (blockRecords == 0) {
+			keyOut = newObjectOutputStream(keyColumn);
+			valueOut = newObjectOutputStream(valueColumn);
+			blockValues = hasValue;
+			lastWrittenKey = null;
+			
+			if (index != null)
+				index.createIndex(key, cos.getBytesWritten());
+		} else if (index != null) {
+			index.skip();
+		}
+		
+		writeKey(keyOut, key);
+		if (hasValue) valueOut.writeUnshared(value);
+		if (index != null) index.setLastKey(key);
+		blockRecords ++;
+	}
+	
+	/**
+	 * Writes the pending block of a columnar file.
+	 */
+	private void writeBlock() throws IOException {
+		keyOut.flush();
+		valueOut.flush();
+		
+		byte[] header = new byte[BLOCK_HEADER_LENGTH];
+		ByteBuffer.wrap(header)
+			.putInt(blockRecords)
+			.putInt(keyColumn.size())
+			.putInt(blockValues ? valueColumn.size() : -1);
+		
+		cos.write(header);
+		keyColumn.writeTo(cos);
+		if (blockValues) valueColumn.writeTo(cos);
+		
+		keyColumn.reset();
+		valueColumn.reset();
+		blockRecords = 0;
+	}
+	
+	/**
+	 * Writes the key, front coded if it is a String and front
+	 * coding is enabled. A front coded key is written as primitive
+	 * data: the length of the shared prefix plus one, and the suffix.
+	 * Other keys are written as a zero, followed by the object.
+	 */
+	private void writeKey(ObjectOutputStream oos, K key) throws IOException {
+		if (! frontCoding) {
+			oos.writeUnshared(key);
+			return;
+		}
+		
+		if (key instanceof String) {
+			String string = (String) key;
+			int shared = 0;
+			if (lastWrittenKey != null) {
+				int max = Math.min(lastWrittenKey.length(), string.length());
+				while (shared < max && 
+						lastWrittenKey.charAt(shared) == string.charAt(shared))
+					shared ++;
+			}
+			
+			if (string.length() - shared <= MAX_SUFFIX) {
+				writeLength(oos, shared + 1);
+				oos.writeUTF(string.substring(shared));
+				lastWrittenKey = string;
+				return;
+			}
+		}
+		
+		writeLength(oos, 0);
+		oos.writeUnshared(key);
+		lastWrittenKey = key instanceof String ? (String) key : null;
+	}
+	
+	/**
+	 * Writes a length in seven bits per byte.
+	 */
+	static private void writeLength(ObjectOutputStream oos, int length) throws IOException {
+		while ((length & ~0x7F) != 0) {
+			oos.writeByte((length & 0x7F) | 0x80);
+			length >>>= 7;
+		}
+		oos.writeByte(length);
+	}
+	
+	static private int readLength(ObjectInputStream ois) throws IOException {
+		int length = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = ois.readByte();
+			length |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return length;
+	}
+	
+	/**
+	 * Flushes the output stream. The pending block of a columnar
+	 * file is written.
 	 * 
 	 * @throws IOException
 	 */
 	public void flush() throws IOException {
 		if (oos == null)
 			throw new IOException("ExternalMapFile is opened in read only mode");
+		if (blockRecords > 0) writeBlock();
 		oos.flush();
 	}
 	
@@ -326,7 +800,10 @@ public class MapFile<K> {
 	 * @throws IOException
 	 */
 	public void close() throws IOException {
-		if (oos != null) oos.close();
+		if (oos != null) {
+			if (blockRecords > 0) writeBlock();
+			oos.close();
+		}
 		if (ois != null) ois.close();
 		
 		raf.close();
@@ -357,9 +834,13 @@ public class MapFile<K> {
 
 				index.createIndex(key, offset);
 				nextIndexAt = offset + bytesPerIndex;
+				
+				// The keys can be read from here
+				lastWrittenKey = null;
 			} else {
 				index.skip();
 			}
+			index.setLastKey(key);
 		}
 		
 		if (offset > nextResetAt) {
@@ -380,7 +861,7 @@ public class MapFile<K> {
 
 			System.out.println(">>>> " + arg);
 			try {
-				Object k = mapfile.read();
+				Object k = mapfile.readKey();
 				Object v = mapfile.read();
 				System.out.println(String.format("%s\t%s\n", k, v));
 			} catch (EOFException e) {
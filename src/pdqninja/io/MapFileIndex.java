@@ -41,7 +41,10 @@ import java.util.List;
  * can be used to locate the neighborhood of a given key. This method
  * returns the exact file offset if this key was part of the index,
  * or the file offset of the largest key that is smaller than this
- * key.
+ * key. Each entry also records the last key written before the next
+ * entry, that is, the range of keys of its block, so that the
+ * {@link #getBlockForKey(Object)} method can tell that a key is not
+ * in the file without reading it.
  * <p>
  * This index can be written to a file using the {@link #write(File)}
  * method, and read from a file using the {@link #read(File)} method.
@@ -58,8 +61,9 @@ public class MapFileIndex<K> implements Serializable {
 	/**
 	 * A single entry in the index. The entry consists of the key,
 	 * the offset within the file where this key is written,
-	 * and the number of keys that were skipped in the index since
-	 * the last entry in the index.
+	 * the number of keys that were skipped in the index since
+	 * the last entry in the index, and the last key before the next
+	 * entry in the index.
 	 * 
 	 *  
 	 * @author mvarshney
@@ -72,11 +76,13 @@ public class MapFileIndex<K> implements Serializable {
 		K key;
 		long offset;
 		int skipped;
+		K lastKey;
 		
 		public Entry(K key, long offset, int skipped) {
 			this.key = key;
 			this.offset = offset;
 			this.skipped = skipped;
+			this.lastKey = key;
 		}
 
 		
@@ -101,6 +107,13 @@ public class MapFileIndex<K> implements Serializable {
 			return skipped;
 		}
 
+		/**
+		 * @return the last key before the next entry
+		 */
+		public K getLastKey() {
+			return lastKey;
+		}
+		
 
 		/* (non-Javadoc)
 		 * @see java.lang.Object#toString()
@@ -108,7 +121,7 @@ public class MapFileIndex<K> implements Serializable {
 		@Override
 		public String toString() {
 			return "Entry [key=" + key + ", offset=" + offset + ", skipped="
-					+ skipped + "]";
+					+ skipped + ", lastKey=" + lastKey + "]";
 		}
 		
 	}
@@ -194,6 +207,17 @@ public class MapFileIndex<K> implements Serializable {
 		skipped = 0;
 	}
 	
+	/**
+	 * Indicates the last key written so far, which is the last
+	 * key of the latest entry.
+	 * 
+	 * @param key the key written to the map file
+	 */
+	public void setLastKey(K key) {
+		if (! entries.isEmpty())
+			entries.get(entries.size() - 1).lastKey = key;
+	}
+	
 	/**
 	 * Returns the entry at the specified position in the index.
 	 * 
@@ -218,6 +242,27 @@ public class MapFileIndex<K> implements Serializable {
 		return idx < 0 ? null : entries.get(idx);
 	}
 	
+	/**
+	 * Return the largest index entry that is smaller than the
+	 * specified key, if the key is not greater than the last key
+	 * of the entry. Returns <tt>null</tt> if the key is not within
+	 * the range of any entry; the map file does not contain the
+	 * key then.
+	 * 
+	 * @param key the specified key
+	 * @return the entry whose range may contain the key
+	 */
+	public Entry<K> getBlockForKey(K key) {
+		int idx = getIndexForKey(key, true);
+		if (idx < 0) return null;
+		
+		Entry<K> entry = entries.get(idx);
+		if (entry.lastKey != null && entryComparator.compare(
+				new Entry<K>(key, 0, 0), new Entry<K>(entry.lastKey, 0, 0)) > 0)
+			return null;
+		return entry;
+	}
+	
 	/**
 	 * Returns an index entry closest to the specified key.
 	 * If <tt>lowerBound</tt> is true, return the largest 
@@ -0,0 +1,157 @@
+package pdqninja.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Reads a region of a file in chunks, reading the next chunk ahead
+ * while the current one is consumed. The chunks are read by the
+ * specified queue; if no queue is given, they are read by the
+ * calling thread.
+ *
+ * @author mvarshney
+ * @see DiskQueues
+ */
+final class ReadAheadInputStream extends InputStream {
+	private final FileChannel channel;
+	private final ExecutorService queue;
+	private long position;
+	private long remaining;
+
+	private ByteBuffer current;
+	private ByteBuffer spare;
+	private Future<ByteBuffer> pending;
+
+	/**
+	 * Creates the stream for <tt>length</tt> bytes of the file,
+	 * starting at the specified position.
+	 *
+	 * @param channel the file
+	 * @param position offset where the region begins
+	 * @param length length of the region
+	 * @param queue the queue that reads the chunks, or <tt>null</tt>
+	 */
+	ReadAheadInputStream(FileChannel channel, long position, long length,
+			ExecutorService queue) {
+		this.channel = channel;
+		this.position = position;
+		this.remaining = length;
+		this.queue = queue;
+
+		int size = (int) Math.min(DiskQueues.CHUNK_SIZE, Math.max(length, 1));
+		this.spare = ByteBuffer.allocate(size);
+		this.pending = readAhead();
+	}
+
+	/**
+	 * Schedules the reading of the next chunk into the spare buffer.
+	 */
+	private Future<ByteBuffer> readAhead() {
+		if (remaining <= 0) return null;
+
+		final ByteBuffer buffer = spare;
+		final long offset = position;
+		int len = (int) Math.min(buffer.capacity(), remaining);
+
+		position += len;
+		remaining -= len;
+		spare = null;
+
+		buffer.clear();
+		buffer.limit(len);
+
+		Callable<ByteBuffer> task = new Callable<ByteBuffer>() {
+			@Override
+			public ByteBuffer call() throws IOException {
+				while (buffer.hasRemaining()) {
+					int n = channel.read(buffer, offset + buffer.position());
+					if (n < 0) break;
+				}
+				buffer.flip();
+				return buffer;
+			}
+		};
+
+		if (queue != null)
+			return queue.submit(task);
+
+		FutureTask<ByteBuffer> future = new FutureTask<ByteBuffer>(task);
+		future.run();
+		return future;
+	}
+
+	/**
+	 * Makes sure that the current buffer has data.
+	 *
+	 * @return <tt>false</tt> at the end of the region
+	 */
+	private boolean fill() throws IOException {
+		if (current != null && current.hasRemaining()) return true;
+		if (pending == null) return false;
+
+		ByteBuffer next;
+		try {
+			next = pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+
+		if (current != null) spare = current;
+		current = next;
+
+		if (! current.hasRemaining()) {
+			// The file is shorter than expected
+			remaining = 0;
+			pending = null;
+			return false;
+		}
+
+		if (spare == null)
+			spare = ByteBuffer.allocate(current.capacity());
+		pending = readAhead();
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (! fill()) return -1;
+		return current.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (! fill()) return -1;
+
+		int n = Math.min(len, current.remaining());
+		current.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return current == null ? 0 : current.remaining();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (pending != null) {
+			pending.cancel(false);
+			pending = null;
+		}
+		current = null;
+		spare = null;
+	}
+}
@@ -0,0 +1,135 @@
+package pdqninja.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Writes to a file in chunks, which are written by the specified
+ * queue while the caller fills the next chunk. At most
+ * {@link #MAX_PENDING} chunks are waiting to be written at any
+ * time; the caller blocks when it gets ahead of the disk by more
+ * than that. The data is guaranteed to be in the file only after
+ * the stream is flushed.
+ *
+ * @author mvarshney
+ * @see DiskQueues
+ */
+final class WriteBehindOutputStream extends OutputStream {
+	/**
+	 * Maximum number of chunks waiting to be written.
+	 */
+	static final int MAX_PENDING = 2;
+
+	private final FileChannel channel;
+	private final ExecutorService queue;
+	private long position;
+
+	private ByteBuffer current = ByteBuffer.allocate(DiskQueues.CHUNK_SIZE);
+	private final LinkedList<Future<ByteBuffer>> pending =
+			new LinkedList<Future<ByteBuffer>>();
+	private final LinkedList<ByteBuffer> free = new LinkedList<ByteBuffer>();
+
+	/**
+	 * Creates the stream that writes to the file starting at the
+	 * specified position.
+	 *
+	 * @param channel the file
+	 * @param position offset where the writing begins
+	 * @param queue the queue that writes the chunks
+	 */
+	WriteBehindOutputStream(FileChannel channel, long position,
+			ExecutorService queue) {
+		this.channel = channel;
+		this.position = position;
+		this.queue = queue;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (! current.hasRemaining()) writeBehind();
+		current.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (! current.hasRemaining()) writeBehind();
+
+			int n = Math.min(len, current.remaining());
+			current.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Schedules the writing of the current chunk, and takes a free
+	 * buffer for the next one.
+	 */
+	private void writeBehind() throws IOException {
+		if (current.position() == 0) return;
+
+		final ByteBuffer buffer = current;
+		final long offset = position;
+		buffer.flip();
+		position += buffer.remaining();
+
+		pending.add(queue.submit(new Callable<ByteBuffer>() {
+			@Override
+			public ByteBuffer call() throws IOException {
+				long at = offset;
+				while (buffer.hasRemaining()) {
+					at += channel.write(buffer, at);
+				}
+				buffer.clear();
+				return buffer;
+			}
+		}));
+
+		while (pending.size() > MAX_PENDING) {
+			free.add(await(pending.removeFirst()));
+		}
+
+		current = free.isEmpty()
+				? ByteBuffer.allocate(DiskQueues.CHUNK_SIZE)
+				: free.removeFirst();
+	}
+
+	private ByteBuffer await(Future<ByteBuffer> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Writes the buffered data, and waits until all the data
+	 * is written to the file.
+	 */
+	@Override
+	public void flush() throws IOException {
+		writeBehind();
+		while (! pending.isEmpty()) {
+			free.add(await(pending.removeFirst()));
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		channel.close();
+	}
+}
@@ -0,0 +1,63 @@
+package pdqninja.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count of events (or a sum of amounts, such as bytes). The count
+ * is updated only while the metrics are enabled (see 
+ * {@link Metrics#setEnabled(boolean)}).
+ * 
+ * @author mvarshney
+ */
+public final class Counter {
+	private final String name;
+	private final AtomicLong count = new AtomicLong();
+	
+	Counter(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * @return the name of the counter
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Increments the count by one.
+	 */
+	public void inc() {
+		if (! Metrics.enabled) return;
+		count.incrementAndGet();
+	}
+	
+	/**
+	 * Increments the count by the specified amount.
+	 * 
+	 * @param n the amount
+	 */
+	public void inc(long n) {
+		if (! Metrics.enabled) return;
+		count.addAndGet(n);
+	}
+	
+	/**
+	 * @return the count
+	 */
+	public long getCount() {
+		return count.get();
+	}
+	
+	/**
+	 * Resets the count to zero.
+	 */
+	public void reset() {
+		count.set(0);
+	}
+	
+	@Override
+	public String toString() {
+		return name + "=" + count.get();
+	}
+}
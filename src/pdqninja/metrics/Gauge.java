@@ -0,0 +1,53 @@
+package pdqninja.metrics;
+
+/**
+ * The last sampled value of a quantity (such as the heap in use).
+ * The value is updated only while the metrics are enabled (see
+ * {@link Metrics#setEnabled(boolean)}).
+ * 
+ * @author mvarshney
+ */
+public final class Gauge {
+	private final String name;
+	private volatile long value;
+	
+	Gauge(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * @return the name of the gauge
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Sets the value.
+	 * 
+	 * @param value the sampled value
+	 */
+	public void set(long value) {
+		if (! Metrics.enabled) return;
+		this.value = value;
+	}
+	
+	/**
+	 * @return the last sampled value
+	 */
+	public long getValue() {
+		return value;
+	}
+	
+	/**
+	 * Resets the value to zero.
+	 */
+	public void reset() {
+		value = 0;
+	}
+	
+	@Override
+	public String toString() {
+		return name + "=" + value;
+	}
+}
@@ -0,0 +1,153 @@
+package pdqninja.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The distribution of recorded values, such as latencies or sizes.
+ * <p>
+ * The values are counted in buckets of logarithmically increasing
+ * width (as in HdrHistogram): each power of two is divided into
+ * {@link #SUB_BUCKETS} buckets, so that the percentiles are 
+ * accurate to about 3% of the value, whatever its magnitude. The 
+ * memory used is fixed, and recording a value takes a few 
+ * arithmetic operations and an atomic increment, without locks.
+ * Negative values are recorded as zero.
+ * <p>
+ * The values are recorded only while the metrics are enabled (see
+ * {@link Metrics#setEnabled(boolean)}).
+ * 
+ * @author mvarshney
+ */
+public final class Histogram {
+	static final int SUB_BITS = 5;
+	static final int SUB_BUCKETS = 1 << SUB_BITS;
+	static final int BUCKETS = (63 - SUB_BITS) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+	
+	private final String name;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	Histogram(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * @return the name of the histogram
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Records a value.
+	 * 
+	 * @param value the value
+	 */
+	public void record(long value) {
+		if (! Metrics.enabled) return;
+		if (value < 0) value = 0;
+		
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) break;
+		}
+	}
+	
+	/**
+	 * Returns the bucket of the value.
+	 */
+	static int index(long value) {
+		if (value < 2 * SUB_BUCKETS) return (int) value;
+		
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift * SUB_BUCKETS) + (int) (value >>> shift);
+	}
+	
+	/**
+	 * Returns the highest value counted in the bucket.
+	 */
+	static long highest(int index) {
+		if (index < 2 * SUB_BUCKETS) return index;
+		
+		int shift = index / SUB_BUCKETS - 1;
+		long sub = index - shift * SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+	
+	/**
+	 * @return the number of values recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+	
+	/**
+	 * @return the sum of the values recorded
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+	
+	/**
+	 * @return the largest value recorded
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * @return the mean of the values recorded
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : 1.0 * sum.get() / n;
+	}
+	
+	/**
+	 * Returns the value below which the specified percentage of the
+	 * recorded values fall.
+	 * 
+	 * @param percentile the percentage, between 0 and 100
+	 * @return the value at the percentile (to the accuracy of the 
+	 * buckets)
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) return 0;
+		
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) 
+				return Math.min(highest(i), max.get());
+		}
+		return max.get();
+	}
+	
+	/**
+	 * Discards the recorded values.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s count=%d mean=%.2f p50=%d p99=%d max=%d",
+				name, getCount(), getMean(), getPercentile(50), 
+				getPercentile(99), getMax());
+	}
+}
@@ -0,0 +1,33 @@
+package pdqninja.metrics;
+
+import java.util.Collection;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes the metrics to the log, one line per metric.
+ * 
+ * @author mvarshney
+ */
+public class LoggingReporter implements MetricsReporter {
+	static private Logger logger = Logger.getLogger(LoggingReporter.class);
+	
+	@Override
+	public void report(Collection<Counter> counters,
+			Collection<Histogram> histograms, Collection<Gauge> gauges) {
+		if (! logger.isInfoEnabled()) return;
+		
+		for (Counter counter: counters) {
+			if (counter.getCount() > 0) 
+				logger.info(counter.toString());
+		}
+		for (Gauge gauge: gauges) {
+			if (gauge.getValue() > 0) 
+				logger.info(gauge.toString());
+		}
+		for (Histogram histogram: histograms) {
+			if (histogram.getCount() > 0) 
+				logger.info(histogram.toString());
+		}
+	}
+}
@@ -0,0 +1,318 @@
+package pdqninja.metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The registry of the metrics of the JVM.
+ * <p>
+ * The metrics are created once (typically, as static fields of the
+ * class that updates them) by name, via the {@link #counter(String)},
+ * {@link #gauge(String)} and {@link #histogram(String)} methods; the
+ * same name always
+ * returns the same metric. The metrics are updated only while they
+ * are enabled (via the <code>-PDQ:Metrics=true</code> option, or the
+ * {@link #setEnabled(boolean)} method). While disabled, updating a
+ * metric costs a single check of a flag.
+ * <p>
+ * Once enabled, the metrics are published as the attributes of the
+ * <code>pdqninja:type=Metrics</code> MBean of the platform MBean
+ * server, and to the reporters added via the 
+ * {@link #addReporter(MetricsReporter, long)} method.
+ * 
+ * @author mvarshney
+ * @see Counter
+ * @see Gauge
+ * @see Histogram
+ */
+public final class Metrics {
+	static private Logger logger = Logger.getLogger(Metrics.class);
+	
+	static volatile boolean enabled = false;
+	
+	static private final Map<String, Counter> counters = 
+			new ConcurrentSkipListMap<String, Counter>();
+	static private final Map<String, Gauge> gauges = 
+			new ConcurrentSkipListMap<String, Gauge>();
+	static private final Map<String, Histogram> histograms = 
+			new ConcurrentSkipListMap<String, Histogram>();
+	static private final Map<MetricsReporter, ScheduledFuture<?>> reporters =
+			new ConcurrentHashMap<MetricsReporter, ScheduledFuture<?>>();
+	
+	static private ScheduledExecutorService scheduler;
+	static private boolean registered = false;
+	static private long gcTime = -1;
+	static private long gcCount = 0;
+	
+	/**
+	 * Time spent in garbage collection between two samples, in
+	 * milliseconds (see {@link #sampleGC()}).
+	 */
+	static private final Histogram gcPauses = histogram("jvm.gc.ms");
+	static private final Counter gcCollections = counter("jvm.gc.collections");
+	
+	/**
+	 * Size of the heap, in bytes (see {@link #sampleHeap()}).
+	 */
+	static private final Gauge heapTotal = gauge("jvm.heap.total");
+	static private final Gauge heapFree = gauge("jvm.heap.free");
+	static private final Gauge heapUsed = gauge("jvm.heap.used");
+	
+	private Metrics() {}
+	
+	/**
+	 * @return <tt>true</tt> if the metrics are being updated
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Enables (or disables) the updates of the metrics. The MBean
+	 * is registered the first time the metrics are enabled.
+	 * 
+	 * @param enable whether to update the metrics
+	 */
+	public static synchronized void setEnabled(boolean enable) {
+		enabled = enable;
+		if (enable && ! registered) {
+			registered = true;
+			register();
+		}
+	}
+	
+	/**
+	 * Returns the counter with the specified name, creating it if
+	 * necessary.
+	 */
+	public static Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			synchronized (counters) {
+				counter = counters.get(name);
+				if (counter == null) {
+					counter = new Counter(name);
+					counters.put(name, counter);
+				}
+			}
+		}
+		return counter;
+	}
+	
+	/**
+	 * Returns the gauge with the specified name, creating it if
+	 * necessary.
+	 */
+	public static Gauge gauge(String name) {
+		Gauge gauge = gauges.get(name);
+		if (gauge == null) {
+			synchronized (gauges) {
+				gauge = gauges.get(name);
+				if (gauge == null) {
+					gauge = new Gauge(name);
+					gauges.put(name, gauge);
+				}
+			}
+		}
+		return gauge;
+	}
+	
+	/**
+	 * Returns the histogram with the specified name, creating it if
+	 * necessary.
+	 */
+	public static Histogram histogram(String name) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			synchronized (histograms) {
+				histogram = histograms.get(name);
+				if (histogram == null) {
+					histogram = new Histogram(name);
+					histograms.put(name, histogram);
+				}
+			}
+		}
+		return histogram;
+	}
+	
+	/**
+	 * @return the counters, ordered by name
+	 */
+	public static Collection<Counter> counters() {
+		return Collections.unmodifiableCollection(counters.values());
+	}
+	
+	/**
+	 * @return the gauges, ordered by name
+	 */
+	public static Collection<Gauge> gauges() {
+		return Collections.unmodifiableCollection(gauges.values());
+	}
+	
+	/**
+	 * @return the histograms, ordered by name
+	 */
+	public static Collection<Histogram> histograms() {
+		return Collections.unmodifiableCollection(histograms.values());
+	}
+	
+	/**
+	 * Resets all the metrics.
+	 */
+	public static void reset() {
+		for (Counter counter: counters.values()) {
+			counter.reset();
+		}
+		for (Gauge gauge: gauges.values()) {
+			gauge.reset();
+		}
+		for (Histogram histogram: histograms.values()) {
+			histogram.reset();
+		}
+	}
+	
+	/**
+	 * Records the time spent in garbage collection since the
+	 * previous sample. The time is taken from the garbage collector
+	 * MXBeans; it is called by the library after each round of
+	 * splits, and may be called by applications at any time.
+	 */
+	public static void sampleGC() {
+		if (! enabled) return;
+		
+		long time = 0;
+		long collections = 0;
+		for (GarbageCollectorMXBean gc: 
+				ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(0, gc.getCollectionTime());
+			collections += Math.max(0, gc.getCollectionCount());
+		}
+		
+		synchronized (Metrics.class) {
+			if (gcTime >= 0) 
+				gcPauses.record(time - gcTime);
+			gcCollections.inc(collections - gcCount);
+			gcTime = time;
+			gcCount = collections;
+		}
+	}
+	
+	/**
+	 * Records the size of the heap, and the part of it that is free
+	 * and in use. It is called by the library after each round of
+	 * splits, and may be called by applications at any time.
+	 */
+	public static void sampleHeap() {
+		if (! enabled) return;
+		
+		Runtime runtime = Runtime.getRuntime();
+		long total = runtime.totalMemory();
+		long free = runtime.freeMemory();
+		heapTotal.set(total);
+		heapFree.set(free);
+		heapUsed.set(total - free);
+	}
+	
+	/**
+	 * Calls the reporter periodically, from a daemon thread.
+	 * 
+	 * @param reporter the reporter
+	 * @param period the period, in milliseconds
+	 */
+	public static synchronized void addReporter(final MetricsReporter reporter, 
+			long period) {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "PDQ-Metrics");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		
+		ScheduledFuture<?> future = scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sampleGC();
+					sampleHeap();
+					reporter.report(counters(), histograms(), gauges());
+				} catch (RuntimeException e) {
+					logger.warn("Metrics reporter failed", e);
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+		
+		ScheduledFuture<?> previous = reporters.put(reporter, future);
+		if (previous != null) previous.cancel(false);
+	}
+	
+	/**
+	 * Stops calling the reporter.
+	 * 
+	 * @param reporter the reporter
+	 */
+	public static void removeReporter(MetricsReporter reporter) {
+		ScheduledFuture<?> future = reporters.remove(reporter);
+		if (future != null) future.cancel(false);
+	}
+	
+	/**
+	 * Registers the MBean that publishes the metrics.
+	 */
+	private static void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(MetricsMBean.NAME);
+			if (! server.isRegistered(name))
+				server.registerMBean(new MetricsMBean(), name);
+		} catch (Exception e) {
+			logger.warn("Cannot register the metrics MBean", e);
+		}
+	}
+	
+	/**
+	 * Returns the values of the metrics as attributes: the count of
+	 * each counter; the value of each gauge; and the count, mean, percentiles and maximum of
+	 * each histogram (with the suffixes <tt>.count</tt>, 
+	 * <tt>.mean</tt>, <tt>.p50</tt>, <tt>.p90</tt>, <tt>.p99</tt> 
+	 * and <tt>.max</tt>).
+	 */
+	static Map<String, Object> attributes() {
+		Map<String, Object> attributes = new ConcurrentSkipListMap<String, Object>();
+		for (Counter counter: counters.values()) {
+			attributes.put(counter.getName(), counter.getCount());
+		}
+		for (Gauge gauge: gauges.values()) {
+			attributes.put(gauge.getName(), gauge.getValue());
+		}
+		for (Histogram histogram: histograms.values()) {
+			String name = histogram.getName();
+			attributes.put(name + ".count", histogram.getCount());
+			attributes.put(name + ".mean", histogram.getMean());
+			attributes.put(name + ".p50", histogram.getPercentile(50));
+			attributes.put(name + ".p90", histogram.getPercentile(90));
+			attributes.put(name + ".p99", histogram.getPercentile(99));
+			attributes.put(name + ".max", histogram.getMax());
+		}
+		return attributes;
+	}
+}
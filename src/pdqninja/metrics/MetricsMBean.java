@@ -0,0 +1,75 @@
+package pdqninja.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * Publishes the metrics of the {@link Metrics} registry via JMX, as 
+ * read-only attributes. The attributes are those of the metrics
+ * that exist when the MBean is inspected.
+ * 
+ * @author mvarshney
+ */
+final class MetricsMBean implements DynamicMBean {
+	static final String NAME = "pdqninja:type=Metrics";
+	
+	@Override
+	public Object getAttribute(String attribute) 
+			throws AttributeNotFoundException {
+		Object value = Metrics.attributes().get(attribute);
+		if (value == null) 
+			throw new AttributeNotFoundException(attribute);
+		return value;
+	}
+	
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Object> values = Metrics.attributes();
+		AttributeList list = new AttributeList();
+		for (String attribute: attributes) {
+			Object value = values.get(attribute);
+			if (value != null) list.add(new Attribute(attribute, value));
+		}
+		return list;
+	}
+	
+	@Override
+	public void setAttribute(Attribute attribute) 
+			throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read-only");
+	}
+	
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+	
+	@Override
+	public Object invoke(String actionName, Object[] params, 
+			String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+	
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> infos = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Object> entry: Metrics.attributes().entrySet()) {
+			infos.add(new MBeanAttributeInfo(entry.getKey(), 
+					entry.getValue().getClass().getName(), 
+					entry.getKey(), true, false, false));
+		}
+		
+		return new MBeanInfo(getClass().getName(), "PDQ metrics",
+				infos.toArray(new MBeanAttributeInfo[infos.size()]),
+				null, new MBeanOperationInfo[0], null);
+	}
+}
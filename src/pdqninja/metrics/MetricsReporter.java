@@ -0,0 +1,23 @@
+package pdqninja.metrics;
+
+import java.util.Collection;
+
+/**
+ * Publishes the metrics of the JVM, for example to a log or to a
+ * monitoring system. A reporter is called periodically, by a thread
+ * of the {@link Metrics} registry, once it has been added via the
+ * {@link Metrics#addReporter(MetricsReporter, long)} method.
+ * 
+ * @author mvarshney
+ */
+public interface MetricsReporter {
+	/**
+	 * Publishes the current values of the metrics.
+	 * 
+	 * @param counters the counters
+	 * @param histograms the histograms
+	 * @param gauges the gauges
+	 */
+	void report(Collection<Counter> counters, Collection<Histogram> histograms,
+			Collection<Gauge> gauges);
+}
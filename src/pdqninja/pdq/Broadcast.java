@@ -0,0 +1,441 @@
+package pdqninja.pdq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.log4j.Logger;
+
+import pdqninja.pdq.Distributor.CachingObjectInputStream;
+import pdqninja.pdq.Distributor.Connection;
+
+/**
+ * Distributes the @Shared arguments of a computation to the workers.
+ * <p>
+ * A @Shared argument is serialized only once at the master, into
+ * chunks of {@link #CHUNK_SIZE} bytes that are compressed
+ * independently (see {@link SharedArg}). Rather than uploading the
+ * argument to every worker, the master sends the chunks to the
+ * first worker of a <em>chain</em> of workers, and each worker
+ * forwards every chunk to the next worker of the chain as soon as
+ * it has received it. This way, the master uploads the argument
+ * only once, whatever the number of workers, and since the chunks
+ * are forwarded in a pipeline, the argument arrives at the last
+ * worker shortly after it arrives at the first one. Once the last
+ * worker has received the argument, the acknowledgments travel
+ * back along the chain to the master.
+ * <p>
+ * The chain uses connections of its own, apart from the connections
+ * that carry the computation; therefore, the workers must be able to
+ * reach each other at the addresses listed in the <tt>Workers</tt>
+ * option. A worker that cannot be reached is skipped in the chain.
+ * The master sends the argument along with the work request to the
+ * workers that have not acknowledged it.
+ *
+ * @author mvarshney
+ */
+final class Broadcast {
+	static private Logger logger = Logger.getLogger(Broadcast.class);
+
+	/**
+	 * Size of the chunks (before compression) of the serialized
+	 * arguments.
+	 */
+	static final int CHUNK_SIZE = 1024 * 1024;
+
+	/**
+	 * Minimum size (after compression) of the arguments that are
+	 * relayed along a chain; the smaller arguments are sent along
+	 * with the work requests.
+	 */
+	static final int RELAY_THRESHOLD = 1024 * 1024;
+
+	private Broadcast() {}
+
+	/**
+	 * Relays the argument along the chain of workers.
+	 *
+	 * @param arg the argument
+	 * @param jobId the identifier of the computation
+	 * @param chain the addresses of the workers
+	 * @return the addresses of the workers that have received
+	 * the argument
+	 */
+	static Set<String> relay(SharedArg arg, String jobId, List<String> chain) {
+		Set<String> delivered = new HashSet<String>();
+
+		Hop next = Hop.open(jobId, arg.hash, chain);
+		if (next == null) return delivered;
+
+		try {
+			for (byte[] chunk: arg.chunks) {
+				if (! next.forward(chunk)) return delivered;
+			}
+			if (next.end())
+				delivered.addAll(next.acknowledged());
+		} finally {
+			next.close();
+		}
+		return delivered;
+	}
+
+	/**
+	 * Serves a relay connection at a worker. Receives the chunks of
+	 * the argument and forwards them to the next worker in the chain.
+	 * Once all the chunks are received, the argument is
+	 * deserialized and cached by the worker (see
+	 * {@link PDQWorker#relayed(String, String, Object)}), and the
+	 * workers that have received the argument are acknowledged
+	 * to the previous worker (or the master).
+	 *
+	 * @param relay the first message of the relay connection
+	 * @param ois the stream from the previous worker
+	 * @param oos the stream to the previous worker
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	static void serve(MessageRelay relay, ObjectInputStream ois,
+			ObjectOutputStream oos) throws IOException, ClassNotFoundException {
+		String self = relay.chain.get(0);
+		Hop next = Hop.open(relay.jobId, relay.hash,
+				relay.chain.subList(1, relay.chain.size()));
+
+		List<byte[]> chunks = new ArrayList<byte[]>();
+		List<String> delivered = new ArrayList<String>();
+		try {
+			byte[] chunk;
+			while ((chunk = (byte[]) ois.readUnshared()) != null) {
+				chunks.add(chunk);
+
+				if (next != null && ! next.forward(chunk)) {
+					next.close();
+					next = null;
+				}
+			}
+
+			if (next != null && next.end())
+				delivered.addAll(next.acknowledged());
+		} finally {
+			if (next != null) next.close();
+		}
+
+		try {
+			Object arg = new SharedArg(relay.hash, chunks).toObject();
+			PDQWorker.relayed(relay.jobId, relay.hash, arg);
+			delivered.add(self);
+		} catch (IOException e) {
+			logger.error("Cannot read relayed shared argument", e);
+		} catch (ClassNotFoundException e) {
+			logger.error("Cannot read relayed shared argument", e);
+		}
+
+		oos.writeUnshared(new MessageRelayAck(delivered));
+		oos.flush();
+	}
+
+	/**
+	 * The connection to the next worker in a chain.
+	 *
+	 * @author mvarshney
+	 */
+	static final class Hop {
+		final String address;
+		final Connection conn;
+
+		private Hop(String address, Connection conn) {
+			this.address = address;
+			this.conn = conn;
+		}
+
+		/**
+		 * Connects to the first reachable worker of the chain, and
+		 * passes on the rest of the chain.
+		 *
+		 * @return the connection, or <tt>null</tt> if no worker
+		 * of the chain can be reached
+		 */
+		static Hop open(String jobId, String hash, List<String> chain) {
+			for (int i = 0; i < chain.size(); i++) {
+				String address = chain.get(i);
+				Connection conn = null;
+				try {
+					conn = Connection.open(address);
+					conn.oos.writeUnshared(new MessageRelay(jobId, hash,
+							new ArrayList<String>(chain.subList(i, chain.size()))));
+					return new Hop(address, conn);
+				} catch (IOException e) {
+					logger.warn("Skipping " + address + " in relay: " + e);
+					if (conn != null) conn.close();
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Forwards a chunk.
+		 *
+		 * @return <tt>false</tt> if the next worker has been lost
+		 */
+		boolean forward(byte[] chunk) {
+			try {
+				conn.oos.writeUnshared(chunk);
+				conn.oos.reset();
+				conn.oos.flush();
+				return true;
+			} catch (IOException e) {
+				logger.warn("Lost " + address + " in relay: " + e);
+				return false;
+			}
+		}
+
+		/**
+		 * Indicates the end of the chunks.
+		 *
+		 * @return <tt>false</tt> if the next worker has been lost
+		 */
+		boolean end() {
+			return forward(null);
+		}
+
+		/**
+		 * Waits for the acknowledgment of the next worker.
+		 *
+		 * @return the addresses of the workers, down the chain,
+		 * that have received the argument
+		 */
+		List<String> acknowledged() {
+			try {
+				return ((MessageRelayAck) conn.ois.readUnshared()).delivered;
+			} catch (IOException e) {
+				logger.warn("Lost " + address + " in relay: " + e);
+			} catch (ClassNotFoundException e) {
+				logger.warn("Lost " + address + " in relay: " + e);
+			}
+			return new ArrayList<String>();
+		}
+
+		void close() {
+			conn.close();
+		}
+	}
+
+	/**
+	 * A @Shared argument, serialized once for all the workers. The
+	 * serialized form is split into chunks of {@link #CHUNK_SIZE}
+	 * bytes, which are compressed independently. The argument is
+	 * identified by the SHA-1 hash of its serialized form; only the
+	 * hash is sent to the workers that already have the argument.
+	 *
+	 * @author mvarshney
+	 */
+	static final class SharedArg implements Serializable {
+		private static final long serialVersionUID = -4566939517371208043L;
+		final String hash;
+		final List<byte[]> chunks;
+
+		SharedArg(String hash, List<byte[]> chunks) {
+			this.hash = hash;
+			this.chunks = chunks;
+		}
+
+		/**
+		 * Serializes the argument.
+		 *
+		 * @param arg the argument
+		 * @return the serialized argument
+		 * @throws IOException
+		 */
+		static SharedArg of(Object arg) throws IOException {
+			ChunkOutputStream chunks = new ChunkOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(chunks);
+			oos.writeObject(arg);
+			oos.close();
+
+			return new SharedArg(chunks.hash(), chunks.chunks);
+		}
+
+		/**
+		 * Returns the reference to this argument, without the data.
+		 */
+		SharedArg reference() {
+			return new SharedArg(hash, null);
+		}
+
+		/**
+		 * Returns <tt>true</tt> if this is a reference, without
+		 * the data.
+		 */
+		boolean isReference() {
+			return chunks == null;
+		}
+
+		/**
+		 * Returns the compressed size of the argument.
+		 */
+		long size() {
+			long size = 0;
+			for (byte[] chunk: chunks) {
+				size += chunk.length;
+			}
+			return size;
+		}
+
+		/**
+		 * Deserializes the argument.
+		 *
+		 * @return the argument
+		 * @throws IOException
+		 * @throws ClassNotFoundException
+		 */
+		Object toObject() throws IOException, ClassNotFoundException {
+			final Iterator<byte[]> it = chunks.iterator();
+			InputStream in = new SequenceInputStream(new Enumeration<InputStream>() {
+				@Override
+				public boolean hasMoreElements() {
+					return it.hasNext();
+				}
+
+				@Override
+				public InputStream nextElement() {
+					return new InflaterInputStream(
+							new ByteArrayInputStream(it.next()));
+				}
+			});
+
+			ObjectInputStream ois = new CachingObjectInputStream(in);
+			try {
+				return ois.readObject();
+			} finally {
+				ois.close();
+			}
+		}
+	}
+
+	/**
+	 * Collects the written data in compressed chunks, and computes
+	 * the hash of the (uncompressed) data.
+	 *
+	 * @author mvarshney
+	 */
+	static final class ChunkOutputStream extends OutputStream {
+		final List<byte[]> chunks = new ArrayList<byte[]>();
+		private final byte[] buffer = new byte[CHUNK_SIZE];
+		private final byte[] compressed = new byte[64 * 1024];
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		private final MessageDigest digest;
+		private int count = 0;
+
+		ChunkOutputStream() {
+			try {
+				digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) compress();
+			buffer[count ++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buffer.length) compress();
+
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		private void compress() {
+			digest.update(buffer, 0, count);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(count / 2);
+			deflater.reset();
+			deflater.setInput(buffer, 0, count);
+			deflater.finish();
+			while (! deflater.finished()) {
+				int n = deflater.deflate(compressed);
+				out.write(compressed, 0, n);
+			}
+
+			chunks.add(out.toByteArray());
+			count = 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (count > 0) compress();
+			deflater.end();
+		}
+
+		/**
+		 * Returns the hash of the data, once the stream is closed.
+		 */
+		String hash() {
+			StringBuilder sb = new StringBuilder();
+			for (byte b: digest.digest()) {
+				sb.append(String.format("%02x", b & 0xff));
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * First message of a relay connection. The <tt>chain</tt> lists
+	 * the addresses of the receiving worker and of the workers that
+	 * follow it in the chain.
+	 *
+	 * @author mvarshney
+	 *
+	 */
+	static final class MessageRelay implements Serializable {
+		private static final long serialVersionUID = 2913604410957751804L;
+		String jobId;
+		String hash;
+		List<String> chain;
+
+		MessageRelay(String jobId, String hash, List<String> chain) {
+			this.jobId = jobId;
+			this.hash = hash;
+			this.chain = chain;
+		}
+	}
+
+	/**
+	 * Acknowledgment of a relay, listing the addresses of the
+	 * workers that have received the argument.
+	 *
+	 * @author mvarshney
+	 *
+	 */
+	static final class MessageRelayAck implements Serializable {
+		private static final long serialVersionUID = -6330845427155829186L;
+		List<String> delivered;
+
+		MessageRelayAck(List<String> delivered) {
+			this.delivered = delivered;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package pdqninja.pdq;
+
+import java.util.Iterator;
+
+/**
+ * A {@link Splittable} whose splits can be described by 
+ * {@link SplitDescriptor}s.
+ * <p>
+ * In the distributed execution mode, only the master JVM
+ * enumerates the splits of such an input, via the
+ * {@link #getSplitDescriptors()} method. The workers request
+ * the descriptors from the master as they need more work, so
+ * that faster workers process more splits. The inputs that 
+ * implement the plain <code>Splittable</code> interface are
+ * enumerated by every JVM, and the master assigns the splits 
+ * by their position in the iteration order.
+ * <p>
+ * The {@link #getSplitDescriptors()} iterator must describe the
+ * same splits, in the same order, as the {@link #getSplits()}
+ * iterator.
+ * 
+ * @author mvarshney
+ * @see SplitDescriptor
+ */
+public interface DescribedSplittable extends Splittable {
+	/**
+	 * Returns an iterator for the descriptors of the splits
+	 * of this object. 
+	 * <p>
+	 * The PDQ library will always call this method from
+	 * a sequential context, therefore, the implementing class does not
+	 * have to ensure thread-safety in this method.
+	 * 
+	 * @return an iterator for the split descriptors of this object
+	 */
+	Iterator<? extends SplitDescriptor> getSplitDescriptors();
+}
@@ -2,21 +2,33 @@ package pdqninja.pdq;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.NotSerializableException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
 import java.io.Serializable;
-import java.lang.reflect.Array;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.UnknownHostException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.log4j.Logger;
+
+import pdqninja.pdq.Broadcast.SharedArg;
+import pdqninja.pdq.SplitLedger.Assignment;
 
 /**
  * Coordinate with {@link PDQWorker}s to distribute jobs and collect results.
@@ -26,88 +38,299 @@ import java.util.List;
  *
  */
 class Distributor {
+	static private Logger logger = Logger.getLogger(Distributor.class);
+	
 	static final int SocketBufferSize = 256 * 1024; 
 			
 	static final int DEFAULT_WORKER_PORT = 9760;
+	
+	/**
+	 * Number of consecutive heartbeats a worker may miss before 
+	 * it is considered lost.
+	 */
+	static final int HEARTBEAT_MISSES = 3;
+	
+	/**
+	 * Connections to the workers that are not used by any 
+	 * computation, keyed by the address of the worker. A worker
+	 * serves any number of computations over a connection, so that
+	 * the subsequent computations of this JVM do not pay for 
+	 * establishing the connections.
+	 */
+	static private final Map<String, LinkedList<Connection>> pool = 
+			new HashMap<String, LinkedList<Connection>>();
+	
+	final PDQConfig config;
+	final String jobId;
+	final Profile profile;
+	
 	int numWorkers = 1;
-	List<Socket> sockets = new ArrayList<Socket>();
-	List<ObjectInputStream> inputStreams = new ArrayList<ObjectInputStream>();
-	List<ObjectOutputStream> outputStreams = new ArrayList<ObjectOutputStream>();
+	List<Connection> connections = new ArrayList<Connection>();
+	
+	/**
+	 * Liveness of each rank. The master (rank 0) is always alive.
+	 */
+	private volatile boolean[] alive = new boolean[] { true };
+	
+	/**
+	 * Directories holding data locally, advertised by each rank.
+	 */
+	private String[][] localDirs;
+	
+	private SplitLedger ledger;
+	private Monitor[] monitors;
+	
+	/**
+	 * Creates the distributor of the specified computation.
+	 * 
+	 * @param config the configuration of the computation
+	 * @param jobId the identifier of the computation
+	 * @param profile the timeline of the computation, or 
+	 * <tt>null</tt> if it is not recorded
+	 */
+	Distributor(PDQConfig config, String jobId, Profile profile) {
+		this.config = config;
+		this.jobId = jobId;
+		this.profile = profile;
+		this.localDirs = new String[][] { localDirs(config.getDisks()) };
+	}
 	
 	/**
 	 * Connect to each worker. The list of workers is presented as
 	 * a comma separated string of hostname and optionally the port number.
-	 * Establishes a connection with each worker and sends a "register"
+	 * Establishes a connection with each worker (or reuses an idle
+	 * connection from an earlier computation) and sends a "register"
 	 * message.
+	 * <p>
+	 * Each worker in the list is assigned a rank in the order
+	 * of its appearance in the list, whether or not the connection
+	 * could be established. Workers that cannot be reached are
+	 * marked as lost from the beginning, so that the ranks (and
+	 * therefore, the partitioning of the data structures) remain
+	 * consistent with the configuration. 
 	 *  
 	 * @param workerStr list of workers
 	 */
 	void connect(String workerStr) {
 		String[] workers = workerStr.split(",");
-		for (String worker: workers) {
-			String[] hostPort = worker.split(":");
+		
+		numWorkers = workers.length + 1;
+		alive = new boolean[numWorkers];
+		alive[0] = true;
+		localDirs = Arrays.copyOf(localDirs, numWorkers);
+		
+		for (int rank = 1; rank < numWorkers; rank++) {
+			String address = workers[rank - 1].trim();
 			try {
-				InetAddress address = InetAddress.getByName(hostPort[0]);
-				int port = hostPort.length > 1 ? Integer.parseInt(hostPort[1]) : DEFAULT_WORKER_PORT;
-				Socket sock = new Socket();
-				sock.connect(new InetSocketAddress(address, port));
-				sockets.add(sock);
-
-				
-				ObjectOutputStream oos =
-						new ObjectOutputStream(
-								new BufferedOutputStream(
-										sock.getOutputStream(),
-										SocketBufferSize));
-				
-				oos.flush();
-				outputStreams.add(oos);
-				
-				inputStreams.add(
-						new ObjectInputStream(
-								new BufferedInputStream(
-										sock.getInputStream(),
-										SocketBufferSize)));
+				Connection conn = handshake(rank, address);
+				connections.add(conn);
+				alive[rank] = true;
 				
-				//logger.info("Connected to " + address);
-				
-				numWorkers ++;
-			} catch (UnknownHostException e) {
-				e.printStackTrace();
-				continue;
+				// Each worker responds with the directories it holds locally
+				localDirs[rank] = conn.localDirs;
+				if (localDirs[rank].length > 0) {
+					logger.info("Worker " + rank + " holds " + 
+							Arrays.toString(localDirs[rank]));
+				}
 			} catch (IOException e) {
-				e.printStackTrace();
-				continue;
+				logger.warn("Cannot connect to worker " + rank + ": " + e);
+				connections.add(null);
+				alive[rank] = false;
+			}
+		}
+	}
+	
+	/**
+	 * Registers this computation with the worker at the specified
+	 * address. An idle connection to the worker is used if there
+	 * is one; if the worker does not respond over it (for example,
+	 * the worker has been restarted since), a new connection is
+	 * established.
+	 * 
+	 * @param rank the rank assigned to the worker
+	 * @param address the hostname and optionally the port number
+	 * @return the connection to the worker
+	 * @throws IOException
+	 */
+	private Connection handshake(int rank, String address) throws IOException {
+		Connection conn = Connection.take(address);
+		if (conn != null) {
+			try {
+				conn.register(new MessageRegister(rank, numWorkers, 
+						config.clone(), jobId));
+				logger.info("Reusing connection to " + address + " as rank " + rank);
+				return conn;
+			} catch (IOException e) {
+				conn.close();
 			}
 		}
 		
-		// Send register message to all output streams
-		MessageRegister register = new MessageRegister(
-				0, numWorkers, PDQConfig.current().clone());
-		
-		int rank = 1;
-		//register.config.setWorkers(null);
+		conn = Connection.open(address);
+		try {
+			conn.register(new MessageRegister(rank, numWorkers, 
+					config.clone(), jobId));
+		} catch (IOException e) {
+			conn.close();
+			throw e;
+		}
 		
-		for (ObjectOutputStream oos: outputStreams) {
-			register.rank = rank;
+		logger.info("Connected to " + address + " as rank " + rank);
+		return conn;
+	}
+	
+	/**
+	 * Parses the list of directories configured via the 
+	 * <tt>-PDQ:Disks</tt> option. Each entry is a directory,
+	 * optionally followed by a colon and its weight (which is
+	 * ignored here).
+	 * 
+	 * @param disks the comma separated list of directories
+	 * @return the canonical paths of the directories
+	 */
+	static String[] localDirs(String disks) {
+		List<String> dirs = new ArrayList<String>();
+		if (disks == null || disks.trim().equals("")) 
+			return new String[0];
 		
+		for (String name: disks.split(",")) {
+			name = name.trim();
+			File dir = new File(name);
+			if (! dir.exists() && name.matches(".*:\\d+")) {
+				dir = new File(name.substring(0, name.lastIndexOf(':')));
+			}
+			
 			try {
-				oos.writeUnshared(register);
-				oos.flush();
+				dirs.add(dir.getCanonicalPath());
 			} catch (IOException e) {
-				e.printStackTrace();
+				dirs.add(dir.getAbsolutePath());
 			}
-				
-			rank ++;
 		}
+		
+		return dirs.toArray(new String[dirs.size()]);
 	}
 	
-	void disconnect() {
-		for (Socket sock: sockets) {
-			try {
-				sock.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+	/**
+	 * Returns <tt>true</tt> if the worker with the specified rank
+	 * is alive.
+	 * 
+	 * @param rank the rank of the worker
+	 * @return <tt>true</tt> if the worker is alive
+	 */
+	boolean isAlive(int rank) {
+		return alive[rank];
+	}
+	
+	/**
+	 * Returns the number of ranks (including the master) that
+	 * are alive.
+	 * 
+	 * @return number of ranks alive
+	 */
+	int numAlive() {
+		int count = 0;
+		for (boolean isAlive: alive) {
+			if (isAlive) count ++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Marks the worker with the specified rank as lost. The
+	 * connection with the worker is closed, and the splits it
+	 * owned are released in the ledger (if the computation is
+	 * being monitored).
+	 *  
+	 * @param rank the rank of the worker
+	 * @param cause the reason why the worker is considered lost
+	 */
+	void markDead(int rank, Throwable cause) {
+		SplitLedger ledger;
+		
+		synchronized (this) {
+			if (! alive[rank]) return;
+			alive[rank] = false;
+			ledger = this.ledger;
+		}
+		
+		logger.error("Lost worker " + rank + ": " + cause);
+		
+		connections.get(rank - 1).close();
+		
+		if (ledger != null) {
+			int released = ledger.release(rank);
+			logger.warn(String.format("Released %d splits of worker %d " +
+					"for re-execution", released, rank));
+		}
+	}
+	
+	/**
+	 * Starts monitoring the workers while they compute. One monitor
+	 * thread per worker reads the heartbeats sent by the worker and
+	 * records the processed splits in the ledger, and serves the
+	 * requests of the worker for more splits. A worker is
+	 * considered lost if it misses {@link #HEARTBEAT_MISSES} 
+	 * consecutive heartbeats, if its connection breaks, or if it
+	 * reports a failure.
+	 * 
+	 * @param ledger the ledger where the processed splits are recorded
+	 */
+	void startMonitors(SplitLedger ledger) {
+		synchronized (this) {
+			this.ledger = ledger;
+		}
+		
+		for (int rank = 0; rank < numWorkers; rank++) {
+			ledger.setLocalDirs(rank, localDirs[rank]);
+		}
+		
+		for (int rank = 1; rank < numWorkers; rank++) {
+			if (! alive[rank]) ledger.release(rank);
+		}
+		
+		long timeout = HEARTBEAT_MISSES * config.getHeartbeat();
+		
+		monitors = new Monitor[numWorkers];
+		for (int rank = 1; rank < numWorkers; rank++) {
+			if (! alive[rank]) continue;
+			monitors[rank] = new Monitor(this, rank, timeout);
+			monitors[rank].start();
+		}
+	}
+	
+	/**
+	 * Waits until every worker has either finished computing or
+	 * has been lost.
+	 * 
+	 * @throws InterruptedException
+	 */
+	void awaitCompute() throws InterruptedException {
+		if (monitors == null) return;
+		
+		for (int rank = 1; rank < numWorkers; rank++) {
+			if (monitors[rank] != null) monitors[rank].join();
+		}
+		monitors = null;
+	}
+	
+	/**
+	 * Ends the computation on the workers. If <tt>reuse</tt> is
+	 * set, the connections to the workers that complete the 
+	 * computation are kept for the subsequent computations;
+	 * otherwise, the connections are closed.
+	 * 
+	 * @param reuse whether the connections may be reused
+	 */
+	void disconnect(boolean reuse) {
+		long timeout = HEARTBEAT_MISSES * config.getHeartbeat();
+		
+		for (int rank = 1; rank < numWorkers; rank++) {
+			Connection conn = connections.get(rank - 1);
+			if (conn == null) continue;
+			
+			if (reuse && alive[rank] && conn.finish(jobId, timeout, profile)) {
+				Connection.release(conn);
+			} else {
+				conn.close();
 			}
 		}
 	}
@@ -117,80 +340,205 @@ class Distributor {
 	}
 	
 	
-	void assignWork(Object object, String name, Object... args) throws IOException {
-		assignWork(new MessageRequest(object, name, args));
+	void assignWork(Object object, String name, boolean[] sharedArgs,
+			Object... args) throws IOException {
+		assignWork(new MessageRequest(object, name, args), sharedArgs);
 	}
 	
-	void assignWork(Class<?> cls, String name, Object... args) throws IOException {
-		assignWork(new MessageRequest(cls, name, args));
+	void assignWork(Class<?> cls, String name, boolean[] sharedArgs,
+			Object... args) throws IOException {
+		assignWork(new MessageRequest(cls, name, args), sharedArgs);
 	}
 	
-	void assignWork(MessageRequest request) throws IOException {
+	/**
+	 * Sends the work request to the workers. The @Shared arguments
+	 * are serialized once. The workers that have an argument cached
+	 * from an earlier computation receive just the hash of the
+	 * argument. The large arguments are relayed to the other workers
+	 * along a chain (see {@link Broadcast}); the workers that have
+	 * not received an argument via the chain receive it along with
+	 * the work request.
+	 * 
+	 * @param request the work request
+	 * @param sharedArgs indicates which arguments are @Shared
+	 * @throws IOException
+	 */
+	void assignWork(MessageRequest request, boolean[] sharedArgs) throws IOException {
 		request.wrap();
+		
+		int nargs = request.args.length;
+		SharedArg[] shared = new SharedArg[nargs];
+		List<Set<String>> received = new ArrayList<Set<String>>();
+		
+		for (int i = 0; i < nargs; i++) {
+			received.add(new HashSet<String>());
+			if (i == 0 || ! sharedArgs[i] || request.args[i] == null) continue;
+			
+			shared[i] = SharedArg.of(request.args[i]);
+			
+			List<String> chain = new ArrayList<String>();
+			for (int rank = 1; rank < numWorkers; rank++) {
+				if (! alive[rank]) continue;
+				
+				Connection conn = connections.get(rank - 1);
+				if (conn.cached.contains(shared[i].hash)) {
+					received.get(i).add(conn.address);
+				} else {
+					chain.add(conn.address);
+				}
+			}
+			
+			if (chain.size() > 1 && shared[i].size() >= Broadcast.RELAY_THRESHOLD) {
+				long start = System.currentTimeMillis();
+				long nanos = Profile.start();
+				Set<String> delivered = Broadcast.relay(shared[i], jobId, chain);
+				received.get(i).addAll(delivered);
+				if (profile != null) 
+					profile.record("relay argument " + i, "network", nanos);
+				
+				logger.info(String.format("Relayed shared argument %d " +
+						"(%d bytes in %d chunks) to %d of %d workers in %d ms",
+						i, shared[i].size(), shared[i].chunks.size(), 
+						delivered.size(), chain.size(),
+						System.currentTimeMillis() - start));
+			}
+		}
+		
+		int hits = 0;
 		Object[] data = new Object[numWorkers];
-		Arrays.fill(data, request);
+		for (int rank = 1; rank < numWorkers; rank++) {
+			if (! alive[rank]) continue;
+			
+			String address = connections.get(rank - 1).address;
+			Object[] args = Arrays.copyOf(request.args, nargs);
+			for (int i = 1; i < nargs; i++) {
+				if (shared[i] == null) continue;
+				if (received.get(i).contains(address)) {
+					args[i] = shared[i].reference();
+					hits ++;
+				} else {
+					args[i] = shared[i];
+				}
+			}
+			data[rank] = request.withArgs(args);
+		}
+		
+		if (hits > 0) 
+			logger.info("Shared arguments held by workers: " + hits);
 		sendAll(data);
 	}
 	
-	void sendAll(Object[] data) {
-		Thread[] threads = new Thread[numWorkers];
+	/**
+	 * Sends the <i>i</i>-th data object to the worker of rank <i>i</i>
+	 * concurrently. Workers that are not alive are skipped, and 
+	 * the workers that fail to receive the data are marked lost. 
+	 * 
+	 * @param data data objects indexed by rank
+	 * @return number of workers that were lost while sending
+	 */
+	int sendAll(Object[] data) {
+		WriteThread[] threads = new WriteThread[numWorkers];
 		for (int i = 1; i < numWorkers; i++) {
-			threads[i] = new WriteThread(data[i], outputStreams.get(i - 1));
+			if (! alive[i]) continue;
+			threads[i] = new WriteThread(data[i], connections.get(i - 1).oos);
+			threads[i].profile("send to " + i, profile);
 			threads[i].start();
 		}
 		
+		int lost = 0;
 		for (int i = 1; i < numWorkers; i++) {
+			if (threads[i] == null) continue;
 			try {
 				threads[i].join();
 			} catch (InterruptedException e) {
-				e.printStackTrace();
+				Thread.currentThread().interrupt();
+			}
+			
+			if (threads[i].getError() != null) {
+				markDead(i, threads[i].getError());
+				lost ++;
 			}
 		}
+		
+		return lost;
 	}
 	
-	void sendTo(int rank, Object data) {
-		ObjectOutputStream oos = outputStreams.get(rank - 1);
+	/**
+	 * Sends the data to the worker of specified rank.
+	 * 
+	 * @param rank the rank of the worker
+	 * @param data the data to send
+	 * @return <tt>false</tt> if the worker is (or has now been) lost
+	 */
+	boolean sendTo(int rank, Object data) {
+		if (! alive[rank]) return false;
+		
+		ObjectOutputStream oos = connections.get(rank - 1).oos;
 		try {
 			oos.writeObject(data);
 			oos.flush();
 		} catch (IOException e) {
-			e.printStackTrace();
+			markDead(rank, e);
+			return false;
 		}
+		return true;
 	}
 	
+	/**
+	 * Receives one data object from each worker concurrently. 
+	 * The returned array is indexed by rank; the entries for the
+	 * master and for the workers that are not alive are <tt>null</tt>.
+	 * The workers that fail to deliver the data are marked lost.
+	 * 
+	 * @return data objects indexed by rank
+	 */
 	Object[] recvAll() {
 		Object[] data = new Object[numWorkers];
 		ReadThread[] threads = new ReadThread[numWorkers];
 		
 		for (int i = 1; i < numWorkers; i++) {
-			threads[i] = new ReadThread(inputStreams.get(i - 1));
+			if (! alive[i]) continue;
+			threads[i] = new ReadThread(connections.get(i - 1).ois);
+			threads[i].profile("receive from " + i, profile);
 			threads[i].start();
 		}
 		
 		for (int i = 1; i < numWorkers; i++) {
+			if (threads[i] == null) continue;
 			try {
 				threads[i].join();
-				data[i] = threads[i].getData();
 			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				Thread.currentThread().interrupt();
+			}
+			
+			if (threads[i].getError() != null) {
+				markDead(i, threads[i].getError());
+			} else {
+				data[i] = threads[i].getData();
 			}
 		}
 		
 		return data;
 	}
 	
+	/**
+	 * Receives one data object from the worker of specified rank.
+	 * 
+	 * @param rank the rank of the worker
+	 * @return the data object, or <tt>null</tt> if the worker is
+	 * (or has now been) lost
+	 */
 	Object recvFrom(int rank) {
+		if (! alive[rank]) return null;
+		
 		Object data = null;
 				
 		try {
-			data = inputStreams.get(rank - 1).readObject();
+			data = connections.get(rank - 1).ois.readObject();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			markDead(rank, e);
 		} catch (ClassNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			markDead(rank, e);
 		}
 		
 		return data;
@@ -199,49 +547,155 @@ class Distributor {
 	static final class WriteThread extends Thread {
 		final Object data;
 		final ObjectOutputStream oos;
+		Exception error;
+		Profile profile;
 		
 		public WriteThread(Object data, ObjectOutputStream oos) {
 			this.data = data;
 			this.oos = oos;
 		}
 		
+		/**
+		 * Names the thread, and records the transfer in the timeline
+		 * (if not <tt>null</tt>).
+		 */
+		void profile(String name, Profile profile) {
+			setName("PDQ-" + name);
+			this.profile = profile;
+		}
+		
 		@Override
 		public void run() {
+			long start = Profile.start();
 			try {
 				oos.writeObject(data);
 				oos.flush();
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				error = e;
 			}
 			
+			if (profile != null) profile.record(getName(), "network", start);
+		}
+		
+		Exception getError() {
+			return error;
 		}
 	}
 	
 	static final class ReadThread extends Thread {
 		final ObjectInputStream ois;
 		Object data;
+		Exception error;
+		Profile profile;
 		
 		ReadThread(ObjectInputStream ois) {
 			this.ois = ois;
 		}
 		
+		/**
+		 * Names the thread, and records the transfer in the timeline
+		 * (if not <tt>null</tt>).
+		 */
+		void profile(String name, Profile profile) {
+			setName("PDQ-" + name);
+			this.profile = profile;
+		}
+		
 		@Override
 		public void run() {
+			long start = Profile.start();
 			try {
 				data = ois.readObject();
+				if (data instanceof MessageFailure) {
+					error = new IOException("Worker failed",
+							((MessageFailure) data).cause);
+					data = null;
+				}
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				error = e;
 			} catch (ClassNotFoundException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				error = e;
 			}
+			
+			if (profile != null) profile.record(getName(), "network", start);
 		}
 		
 		Object getData() {
 			return data;
 		}
+		
+		Exception getError() {
+			return error;
+		}
+	}
+	
+	/**
+	 * Reads the heartbeats and the split requests of one worker 
+	 * while it computes. The thread terminates when the worker 
+	 * reports that it has finished computing, or when the worker
+	 * is lost.
+	 * 
+	 * @author mvarshney
+	 */
+	static final class Monitor extends Thread {
+		final Distributor distributor;
+		final int rank;
+		final long timeout;
+		
+		Monitor(Distributor distributor, int rank, long timeout) {
+			super("PDQ-Monitor-" + rank);
+			setDaemon(true);
+			this.distributor = distributor;
+			this.rank = rank;
+			this.timeout = timeout;
+		}
+		
+		@Override
+		public void run() {
+			Connection conn = distributor.connections.get(rank - 1);
+			Socket sock = conn.socket;
+			ObjectInputStream ois = conn.ois;
+			ObjectOutputStream oos = conn.oos;
+			SplitLedger ledger = distributor.ledger;
+			
+			try {
+				sock.setSoTimeout((int) timeout);
+				
+				while (true) {
+					Object msg = ois.readUnshared();
+					
+					if (msg instanceof MessageFailure) {
+						throw new IOException("Worker failed", 
+								((MessageFailure) msg).cause);
+					}
+					
+					if (msg instanceof MessageTake) {
+						int count = ((MessageTake) msg).count;
+						List<Assignment> splits = ledger.take(rank, count);
+						oos.writeUnshared(new MessageSplits(splits, 
+								splits.size() < count));
+						oos.reset();
+						oos.flush();
+						continue;
+					}
+					
+					MessageHeartbeat heartbeat = (MessageHeartbeat) msg;
+					ledger.complete(rank, heartbeat.completed);
+					if (heartbeat.done) break;
+				}
+				
+				sock.setSoTimeout(0);
+				ledger.finish(rank);
+			} catch (SocketTimeoutException e) {
+				distributor.markDead(rank, e);
+			} catch (IOException e) {
+				distributor.markDead(rank, e);
+			} catch (ClassNotFoundException e) {
+				distributor.markDead(rank, e);
+			} catch (ClassCastException e) {
+				distributor.markDead(rank, e);
+			}
+		}
 	}
 	
 	public Object[][] gatherResults(int nargs) throws InterruptedException {
@@ -251,6 +705,7 @@ class Distributor {
 		
 		for (int worker = 1; worker < numWorkers; worker++) {
 			MessageArguments msg = (MessageArguments) results[worker];
+			if (msg == null) continue;
 			for (int i = 1; i < nargs; i++) {
 				workerResults[i][worker - 1] = msg.args[i];
 			}
@@ -260,6 +715,187 @@ class Distributor {
 	}
 	
 
+	/**
+	 * Connection to a worker.
+	 * 
+	 * @author mvarshney
+	 */
+	static final class Connection {
+		final String address;
+		final Socket socket;
+		final ObjectInputStream ois;
+		final ObjectOutputStream oos;
+		
+		/**
+		 * Directories that the worker holds locally, and the hashes
+		 * of the @Shared arguments that the worker has cached, as
+		 * advertised in response to the last registration.
+		 */
+		String[] localDirs = new String[0];
+		Set<String> cached = new HashSet<String>();
+		
+		private Connection(String address, Socket socket) throws IOException {
+			this.address = address;
+			this.socket = socket;
+			
+			oos = new ObjectOutputStream(
+							new BufferedOutputStream(
+									socket.getOutputStream(),
+									SocketBufferSize));
+			
+			oos.flush();
+			
+			ois = new CachingObjectInputStream(
+							new BufferedInputStream(
+									socket.getInputStream(),
+									SocketBufferSize));
+		}
+		
+		/**
+		 * Connects to the worker at the specified address.
+		 * 
+		 * @param address the hostname and optionally the port number
+		 * @return the connection
+		 * @throws IOException
+		 */
+		static Connection open(String address) throws IOException {
+			String[] hostPort = address.split(":");
+			InetAddress host = InetAddress.getByName(hostPort[0]);
+			int port = hostPort.length > 1 ? Integer.parseInt(hostPort[1]) : DEFAULT_WORKER_PORT;
+			
+			Socket sock = new Socket();
+			try {
+				sock.connect(new InetSocketAddress(host, port));
+				return new Connection(address, sock);
+			} catch (IOException e) {
+				sock.close();
+				throw e;
+			}
+		}
+		
+		/**
+		 * Takes an idle connection to the worker at the specified
+		 * address.
+		 * 
+		 * @return the connection, or <tt>null</tt> if there is none
+		 */
+		static Connection take(String address) {
+			synchronized (pool) {
+				LinkedList<Connection> idle = pool.get(address);
+				if (idle == null || idle.isEmpty()) return null;
+				return idle.removeFirst();
+			}
+		}
+		
+		/**
+		 * Returns the connection to the idle connections.
+		 */
+		static void release(Connection conn) {
+			synchronized (pool) {
+				LinkedList<Connection> idle = pool.get(conn.address);
+				if (idle == null) {
+					idle = new LinkedList<Connection>();
+					pool.put(conn.address, idle);
+				}
+				idle.add(conn);
+			}
+		}
+		
+		/**
+		 * Sends the registration message, and receives the 
+		 * advertisement of the worker.
+		 * 
+		 * @throws IOException
+		 */
+		void register(MessageRegister register) throws IOException {
+			oos.writeUnshared(register);
+			oos.flush();
+			
+			try {
+				MessageAdvertise advertise = (MessageAdvertise) ois.readUnshared();
+				localDirs = advertise.localDirs;
+				cached = new HashSet<String>(Arrays.asList(advertise.cached));
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			} catch (ClassCastException e) {
+				throw new IOException(e);
+			}
+		}
+		
+		/**
+		 * Waits for the worker to complete the specified computation.
+		 * The data sent by the worker that has not been received is
+		 * discarded.
+		 * 
+		 * @param jobId the identifier of the computation
+		 * @param timeout maximum time to wait (in milliseconds)
+		 * @param profile the timeline to add the events of the 
+		 * worker to, or <tt>null</tt>
+		 * @return <tt>true</tt> if the worker has completed the
+		 * computation, and the connection can be reused
+		 */
+		boolean finish(String jobId, long timeout, Profile profile) {
+			try {
+				socket.setSoTimeout((int) timeout);
+				
+				while (true) {
+					Object msg = ois.readUnshared();
+					if (msg instanceof MessageFailure) return false;
+					if (msg instanceof MessageDone 
+							&& jobId.equals(((MessageDone) msg).jobId)) {
+						Profile.Event[] trace = ((MessageDone) msg).trace;
+						if (profile != null && trace != null) profile.add(trace);
+						break;
+					}
+				}
+				
+				socket.setSoTimeout(0);
+				oos.reset();
+				oos.flush();
+				return true;
+			} catch (IOException e) {
+				return false;
+			} catch (ClassNotFoundException e) {
+				return false;
+			}
+		}
+		
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				
+			}
+		}
+	}
+	
+	/**
+	 * ObjectInputStream that remembers the classes it has resolved,
+	 * so that the classes of the messages are looked up only once
+	 * in the JVM.
+	 * 
+	 * @author mvarshney
+	 */
+	static final class CachingObjectInputStream extends ObjectInputStream {
+		static private final Map<String, Class<?>> classes = 
+				new ConcurrentHashMap<String, Class<?>>();
+		
+		CachingObjectInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+		
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc)
+				throws IOException, ClassNotFoundException {
+			Class<?> cls = classes.get(desc.getName());
+			if (cls == null) {
+				cls = super.resolveClass(desc);
+				classes.put(desc.getName(), cls);
+			}
+			return cls;
+		}
+	}
+	
 	/**
 	 * Registration message.
 	 * 
@@ -271,16 +907,126 @@ class Distributor {
 		int rank;
 		int numWorkers;
 		PDQConfig config;
+		String jobId;
 		
 		public MessageRegister(int rank, int numWorkers,
-				PDQConfig config) {
+				PDQConfig config, String jobId) {
 			this.rank = rank;
 			this.numWorkers = numWorkers;
 			this.config = config;
+			this.jobId = jobId;
 		}
 	}
 	
 
+	/**
+	 * Message sent by a worker in response to the registration,
+	 * listing the directories that the worker holds locally, and
+	 * the hashes of the @Shared arguments that it has cached.
+	 * 
+	 * @author mvarshney
+	 *
+	 */
+	static final class MessageAdvertise implements Serializable {
+		private static final long serialVersionUID = 7765062419453871250L;
+		String[] localDirs;
+		String[] cached;
+		
+		MessageAdvertise(String[] localDirs, String[] cached) {
+			this.localDirs = localDirs;
+			this.cached = cached;
+		}
+	}
+	
+	/**
+	 * Message sent by a worker when it has completed a computation.
+	 * The connection is then ready for the next computation. Carries
+	 * the timeline recorded by the worker, if any.
+	 * 
+	 * @author mvarshney
+	 *
+	 */
+	static final class MessageDone implements Serializable {
+		private static final long serialVersionUID = -1764339204616360125L;
+		String jobId;
+		Profile.Event[] trace;
+		
+		MessageDone(String jobId, Profile.Event[] trace) {
+			this.jobId = jobId;
+			this.trace = trace;
+		}
+	}
+	
+	/**
+	 * Heartbeat message sent periodically by the workers while they
+	 * compute. Carries the indices of the splits processed since
+	 * the last heartbeat. The last heartbeat of a computation has
+	 * the <tt>done</tt> flag set.
+	 * 
+	 * @author mvarshney
+	 *
+	 */
+	static final class MessageHeartbeat implements Serializable {
+		private static final long serialVersionUID = -2279419830536466452L;
+		int[] completed;
+		boolean done;
+		
+		MessageHeartbeat(int[] completed, boolean done) {
+			this.completed = completed;
+			this.done = done;
+		}
+	}
+	
+	/**
+	 * Message sent by a worker to request more splits.
+	 * 
+	 * @author mvarshney
+	 *
+	 */
+	static final class MessageTake implements Serializable {
+		private static final long serialVersionUID = 5318815470322385613L;
+		int count;
+		
+		MessageTake(int count) {
+			this.count = count;
+		}
+	}
+	
+	/**
+	 * Splits assigned to a worker in response to a {@link MessageTake}.
+	 * The <tt>last</tt> flag is set when there are no more splits
+	 * for the workers.
+	 * 
+	 * @author mvarshney
+	 *
+	 */
+	static final class MessageSplits implements Serializable {
+		private static final long serialVersionUID = -850232914760193604L;
+		List<Assignment> splits;
+		boolean last;
+		
+		MessageSplits(List<Assignment> splits, boolean last) {
+			this.splits = splits;
+			this.last = last;
+		}
+	}
+	
+	/**
+	 * Failure message sent by a worker when its computation
+	 * could not be completed.
+	 * 
+	 * @author mvarshney
+	 *
+	 */
+	static final class MessageFailure implements Serializable {
+		private static final long serialVersionUID = 6218431862011538290L;
+		Throwable cause;
+		
+		MessageFailure(Throwable cause) {
+			this.cause = cause;
+		}
+	}
+	
 	/**
 	 * Message containing arguments.
 	 * 
@@ -330,6 +1076,17 @@ class Distributor {
 			this.name = name;
 		}
 		
+		/**
+		 * Returns a copy of this (wrapped) request with the 
+		 * specified arguments.
+		 */
+		MessageRequest withArgs(Object[] args) throws NotSerializableException {
+			MessageRequest request = new MessageRequest(cls, name, args);
+			request.object = object;
+			request.type = type;
+			return request;
+		}
+		
 		void wrap() throws NotSerializableException {
 			if (object == null) {
 				type = Type.SERIALIZED_CLASS;
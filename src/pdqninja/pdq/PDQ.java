@@ -12,15 +12,21 @@ import java.util.concurrent.ExecutorService;
 public final class PDQ {
 	private PDQ() {}
 	
-	static private PDQPrivate priv;
-	static PDQWorker worker;
+	/**
+	 * The computation that the current thread participates in.
+	 * Several computations may run concurrently in a JVM (for
+	 * example, on a {@link PDQWorker} serving several masters);
+	 * each thread sees its own computation.
+	 */
+	static private final InheritableThreadLocal<PDQPrivate> context =
+			new InheritableThreadLocal<PDQPrivate>();
 	
 	public static void run(Object object, Object... args) throws NoSuchMethodException, RuntimeException, IllegalAccessException, InvocationTargetException, InterruptedException, IOException {
 		run(object, "default", args);
 	}
 	
 	public static void run(Object object, String name, Object... args) throws NoSuchMethodException, RuntimeException, IllegalAccessException, InvocationTargetException, InterruptedException, IOException {
-		run(object.getClass(), object, name, 0, 1, args);
+		run(object.getClass(), object, name, args);
 	}
 	
 	public static void run(Class<?> cls, Object... args) 
@@ -34,12 +40,36 @@ public final class PDQ {
 			throws NoSuchMethodException, RuntimeException, 
 			InvocationTargetException, 
 			InterruptedException, IOException {
-		run(cls, null, name, 0, 1, args);
+		run(cls, null, name, args);
 	}
 	
 	
+	/**
+	 * Executes the function on each split of the input, with a
+	 * replicate of the output; the replicates are then merged into
+	 * the output. The function is called directly, without
+	 * reflection.
+	 * 
+	 * @param input the input
+	 * @param function the function to execute
+	 * @param output the output
+	 * @see ParallelFunction
+	 */
+	public static <S, R> void run(Splittable input, ParallelFunction<S, R> function,
+			Mergeable output) 
+			throws RuntimeException, InvocationTargetException, 
+			InterruptedException, IOException {
+		Class<?> cls = function.getClass();
+		
+		try {
+			run(new PDQPrivate(cls.getSimpleName(), PDQConfig.current()),
+					cls, function, null, input, output);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
 	static void run(Class<?> cls, Object object, String name, 
-			int rank, int numWorkers,
 			Object... args) 
 			throws NoSuchMethodException, RuntimeException, 
 			InvocationTargetException, 
@@ -47,75 +77,136 @@ public final class PDQ {
 		
 		String programName = cls.getSimpleName() + "." + name;
 		
-		priv = new PDQPrivate(programName, rank, numWorkers);
-		priv.run(cls, object, name, args);
-		priv.teardown();
-		priv = null;
+		run(new PDQPrivate(programName, PDQConfig.current()),
+				cls, object, name, args);
 	}
 	
-	public static ExecutorService getExecutorService() {
-		if (priv == null)
-			throw new IllegalStateException("This method can be called " +
-					"from PDQ execution context only");
-		return priv.getExecutorService();
+	/**
+	 * Runs the specified computation in the context of the
+	 * current thread.
+	 */
+	static void run(PDQPrivate priv, Class<?> cls, Object object,
+			String name, Object... args)
+			throws NoSuchMethodException, RuntimeException, 
+			InvocationTargetException, 
+			InterruptedException, IOException {
 		
+		PDQPrivate previous = context.get();
+		context.set(priv);
+		
+		boolean completed = false;
+		try {
+			priv.run(cls, object, name, args);
+			completed = true;
+		} finally {
+			priv.teardown(completed);
+			context.set(previous);
+		}
 	}
 	
-	public static int rank() {
+	/**
+	 * Returns the computation of the current thread, or
+	 * <tt>null</tt> if the thread is not participating in a
+	 * computation.
+	 */
+	static PDQPrivate context() {
+		return context.get();
+	}
+	
+	/**
+	 * Sets the computation of the current thread.
+	 */
+	static void setContext(PDQPrivate priv) {
+		if (priv == null) {
+			context.remove();
+		} else {
+			context.set(priv);
+		}
+	}
+	
+	private static PDQPrivate current() {
+		PDQPrivate priv = context.get();
 		if (priv == null)
 			throw new IllegalStateException("This method can be called " +
 					"from PDQ execution context only");
-		
-		return priv.rank();
+		return priv;
+	}
+	
+	public static ExecutorService getExecutorService() {
+		return current().getExecutorService();
+	}
+	
+	public static int rank() {
+		return current().rank();
+	}
+	
+	/**
+	 * Returns the identifier of the current computation. All JVMs
+	 * participating in a distributed computation share the same
+	 * identifier.
+	 * 
+	 * @return the identifier of the computation
+	 */
+	public static String jobId() {
+		return current().jobId();
+	}
+	
+	/**
+	 * Returns <tt>true</tt> if the JVM with the specified rank is
+	 * still participating in the computation. The master JVM keeps
+	 * track of the workers that were lost; on the worker JVMs, this
+	 * method always returns <tt>true</tt>.
+	 * 
+	 * @param rank the rank of the JVM
+	 * @return <tt>true</tt> if the JVM has not been lost
+	 */
+	public static boolean isAlive(int rank) {
+		return current().isAlive(rank);
 	}
 	
 	public static void sendTo(int rank, Object data) {
-		if (priv == null)
-			throw new IllegalStateException("This method can be called " +
-					"from PDQ execution context only");
+		PDQPrivate priv = current();
+		long start = Profile.start();
 		
 		try {
-			worker.oos.writeUnshared(data);
-			worker.oos.flush();
+			if (priv.worker == null) {
+				priv.sendTo(rank, data);
+				return;
+			}
+			
+			priv.worker.send(data);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new IllegalStateException("Lost connection with master", e);
+		} finally {
+			if (priv.profile != null) 
+				priv.profile.record("send to " + rank, "network", start);
 		}
-		
 	}
 	
 	public static void sendAll(Object[] data) {
-		if (priv == null)
-			throw new IllegalStateException("This method can be called " +
-					"from PDQ execution context only");
-		
-		priv.sendAll(data);
+		current().sendAll(data);
 	}
 	
 	public static Object recvFrom(int rank) {
-		if (priv == null)
-			throw new IllegalStateException("This method can be called " +
-					"from PDQ execution context only");
-		Object data = null;
+		PDQPrivate priv = current();
+		long start = Profile.start();
 		
 		try {
-			data = worker.ois.readObject();
+			if (priv.worker == null)
+				return priv.recvFrom(rank);
+			
+			return priv.worker.ois.readObject();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new IllegalStateException("Lost connection with master", e);
 		} catch (ClassNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new IllegalStateException(e);
+		} finally {
+			if (priv.profile != null) 
+				priv.profile.record("receive from " + rank, "network", start);
 		}
-		
-		return data;
 	}
 	
 	public static Object[] recvAll() {
-		if (priv == null)
-			throw new IllegalStateException("This method can be called " +
-					"from PDQ execution context only");
-		
-		return priv.recvAll();
+		return current().recvAll();
 	}
 }
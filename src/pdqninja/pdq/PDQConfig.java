@@ -37,6 +37,33 @@ import pdqninja.util.ByteUnit;
  *	</tr>
  *
  *	<tr>
+ *		<td>Disks</td><td><code>-PDQ:Disks=&#35;</code></td><td><i>empty string</i></td>
+ *		<td>
+	 * Directories of the disks where the input data resides.
+	 * <p>
+	 * The splits of the input files are read from the disks in
+	 * a loop, in the ratio of the weights of the disks. In the 
+	 * distributed mode, each worker keeps its own list of disks,
+	 * which tells the master what data the worker holds locally; 
+	 * the master prefers to assign the splits to the workers that
+	 * hold the data.
+ *	</td>
+ *	</tr>
+ *
+ *	<tr>
+ *		<td>I/O queue depth</td><td><code>-PDQ:IODepth=&#35;</code></td><td><i>0</i></td>
+ *		<td>
+	 * Number of concurrent I/O operations per disk.
+	 * <p>
+	 * If greater than zero, the splits of the input files and the
+	 * externalized data are read and written through one I/O 
+	 * queue per directory listed in the Disks, Local Directory and
+	 * Shared Directory items, each served by this number of threads.
+	 * If zero, the computation threads perform the I/O directly.
+ *	</td>
+ *	</tr>
+ *
+ *	<tr>
  *		<td>Blocksize</td><td><code>-PDQ:Blocksize=&#35;</code></td><td><i>64 MB</i></td>
  *		<td>Size of chunks that a (large) file is splitted into.</td>
  *	</tr>
@@ -100,6 +127,78 @@ import pdqninja.util.ByteUnit;
 	 * the list are separated by a comma.
  *	</td>
  *	</tr>
+ *
+ *	<tr>
+ *		<td>Heartbeat interval</td><td><code>-PDQ:Heartbeat=&#35;</code></td><td><i>2000</i></td>
+ *		<td>
+	 * Interval (in milliseconds) at which the PDQ workers report 
+	 * their progress to the master in distributed mode.
+	 * <p>
+	 * A worker that misses three consecutive heartbeats is considered
+	 * lost, and the splits assigned to it are re-executed.
+ *	</td>
+ *	</tr>
+ *
+ *	<tr>
+ *		<td>Executor</td><td><code>-PDQ:Executor=&#35;</code></td><td><i>platform</i></td>
+ *		<td>
+	 * The kind of threads that execute the splits: <i>platform</i>
+	 * or <i>virtual</i>.
+	 * <p>
+	 * With platform threads, the splits are processed in rounds of
+	 * one split per thread. With virtual threads, up to Concurrency
+	 * splits are processed at the same time, each with its own 
+	 * replicate, which is merged as soon as the split is done. 
+	 * This suits the computations that mostly wait for I/O, without
+	 * raising the number of threads (and with it, the number of 
+	 * partitions of the data structures). Where the JVM has no
+	 * virtual threads, a pool of platform threads is used instead.
+ *	</td>
+ *	</tr>
+ *
+ *	<tr>
+ *		<td>Concurrency</td><td><code>-PDQ:Concurrency=&#35;</code></td><td><i>64</i></td>
+ *		<td>
+	 * Maximum number of splits processed at the same time by the
+	 * virtual threads.
+ *	</td>
+ *	</tr>
+ *
+ *	<tr>
+ *		<td>Metrics</td><td><code>-PDQ:Metrics=true|false</code></td><td><i>false</i></td>
+ *		<td>
+	 * Whether to collect the metrics of the computations (see 
+	 * {@link pdqninja.metrics.Metrics}). The metrics are published
+	 * via JMX, and to the reporters added by the application.
+ *	</td>
+ *	</tr>
+ *
+ *	<tr>
+ *		<td>Profile</td><td><code>-PDQ:Profile=file</code></td><td><i>none</i></td>
+ *		<td>
+	 * File to write the timeline of each computation to (see 
+	 * {@link Profile}), in the Chrome trace format. The timeline 
+	 * of the workers is written by the master, with its own.
+ *	</td>
+ *	</tr>
+ *
+ *	<tr>
+ *		<td>Tune</td><td><code>-PDQ:Tune=true|false</code></td><td><i>false</i></td>
+ *		<td>
+	 * Whether to adjust the Blocksize and Buffer items to the 
+	 * throughput observed while the computations run (see 
+	 * {@link Tuner}). Unless the Threads item is set, it defaults 
+	 * to the number of processors.
+ *	</td>
+ *	</tr>
+ *
+ *	<tr>
+ *		<td>Split Latency</td><td><code>-PDQ:SplitLatency=&#35;</code></td><td>2000</td>
+ *		<td>
+	 * Time to process one split (in milliseconds) that the tuner
+	 * aims for, by adjusting the Blocksize.
+ *	</td>
+ *	</tr>
  *	</tbody>
  * </table>
  * 
@@ -122,6 +221,11 @@ public class PDQConfig implements Serializable, Cloneable {
 	 */
 	private int threads = 2;
 	
+	/**
+	 * Whether the number of threads has been set explicitly.
+	 */
+	private boolean threadsSet = false;
+	
 	/**
 	 * Local directory where data is externalized. 
 	 */
@@ -134,10 +238,28 @@ public class PDQConfig implements Serializable, Cloneable {
 	private String sharedDir = "";
 	
 	/**
-	 *  
+	 * Directories of the disks where the input data resides.
+	 * <p>
+	 * The splits of the input files are read from the disks in
+	 * a loop, in the ratio of the weights of the disks. In the 
+	 * distributed mode, each worker keeps its own list of disks,
+	 * which tells the master what data the worker holds locally; 
+	 * the master prefers to assign the splits to the workers that
+	 * hold the data.
 	 */
 	private String disks = "";
 	
+	/**
+	 * Number of concurrent I/O operations per disk.
+	 * <p>
+	 * If greater than zero, the splits of the input files and the
+	 * externalized data are read and written through one I/O 
+	 * queue per directory listed in the Disks, Local Directory and
+	 * Shared Directory items, each served by this number of threads.
+	 * If zero, the computation threads perform the I/O directly.
+	 */
+	private int ioDepth = 0;
+	
 	/**
 	 * Size of chunks that a (large) file is splitted into.
 	 */
@@ -193,15 +315,92 @@ public class PDQConfig implements Serializable, Cloneable {
 	 */
 	private String workers = "";
 	
+	/**
+	 * Interval (in milliseconds) at which the PDQ workers report 
+	 * their progress to the master in distributed mode.
+	 * <p>
+	 * A worker that misses three consecutive heartbeats is considered
+	 * lost, and the splits assigned to it are re-executed.
+	 */
+	private long heartbeat = 2000L;
+	
+	/**
+	 * Number of splits per thread that a PDQ worker requests from
+	 * the master in advance, in distributed mode.
+	 * <p>
+	 * The master hands out the splits to the workers on demand;
+	 * prefetching hides the latency of these requests.
+	 */
+	private int prefetch = 2;
+	
+	/**
+	 * The kind of threads that execute the splits: <i>platform</i>
+	 * or <i>virtual</i>.
+	 * <p>
+	 * With platform threads, the splits are processed in rounds of
+	 * one split per thread. With virtual threads, up to 
+	 * {@link #concurrency} splits are processed at the same time, 
+	 * each with its own replicate, which is merged as soon as the
+	 * split is done.
+	 */
+	private String executor = "platform";
+	
+	/**
+	 * Maximum number of splits processed at the same time by the
+	 * virtual threads.
+	 */
+	private int concurrency = 64;
+	
+	/**
+	 * Whether to collect the metrics of the computations.
+	 */
+	private boolean metrics = false;
+	
+	/**
+	 * File to write the timeline of the computations to.
+	 */
+	private String profile = null;
+	
+	/**
+	 * Whether to adjust the blocksize and buffer to the observed
+	 * throughput.
+	 */
+	private boolean tune = false;
+	
+	/**
+	 * Time to process one split (in milliseconds) that the tuner
+	 * aims for.
+	 */
+	private long splitLatency = 2000;
+	
+	private transient Tuner tuner = null;
+	
 	private Boolean distribute = true;
 	
+	/**
+	 * Receives the progress of the computations; not sent to the
+	 * workers.
+	 */
+	private transient ProgressListener progressListener = null;
+	
 	PDQConfig() {
 		
 	}
 	
 	private static PDQConfig current = new PDQConfig();
 	
+	/**
+	 * Returns the configuration of the computation that the current
+	 * thread participates in or, outside a computation, the global
+	 * configuration. The computations that a {@link PDQWorker} 
+	 * runs on behalf of different masters have their own 
+	 * configurations.
+	 * 
+	 * @return the current configuration
+	 */
 	public static PDQConfig current() {
+		PDQPrivate priv = PDQ.context();
+		if (priv != null) return priv.getConfig();
 		return current;
 	}
 	
@@ -232,6 +431,8 @@ public class PDQConfig implements Serializable, Cloneable {
 			setSharedDir(value);
 		} else if (key.equalsIgnoreCase("disks")) {
 			setDisks(value);
+		} else if (key.equalsIgnoreCase("iodepth")) {
+			setIODepth(Integer.parseInt(value.trim()));
 		} else if (key.equalsIgnoreCase("blocksize")) {
 			setBlocksize(ByteUnit.parse(value));
 		} else if (key.equalsIgnoreCase("index")) {
@@ -246,6 +447,22 @@ public class PDQConfig implements Serializable, Cloneable {
 			setGarbageCollect(Boolean.parseBoolean(value));
 		} else if (key.equalsIgnoreCase("workers")) {
 			setWorkers(value);
+		} else if (key.equalsIgnoreCase("heartbeat")) {
+			setHeartbeat(Long.parseLong(value.trim()));
+		} else if (key.equalsIgnoreCase("prefetch")) {
+			setPrefetch(Integer.parseInt(value.trim()));
+		} else if (key.equalsIgnoreCase("executor")) {
+			setExecutor(value.trim());
+		} else if (key.equalsIgnoreCase("concurrency")) {
+			setConcurrency(Integer.parseInt(value.trim()));
+		} else if (key.equalsIgnoreCase("metrics")) {
+			setMetrics(Boolean.parseBoolean(value.trim()));
+		} else if (key.equalsIgnoreCase("profile")) {
+			setProfile(value.trim());
+		} else if (key.equalsIgnoreCase("tune")) {
+			setTune(Boolean.parseBoolean(value.trim()));
+		} else if (key.equalsIgnoreCase("splitlatency")) {
+			setSplitLatency(Long.parseLong(value.trim()));
 		}
 	}
 	
@@ -261,6 +478,7 @@ public class PDQConfig implements Serializable, Cloneable {
 	 */
 	public void setThreads(int threads) {
 		this.threads = threads;
+		this.threadsSet = true;
 	}
 
 	/**
@@ -409,6 +627,186 @@ public class PDQConfig implements Serializable, Cloneable {
 		this.disks = disks;
 	}
 
+	/**
+	 * @return the number of concurrent I/O operations per disk
+	 */
+	public int getIODepth() {
+		return ioDepth;
+	}
+
+	/**
+	 * @param ioDepth the number of concurrent I/O operations per disk to set
+	 */
+	public void setIODepth(int ioDepth) {
+		this.ioDepth = ioDepth;
+	}
+
+	/**
+	 * @return the heartbeat interval in milliseconds
+	 */
+	public long getHeartbeat() {
+		return heartbeat;
+	}
+
+	/**
+	 * @param heartbeat the heartbeat interval in milliseconds to set
+	 */
+	public void setHeartbeat(long heartbeat) {
+		this.heartbeat = heartbeat;
+	}
+
+	/**
+	 * @return the number of splits per thread prefetched by workers
+	 */
+	public int getPrefetch() {
+		return prefetch;
+	}
+
+	/**
+	 * @param prefetch the number of splits per thread prefetched by workers
+	 */
+	public void setPrefetch(int prefetch) {
+		this.prefetch = prefetch;
+	}
+	
+	/**
+	 * @return the kind of threads that execute the splits
+	 */
+	public String getExecutor() {
+		return executor;
+	}
+	
+	/**
+	 * @param executor the kind of threads that execute the splits
+	 * to set: <i>platform</i> or <i>virtual</i>
+	 */
+	public void setExecutor(String executor) {
+		if (! executor.equalsIgnoreCase("platform") 
+				&& ! executor.equalsIgnoreCase("virtual"))
+			throw new IllegalArgumentException("Unknown executor: " + executor);
+		this.executor = executor.toLowerCase();
+	}
+	
+	/**
+	 * Returns <tt>true</tt> if the splits are executed by virtual
+	 * threads.
+	 */
+	public boolean isVirtual() {
+		return executor.equals("virtual");
+	}
+	
+	/**
+	 * @return the maximum number of splits processed at the same
+	 * time by the virtual threads
+	 */
+	public int getConcurrency() {
+		return concurrency;
+	}
+	
+	/**
+	 * @param concurrency the maximum number of splits processed at
+	 * the same time by the virtual threads to set
+	 */
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+	
+	/**
+	 * @return whether the metrics of the computations are collected
+	 */
+	public boolean isMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @param metrics whether to collect the metrics of the 
+	 * computations
+	 */
+	public void setMetrics(boolean metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * @return the file to write the timeline of the computations
+	 * to, or <tt>null</tt> if the timeline is not recorded
+	 */
+	public String getProfile() {
+		return profile;
+	}
+	
+	/**
+	 * @param profile the file to write the timeline of the 
+	 * computations to, or <tt>null</tt> to not record the timeline
+	 */
+	public void setProfile(String profile) {
+		this.profile = profile;
+	}
+	
+	/**
+	 * @return whether the blocksize and buffer are adjusted to the
+	 * observed throughput
+	 */
+	public boolean isTune() {
+		return tune;
+	}
+	
+	/**
+	 * Enables (or disables) the tuning of the blocksize and buffer.
+	 * Unless the number of threads has been set, enabling the tuning
+	 * sets it to the number of processors.
+	 * 
+	 * @param tune whether to adjust the blocksize and buffer to the
+	 * observed throughput
+	 */
+	public void setTune(boolean tune) {
+		this.tune = tune;
+		if (tune && ! threadsSet)
+			threads = Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * @return the time to process one split (in milliseconds) that 
+	 * the tuner aims for
+	 */
+	public long getSplitLatency() {
+		return splitLatency;
+	}
+	
+	/**
+	 * @param splitLatency the time to process one split (in 
+	 * milliseconds) that the tuner aims for
+	 */
+	public void setSplitLatency(long splitLatency) {
+		this.splitLatency = splitLatency;
+	}
+	
+	/**
+	 * Returns the tuner of this configuration.
+	 * 
+	 * @return the tuner, or <tt>null</tt> if the tuning is not 
+	 * enabled
+	 */
+	public synchronized Tuner getTuner() {
+		if (! tune) return null;
+		if (tuner == null) tuner = new Tuner(this);
+		return tuner;
+	}
+	
+	/**
+	 * @return the listener that receives the progress of the
+	 * computations, or <tt>null</tt>
+	 */
+	public ProgressListener getProgressListener() {
+		return progressListener;
+	}
+	
+	/**
+	 * @param progressListener the listener that receives the 
+	 * progress of the computations to set, or <tt>null</tt>
+	 */
+	public void setProgressListener(ProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
 	
 	public Boolean isDistributable() {
 		return distribute;
@@ -417,7 +815,9 @@ public class PDQConfig implements Serializable, Cloneable {
 	@Override
 	public PDQConfig clone() {
 		try {
-			return (PDQConfig) super.clone();
+			PDQConfig copy = (PDQConfig) super.clone();
+			copy.tuner = null;
+			return copy;
 		} catch (CloneNotSupportedException e) {
 			
 		}
@@ -1,23 +1,48 @@
 package pdqninja.pdq;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.UUID;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
+import pdqninja.metrics.Counter;
+import pdqninja.metrics.Histogram;
+import pdqninja.metrics.Metrics;
+import pdqninja.pdq.SplitLedger.Assignment;
+import pdqninja.pdq.ThreadPoolCallable.FunctionInvoker;
+import pdqninja.pdq.ThreadPoolCallable.Invoker;
+import pdqninja.pdq.ThreadPoolCallable.MethodInvoker;
+
 /**
  * Implements the Split-Replicate-Merge computation model.
  * 
@@ -27,13 +52,57 @@ import org.apache.log4j.Logger;
 final class PDQPrivate {
 	static private Logger logger = Logger.getLogger(PDQ.class);
 	
+	static private final Histogram splitMetric = Metrics.histogram("pdq.round.split.ms");
+	static private final Histogram execMetric = Metrics.histogram("pdq.round.exec.ms");
+	static private final Histogram mergeMetric = Metrics.histogram("pdq.round.merge.ms");
+	static private final Histogram roundMetric = Metrics.histogram("pdq.round.ms");
+	static private final Counter splitsMetric = Metrics.counter("pdq.splits");
+	static private final Counter bytesMetric = Metrics.counter("pdq.bytes");
+	
 	private final PDQConfig config;
 	private final ExecutorService exec;
-	private Distributor distributor;
+	private final String jobId;
+	Distributor distributor;
+	private SplitLedger ledger;
 	private int rank;
 	private int numWorkers;
 	private long computationStartedAt;
 	
+	/**
+	 * Reports the progress of the computation, on the master JVM
+	 * if a listener is configured; and the rounds, splits and 
+	 * bytes merged by this JVM so far.
+	 */
+	private ProgressReporter reporter;
+	private int rounds = 0;
+	private int splitsDone = 0;
+	private long bytesDone = 0;
+	
+	/**
+	 * The timeline of the computation, or <tt>null</tt> if it is
+	 * not recorded.
+	 */
+	Profile profile;
+	
+	/**
+	 * Adjusts the blocksize to the observed throughput, or 
+	 * <tt>null</tt> if the tuning is not enabled.
+	 */
+	private final Tuner tuner;
+	
+	/**
+	 * The worker that runs this computation on behalf of a master,
+	 * or <tt>null</tt> on the master JVM.
+	 */
+	final PDQWorker worker;
+	
+	/**
+	 * The @Parallel methods found so far, so that the methods of a
+	 * class are looked up only once in the JVM.
+	 */
+	static private final Map<MethodKey, Method> methods = 
+			new ConcurrentHashMap<MethodKey, Method>();
+	
 	/**
 	 * Creates the computation object with the specified programName.
 	 * The <tt>numWorkers</tt> is the number of workers participating
@@ -51,30 +120,52 @@ final class PDQPrivate {
 	 * The actual computation starts by calling the 
 	 * {@link #run(Class, Object, String, Object...)} method. 
 	 * This method will return when the computation completes, after
-	 * which the object can be cleaned up via the {@link #teardown()}
-	 * method.
+	 * which the object can be cleaned up via the 
+	 * {@link #teardown(boolean)} method.
 	 * 
 	 * 
 	 * @param programName name of the program
 	 * @param rank the rank of this JVM
 	 * @param numWorkers the number of JVMs participating in this
 	 * computation
+	 * @param config the configuration of the computation
+	 * @param worker the worker that runs the computation, or 
+	 * <tt>null</tt> on the master JVM
+	 * @param jobId the identifier of the computation
 	 */
-	PDQPrivate(String programName, int rank, int numWorkers) {
-		this.config = PDQConfig.current();
-		this.exec = Executors.newFixedThreadPool(config.getThreads());
+	PDQPrivate(String programName, int rank, int numWorkers,
+			PDQConfig config, PDQWorker worker, String jobId) {
+		this.config = config;
+		this.exec = new JobExecutor(this, config.getThreads());
 		this.rank = rank;
 		this.numWorkers = numWorkers;
+		this.worker = worker;
+		this.jobId = jobId;
+		
+		if (config.isMetrics()) Metrics.setEnabled(true);
+		if (config.getProfile() != null) profile = new Profile(rank);
+		this.tuner = config.getTuner();
 		
 		if (logger.isDebugEnabled()) {
-			logger.debug(String.format("Started computation [%s]. Rank=%d", 
-					programName, rank));
+			logger.debug(String.format("Started computation [%s]. Rank=%d Job=%s", 
+					programName, rank, jobId));
 		}
+	}
+	
+	/**
+	 * Creates the computation object at the master JVM. If the
+	 * configuration lists the workers, connects to the workers
+	 * to distribute the computation.
+	 * 
+	 * @param programName name of the program
+	 * @param config the configuration of the computation
+	 */
+	PDQPrivate(String programName, PDQConfig config) {
+		this(programName, 0, 1, config, null, UUID.randomUUID().toString());
 		
-		if ((rank == 0) 
-				&& config.getWorkers() != null
+		if (config.getWorkers() != null
 				&& ! config.getWorkers().equals("")) {
-			distributor = new Distributor();
+			distributor = new Distributor(config, jobId, profile);
 			distributor.connect(config.getWorkers());
 			this.numWorkers = distributor.getNumWorkers();
 			logger.info("Distributor created. Num workers = " + this.numWorkers);
@@ -83,17 +174,29 @@ final class PDQPrivate {
 	}
 	
 	/**
-	 * Cleanup this computation object.
+	 * Cleanup this computation object. The threads of the 
+	 * computation are kept for the subsequent computations of
+	 * this JVM. The connections to the workers are kept as well,
+	 * if the computation has completed.
+	 * 
+	 * @param completed whether the computation has completed
 	 * @throws InterruptedException
 	 */
-	void teardown() throws InterruptedException {
-		if (exec != null) {
-			exec.shutdown();
-			exec.awaitTermination(0, TimeUnit.SECONDS);
-		}
+	void teardown(boolean completed) throws InterruptedException {
+		exec.shutdown();
 
 		if (distributor != null) {
-			distributor.disconnect();
+			distributor.disconnect(completed);
+		}
+		
+		if (profile != null && ! isWorker()) {
+			File file = new File(config.getProfile());
+			try {
+				profile.write(file);
+				logger.info("Wrote the timeline of the computation to " + file);
+			} catch (IOException e) {
+				logger.warn("Cannot write the timeline to " + file, e);
+			}
 		}
 		
 		if (logger.isInfoEnabled()) {
@@ -102,6 +205,14 @@ final class PDQPrivate {
 		}
 	}
 	
+	/**
+	 * Returns the events recorded by this JVM, to be sent to the
+	 * master; or <tt>null</tt> if the timeline is not recorded.
+	 */
+	Profile.Event[] trace() {
+		return profile == null ? null : profile.events();
+	}
+	
 	/**
 	 * Returns the current ThreadPoolExecutorService object.
 	 * @return the current ThreadPoolExecutorService object, or 
@@ -111,6 +222,21 @@ final class PDQPrivate {
 		return exec;
 	}
 	
+	/**
+	 * Returns the configuration of this computation.
+	 */
+	PDQConfig getConfig() {
+		return config;
+	}
+	
+	/**
+	 * Returns the identifier of this computation, which is shared
+	 * by all the JVMs participating in the computation.
+	 */
+	String jobId() {
+		return jobId;
+	}
+	
 	/**
 	 * Execute the method defined in the specified
 	 * class (if the method is static) or the specified object. 
@@ -122,8 +248,12 @@ final class PDQPrivate {
 	 * arguments are consistent with the provided arguments. 
 	 * After verification checks, this methods assigns the work
 	 * to the workers (if running in distributed mode), and calls
-	 * the {@link #run(Object, Method, Object...)} method
+	 * the {@link #run(Invoker, Object[], boolean[])} method
 	 * to actually execute the computation.
+	 * <p>
+	 * If the <tt>name</tt> is <tt>null</tt>, the <tt>object</tt>
+	 * is the {@link ParallelFunction} to execute, and the 
+	 * <tt>args</tt> are its input and output.
 	 * 
 	 * @param cls the class where the method is defined
 	 * @param object the object on which to invoke the method,
@@ -144,6 +274,95 @@ final class PDQPrivate {
 
 		computationStartedAt = System.currentTimeMillis();
 		
+		if (name == null) {
+			if (! (object instanceof ParallelFunction) || args.length != 2)
+				throw new IllegalArgumentException("Expected a function with one input and one output");
+			
+			run(cls, object, null, new FunctionInvoker((ParallelFunction<?, ?>) object),
+					args, new boolean[2]);
+			return;
+		}
+		
+		Method m = findMethod(cls, name, object == null);
+		if (m == null)
+			throw new NoSuchMethodException(name);
+			
+		// Check if number of arguments provided are
+		// consistent with the arguments defined in the method
+		int nargs = args.length;
+		int expectedArgs = m.getParameterTypes().length;
+		
+		if (nargs == 0) {
+			throw new IllegalArgumentException("No arguments given");
+		}
+		
+		if (nargs != expectedArgs) {
+			String msg = "Method " + m.getName() + 
+					" expects " + expectedArgs +
+					" parameters but "; 
+			if (nargs == 0) {
+				msg += "no arguments are given";
+			} else if (nargs == 1) {
+				msg += ((nargs < expectedArgs) ? "only " : "") + 
+						"one argument is given";
+			} else {
+				msg += ((nargs < expectedArgs) ? "only " : "") +
+						nargs + " arguments are given";
+			}
+			throw new IllegalArgumentException(msg);
+		}
+		
+		// Everything looks good now...
+		run(cls, object, name, new MethodInvoker(object, m), 
+				args, sharedArgs(m, nargs));
+	}
+	
+	/**
+	 * Assigns the work to the workers (if running in distributed
+	 * mode), and executes the computation.
+	 */
+	private void run(Class<?> cls, Object object, String name, 
+			Invoker invoker, Object[] args, boolean[] sharedArgs) 
+			throws InterruptedException, IOException, 
+			InvocationTargetException {
+		
+		// If running in distributed mode, assign this computation
+		// to the workers
+		if (distributor != null) {
+			long start = System.currentTimeMillis();
+			long nanos = Profile.start();
+			if (object == null)
+				distributor.assignWork(cls, name, sharedArgs, args);
+			else
+				distributor.assignWork(object, name, sharedArgs, args);
+	
+			long duration = System.currentTimeMillis() - start;
+			logger.info("Distributed work in " + duration);
+			if (profile != null) profile.record("assign work", "network", nanos);
+			
+			ledger = new SplitLedger((Splittable) args[0], numWorkers);
+			distributor.startMonitors(ledger);
+		}
+
+		// Run the computation..
+		run(invoker, args, sharedArgs);
+	}
+	
+	/**
+	 * Finds the method of the specified class that has the 
+	 * {@link Parallel} annotation with the specified name. The
+	 * methods found are remembered for the subsequent computations.
+	 * 
+	 * @param cls the class where the method is defined
+	 * @param name the name defined in the Parallel annotation
+	 * @param isStatic whether the method must be static
+	 * @return the method, or <tt>null</tt> if not found
+	 */
+	static Method findMethod(Class<?> cls, String name, boolean isStatic) {
+		MethodKey key = new MethodKey(cls, name, isStatic);
+		Method found = methods.get(key);
+		if (found != null) return found;
+		
 		// Walk through all the methods in this class...
 		for (Method m: cls.getMethods()) {
 			
@@ -157,123 +376,259 @@ final class PDQPrivate {
 				continue;
 
 			// If object is null, verify this is a static method			
-			if (object == null) {
+			if (isStatic) {
 				int modifier = m.getModifiers();
 				if (! Modifier.isStatic(modifier)) continue;
 			} 
 			
-			// Check if number of arguments provided are
-			// consistent with the arguments defined in the method
-			int nargs = args.length;
-			int expectedArgs = m.getParameterTypes().length;
-			
-			if (nargs == 0) {
-				throw new IllegalArgumentException("No arguments given");
-			}
-			
-			if (nargs != expectedArgs) {
-				String msg = "Method " + m.getName() + 
-						" expects " + expectedArgs +
-						" parameters but "; 
-				if (nargs == 0) {
-					msg += "no arguments are given";
-				} else if (nargs == 1) {
-					msg += ((nargs < expectedArgs) ? "only " : "") + 
-							"one argument is given";
-				} else {
-					msg += ((nargs < expectedArgs) ? "only " : "") +
-							nargs + " arguments are given";
+			methods.put(key, m);
+			return m;
+		}
+		return null;
+	}
+	
+	/**
+	 * Identifies the @Shared parameters. Walks through all
+	 * parameters of the method and checks which ones are
+	 * specified with the @Shared annotation.
+	 * 
+	 * @return indicates which parameters are @Shared
+	 */
+	private static boolean[] sharedArgs(Method method, int nargs) {
+		boolean sharedArgs[] = new boolean[nargs];
+		Annotation[][] annotations = method.getParameterAnnotations();
+		
+		for (int i = 0; i < nargs; i++) {
+			sharedArgs[i] = false;
+			Annotation[] tmp = annotations[i];
+			for (int j = tmp.length - 1; j >= 0; j--) {
+				if (tmp[j] instanceof Shared) {
+					sharedArgs[i] = true;
 				}
-				throw new IllegalArgumentException(msg);
 			}
-			
-			// Everything looks good now...
-			
-			// If running in distributed mode, assign this computation
-			// to the workers
-			if (distributor != null) {
-				long start = System.currentTimeMillis();
-				if (object == null)
-					distributor.assignWork(cls, name, args);
-				else
-					distributor.assignWork(object, name, args);
+		}
 		
-				long duration = System.currentTimeMillis() - start;
-				logger.info("Distributed work in " + duration);
-			}
-
-			// Run the computation..
-			run(object, m, args);
-			return;
+		// First parameter cannot be Shared (since the first parameter
+		// MUST be an input argument)
+		if (sharedArgs[0]) {
+			throw new IllegalArgumentException("First parameter cannot be shared");
 		}
-		throw new NoSuchMethodException(name);
+		return sharedArgs;
 	}
 	
 	/**
-	 * Executes the specified method in Split-Replicate-Merge
-	 * computation model. If the <tt>object</tt> is not null,
-	 * the method is invoked on the specified object, otherwise,
-	 * the method is assumed to be static.
+	 * Executes the specified method (or function) in 
+	 * Split-Replicate-Merge computation model.
 	 * 
 	 * 
-	 * @param object the object on which the method is invoked,
-	 * or <tt>null</tt> if the method is static
-	 * @param method the method to execute
+	 * @param invoker invokes the method on the arguments of a split
 	 * @param args the arguments to the method
+	 * @param sharedArgs indicates which arguments are @Shared
 	 * 
 	 * @throws RuntimeException
 	 * @throws InvocationTargetException
 	 * @throws InterruptedException
 	 * @throws IOException
 	 */
-	private void run(Object object, Method method, Object... args) 
+	private void run(Invoker invoker, Object[] args,
+			boolean[] sharedArgs) 
 			throws RuntimeException, 
 			InvocationTargetException, InterruptedException, IOException {	
 
-		int numThreads = config.getThreads();
 		int nargs = args.length;
 		
-		/* Identify the @Shared parameters. Walk through all
-		 * parameters of this method and check which ones are
-		 * specified with the @Shared annotation. The  
-		 * <tt>sharedArgs<tt> array records those indices of
-		 * the paramters that are Shared.
-		 */
-		boolean sharedArgs[] = new boolean[nargs];
-		Annotation[][] annotations = method.getParameterAnnotations();
+		Splittable input = (Splittable) args[0];
 		
-		for (int i = 0; i < nargs; i++) {
-			sharedArgs[i] = false;
-			Annotation[] tmp = annotations[i];
-			for (int j = tmp.length - 1; j >= 0; j--) {
-				if (tmp[j] instanceof Shared) {
-					sharedArgs[i] = true;
-				}
+		if (! isWorker() && config.getProgressListener() != null) 
+			reporter = new ProgressReporter(config.getProgressListener(), jobId);
+		
+		try {
+			runSplits(invoker, args, sharedArgs, input);
+		} finally {
+			if (reporter != null) reporter.close();
+		}
+		
+		// All iterations are done now... call the merge() function
+		// one more time with <tt>null</tt> argument to indicate
+		// to the Mergeables that there won't be any more mergers
+		StreamingMergeable[] streaming = streamingArgs(args, sharedArgs);
+		for (int i = 1; i < nargs; i++) {
+			if (sharedArgs[i]) continue;
+			if (streaming[i] != null) streaming[i].finish();
+			((Mergeable) args[i]).merge((Object[]) null);
+		}
+		
+		// If running in distributed mode, collect the results from the
+		// workers (this will run on the master JVM only)
+//		if (distributor != null) {
+//			long start = System.currentTimeMillis();
+//			Object[][] workerResults = distributor.gatherResults(nargs);
+//			
+//			logger.info("Distributed Gathering results from " +
+//					numWorkers + " workers = " + 
+//					(System.currentTimeMillis() - start));
+//			
+//			// Ask the Mergeables to merge these results gathered by
+//			// workers
+//			for (int i = 1; i < nargs; i++) {
+//				if (sharedArgs[i]) continue;
+//				((Mergeable) args[i]).merge(workerResults[i]);
+//				((Mergeable) args[i]).merge((Object[]) null);				
+//			}
+//		}
+	}
+	
+	/**
+	 * Processes the splits of the input. The splits are taken from
+	 * the master on a worker, and from the ledger on the master in
+	 * the distributed mode.
+	 */
+	private void runSplits(Invoker invoker, Object[] args,
+			boolean[] sharedArgs, Splittable input)
+			throws InterruptedException, IOException {
+		if (isWorker()) {
+			// The worker requests the splits from the master as 
+			// it needs them
+			int prefetch = config.getPrefetch() * (config.isVirtual() 
+					? config.getConcurrency() : config.getThreads());
+			
+			worker.startHeartbeat();
+			runRounds(invoker, args, sharedArgs, 
+					new RemoteSplits(input, worker.receiveSplits(prefetch)));
+			worker.finishHeartbeat();
+		} else if (distributor != null) {
+			// The master takes its share of the splits from the 
+			// ledger, along with the workers. Once all the splits
+			// have been handed out, it waits for the splits that
+			// are released by the workers that are lost.
+			do {
+				runRounds(invoker, args, sharedArgs, 
+						new LedgerSplits(ledger));
+			} while (ledger.await());
+			
+			distributor.awaitCompute();
+			
+			if (ledger.localAssigned() + ledger.stolen() > 0) {
+				logger.info(String.format("Splits assigned locally=%d stolen=%d",
+						ledger.localAssigned(), ledger.stolen()));
 			}
+			
+			// A worker lost after its last heartbeat releases its
+			// splits once the master has left the loop above; the
+			// other workers are done, so the master runs them
+			while (ledger.await()) {
+				runRounds(invoker, args, sharedArgs, 
+						new LedgerSplits(ledger));
+			}
+			
+			// Re-execute the splits of the lost workers that could 
+			// not be handed out again
+			SortedSet<Integer> orphans = ledger.orphans();
+			if (! orphans.isEmpty()) {
+				logger.warn(String.format("Re-executing %d splits of lost workers",
+						orphans.size()));
+				runRounds(invoker, args, sharedArgs, 
+						new OrphanSplits(input.getSplits(), orphans));
+			}
+		} else if (input instanceof DescribedSplittable) {
+			// The descriptors carry the length of the splits, which
+			// is reported in the progress and tunes the blocksize
+			runRounds(invoker, args, sharedArgs, new LocalSplits(
+					((DescribedSplittable) input).getSplitDescriptors()));
+		} else {
+			runRounds(invoker, args, sharedArgs, 
+					new LocalSplits(input.getSplits()));
 		}
+	}
 		
-		// First parameter cannot be Shared (since the first parameter
-		// MUST be an input argument)
-		if (sharedArgs[0]) {
-			throw new IllegalArgumentException("First parameter cannot be shared");
+	/**
+	 * Records the splits merged by this JVM, and reports the
+	 * progress of the computation to the listener (if any).
+	 * 
+	 * @param args the arguments to the method
+	 * @param splits the number of splits merged
+	 * @param bytes the number of bytes in the splits merged
+	 */
+	private void progress(Object[] args, int splits, long bytes) {
+		rounds ++;
+		splitsDone += splits;
+		bytesDone += bytes;
+		
+		splitsMetric.inc(splits);
+		bytesMetric.inc(bytes);
+		Metrics.sampleGC();
+		Metrics.sampleHeap();
+		
+		if (reporter == null) return;
+		
+		int done = splitsDone;
+		int total = -1;
+		long processed = bytesDone;
+		if (ledger != null) {
+			done += ledger.completed();
+			processed += ledger.bytes();
+			total = ledger.total();
+		}
+
+		reporter.report(new Progress(jobId, rounds, done, total, processed,
+				System.currentTimeMillis() - computationStartedAt, args));
+	}
+	
+	/**
+	 * Identifies the arguments that merge their replicates as soon
+	 * as the computation on a split is done.
+	 * 
+	 * @return the {@link StreamingMergeable} arguments; the other
+	 * elements are <tt>null</tt>
+	 */
+	private static StreamingMergeable[] streamingArgs(Object[] args, 
+			boolean[] sharedArgs) {
+		StreamingMergeable[] streaming = new StreamingMergeable[args.length];
+		for (int i = 1; i < args.length; i++) {
+			if (! sharedArgs[i] && args[i] instanceof StreamingMergeable)
+				streaming[i] = (StreamingMergeable) args[i];
+		}
+		return streaming;
+	}
+	
+	/**
+	 * Processes the splits in rounds. In each round, up to one split
+	 * per thread is taken from the <tt>splits</tt>, and the method
+	 * is executed concurrently on these splits. The partial results
+	 * are merged at the end of each round.
+	 * 
+	 * @param invoker invokes the method on the arguments of a split
+	 * @param args the arguments to the method
+	 * @param sharedArgs indicates which arguments are @Shared
+	 * @param splits the splits to process
+	 * 
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	private void runRounds(Invoker invoker, Object[] args,
+			boolean[] sharedArgs, Splits splits) 
+			throws InterruptedException, IOException {
+		if (config.isVirtual()) {
+			runStreaming(invoker, args, sharedArgs, splits);
+			return;
 		}
 		
-		// Time to run this in parallel
+		int numThreads = config.getThreads();
+		int nargs = args.length;
 		int threads;
 		int iteration = 0;
 		ThreadPoolCallable[] callables = new ThreadPoolCallable[numThreads];
-		Iterator<?> splits = ((Splittable) args[0]).getSplits();
+		int[] indices = new int[numThreads];
 		
-		// In distributed mode, each worker is responsible for splits 
-		// in following order:
-		// [rank0] [rank1] ... [rankN] [rank0] ... 
+		// The replicates recycled by each thread, for the next round
+		Object[][] recycled = new Object[numThreads][nargs];
 		
-		// Skip the first rank number of splits
-		for (int i = 0; i < rank && splits.hasNext(); i++)
-			splits.next();
+		StreamingMergeable[] streaming = streamingArgs(args, sharedArgs);
 		
 		while (true) {
 			long start = System.currentTimeMillis();
+			long roundStart = Profile.start();
+			long bytes = 0;
 			
 			for (threads = 0; threads < numThreads; threads++) {
 				Object[] threadArgs = new Object[nargs]; 
@@ -281,24 +636,32 @@ final class PDQPrivate {
 				// Split the input
 				if (! splits.hasNext()) break;
 				
-				threadArgs[0] = splits.next();
+				Object split = splits.next();
+				bytes += SplitLedger.length(split);
+				if (split instanceof SplitDescriptor) 
+					split = ((SplitDescriptor) split).open();
 				
-				// Skip one cycle of splits (for distributed mode only)
-				for (int i = 1; i < numWorkers && splits.hasNext(); i++)
-					splits.next();
+				threadArgs[0] = split;
+				indices[threads] = splits.index();
 				
 				// Prepare the other arguments (shared and replicates)
 				for (int i = 1; i < nargs; i++) {
 					if (sharedArgs[i]) {
 						// If argument is @Shared, use the same object
 						threadArgs[i] = args[i];
+					} else if (recycled[threads][i] != null) {
+						// Reuse the replicate of the previous round
+						threadArgs[i] = recycled[threads][i];
+						recycled[threads][i] = null;
 					} else {
 						// Otherwise, create a Replicate and use that
 						threadArgs[i] = ((Mergeable) args[i]).replicate();
 					}
 				}
 				
-				callables[threads] = new ThreadPoolCallable(object, method, threadArgs);
+				callables[threads] = new ThreadPoolCallable(invoker, threadArgs)
+						.mergeInto(streaming)
+						.profile(profile, "split " + indices[threads]);
 			}
 			
 			if (threads == 0) break;
@@ -309,6 +672,19 @@ final class PDQPrivate {
 			List<Future<Long>> result = exec.invokeAll(Arrays.asList(callables).subList(0, threads));
 			
 			long execTime = System.currentTimeMillis() - start - splitTime;
+			long mergeStart = Profile.start();
+			
+			long busy = 0;
+			long[] durations = new long[threads];
+			for (int threadId = 0; threadId < threads; threadId++) {
+				try {
+					durations[threadId] = result.get(threadId).get();
+					busy += durations[threadId];
+				} catch (ExecutionException e) {
+					throw new IOException("Computation failed on split " + 
+							indices[threadId], e.getCause());
+				}
+			}
 			
 			// Merge output
 			for (int i = 1; i < nargs; i++) {
@@ -319,101 +695,698 @@ final class PDQPrivate {
 					partials[threadId] = callables[threadId].getArg(i);
 				}
 				
-				((Mergeable) args[i]).merge(partials);
+				// The streaming arguments have been merged by the threads
+				if (streaming[i] == null)
+					((Mergeable) args[i]).merge(partials);
+				
+				if (args[i] instanceof Recyclable) {
+					Recyclable recyclable = (Recyclable) args[i];
+					for (int threadId = 0; threadId < threads; threadId++) {
+						if (recyclable.recycle(partials[threadId]))
+							recycled[threadId][i] = partials[threadId];
+					}
+				}
+			}
+			
+			// Report the processed splits to the master
+			if (isWorker()) {
+				worker.checkConnection();
+				for (int threadId = 0; threadId < threads; threadId++) {
+					worker.completed(indices[threadId]);
+				}
 			}
 
-			// Print some statistics
+			progress(args, threads, bytes);
+			if (tuner != null) tuner.processed(bytes, busy);
+			
+			if (profile != null) {
+				profile.record("merge", "merge", mergeStart);
+				profile.record("round " + rounds, "round", roundStart);
+			}
 			
+			long total = System.currentTimeMillis() - start;
+			long mergeTime = total - execTime - splitTime;
+			splitMetric.record(splitTime);
+			execMetric.record(execTime);
+			mergeMetric.record(mergeTime);
+			roundMetric.record(total);
+			
+			// Print some statistics
 			if (logger.isInfoEnabled()) {
-				long end = System.currentTimeMillis();
-				long total = end - start;
-				long mergeTime = total - execTime - splitTime;
-
 				iteration ++;
-
-				int nresults = result.size();
-				long[] durations = new long[nresults];
-				for (int i = 0; i < nresults; i++) {
-					try {
-						durations[i] = result.get(i).get();
-					} catch (ExecutionException e) {
-						e.printStackTrace();
-						durations[i] = -1L;
-					}
-				}
-
 				logger.info(String.format("Iteration#%d. Split=%d Exec=%d %s Merge=%d. Total=%d",
 						iteration, splitTime, execTime, Arrays.toString(durations), mergeTime, total));
-				printStat();
 			}
 			
 			if (config.isGarbageCollect())
 				System.gc();
 		}
+	}
+	
+	/**
+	 * Processes the splits on virtual threads. Up to 
+	 * <tt>Concurrency</tt> splits are processed at the same time,
+	 * each with its own replicates. Whenever some splits are done,
+	 * their replicates are merged and more splits are started, so
+	 * that, unlike in {@link #runRounds}, a slow split does not
+	 * hold up the others. 
+	 * 
+	 * @param invoker invokes the method on the arguments of a split
+	 * @param args the arguments to the method
+	 * @param sharedArgs indicates which arguments are @Shared
+	 * @param splits the splits to process
+	 * 
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	private void runStreaming(Invoker invoker, Object[] args,
+			boolean[] sharedArgs, Splits splits) 
+			throws InterruptedException, IOException {
+		int concurrency = Math.max(1, config.getConcurrency());
+		int nargs = args.length;
+		int running = 0;
+		int processed = 0;
+		int merges = 0;
+		long start = System.currentTimeMillis();
+		
+		Map<ThreadPoolCallable, Integer> indices = 
+				new IdentityHashMap<ThreadPoolCallable, Integer>();
+		Map<ThreadPoolCallable, Long> lengths = 
+				new IdentityHashMap<ThreadPoolCallable, Long>();
+		
+		StreamingMergeable[] streaming = streamingArgs(args, sharedArgs);
+		
+		// The recycled replicates of each argument
+		List<ArrayDeque<Object>> recycled = new ArrayList<ArrayDeque<Object>>();
+		for (int i = 0; i < nargs; i++) {
+			recycled.add(new ArrayDeque<Object>());
+		}
+		ExecutorService virtual = newVirtualExecutor();
+		CompletionService<ThreadPoolCallable> service = 
+				new ExecutorCompletionService<ThreadPoolCallable>(virtual);
 		
-		// All iterations are done now... call the merge() function
-		// one more time with <tt>null</tt> argument to indicate
-		// to the Mergeables that there won't be any more mergers
-		for (int i = 1; i < nargs; i++) {
-			if (sharedArgs[i]) continue;
-			((Mergeable) args[i]).merge((Object[]) null);
+		try {
+			while (true) {
+				// Start more splits..
+				while (running < concurrency && splits.hasNext()) {
+					Object split = splits.next();
+					long length = SplitLedger.length(split);
+					if (split instanceof SplitDescriptor) 
+						split = ((SplitDescriptor) split).open();
+					
+					Object[] threadArgs = new Object[nargs];
+					threadArgs[0] = split;
+					for (int i = 1; i < nargs; i++) {
+						if (sharedArgs[i]) {
+							threadArgs[i] = args[i];
+						} else if (! recycled.get(i).isEmpty()) {
+							threadArgs[i] = recycled.get(i).poll();
+						} else {
+							threadArgs[i] = ((Mergeable) args[i]).replicate();
+						}
+					}
+					
+					final ThreadPoolCallable callable = 
+							new ThreadPoolCallable(invoker, threadArgs)
+							.mergeInto(streaming)
+							.profile(profile, "split " + splits.index());
+					indices.put(callable, splits.index());
+					lengths.put(callable, length);
+					
+					service.submit(new Callable<ThreadPoolCallable>() {
+						@Override
+						public ThreadPoolCallable call() throws Exception {
+							PDQ.setContext(PDQPrivate.this);
+							try {
+								callable.call();
+							} finally {
+								PDQ.setContext(null);
+							}
+							return callable;
+						}
+					});
+					running ++;
+				}
+				
+				if (running == 0) break;
+				
+				// .. wait for some to be done
+				List<ThreadPoolCallable> done = new ArrayList<ThreadPoolCallable>();
+				Future<ThreadPoolCallable> future = service.take();
+				do {
+					try {
+						done.add(future.get());
+					} catch (ExecutionException e) {
+						throw new IOException("Computation failed on a split", 
+								e.getCause());
+					}
+				} while ((future = service.poll()) != null);
+				running -= done.size();
+				long mergeStart = Profile.start();
+				
+				// Merge output
+				for (int i = 1; i < nargs; i++) {
+					if (sharedArgs[i]) continue;
+					
+					Object[] partials = new Object[done.size()];
+					for (int j = 0; j < partials.length; j++) {
+						partials[j] = done.get(j).getArg(i);
+					}
+					
+					if (streaming[i] == null)
+						((Mergeable) args[i]).merge(partials);
+					
+					if (args[i] instanceof Recyclable) {
+						for (Object partial: partials) {
+							if (((Recyclable) args[i]).recycle(partial))
+								recycled.get(i).add(partial);
+						}
+					}
+				}
+				
+				// Report the processed splits to the master
+				if (isWorker()) worker.checkConnection();
+				long bytes = 0;
+				long busy = 0;
+				for (ThreadPoolCallable callable: done) {
+					int index = indices.remove(callable);
+					if (isWorker()) worker.completed(index);
+					bytes += lengths.remove(callable);
+					busy += callable.getElapsed();
+				}
+				
+				progress(args, done.size(), bytes);
+				if (tuner != null) tuner.processed(bytes, busy);
+				if (profile != null) profile.record("merge", "merge", mergeStart);
+				
+				processed += done.size();
+				merges ++;
+			}
+		} finally {
+			virtual.shutdown();
+		}
+		
+		if (logger.isInfoEnabled() && processed > 0) {
+			logger.info(String.format("Processed %d splits on virtual threads. Merges=%d Total=%d",
+					processed, merges, System.currentTimeMillis() - start));
 		}
-
-		// If running in distributed mode, collect the results from the
-		// workers (this will run on the master JVM only)
-//		if (distributor != null) {
-//			long start = System.currentTimeMillis();
-//			Object[][] workerResults = distributor.gatherResults(nargs);
-//			
-//			logger.info("Distributed Gathering results from " +
-//					numWorkers + " workers = " + 
-//					(System.currentTimeMillis() - start));
-//			
-//			// Ask the Mergeables to merge these results gathered by
-//			// workers
-//			for (int i = 1; i < nargs; i++) {
-//				if (sharedArgs[i]) continue;
-//				((Mergeable) args[i]).merge(workerResults[i]);
-//				((Mergeable) args[i]).merge((Object[]) null);				
-//			}
-//		}
 	}
 	
+	/**
+	 * Creates the executor that starts a virtual thread for each
+	 * task. If the JVM has no virtual threads, the tasks are 
+	 * executed by a pool of platform threads instead.
+	 */
+	static ExecutorService newVirtualExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (Exception e) {
+			if (! virtualWarned) {
+				virtualWarned = true;
+				logger.warn("Virtual threads are not available in this JVM; " +
+						"using platform threads");
+			}
+			return Executors.newCachedThreadPool(new PoolThreadFactory());
+		}
+	}
 	
+	static private volatile boolean virtualWarned = false;
+	
+	/**
+	 * Returns <tt>true</tt> if this computation is running on a
+	 * worker JVM on behalf of a master.
+	 */
+	private boolean isWorker() {
+		return worker != null;
+	}
 	
-	static final SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MM H:mm:ss");
-
 	int rank() {
 		return rank;
 	}
+	
+	boolean isAlive(int rank) {
+		if (distributor == null) return true;
+		return distributor.isAlive(rank);
+	}
 
 	void sendTo(int rank, Object data) {
 		if (distributor == null) return;
-		distributor.sendTo(rank, data);
+		if (! distributor.sendTo(rank, data))
+			throw lostWorker(rank);
 	}
 	
 	void sendAll(Object[] data) {
 		if (distributor == null) return;
-		distributor.sendAll(data);
+		if (distributor.sendAll(data) > 0)
+			throw lostWorker(-1);
 	}
 	
 	Object recvFrom(int rank) {
 		if (distributor == null) return null;
-		return distributor.recvFrom(rank);
+		Object data = distributor.recvFrom(rank);
+		if (! distributor.isAlive(rank))
+			throw lostWorker(rank);
+		return data;
 	}
 	
 	Object[] recvAll() {
 		if (distributor == null) return null;
-		return distributor.recvAll();
+		int alive = distributor.numAlive();
+		Object[] data = distributor.recvAll();
+		if (distributor.numAlive() < alive)
+			throw lostWorker(-1);
+		return data;
+	}
+	
+	/**
+	 * Creates the exception thrown when a worker is lost while
+	 * exchanging data after the computation. The partial results
+	 * held by such a worker cannot be recovered.
+	 */
+	private IllegalStateException lostWorker(int rank) {
+		return new IllegalStateException("Lost " + 
+				(rank < 0 ? "a worker" : "worker " + rank) + 
+				" while exchanging results");
+	}
+	
+	/**
+	 * Iterates over the splits processed by this JVM, and remembers
+	 * the index of the split last returned. The index of a split
+	 * is its position in the iteration order of the input. The 
+	 * splits returned may be {@link SplitDescriptor}s, which are
+	 * opened before they are processed.
+	 * 
+	 * @author mvarshney
+	 */
+	static abstract class Splits implements Iterator<Object> {
+		int index = -1;
+		
+		/**
+		 * Returns the index of the split last returned by 
+		 * {@link #next()}.
+		 */
+		int index() {
+			return index;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
 	}
 	
-	void printStat() {
-		double total = 1.0 * Runtime.getRuntime().totalMemory() / 1024 / 1024;
-		double free = 1.0 * Runtime.getRuntime().freeMemory() / 1024 / 1024;
-		double used = total - free;
+	/**
+	 * Splits enumerated by this JVM from the 
+	 * {@link Splittable#getSplits()} iterator. The subclasses
+	 * may select a subset of the splits.
+	 * 
+	 * @author mvarshney
+	 */
+	static class LocalSplits extends Splits {
+		final Iterator<?> splits;
+		int position = 0;
+		
+		LocalSplits(Iterator<?> splits) {
+			this.splits = splits;
+		}
+		
+		/**
+		 * Returns <tt>true</tt> if the split at the current
+		 * position must be processed by this JVM.
+		 */
+		boolean accept(int position) {
+			return true;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			while (splits.hasNext()) {
+				if (accept(position)) return true;
+				SplitLedger.discard(splits.next());
+				position ++;
+			}
+			return false;
+		}
+		
+		@Override
+		public Object next() {
+			if (! hasNext()) 
+				throw new NoSuchElementException();
+			
+			index = position++;
+			return splits.next();
+		}
+	}
+	
+	/**
+	 * Splits of the lost workers that are to be re-executed.
+	 */
+	static final class OrphanSplits extends LocalSplits {
+		final Set<Integer> orphans;
+		
+		OrphanSplits(Iterator<?> splits, Set<Integer> orphans) {
+			super(splits);
+			this.orphans = orphans;
+		}
+		
+		@Override
+		boolean accept(int position) {
+			return orphans.contains(position);
+		}
+	}
+	
+	/**
+	 * Splits taken by the master from the ledger. The iteration
+	 * ends when no split is available at the moment.
+	 */
+	static final class LedgerSplits extends Splits {
+		final SplitLedger ledger;
+		Assignment assignment;
 		
-		System.out.println(String.format("##STAT## %s Total: %.2fMB Free: %.2fMB Used: %.2fMB",
-				dateFormat.format(new Date()),
-				total, free, used));
+		LedgerSplits(SplitLedger ledger) {
+			this.ledger = ledger;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if (assignment == null) 
+				assignment = ledger.poll();
+			return assignment != null;
+		}
+		
+		@Override
+		public Object next() {
+			if (! hasNext()) 
+				throw new NoSuchElementException();
+			
+			index = assignment.index;
+			Object split = assignment.split;
+			assignment = null;
+			return split;
+		}
+	}
+	
+	/**
+	 * Splits assigned to a worker by the master. If the input is
+	 * not a {@link DescribedSplittable}, the master sends only the
+	 * indices of the splits, and the worker skips to these splits 
+	 * in its own enumeration of the input.
+	 */
+	static final class RemoteSplits extends Splits {
+		final Splittable input;
+		final PDQWorker.SplitReceiver receiver;
+		Assignment assignment;
+		LocalSplits local;
+		
+		RemoteSplits(Splittable input, PDQWorker.SplitReceiver receiver) {
+			this.input = input;
+			this.receiver = receiver;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if (assignment == null) {
+				try {
+					assignment = receiver.take();
+				} catch (IOException e) {
+					throw new IllegalStateException("Lost connection with master", e);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException(e);
+				}
+			}
+			return assignment != null;
+		}
+		
+		@Override
+		public Object next() {
+			if (! hasNext()) 
+				throw new NoSuchElementException();
+			
+			index = assignment.index;
+			Object split = assignment.split;
+			assignment = null;
+			
+			if (split != null) return split;
+			
+			// Splits are assigned in increasing order of their index
+			if (local == null) 
+				local = new LocalSplits(input.getSplits());
+			
+			while (local.position < index) {
+				SplitLedger.discard(local.next());
+			}
+			return local.next();
+		}
+	}
+	
+	/**
+	 * Key of the cache of @Parallel methods.
+	 * 
+	 * @author mvarshney
+	 */
+	static final class MethodKey {
+		final Class<?> cls;
+		final String name;
+		final boolean isStatic;
+		
+		MethodKey(Class<?> cls, String name, boolean isStatic) {
+			this.cls = cls;
+			this.name = name.toLowerCase();
+			this.isStatic = isStatic;
+		}
+		
+		@Override
+		public int hashCode() {
+			return (cls.hashCode() * 31 + name.hashCode()) * 2 
+					+ (isStatic ? 1 : 0);
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (! (obj instanceof MethodKey)) return false;
+			MethodKey other = (MethodKey) obj;
+			return cls == other.cls && name.equals(other.name) 
+					&& isStatic == other.isStatic;
+		}
+	}
+	
+	/**
+	 * Executes the tasks of one computation. The tasks are run by
+	 * a thread pool that is borrowed for the duration of the 
+	 * computation and then kept for the subsequent computations of
+	 * the JVM, so that a long-lived JVM (such as a 
+	 * {@link PDQWorker}) does not create the threads for every
+	 * computation. Several computations may run concurrently in 
+	 * a JVM; each computation borrows its own pool. The tasks
+	 * run in the context of the computation (see 
+	 * {@link PDQ#context()}).
+	 * <p>
+	 * Shutting down this executor returns the pool; the tasks
+	 * that are still running complete on the pool.
+	 * 
+	 * @author mvarshney
+	 */
+	static final class JobExecutor extends AbstractExecutorService {
+		/**
+		 * Maximum number of idle pools of each size.
+		 */
+		static final int MAX_IDLE = 4;
+		
+		/**
+		 * Idle pools, keyed by their number of threads.
+		 */
+		static private final Map<Integer, LinkedList<ExecutorService>> idle = 
+				new HashMap<Integer, LinkedList<ExecutorService>>();
+		
+		final PDQPrivate job;
+		final int threads;
+		private ExecutorService pool;
+		private int active = 0;
+		
+		JobExecutor(PDQPrivate job, int threads) {
+			this.job = job;
+			this.threads = threads;
+			
+			synchronized (idle) {
+				LinkedList<ExecutorService> pools = idle.get(threads);
+				if (pools != null && ! pools.isEmpty())
+					pool = pools.removeFirst();
+			}
+			
+			if (pool == null)
+				pool = Executors.newFixedThreadPool(threads, new PoolThreadFactory());
+		}
+
+		@Override
+		public void execute(final Runnable command) {
+			ExecutorService pool;
+			synchronized (this) {
+				if (this.pool == null) 
+					throw new RejectedExecutionException("Computation has completed");
+				pool = this.pool;
+				active ++;
+			}
+			
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					PDQ.setContext(job);
+					try {
+						command.run();
+					} finally {
+						PDQ.setContext(null);
+						done();
+					}
+				}
+			});
+		}
+		
+		private synchronized void done() {
+			active --;
+			if (active == 0) notifyAll();
+		}
+
+		@Override
+		public void shutdown() {
+			ExecutorService pool;
+			synchronized (this) {
+				pool = this.pool;
+				this.pool = null;
+			}
+			if (pool == null) return;
+			
+			synchronized (idle) {
+				LinkedList<ExecutorService> pools = idle.get(threads);
+				if (pools == null) {
+					pools = new LinkedList<ExecutorService>();
+					idle.put(threads, pools);
+				}
+				
+				if (pools.size() < MAX_IDLE) {
+					pools.add(pool);
+					return;
+				}
+			}
+			pool.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			shutdown();
+			return Collections.emptyList();
+		}
+
+		@Override
+		public synchronized boolean isShutdown() {
+			return pool == null;
+		}
+
+		@Override
+		public synchronized boolean isTerminated() {
+			return pool == null && active == 0;
+		}
+
+		@Override
+		public synchronized boolean awaitTermination(long timeout, TimeUnit unit)
+				throws InterruptedException {
+			long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+			while (! isTerminated()) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) return false;
+				wait(remaining);
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * Creates the daemon threads of the pools. The threads do not
+	 * inherit the context of the computation that creates them, 
+	 * since they serve other computations later on.
+	 * 
+	 * @author mvarshney
+	 */
+	static final class PoolThreadFactory implements ThreadFactory {
+		static private int count = 0;
+		
+		@Override
+		public Thread newThread(final Runnable r) {
+			int id;
+			synchronized (PoolThreadFactory.class) {
+				id = count ++;
+			}
+			
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					PDQ.setContext(null);
+					r.run();
+				}
+			}, "PDQ-Pool-" + id);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+	
+	/**
+	 * Calls the progress listener from a thread of its own, so that
+	 * the computation does not wait for the listener. While the
+	 * listener is busy, only the latest progress is kept.
+	 * 
+	 * @author mvarshney
+	 */
+	static final class ProgressReporter extends Thread {
+		final ProgressListener listener;
+		private Progress pending;
+		private boolean closed = false;
+		
+		ProgressReporter(ProgressListener listener, String jobId) {
+			super("PDQ-Progress-" + jobId);
+			this.listener = listener;
+			setDaemon(true);
+			start();
+		}
+		
+		synchronized void report(Progress progress) {
+			pending = progress;
+			notifyAll();
+		}
+		
+		/**
+		 * Reports the pending progress (if any), and waits for the
+		 * listener to return.
+		 */
+		void close() throws InterruptedException {
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+			}
+			join();
+		}
+		
+		@Override
+		public void run() {
+			while (true) {
+				Progress progress;
+				synchronized (this) {
+					try {
+						while (pending == null && ! closed) wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+					if (pending == null) return;
+					progress = pending;
+					pending = null;
+				}
+				
+				try {
+					listener.progress(progress);
+				} catch (RuntimeException e) {
+					logger.warn("Progress listener failed", e);
+				}
+			}
+		}
 	}
 }
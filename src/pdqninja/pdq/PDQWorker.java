@@ -6,10 +6,24 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.ref.SoftReference;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.ConsoleAppender;
@@ -17,35 +31,108 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 
-import pdqninja.pdq.Distributor.MessageArguments;
+import pdqninja.pdq.Broadcast.MessageRelay;
+import pdqninja.pdq.Broadcast.SharedArg;
+import pdqninja.pdq.Distributor.CachingObjectInputStream;
+import pdqninja.pdq.Distributor.MessageAdvertise;
+import pdqninja.pdq.Distributor.MessageDone;
+import pdqninja.pdq.Distributor.MessageFailure;
+import pdqninja.pdq.Distributor.MessageHeartbeat;
 import pdqninja.pdq.Distributor.MessageRegister;
 import pdqninja.pdq.Distributor.MessageRequest;
+import pdqninja.pdq.Distributor.MessageSplits;
+import pdqninja.pdq.Distributor.MessageTake;
+import pdqninja.pdq.SplitLedger.Assignment;
 
 
 /**
  * Daemon process that runs on slave machines and performs
  * computation on behalf of a master.
  * <p>
+ * The daemon is long-lived: each connection from a master is
+ * served by a thread of a bounded pool (at most 
+ * <code>-connections</code> connections at the same time), which
+ * runs the computations of that master one after the other, until
+ * the master closes the connection. A master that runs several computations at the same
+ * time uses one connection for each, so the computations of the 
+ * masters run concurrently in the daemon, each with its own 
+ * configuration and context. The threads of the computations,
+ * the classes of the messages, and the @Shared arguments are kept
+ * across the computations.
  * 
  * @author mvarshney
  *
  */
-public class PDQWorker extends Thread {
+public class PDQWorker implements Runnable {
+	static private Logger logger = Logger.getLogger(PDQWorker.class);
+	
+	/**
+	 * Default maximum number of connections served at the same time.
+	 */
+	static final int DEFAULT_MAX_CONNECTIONS = 64;
+	
+	/**
+	 * The @Shared arguments received by this JVM, keyed by the hash
+	 * of their serialized form. The arguments are held softly, so 
+	 * that they can be reclaimed when memory runs short.
+	 */
+	static private final Map<String, SoftReference<Object>> sharedCache = 
+			new HashMap<String, SoftReference<Object>>();
+	
+	/**
+	 * The @Shared arguments relayed to this JVM (see {@link Broadcast}),
+	 * keyed by the identifier of the computation and the hash of
+	 * the argument, held until the work request is received.
+	 */
+	static private final Map<String, Object> relayed = new HashMap<String, Object>();
+	
 	final Socket socket;
 	ObjectInputStream ois;
 	ObjectOutputStream oos;
 	
+	/**
+	 * The cached @Shared arguments advertised to the master for the
+	 * current computation, held until the work request is received.
+	 */
+	private final Map<String, Object> pinned = new HashMap<String, Object>();
+	
+	/**
+	 * Splits processed since the last heartbeat.
+	 */
+	private final Queue<Integer> completed = new ConcurrentLinkedQueue<Integer>();
+	private Heartbeat heartbeat;
+	
+	/**
+	 * Set when the connection to the master is broken.
+	 */
+	private volatile IOException lost;
+	
 	PDQWorker(Socket socket) throws IOException {
 		this.socket = socket;
 	}
 	
 	@Override
 	public void run()  {
+		Thread thread = Thread.currentThread();
+		String name = thread.getName();
+		thread.setName("PDQ-Worker-" + socket.getRemoteSocketAddress());
+		try {
+			serve();
+		} finally {
+			thread.setName(name);
+		}
+	}
+	
+	/**
+	 * Serves the computations of the master until it closes the 
+	 * connection.
+	 */
+	private void serve() {
 		System.out.println("PDQWorker accepting work from " + 
 				socket.getRemoteSocketAddress());
 		
 		try {
-			ois = new ObjectInputStream(
+			ois = new CachingObjectInputStream(
 							new BufferedInputStream(
 							socket.getInputStream(),
 							Distributor.SocketBufferSize));
@@ -57,72 +144,437 @@ public class PDQWorker extends Thread {
 			
 			oos.flush();
 			
-			MessageRegister register = 
-					(MessageRegister) ois.readUnshared();
+			// Serve the computations of the master until it closes
+			// the connection
+			while (true) {
+				Object msg;
+				try {
+					msg = ois.readUnshared();
+				} catch (EOFException e) {
+					break;
+				}
+				
+				// .. unless this is a relay of a @Shared argument
+				if (msg instanceof MessageRelay) {
+					Broadcast.serve((MessageRelay) msg, ois, oos);
+					break;
+				}
+				
+				if (! serve((MessageRegister) msg)) break;
+			}
+		} catch (EOFException e) {
+			
+		} catch (Exception e) {
+			logger.error("Lost connection with master", e);
+		}
+		
+		try {
+			socket.close();
+		} catch (IOException e) {
 			
-			String localDir = PDQConfig.current().getLocalDir();
-			PDQConfig.setCurrent(register.config);
-			PDQConfig.current().setLocalDir(localDir);
-			System.out.println("Setting local directory: " + localDir);
-
-			// Wait for work request
-			MessageRequest request = 
-					(MessageRequest) ois.readUnshared();
+		}
+		
+		System.out.println("Worker completed work");
+	}
+	
+	/**
+	 * Runs one computation on behalf of the master.
+	 * 
+	 * @param register the registration message of the computation
+	 * @return <tt>false</tt> if the computation has failed, and the
+	 * connection must be closed
+	 * @throws Exception
+	 */
+	private boolean serve(MessageRegister register) throws Exception {
+		// The computation runs with the configuration of the master,
+		// except for the local directories of this worker
+		PDQConfig config = register.config;
+		String localDir = PDQConfig.current().getLocalDir();
+		String disks = PDQConfig.current().getDisks();
+		config.setLocalDir(localDir);
+		config.setDisks(disks);
+		
+		// Tell the master which data this worker holds locally, and 
+		// which @Shared arguments it has cached
+		send(new MessageAdvertise(Distributor.localDirs(disks), pinCached()));
 
-			request.unwrap();
+		// Wait for work request
+		MessageRequest request = 
+				(MessageRequest) ois.readUnshared();
 
-			System.out.println("Worker received work request");
+		request.unwrap();
+		resolveShared(register.jobId, request.args);
 
-			PDQ.worker = this;
-			PDQ.run(request.cls, request.object, request.name, 
-					register.rank, register.numWorkers, request.args);
+		logger.info("Worker received work request of job " + register.jobId);
 
-			// Return result
-//			request.args[0] = null;
-//			MessageArguments result = 
-//					new MessageArguments(request.args);
-//			oos.writeUnshared(result);
-//			oos.flush();
-		} catch (EOFException e) {
+		Thread thread = Thread.currentThread();
+		String name = thread.getName();
+		thread.setName("PDQ-Job-" + register.jobId);
+		lost = null;
+		
+		PDQPrivate priv;
+		try {
+			String programName = request.cls.getSimpleName() + 
+					(request.name == null ? "" : "." + request.name);
+			priv = new PDQPrivate(programName, register.rank, 
+					register.numWorkers, config, this, register.jobId);
+			PDQ.run(priv, request.cls, request.object, request.name, 
+					request.args);
+		} catch (Exception e) {
+			logger.error("Computation failed", e);
+			stopHeartbeat();
+			reportFailure(e);
+			return false;
+		} finally {
+			thread.setName(name);
+		}
+		
+		send(new MessageDone(register.jobId, priv.trace()));
+		return true;
+	}
+	
+	/**
+	 * Pins the @Shared arguments that are cached, so that they are
+	 * not reclaimed before the work request arrives.
+	 * 
+	 * @return the hashes of the cached arguments
+	 */
+	private String[] pinCached() {
+		pinned.clear();
+		synchronized (sharedCache) {
+			Iterator<Map.Entry<String, SoftReference<Object>>> it = 
+					sharedCache.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, SoftReference<Object>> entry = it.next();
+				Object arg = entry.getValue().get();
+				if (arg == null) {
+					it.remove();
+				} else {
+					pinned.put(entry.getKey(), arg);
+				}
+			}
+		}
+		return pinned.keySet().toArray(new String[pinned.size()]);
+	}
+	
+	/**
+	 * Replaces the @Shared arguments of a work request with the 
+	 * deserialized arguments, or with the cached (or relayed)
+	 * arguments if the master sent only their hashes.
+	 * 
+	 * @param jobId the identifier of the computation
+	 * @param args the arguments of the work request
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private void resolveShared(String jobId, Object[] args) throws IOException, ClassNotFoundException {
+		for (int i = 0; i < args.length; i++) {
+			if (! (args[i] instanceof SharedArg)) continue;
 			
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (InstantiationException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IllegalAccessException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (NoSuchMethodException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (RuntimeException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (InvocationTargetException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			SharedArg shared = (SharedArg) args[i];
+			if (shared.isReference()) {
+				synchronized (sharedCache) {
+					args[i] = relayed.remove(jobId + ":" + shared.hash);
+				}
+				if (args[i] == null)
+					args[i] = pinned.get(shared.hash);
+				if (args[i] == null)
+					throw new IOException("Shared argument not cached: " + shared.hash);
+			} else {
+				args[i] = shared.toObject();
+				synchronized (sharedCache) {
+					sharedCache.put(shared.hash, new SoftReference<Object>(args[i]));
+				}
+			}
+		}
+		pinned.clear();
+	}
+	
+	/**
+	 * Records a @Shared argument relayed to this JVM for the 
+	 * specified computation.
+	 * 
+	 * @param jobId the identifier of the computation
+	 * @param hash the hash of the argument
+	 * @param arg the argument
+	 */
+	static void relayed(String jobId, String hash, Object arg) {
+		synchronized (sharedCache) {
+			relayed.put(jobId + ":" + hash, arg);
+			sharedCache.put(hash, new SoftReference<Object>(arg));
 		}
+	}
+	
+	/**
+	 * Sends data to the master. Writes to the master are serialized,
+	 * since the heartbeats are sent from a separate thread.
+	 * 
+	 * @param data the data to send
+	 * @throws IOException
+	 */
+	void send(Object data) throws IOException {
+		synchronized (oos) {
+			oos.writeUnshared(data);
+			oos.reset();
+			oos.flush();
+		}
+	}
+	
+	/**
+	 * Starts sending heartbeats to the master at the configured
+	 * interval.
+	 */
+	void startHeartbeat() {
+		completed.clear();
+		heartbeat = new Heartbeat(PDQConfig.current().getHeartbeat());
+		heartbeat.start();
+	}
+	
+	/**
+	 * Records that the split with the specified index has been
+	 * processed. The index is reported to the master with the
+	 * next heartbeat.
+	 * 
+	 * @param split index of the split
+	 */
+	void completed(int split) {
+		completed.add(split);
+	}
+	
+	/**
+	 * Stops the heartbeats and reports to the master that the
+	 * computation is done.
+	 * 
+	 * @throws IOException
+	 */
+	void finishHeartbeat() throws IOException {
+		stopHeartbeat();
+		send(new MessageHeartbeat(drainCompleted(), true));
+	}
+	
+	/**
+	 * Stops the heartbeats without notifying the master.
+	 */
+	void stopHeartbeat() {
+		if (heartbeat == null) return;
 		
+		heartbeat.interrupt();
 		try {
-			socket.close();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			heartbeat.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		heartbeat = null;
+	}
+	
+	/**
+	 * Throws an IOException if the connection with the master
+	 * has been lost; for example, the master may have considered
+	 * this worker dead and closed the connection.
+	 * 
+	 * @throws IOException
+	 */
+	void checkConnection() throws IOException {
+		if (lost != null) 
+			throw new IOException("Lost connection with master", lost);
+	}
+	
+	/**
+	 * Starts receiving splits from the master. The worker keeps
+	 * <tt>prefetch</tt> splits requested in advance: one more 
+	 * split is requested for each split taken via 
+	 * {@link SplitReceiver#take()}.
+	 * 
+	 * @param prefetch number of splits requested in advance
+	 * @return the receiver of the splits
+	 * @throws IOException
+	 */
+	SplitReceiver receiveSplits(int prefetch) throws IOException {
+		SplitReceiver receiver = new SplitReceiver();
+		receiver.start();
+		receiver.request(Math.max(1, prefetch));
+		return receiver;
+	}
+	
+	private void reportFailure(Exception e) {
+		try {
+			send(new MessageFailure(e));
+		} catch (IOException ex) {
+			logger.error("Cannot report the failure to the master", ex);
+		}
+	}
+	
+	private int[] drainCompleted() {
+		List<Integer> splits = new ArrayList<Integer>();
+		Integer split;
+		while ((split = completed.poll()) != null) {
+			splits.add(split);
 		}
 		
-		System.out.println("Worker completed work");
+		int[] result = new int[splits.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = splits.get(i);
+		}
+		return result;
+	}
+	
+	/**
+	 * Periodically sends the processed splits to the master.
+	 * 
+	 * @author mvarshney
+	 */
+	final class Heartbeat extends Thread {
+		final long interval;
+		
+		Heartbeat(long interval) {
+			super("PDQ-Heartbeat");
+			setDaemon(true);
+			this.interval = interval;
+		}
+		
+		@Override
+		public void run() {
+			while (! isInterrupted()) {
+				try {
+					send(new MessageHeartbeat(drainCompleted(), false));
+					Thread.sleep(interval);
+				} catch (InterruptedException e) {
+					break;
+				} catch (IOException e) {
+					lost = e;
+					break;
+				}
+			}
+		}
 	}
 
 	
+	/**
+	 * Receives the splits assigned by the master while the 
+	 * worker computes. The thread terminates after the master has
+	 * answered all the requests and has indicated that there are
+	 * no more splits, so that the subsequent messages from the
+	 * master are read by the computation thread.
+	 * 
+	 * @author mvarshney
+	 */
+	final class SplitReceiver extends Thread {
+		private final BlockingQueue<Object> received = 
+				new LinkedBlockingQueue<Object>();
+		private final Object END = new Object();
+		private int outstanding = 0;
+		private boolean last = false;
+		private boolean exhausted = false;
+		
+		SplitReceiver() {
+			super("PDQ-SplitReceiver");
+			setDaemon(true);
+		}
+		
+		/**
+		 * Requests more splits from the master, unless the master
+		 * has no more splits.
+		 */
+		synchronized void request(int count) throws IOException {
+			if (last) return;
+			outstanding ++;
+			send(new MessageTake(count));
+		}
+		
+		/**
+		 * Records a response from the master.
+		 * 
+		 * @return <tt>true</tt> if no more responses are expected
+		 */
+		private synchronized boolean answered(boolean isLast) {
+			outstanding --;
+			if (isLast) last = true;
+			return last && outstanding == 0;
+		}
+		
+		/**
+		 * Returns the next split assigned by the master, waiting
+		 * for it if necessary.
+		 * 
+		 * @return the next split, or <tt>null</tt> if there are 
+		 * no more splits for this worker
+		 * @throws IOException
+		 * @throws InterruptedException
+		 */
+		Assignment take() throws IOException, InterruptedException {
+			if (exhausted) return null;
+			
+			Object split = received.take();
+			if (split == END) {
+				exhausted = true;
+				join();
+				return null;
+			}
+			
+			if (split instanceof IOException) {
+				exhausted = true;
+				throw (IOException) split;
+			}
+			
+			request(1);
+			return (Assignment) split;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					MessageSplits msg = (MessageSplits) ois.readUnshared();
+					received.addAll(msg.splits);
+					if (answered(msg.last)) break;
+				}
+				received.add(END);
+			} catch (IOException e) {
+				received.add(e);
+			} catch (ClassNotFoundException e) {
+				received.add(new IOException(e));
+			}
+		}
+	}
+	
+	/**
+	 * Creates the executor that serves the connections from the
+	 * masters, with at most <tt>max</tt> connections at the same 
+	 * time. The threads are created as the connections arrive, and
+	 * are kept for a while for the subsequent connections.
+	 * 
+	 * @param max maximum number of connections
+	 * @return the executor
+	 */
+	static ExecutorService newConnectionExecutor(int max) {
+		return new ThreadPoolExecutor(0, max, 60L, TimeUnit.SECONDS, 
+				new SynchronousQueue<Runnable>(), 
+				new PDQPrivate.PoolThreadFactory());
+	}
+	
+	/**
+	 * Serves the connection from a master on a thread of the 
+	 * executor. If all the threads are busy, the connection is
+	 * closed, and the master runs without this worker.
+	 * 
+	 * @param socket the connection
+	 * @param connections the executor
+	 * @throws IOException
+	 */
+	static void accept(Socket socket, ExecutorService connections) 
+			throws IOException {
+		try {
+			connections.execute(new PDQWorker(socket));
+		} catch (RejectedExecutionException e) {
+			logger.warn("Too many connections; refusing " + 
+					socket.getRemoteSocketAddress());
+			socket.close();
+		}
+	}
+	
 	static void offerService(String[] args) throws IOException {
 		int port = Distributor.DEFAULT_WORKER_PORT;
+		int maxConnections = DEFAULT_MAX_CONNECTIONS;
 		
 		for (String arg: args) {
 			String[] keyval = arg.split("=", 2);
@@ -130,16 +582,19 @@ public class PDQWorker extends Thread {
 			
 			if (keyval[0].equalsIgnoreCase("-port")) {
 				port = Integer.parseInt(keyval[1]);
+			} else if (keyval[0].equalsIgnoreCase("-connections")) {
+				maxConnections = Integer.parseInt(keyval[1]);
 			}
 		}
 		
 		ServerSocket server = new ServerSocket(port);
 		server.setSoTimeout(2000);
 		
+		ExecutorService connections = newConnectionExecutor(maxConnections);
+		
 		while (true) {
 			try {
-				Socket socket = server.accept();
-				new PDQWorker(socket).start();
+				accept(server.accept(), connections);
 				
 			} catch (SocketTimeoutException e) {
 				if (Thread.currentThread().isInterrupted()) {
@@ -149,6 +604,8 @@ public class PDQWorker extends Thread {
 				}
 			}
 		}
+		
+		connections.shutdown();
 	}
 	
 	public static void main(String[] args) throws IOException {
@@ -0,0 +1,37 @@
+package pdqninja.pdq;
+
+import java.io.Serializable;
+
+/**
+ * A function executed by the PDQ library on each split of the input
+ * (via the {@link PDQ#run(Splittable, ParallelFunction, Mergeable)}
+ * method).
+ * <p>
+ * This is the typed alternative to the methods annotated with
+ * {@link Parallel}, for the computations that have exactly one
+ * output. The function is called directly, rather than via
+ * reflection, which makes a difference when the splits are small
+ * and numerous.
+ * <p>
+ * The function is serialized and sent to the workers in the
+ * distributed mode; therefore, the implementing class must be
+ * serializable (as anonymous classes of serializable classes, and
+ * serializable lambdas, are).
+ *
+ * @param <S> the type of the splits of the input
+ * @param <R> the type of the replicates of the output
+ *
+ * @author mvarshney
+ * @see Parallel
+ */
+public interface ParallelFunction<S, R> extends Serializable {
+	/**
+	 * Processes one split of the input, and stores the partial
+	 * results in the specified replicate of the output.
+	 *
+	 * @param split the split of the input
+	 * @param output the replicate of the output
+	 * @throws Exception
+	 */
+	void apply(S split, R output) throws Exception;
+}
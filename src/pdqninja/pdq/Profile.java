@@ -0,0 +1,235 @@
+package pdqninja.pdq;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The timeline of a computation: when each split was processed,
+ * and by which thread; when the partitions were merged and
+ * externalized; and when the data was exchanged between the JVMs.
+ * <p>
+ * The timeline is recorded when the <code>-PDQ:Profile=file</code>
+ * option is set, and is written to the file once the computation is
+ * done, in the Chrome trace format (which can be opened with the
+ * <code>chrome://tracing</code> page of the Chrome browser, or with
+ * Perfetto). Each JVM appears as a process (named after its rank),
+ * and each thread as a track of the process. In the distributed
+ * mode, the workers send their timelines to the master, which
+ * writes the timelines of all the JVMs to the file.
+ * <p>
+ * Applications may add events of their own, via the
+ * {@link #current()} profile:
+ * <pre>
+ *	Profile profile = Profile.current();
+ *	long start = Profile.start();
+ *	...
+ *	if (profile != null) profile.record("lookup", "app", start);
+ * </pre>
+ *
+ * @author mvarshney
+ */
+public final class Profile {
+	private final int rank;
+	private final long originNanos = System.nanoTime();
+	private final long originMicros = System.currentTimeMillis() * 1000;
+	private final ConcurrentLinkedQueue<Event> events =
+			new ConcurrentLinkedQueue<Event>();
+	
+	Profile(int rank) {
+		this.rank = rank;
+	}
+	
+	/**
+	 * Returns the profile of the computation that the current thread
+	 * participates in.
+	 *
+	 * @return the profile, or <tt>null</tt> if the timeline of the
+	 * computation is not recorded (or the thread is not participating
+	 * in a computation)
+	 */
+	public static Profile current() {
+		PDQPrivate priv = PDQ.context();
+		return priv == null ? null : priv.profile;
+	}
+	
+	/**
+	 * @return the start time of an event, to be passed to the
+	 * <code>record</code> methods
+	 */
+	public static long start() {
+		return System.nanoTime();
+	}
+	
+	/**
+	 * Records an event of the current thread, which ends now.
+	 *
+	 * @param name the name of the event
+	 * @param category the category of the event
+	 * @param start the start time of the event, as returned by
+	 * {@link #start()}
+	 */
+	public void record(String name, String category, long start) {
+		record(name, category, start, System.nanoTime());
+	}
+	
+	/**
+	 * Records an event of the current thread.
+	 *
+	 * @param name the name of the event
+	 * @param category the category of the event
+	 * @param start the start time of the event, as returned by
+	 * {@link #start()}
+	 * @param end the end time of the event, as returned by
+	 * {@link #start()}
+	 */
+	public void record(String name, String category, long start, long end) {
+		Thread thread = Thread.currentThread();
+		events.add(new Event(name, category,
+				originMicros + (start - originNanos) / 1000,
+				Math.max(0, (end - start) / 1000),
+				rank, thread.getId(), thread.getName()));
+	}
+	
+	/**
+	 * Returns a task that records an event for each execution of the
+	 * specified task.
+	 *
+	 * @param task the task
+	 * @param name the name of the events
+	 * @param category the category of the events
+	 * @return the task that records the events
+	 */
+	public <T> Callable<T> wrap(final Callable<T> task, final String name,
+			final String category) {
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				long start = start();
+				try {
+					return task.call();
+				} finally {
+					record(name, category, start);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * @return the events recorded so far
+	 */
+	Event[] events() {
+		return events.toArray(new Event[0]);
+	}
+	
+	/**
+	 * Adds the events recorded by another JVM.
+	 */
+	void add(Event[] remote) {
+		Collections.addAll(events, remote);
+	}
+	
+	/**
+	 * Writes the events to the file, in the Chrome trace format.
+	 *
+	 * @param file the file
+	 * @throws IOException
+	 */
+	void write(File file) throws IOException {
+		Map<String, String> threads = new HashMap<String, String>();
+		Set<Integer> processes = new HashSet<Integer>();
+		
+		Writer out = new BufferedWriter(new FileWriter(file));
+		try {
+			out.write("{\"traceEvents\":[\n");
+			boolean first = true;
+			
+			for (Event event: events) {
+				if (processes.add(event.pid)) {
+					first = separate(out, first);
+					metadata(out, "process_name", event.pid, 0,
+							event.pid == 0 ? "Master" : "Worker " + event.pid);
+				}
+				if (threads.put(event.pid + ":" + event.tid, event.thread) == null) {
+					first = separate(out, first);
+					metadata(out, "thread_name", event.pid, event.tid, event.thread);
+				}
+				
+				first = separate(out, first);
+				out.write(String.format("{\"name\":%s,\"cat\":%s,\"ph\":\"X\"," +
+						"\"ts\":%d,\"dur\":%d,\"pid\":%d,\"tid\":%d}",
+						quote(event.name), quote(event.category),
+						event.ts, event.dur, event.pid, event.tid));
+			}
+			
+			out.write("\n]}\n");
+		} finally {
+			out.close();
+		}
+	}
+	
+	private static boolean separate(Writer out, boolean first) throws IOException {
+		if (! first) out.write(",\n");
+		return false;
+	}
+	
+	private static void metadata(Writer out, String kind, int pid, long tid,
+			String name) throws IOException {
+		out.write(String.format("{\"name\":\"%s\",\"ph\":\"M\",\"pid\":%d," +
+				"\"tid\":%d,\"args\":{\"name\":%s}}",
+				kind, pid, tid, quote(name)));
+	}
+	
+	static String quote(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+	
+	/**
+	 * An event of the timeline.
+	 *
+	 * @author mvarshney
+	 */
+	static final class Event implements Serializable {
+		private static final long serialVersionUID = 3104568325810572693L;
+		final String name;
+		final String category;
+		final long ts;
+		final long dur;
+		final int pid;
+		final long tid;
+		final String thread;
+		
+		Event(String name, String category, long ts, long dur, int pid,
+				long tid, String thread) {
+			this.name = name;
+			this.category = category;
+			this.ts = ts;
+			this.dur = dur;
+			this.pid = pid;
+			this.tid = tid;
+			this.thread = thread;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package pdqninja.pdq;
+
+/**
+ * The progress of a computation, as reported to a 
+ * {@link ProgressListener}.
+ * <p>
+ * In the distributed mode, the progress is reported by the master
+ * JVM: the number of splits (and bytes) processed includes the
+ * splits processed by the workers, while the snapshots of the
+ * outputs include only the results merged by the master so far.
+ * 
+ * @author mvarshney
+ */
+public final class Progress {
+	private final String jobId;
+	private final int round;
+	private final int splitsDone;
+	private final int splitsTotal;
+	private final long bytesProcessed;
+	private final long elapsed;
+	private final Object[] args;
+	
+	Progress(String jobId, int round, int splitsDone, int splitsTotal, 
+			long bytesProcessed, long elapsed, Object[] args) {
+		this.jobId = jobId;
+		this.round = round;
+		this.splitsDone = splitsDone;
+		this.splitsTotal = splitsTotal;
+		this.bytesProcessed = bytesProcessed;
+		this.elapsed = elapsed;
+		this.args = args;
+	}
+	
+	/**
+	 * @return the identifier of the computation
+	 */
+	public String getJobId() {
+		return jobId;
+	}
+	
+	/**
+	 * @return the number of rounds merged by this JVM
+	 */
+	public int getRound() {
+		return round;
+	}
+	
+	/**
+	 * @return the number of splits processed
+	 */
+	public int getSplitsDone() {
+		return splitsDone;
+	}
+	
+	/**
+	 * @return the total number of splits, or -1 if the input
+	 * has not yet been enumerated completely
+	 */
+	public int getSplitsTotal() {
+		return splitsTotal;
+	}
+	
+	/**
+	 * @return the number of bytes in the processed splits; only 
+	 * the splits described by a {@link SplitDescriptor} with a
+	 * known length are counted
+	 */
+	public long getBytesProcessed() {
+		return bytesProcessed;
+	}
+	
+	/**
+	 * @return the time since the computation started, in 
+	 * milliseconds
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+	
+	/**
+	 * Returns a read-only copy of the results merged so far into
+	 * the specified argument of the computation. The argument must
+	 * be {@link Snapshottable}; the copy is made when this method
+	 * is called.
+	 * 
+	 * @param argument the position of the argument (as in the
+	 * arguments of the method being executed)
+	 * @return the copy of the results, or <tt>null</tt> if the
+	 * argument is not <tt>Snapshottable</tt>
+	 */
+	public Object snapshot(int argument) {
+		Object arg = args[argument];
+		if (arg instanceof Snapshottable) 
+			return ((Snapshottable) arg).snapshot();
+		return null;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("Round#%d. Splits=%d/%s Bytes=%d Elapsed=%d",
+				round, splitsDone, 
+				splitsTotal < 0 ? "?" : String.valueOf(splitsTotal), 
+				bytesProcessed, elapsed);
+	}
+}
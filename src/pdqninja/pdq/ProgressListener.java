@@ -0,0 +1,23 @@
+package pdqninja.pdq;
+
+/**
+ * Receives the progress of a computation while its splits are being
+ * processed (see {@link PDQConfig#setProgressListener(ProgressListener)}).
+ * <p>
+ * The listener is called by a thread of its own, after each round
+ * of splits has been merged; the computation does not wait for the
+ * listener. If the listener takes longer than a round, the rounds
+ * completed in the meantime are reported once, with the latest
+ * progress.
+ * 
+ * @author mvarshney
+ * @see Progress
+ */
+public interface ProgressListener {
+	/**
+	 * Reports the progress of the computation.
+	 * 
+	 * @param progress the progress
+	 */
+	void progress(Progress progress);
+}
@@ -0,0 +1,39 @@
+package pdqninja.pdq;
+
+/**
+ * A {@link Mergeable} whose replicates can be reused once they have
+ * been merged.
+ * <p>
+ * Without this interface, the PDQ library asks for new replicates
+ * (via the {@link #replicate()} method) for every round of splits,
+ * and the merged replicates are left to the garbage collector. When
+ * the splits are small and numerous, allocating the replicates
+ * (for example, hash tables that have to grow to their size all over
+ * again) can cost as much as the computation itself.
+ * <p>
+ * After the replicates of a round have been merged (via the
+ * {@link #merge(Object...)} method), the library offers each of them
+ * to the {@link #recycle(Object)} method. A replicate that is accepted
+ * is kept by the library, and is handed out again, instead of a new
+ * replicate, to the thread that processes the next split.
+ *
+ * @author mvarshney
+ * @see Mergeable
+ */
+public interface Recyclable extends Mergeable {
+	/**
+	 * Prepares a merged replicate to serve as a container for the
+	 * partial results of another split.
+	 * <p>
+	 * The replicate must be emptied, but should keep the memory it
+	 * has allocated. A replicate that shares its data with this
+	 * object (for example, because the {@link #merge(Object...)}
+	 * method has adopted its contents instead of copying them) must
+	 * not be accepted as is.
+	 *
+	 * @param replicate a replicate that has been merged
+	 * @return <tt>true</tt> if the replicate can be reused;
+	 * <tt>false</tt> if it must be discarded
+	 */
+	boolean recycle(Object replicate);
+}
@@ -0,0 +1,19 @@
+package pdqninja.pdq;
+
+/**
+ * An output of a computation that can provide a copy of the partial
+ * results merged so far, while the computation is still running.
+ * 
+ * @author mvarshney
+ * @see Progress#snapshot(int)
+ */
+public interface Snapshottable {
+	/**
+	 * Returns a read-only copy of the partial results merged so far.
+	 * This method is called concurrently with the merges, and must
+	 * not hold them up longer than it takes to copy the results.
+	 * 
+	 * @return the copy of the partial results
+	 */
+	Object snapshot();
+}
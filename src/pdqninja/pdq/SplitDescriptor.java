@@ -0,0 +1,53 @@
+package pdqninja.pdq;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * A compact, serializable description of a split, from which
+ * the split itself can be opened on any JVM participating in
+ * the computation.
+ * <p>
+ * In the distributed execution mode, the master JVM enumerates the
+ * splits of a {@link DescribedSplittable} input and hands out their
+ * descriptors to the workers on demand. A worker opens only the
+ * splits that it is assigned, instead of enumerating all the splits
+ * of the input. For example, a split of a file is described by
+ * the name of the file, and the offset and the length of the
+ * split within the file.
+ * 
+ * @author mvarshney
+ * @see DescribedSplittable
+ */
+public interface SplitDescriptor extends Serializable {
+	/**
+	 * Opens the split described by this descriptor. The returned
+	 * object is passed to the method being executed, in the same
+	 * way as the objects returned by the {@link Splittable#getSplits()}
+	 * iterator.
+	 * 
+	 * @return the split
+	 * @throws IOException
+	 */
+	Object open() throws IOException;
+	
+	/**
+	 * Returns the location of the data of this split, used to 
+	 * schedule the split on a JVM that holds the data locally.
+	 * The location is a path, which is matched against the
+	 * directories that each JVM declares as local via the
+	 * <code>-PDQ:Disks</code> option.
+	 * 
+	 * @return the location of the data, or <tt>null</tt> if the
+	 * data is equally accessible from all JVMs
+	 */
+	String getLocation();
+	
+	/**
+	 * Returns the number of bytes of data in this split, used to
+	 * report the progress of the computation.
+	 * 
+	 * @return the number of bytes, or -1 if unknown
+	 */
+	long getLength();
+}
@@ -0,0 +1,503 @@
+package pdqninja.pdq;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Hands out the splits of the input to the JVMs participating in
+ * a distributed computation, and keeps the book of who processed
+ * which split.
+ * <p>
+ * Only the master JVM enumerates the splits of the input. The
+ * workers request splits as they need more work (see
+ * {@link #take(int, int)}), and the master takes its own share
+ * via {@link #poll()}. This way, the faster JVMs process more
+ * splits, and all JVMs finish at about the same time. If the input
+ * is a {@link DescribedSplittable}, the workers receive the
+ * {@link SplitDescriptor}s of their splits; otherwise, they receive
+ * only the position of the split in the iteration order of the
+ * {@link Splittable#getSplits()} iterator, and skip to that
+ * position in their own enumeration of the splits.
+ * <p>
+ * The workers report back the splits they have processed
+ * (see {@link #complete(int, int[])}). When a worker is lost,
+ * the {@link #release(int)} method returns <em>all</em> the splits
+ * owned by that worker to the ledger. Note that the splits that were
+ * already processed by the lost worker are released as well, since
+ * their partial results were held in the memory (or the local disks)
+ * of that worker and are gone along with it. The released splits
+ * of a described input are handed out again to the JVMs that are
+ * still alive; those of other inputs become <em>orphans</em> that
+ * the master re-executes at the end of the computation.
+ * <p>
+ * The splits of a described input are scheduled with regard to
+ * the locality of their data: each JVM declares the directories that
+ * it holds locally (see {@link #setLocalDirs(int, String[])}), and
+ * a JVM is preferably assigned the splits whose 
+ * {@link SplitDescriptor#getLocation() location} lies within these
+ * directories. The ledger looks ahead up to {@link #LOOKAHEAD} 
+ * splits of the input for a local split. Only when there is no
+ * such split, a JVM <em>steals</em> a split, preferably one that 
+ * is not local to any other JVM.
+ * <p>
+ * Splits are identified by their position in the iteration order
+ * of the input.
+ * <p>
+ * This class is thread-safe; it is updated concurrently by the
+ * monitor threads of the {@link Distributor} and the master's
+ * computation thread.
+ *
+ * @author mvarshney
+ */
+final class SplitLedger {
+	/**
+	 * Maximum number of splits enumerated ahead of the assignments,
+	 * while looking for a split local to a JVM.
+	 */
+	static final int LOOKAHEAD = 1024;
+	
+	/**
+	 * The splits (or the split descriptors) of the input.
+	 */
+	private final Iterator<?> source;
+
+	/**
+	 * Whether the input is a {@link DescribedSplittable}.
+	 */
+	private final boolean described;
+
+	/**
+	 * Position of the next split of the source.
+	 */
+	private int next = 0;
+
+	/**
+	 * Owner rank of each split assigned to a worker.
+	 */
+	private final Map<Integer, Integer> owners = new HashMap<Integer, Integer>();
+
+	/**
+	 * Descriptors of the splits assigned to workers, kept so that
+	 * they can be handed out again if the worker is lost.
+	 */
+	private final Map<Integer, Object> descriptors = new HashMap<Integer, Object>();
+
+	/**
+	 * Splits of a described input that have been enumerated (or 
+	 * released by a lost worker), waiting to be handed out.
+	 */
+	private final Map<Integer, Object> backlog = new LinkedHashMap<Integer, Object>();
+	
+	/**
+	 * Locations of the splits in the backlog.
+	 */
+	private final Map<Integer, String> locations = new LinkedHashMap<Integer, String>();
+	
+	/**
+	 * Directories held locally by each rank.
+	 */
+	private final String[][] localDirs;
+	
+	/**
+	 * Number of splits assigned to a JVM that holds their data, 
+	 * and the number of splits stolen by other JVMs.
+	 */
+	private int localAssigned = 0;
+	private int stolen = 0;
+
+	/**
+	 * Splits that have been reported processed.
+	 */
+	private final SortedSet<Integer> completed = new TreeSet<Integer>();
+	
+	/**
+	 * Number of bytes in the splits that have been reported
+	 * processed (of a described input only).
+	 */
+	private long bytes = 0;
+
+	/**
+	 * Splits whose owners have been lost, to be re-executed by
+	 * the master.
+	 */
+	private final SortedSet<Integer> orphans = new TreeSet<Integer>();
+
+	/**
+	 * Ranks that have been lost.
+	 */
+	private final SortedSet<Integer> lost = new TreeSet<Integer>();
+
+	/**
+	 * Ranks that have finished computing (or have been lost).
+	 */
+	private final Set<Integer> finished = new HashSet<Integer>();
+
+	/**
+	 * Number of workers.
+	 */
+	private final int numWorkers;
+
+	/**
+	 * Creates the ledger for the specified input of a computation
+	 * distributed over the specified number of JVMs (including
+	 * the master).
+	 *
+	 * @param input the input of the computation
+	 * @param numWorkers the number of JVMs
+	 */
+	SplitLedger(Splittable input, int numWorkers) {
+		if (input instanceof DescribedSplittable) {
+			this.source = ((DescribedSplittable) input).getSplitDescriptors();
+			this.described = true;
+		} else {
+			this.source = input.getSplits();
+			this.described = false;
+		}
+		this.numWorkers = numWorkers;
+		this.localDirs = new String[numWorkers][];
+	}
+	
+	/**
+	 * Sets the directories that the specified rank holds locally.
+	 * 
+	 * @param rank the rank of the JVM
+	 * @param dirs canonical paths of the directories
+	 */
+	synchronized void setLocalDirs(int rank, String[] dirs) {
+		localDirs[rank] = (dirs == null || dirs.length == 0) ? null : dirs;
+	}
+
+	/**
+	 * A split assigned to a JVM: its position in the input and,
+	 * for described inputs or the master, the split itself.
+	 *
+	 * @author mvarshney
+	 */
+	static final class Assignment implements Serializable {
+		private static final long serialVersionUID = -3021675541386398201L;
+		final int index;
+		final Object split;
+
+		Assignment(int index, Object split) {
+			this.index = index;
+			this.split = split;
+		}
+	}
+
+	/**
+	 * Assigns up to <tt>max</tt> splits to the specified worker.
+	 * Returns fewer splits only when there are no more splits to
+	 * hand out to the workers. 
+	 *
+	 * @param rank the rank of the worker
+	 * @param max maximum number of splits to assign
+	 * @return the assigned splits
+	 */
+	synchronized List<Assignment> take(int rank, int max) {
+		List<Assignment> assignments = new ArrayList<Assignment>();
+		if (lost.contains(rank)) return assignments;
+
+		while (assignments.size() < max) {
+			Assignment assignment = next(rank);
+			if (assignment == null) break;
+			
+			owners.put(assignment.index, rank);
+			if (described) {
+				descriptors.put(assignment.index, assignment.split);
+			} else {
+				// The worker opens the split in its own enumeration
+				discard(assignment.split);
+				assignment = new Assignment(assignment.index, null);
+			}
+			assignments.add(assignment);
+		}
+
+		return assignments;
+	}
+
+	/**
+	 * Takes one split for the master JVM, without waiting.
+	 *
+	 * @return the split, or <tt>null</tt> if no split is
+	 * available at this time
+	 */
+	synchronized Assignment poll() {
+		return next(0);
+	}
+	
+	/**
+	 * Selects the next split for the specified rank. The splits 
+	 * of a described input are selected from the backlog, with
+	 * preference to the splits local to the rank; other splits 
+	 * are taken in the order of the input.
+	 */
+	private Assignment next(int rank) {
+		if (! described) {
+			if (! source.hasNext()) return null;
+			return new Assignment(next ++, source.next());
+		}
+		
+		Integer index = null;
+		
+		if (localDirs[rank] != null) {
+			// A split local to this rank that is already enumerated..
+			for (Map.Entry<Integer, String> entry: locations.entrySet()) {
+				if (isLocal(rank, entry.getValue())) {
+					index = entry.getKey();
+					break;
+				}
+			}
+			
+			// .. or one further down the input
+			while (index == null && backlog.size() < LOOKAHEAD 
+					&& source.hasNext()) {
+				int position = enumerate();
+				if (isLocal(rank, locations.get(position)))
+					index = position;
+			}
+			
+			if (index != null) localAssigned ++;
+		}
+		
+		if (index == null) {
+			if (backlog.isEmpty() && source.hasNext()) enumerate();
+			if (backlog.isEmpty()) return null;
+			
+			// Steal a split, preferably one that no other JVM holds
+			for (Integer position: backlog.keySet()) {
+				if (index == null) index = position;
+				if (! isLocalToOther(rank, locations.get(position))) {
+					index = position;
+					break;
+				}
+			}
+			
+			if (isLocalToOther(rank, locations.get(index))) stolen ++;
+		}
+		
+		locations.remove(index);
+		return new Assignment(index, backlog.remove(index));
+	}
+	
+	/**
+	 * Enumerates one more split of the input into the backlog.
+	 * 
+	 * @return the index of the split
+	 */
+	private int enumerate() {
+		int index = next ++;
+		Object split = source.next();
+		backlog.put(index, split);
+		locations.put(index, location(split));
+		return index;
+	}
+	
+	/**
+	 * Closes a split that was enumerated but is not processed by
+	 * this JVM, such as a Reader opened by the iterator of an input
+	 * that cannot describe its splits.
+	 * 
+	 * @param split the split
+	 */
+	static void discard(Object split) {
+		if (! (split instanceof Closeable)) return;
+		
+		try {
+			((Closeable) split).close();
+		} catch (IOException e) {
+			// nothing was read from the split
+		}
+	}
+	
+	static long length(Object split) {
+		if (split instanceof SplitDescriptor) 
+			return Math.max(0, ((SplitDescriptor) split).getLength());
+		return 0;
+	}
+	
+	private static String location(Object split) {
+		if (split instanceof SplitDescriptor) 
+			return ((SplitDescriptor) split).getLocation();
+		return null;
+	}
+	
+	/**
+	 * Returns <tt>true</tt> if the location lies within one of 
+	 * the directories held locally by the specified rank.
+	 */
+	private boolean isLocal(int rank, String location) {
+		if (location == null || localDirs[rank] == null) return false;
+		
+		for (String dir: localDirs[rank]) {
+			if (location.equals(dir)) return true;
+			
+			String prefix = dir.endsWith(File.separator) 
+					? dir : dir + File.separator;
+			if (location.startsWith(prefix)) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns <tt>true</tt> if the location is held locally by 
+	 * a JVM, other than the specified rank, that is alive.
+	 */
+	private boolean isLocalToOther(int rank, String location) {
+		for (int other = 0; other < numWorkers; other++) {
+			if (other == rank || lost.contains(other)) continue;
+			if (isLocal(other, location)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Waits until either a split is available for the master, or
+	 * all the workers have finished computing (or have been lost).
+	 *
+	 * @return <tt>true</tt> if a split is available
+	 * @throws InterruptedException
+	 */
+	synchronized boolean await() throws InterruptedException {
+		while (true) {
+			if (! backlog.isEmpty() || source.hasNext()) return true;
+			if (finished.size() >= numWorkers - 1) return false;
+			wait();
+		}
+	}
+
+	/**
+	 * Records that the specified splits have been processed
+	 * by the specified rank.
+	 *
+	 * @param rank the rank of the worker
+	 * @param splits indices of the processed splits
+	 */
+	synchronized void complete(int rank, int[] splits) {
+		if (splits == null || lost.contains(rank)) return;
+
+		for (int split: splits) {
+			owners.put(split, rank);
+			if (completed.add(split))
+				bytes += length(descriptors.get(split));
+		}
+	}
+
+	/**
+	 * Records that the specified worker has finished computing.
+	 *
+	 * @param rank the rank of the worker
+	 */
+	synchronized void finish(int rank) {
+		if (finished.add(rank)) notifyAll();
+	}
+
+	/**
+	 * Releases all splits owned by the specified rank, after it
+	 * has been lost.
+	 *
+	 * @param rank the rank of the lost worker
+	 * @return number of splits released
+	 */
+	synchronized int release(int rank) {
+		if (! lost.add(rank)) return 0;
+
+		SortedSet<Integer> released = new TreeSet<Integer>();
+		for (Map.Entry<Integer, Integer> entry: owners.entrySet()) {
+			if (entry.getValue().intValue() == rank)
+				released.add(entry.getKey());
+		}
+
+		owners.keySet().removeAll(released);
+		for (Integer index: released) {
+			if (completed.remove(index))
+				bytes -= length(descriptors.get(index));
+		}
+
+		if (described) {
+			for (Integer index: released) {
+				Object split = descriptors.get(index);
+				backlog.put(index, split);
+				locations.put(index, location(split));
+			}
+		} else {
+			orphans.addAll(released);
+		}
+
+		finished.add(rank);
+		notifyAll();
+		return released.size();
+	}
+
+	/**
+	 * Returns the number of splits that have been reported
+	 * processed by the workers that are still alive.
+	 *
+	 * @return number of processed splits
+	 */
+	synchronized int completed() {
+		return completed.size();
+	}
+	
+	/**
+	 * Returns the number of bytes in the splits that have been 
+	 * reported processed by the workers that are still alive.
+	 * Only the splits of a described input are counted.
+	 * 
+	 * @return number of bytes processed
+	 */
+	synchronized long bytes() {
+		return bytes;
+	}
+	
+	/**
+	 * Returns the number of splits of the input, once the input
+	 * has been enumerated completely.
+	 * 
+	 * @return number of splits, or -1 if not yet known
+	 */
+	synchronized int total() {
+		return source.hasNext() ? -1 : next;
+	}
+
+	/**
+	 * Returns the number of splits assigned to a JVM that holds
+	 * their data locally.
+	 * 
+	 * @return number of local assignments
+	 */
+	synchronized int localAssigned() {
+		return localAssigned;
+	}
+	
+	/**
+	 * Returns the number of splits assigned to a JVM while they
+	 * were held locally by another JVM.
+	 * 
+	 * @return number of stolen splits
+	 */
+	synchronized int stolen() {
+		return stolen;
+	}
+
+	/**
+	 * Returns a snapshot of the splits that must be re-executed
+	 * by the master.
+	 *
+	 * @return indices of the orphan splits, in increasing order
+	 */
+	synchronized SortedSet<Integer> orphans() {
+		return new TreeSet<Integer>(orphans);
+	}
+}
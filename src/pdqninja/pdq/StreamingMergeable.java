@@ -0,0 +1,49 @@
+package pdqninja.pdq;
+
+import java.io.IOException;
+
+/**
+ * A {@link Mergeable} that merges the replicates one at a time, as
+ * soon as the computation on their splits is done.
+ * <p>
+ * The replicates of a plain <code>Mergeable</code> are merged (via
+ * the {@link #merge(Object...)} method) only once all the splits of
+ * a round have been processed; until then, the partial results of
+ * the round are held in memory, and the threads that are done wait
+ * for the slowest one. The replicates of a
+ * <code>StreamingMergeable</code> are instead handed to the
+ * {@link #mergeOne(Object)} method, by the thread that has processed
+ * the split, while the other splits are still being processed.
+ * <p>
+ * The <code>mergeOne</code> method is therefore called concurrently
+ * from several threads, and must be thread safe. Once all the splits
+ * processed by the JVM have been merged, the library calls the
+ * {@link #finish()} method, followed, as for any
+ * <code>Mergeable</code>, by <code>merge(null)</code>.
+ * The <code>merge</code> method is not called with the replicates
+ * of a <code>StreamingMergeable</code>.
+ *
+ * @author mvarshney
+ * @see Mergeable
+ */
+public interface StreamingMergeable extends Mergeable {
+	/**
+	 * Merges the partial results of one split. This method may be
+	 * called concurrently by several threads.
+	 *
+	 * @param replicate a replicate that contains the partial results
+	 * of a split
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	void mergeOne(Object replicate) throws IOException, InterruptedException;
+
+	/**
+	 * Indicates that the replicates of all the splits processed by
+	 * this JVM have been merged.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	void finish() throws IOException, InterruptedException;
+}
@@ -1,33 +1,132 @@
 package pdqninja.pdq;
 
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.concurrent.Callable;
 
+import pdqninja.metrics.Histogram;
+import pdqninja.metrics.Metrics;
+
 final class ThreadPoolCallable implements Callable<Long> {
-	private Method method;
-	private Object object;
+	static private final Histogram execMetric = Metrics.histogram("pdq.split.exec.us");
+	static private final Histogram mergeMetric = Metrics.histogram("pdq.split.merge.us");
+	
+	private Invoker invoker;
 	private Object[] args;
+	private StreamingMergeable[] targets;
+	private Profile profile;
+	private String name;
+	private long elapsed;
 	
-	public ThreadPoolCallable(Object object, Method method, Object[] args) {
-		this.method = method;
-		this.object = object;
+	public ThreadPoolCallable(Invoker invoker, Object[] args) {
+		this.invoker = invoker;
 		this.args = args;
 	}
+	
+	/**
+	 * Merges the replicates into the specified arguments as soon
+	 * as the computation is done (the <tt>null</tt> targets are 
+	 * merged by the caller).
+	 */
+	ThreadPoolCallable mergeInto(StreamingMergeable[] targets) {
+		this.targets = targets;
+		return this;
+	}
+	
+	/**
+	 * Records the computation (and the merge of the replicates) 
+	 * in the timeline, under the specified name.
+	 */
+	ThreadPoolCallable profile(Profile profile, String name) {
+		this.profile = profile;
+		this.name = name;
+		return this;
+	}
 
 	@Override
 	public Long call() throws Exception {
 		long start = System.currentTimeMillis();
+		long nanos = System.nanoTime();
 		
 		try {
-			method.invoke(object, args);
-		} catch (Exception e) {
-			e.printStackTrace();
+			invoker.invoke(args);
+		} catch (InvocationTargetException e) {
+			// The replicates of a failed split are not merged
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) throw (Exception) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw e;
 		}
 		
-		return System.currentTimeMillis() - start;
+		long invoked = System.nanoTime();
+		execMetric.record((invoked - nanos) / 1000);
+		
+		if (targets != null) {
+			for (int i = 1; i < args.length; i++) {
+				if (targets[i] != null) targets[i].mergeOne(args[i]);
+			}
+			mergeMetric.record((System.nanoTime() - invoked) / 1000);
+			if (profile != null) profile.record("mergeOne", "merge", invoked);
+		}
+		
+		if (profile != null) profile.record(name, "split", nanos, invoked);
+		
+		elapsed = System.currentTimeMillis() - start;
+		return elapsed;
 	}
 	
 	Object getArg(int index) {
 		return args[index];
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Returns the time taken by the last call (in milliseconds).
+	 */
+	long getElapsed() {
+		return elapsed;
+	}
+	
+	/**
+	 * Executes the computation on the arguments of one split.
+	 *
+	 * @author mvarshney
+	 */
+	interface Invoker {
+		void invoke(Object[] args) throws Exception;
+	}
+	
+	/**
+	 * Invokes a method annotated with {@link Parallel}.
+	 */
+	static final class MethodInvoker implements Invoker {
+		final Object object;
+		final Method method;
+		
+		MethodInvoker(Object object, Method method) {
+			this.object = object;
+			this.method = method;
+		}
+		
+		@Override
+		public void invoke(Object[] args) throws Exception {
+			method.invoke(object, args);
+		}
+	}
+	
+	/**
+	 * Calls a {@link ParallelFunction}.
+	 */
+	static final class FunctionInvoker implements Invoker {
+		final ParallelFunction<Object, Object> function;
+		
+		@SuppressWarnings("unchecked")
+		FunctionInvoker(ParallelFunction<?, ?> function) {
+			this.function = (ParallelFunction<Object, Object>) function;
+		}
+		
+		@Override
+		public void invoke(Object[] args) throws Exception {
+			function.apply(args[0], args[1]);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package pdqninja.pdq;
+
+import org.apache.log4j.Logger;
+
+import pdqninja.util.ByteUnit;
+
+/**
+ * Adjusts the Blocksize and Buffer items of a configuration to the
+ * throughput observed while the computations run.
+ * <p>
+ * After each round of splits, the library reports the number of
+ * bytes processed and the time taken by the splits. The tuner keeps
+ * a moving average of the rate at which a thread processes the
+ * input, and sets the blocksize so that a split takes about the
+ * <tt>SplitLatency</tt> of the configuration: large enough that
+ * the rounds are not dominated by merging the replicates, small
+ * enough that a slow split does not hold up the others for long.
+ * The blocksize changes by at most a factor of two at a time, and
+ * not at all while it is within 10% of the target.
+ * <p>
+ * The buffer of the streams is sized to hold about
+ * {@link #BUFFER_MILLIS} milliseconds of the faster of the input
+ * and the externalized data (as reported via the
+ * {@link #written(long, long)} method), so that fast streams do not
+ * pay for many small reads and writes.
+ * <p>
+ * The adjusted values are set in the configuration, and therefore
+ * apply to the splits generated from then on, to the maps
+ * externalized from then on, and to the subsequent computations
+ * with the same configuration.
+ *
+ * @author mvarshney
+ * @see PDQConfig#setTune(boolean)
+ */
+public final class Tuner {
+	static private Logger logger = Logger.getLogger(Tuner.class);
+	
+	static final long MIN_BLOCKSIZE = ByteUnit.parse("1MB");
+	static final long MAX_BLOCKSIZE = ByteUnit.parse("1GB");
+	static final long MIN_BUFFER = ByteUnit.parse("8KB");
+	static final long MAX_BUFFER = ByteUnit.parse("1MB");
+	
+	/**
+	 * Time (in milliseconds) that a buffer of a stream should last.
+	 */
+	static final long BUFFER_MILLIS = 2;
+	
+	/**
+	 * Weight of the latest observation in the moving averages.
+	 */
+	static final double WEIGHT = 0.5;
+	
+	private final PDQConfig config;
+	
+	/**
+	 * Bytes processed per millisecond by a thread, and written per
+	 * millisecond to the external maps; negative until observed.
+	 */
+	private double readRate = -1;
+	private double writeRate = -1;
+	
+	Tuner(PDQConfig config) {
+		this.config = config;
+	}
+	
+	/**
+	 * Reports the splits processed in a round.
+	 *
+	 * @param bytes the number of bytes in the splits
+	 * @param millis the time taken by the splits, added over the
+	 * splits (in milliseconds)
+	 */
+	public synchronized void processed(long bytes, long millis) {
+		if (bytes <= 0 || millis <= 0) return;
+		
+		readRate = average(readRate, 1.0 * bytes / millis);
+		
+		long blocksize = config.getBlocksize();
+		long target = (long) (readRate * config.getSplitLatency());
+		target = Math.max(blocksize / 2, Math.min(blocksize * 2, target));
+		target = Math.max(MIN_BLOCKSIZE, Math.min(MAX_BLOCKSIZE, target));
+		
+		if (Math.abs(target - blocksize) > blocksize / 10) {
+			// Keep the blocksize a multiple of 64KB
+			target = (target >> 16) << 16;
+			config.setBlocksize(target);
+			
+			if (logger.isInfoEnabled()) {
+				logger.info(String.format("Blocksize %.2fMB -> %.2fMB. Rate=%.2fMB/s per thread",
+						1.0 * blocksize / 1024 / 1024, 1.0 * target / 1024 / 1024,
+						readRate * 1000 / 1024 / 1024));
+			}
+		}
+		
+		adjustBuffer();
+	}
+	
+	/**
+	 * Reports the data written to an external map.
+	 *
+	 * @param bytes the number of bytes written
+	 * @param millis the time taken (in milliseconds)
+	 */
+	public synchronized void written(long bytes, long millis) {
+		if (bytes <= 0 || millis <= 0) return;
+		
+		writeRate = average(writeRate, 1.0 * bytes / millis);
+		adjustBuffer();
+	}
+	
+	private void adjustBuffer() {
+		double rate = Math.max(readRate, writeRate);
+		long target = (long) (rate * BUFFER_MILLIS);
+		target = Math.max(MIN_BUFFER, Math.min(MAX_BUFFER, target));
+		target = Long.highestOneBit(target);
+		
+		long buffer = config.getBuffer();
+		if (target != buffer) {
+			config.setBuffer(target);
+			
+			if (logger.isInfoEnabled()) {
+				logger.info(String.format("Buffer %dKB -> %dKB",
+						buffer / 1024, target / 1024));
+			}
+		}
+	}
+	
+	private static double average(double average, double value) {
+		if (average < 0) return value;
+		return WEIGHT * value + (1 - WEIGHT) * average;
+	}
+}
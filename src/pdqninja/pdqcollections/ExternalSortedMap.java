@@ -22,8 +22,12 @@ import org.apache.log4j.Logger;
 
 import pdqninja.io.MapFile;
 import pdqninja.io.MapFileIndex;
+import pdqninja.metrics.Counter;
+import pdqninja.metrics.Histogram;
+import pdqninja.metrics.Metrics;
 import pdqninja.pdq.PDQConfig;
 import pdqninja.pdq.Splittable;
+import pdqninja.pdq.Tuner;
 
 /**
  * A sorted map that stores the key-value mappings in a file.
@@ -31,11 +35,19 @@ import pdqninja.pdq.Splittable;
  * data. Specifically, mappings added via the {@link #put(Object, Object)}
  * must be ordered on the keys. Methods such as {@link #remove(Object)} 
  * are not supported.
+ * <p>
+ * The mappings are stored in the columnar layout of the {@link MapFile},
+ * so that the iterators of the {@link #keySet()} and the {@link #values()}
+ * read only the keys or the values, and the lookups skip the blocks
+ * whose range of keys does not contain the key.
  * 
  * @author mvarshney
  */
 class ExternalSortedMap<K, V> implements SortedMap<K, V>, Serializable, Splittable, Closeable {
 	private static Logger logger = Logger.getLogger(ExternalSortedMap.class);
+	private static final Histogram sortMetric = Metrics.histogram("external.sort.ms");
+	private static final Histogram rateMetric = Metrics.histogram("external.rate.kbps");
+	private static final Counter bytesMetric = Metrics.counter("external.bytes");
 	
 	private static final long serialVersionUID = 4558006799447540082L;
 
@@ -45,6 +57,7 @@ class ExternalSortedMap<K, V> implements SortedMap<K, V>, Serializable, Splittab
 	
 	MapFileIndex<K> index;
 	transient MapFile<K> mapfile;
+	transient Tuner tuner;
 	
 	K firstKey;
 	K lastKey;
@@ -78,12 +91,15 @@ class ExternalSortedMap<K, V> implements SortedMap<K, V>, Serializable, Splittab
 		
 		PDQConfig conf = PDQConfig.current();
 		this.blocksize = conf.getBlocksize();
+		this.tuner = conf.getTuner();
 		
 		this.mapfile = new MapFile<K>(file, "rw",
 				index,
 				conf.getExternalIndex(),
 				conf.getReset(),
 				(int) conf.getBuffer());
+		this.mapfile.setFrontCoding(true);
+		this.mapfile.setColumnar(true);
 
 		if (logger.isDebugEnabled()) {
 			logger.debug(String.format("created for %s " +
@@ -166,21 +182,22 @@ class ExternalSortedMap<K, V> implements SortedMap<K, V>, Serializable, Splittab
 			return null;
 		
 		MapFileIndex.Entry<K> entry = 
-				mapfile.getIndex().getIndexForKey((K) key);
+				mapfile.getIndex().getBlockForKey((K) key);
 		
 		if (entry == null) return null;
 		
 		try {
 			mapfile.seek(entry.getOffset());
 			while (true) {
-				K k = (K) mapfile.read();
-				V v = (V) mapfile.read();
+				K k = (K) mapfile.readKey();
 				int cmp = compare((K) key, k);
 		
 				if (cmp == 0)
-					return v;
+					return (V) mapfile.read();
 				else if (cmp < 0)
 					break;
+				
+				mapfile.skipValue();
 			}
 		} catch (IOException e) {
 			
@@ -275,13 +292,36 @@ class ExternalSortedMap<K, V> implements SortedMap<K, V>, Serializable, Splittab
 			if (lastKey != null && compare(lastKey, key) >= 0)
 				throw new RuntimeException("key [" + key + "] must be greater than last key [" + lastKey + "]");
 			
-			for (Map.Entry<K, V> entry: list) {
-				put0(entry.getKey(), entry.getValue());
+			// The bytes written by this call, once they are in the file
+			long bytes;
+			try {
+				mapfile.flush();
+				long before = mapfile.length();
+				
+				for (Map.Entry<K, V> entry: list) {
+					put0(entry.getKey(), entry.getValue());
+				}
+				
+				mapfile.flush();
+				bytes = mapfile.length() - before;
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			
+			if (tuner != null) {
+				tuner.written(bytes, System.currentTimeMillis() - sortTime);
+			}
+			
+			if (Metrics.isEnabled()) {
+				long duration = System.currentTimeMillis() - sortTime;
+				
+				sortMetric.record(sortTime - start);
+				bytesMetric.inc(bytes);
+				if (duration > 0) rateMetric.record(bytes * 1000 / 1024 / duration);
 			}
 
 			if (logger.isInfoEnabled()) {
 				long duration = System.currentTimeMillis() - sortTime;
-				long bytes = this.file.length();
 
 				logger.info(String.format("\tSorted %d keys in %dms", 
 						list.size(),
@@ -511,7 +551,8 @@ class ExternalSortedMap<K, V> implements SortedMap<K, V>, Serializable, Splittab
 	}
 	
 	/**
-	 * Iterates over the key-value mapping in the map file.
+	 * Iterates over the key-value mapping in the map file. The
+	 * keys or the values that are not asked for are skipped.
 	 * 
 	 * @author mvarshney
 	 */
@@ -519,8 +560,12 @@ class ExternalSortedMap<K, V> implements SortedMap<K, V>, Serializable, Splittab
 		Entry<K, V> next;
 		MapFile<K> mapfile;
 		int remaining;
+		final boolean keys;
+		final boolean values;
 		
-		MapFileIterator() {
+		MapFileIterator(boolean keys, boolean values) {
+			this.keys = keys;
+			this.values = values;
 			remaining = size;
 			
 			try {
@@ -548,6 +593,7 @@ class ExternalSortedMap<K, V> implements SortedMap<K, V>, Serializable, Splittab
 			throw new UnsupportedOperationException();
 		}
 		
+		@SuppressWarnings("unchecked")
 		final Entry<K, V> nextEntry() {
 			Entry<K, V> e = next;
 			next = null;
@@ -556,12 +602,20 @@ class ExternalSortedMap<K, V> implements SortedMap<K, V>, Serializable, Splittab
 			remaining --;
 
 			try {
-				@SuppressWarnings("unchecked")
-				K key = (K) mapfile.read();
-				if (key == null) return e;
+				K key = null;
+				if (keys) {
+					key = (K) mapfile.readKey();
+					if (key == null) return e;
+				} else {
+					mapfile.skipKey();
+				}
 
-				@SuppressWarnings("unchecked")
-				V value = (V) mapfile.read();
+				V value = null;
+				if (values) {
+					value = (V) mapfile.read();
+				} else {
+					mapfile.skipValue();
+				}
 
 				next = new MapFileEntry<K, V>(key, value);
 
@@ -581,6 +635,10 @@ class ExternalSortedMap<K, V> implements SortedMap<K, V>, Serializable, Splittab
 	
 	private final class KeyIterator extends MapFileIterator<K> {
 
+		KeyIterator() {
+			super(true, false);
+		}
+		
 		@Override
 		public K next() {
 			return nextEntry().getKey();
@@ -588,6 +646,10 @@ class ExternalSortedMap<K, V> implements SortedMap<K, V>, Serializable, Splittab
 	}
 	
 	private final class ValueIterator extends MapFileIterator<V> {
+		
+		ValueIterator() {
+			super(false, true);
+		}
 
 		@Override
 		public V next() {
@@ -597,6 +659,10 @@ class ExternalSortedMap<K, V> implements SortedMap<K, V>, Serializable, Splittab
 	
 	
 	private final class EntryIterator extends MapFileIterator<Map.Entry<K, V>> {
+		
+		EntryIterator() {
+			super(true, true);
+		}
 
 		@Override
 		public Map.Entry<K, V> next() {
@@ -249,7 +249,7 @@ class ExternalSortedMultimap<K, V> extends ExternalSortedMap<K, V> implements
 			
 			try {
 				@SuppressWarnings("unchecked")
-				K key = (K) mapfile.read();
+				K key = (K) mapfile.readKey();
 				if (key == null) return e;
 				
 				@SuppressWarnings("unchecked")
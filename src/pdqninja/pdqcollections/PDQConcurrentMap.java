@@ -0,0 +1,170 @@
+package pdqninja.pdqcollections;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Map;
+
+import pdqninja.pdq.Adder;
+import pdqninja.pdq.PDQConfig;
+
+/**
+ * A {@link PDQMap} that is updated concurrently by all the threads,
+ * instead of being replicated for each thread.
+ * <p>
+ * A <code>PDQMap</code> hands a replicate to each thread, and merges
+ * the replicates once the splits are processed; for aggregations
+ * over many distinct keys, the replicates hold as many entries as
+ * the map itself. The <code>PDQConcurrentMap</code> is its own
+ * replicate: all the threads put their entries directly into the
+ * partitions of the map, each of which is guarded by a lock of its
+ * own, and the values of the same key are added (with the
+ * {@link Adder}) as they are put.
+ * <p>
+ * Unlike <code>PDQMap</code>, the {@link #put(Object, Object)} method
+ * adds the value to the value already in the map (if any), rather
+ * than replacing it; without an <code>Adder</code>, the value is
+ * replaced. When the memory runs low, the partitions are spilled to
+ * disk and merged at the end of the computation, as for
+ * <code>PDQMap</code>. In the distributed mode, each JVM aggregates
+ * into its own copy of the map, and the copies are merged as for
+ * <code>PDQMap</code>.
+ * <p>
+ * The map must be passed as a regular (not @Shared) argument, since
+ * the library does not finish the @Shared arguments once the
+ * computation is done. Only the <code>put</code>, <code>get</code>,
+ * <code>containsKey</code> and <code>remove</code> methods may be
+ * called concurrently.
+ *
+ * @author mvarshney
+ *
+ */
+public class PDQConcurrentMap<K, V> extends PDQMap<K, V> {
+	private static final long serialVersionUID = 2076233829541232375L;
+	
+	/**
+	 * Number of entries put into a partition between two checks
+	 * of the free memory.
+	 */
+	static final int SPILL_CHECK = 4096;
+	
+	transient int[] puts;
+	
+	public PDQConcurrentMap(Adder<V> adder) {
+		super(adder);
+	}
+	
+	public PDQConcurrentMap(Comparator<? super K> comparator,
+			Adder<V> adder) {
+		super(comparator, adder);
+	}
+	
+	/**
+	 * Returns the partition (in memory) of the key. Must be called
+	 * with the lock of the partition held.
+	 */
+	private Map<K, V> partition(int index) {
+		Map<K, V> map = delegates.get(index);
+		if (map instanceof PDQMap.PartialMap) {
+			return ((PartialMap) map).getCurrent();
+		}
+		return map;
+	}
+	
+	private int index(Object key) {
+		return Math.abs(key.hashCode()) % partitions;
+	}
+	
+	@Override
+	public V get(Object key) {
+		int index = index(key);
+		synchronized (stripes()[index]) {
+			return partition(index).get(key);
+		}
+	}
+	
+	@Override
+	public boolean containsKey(Object key) {
+		int index = index(key);
+		synchronized (stripes()[index]) {
+			return partition(index).containsKey(key);
+		}
+	}
+	
+	/**
+	 * Adds the value to the value of the key (if any).
+	 *
+	 * @return the previous value of the key
+	 */
+	@Override
+	public V put(K key, V value) {
+		int index = index(key);
+		synchronized (stripes()[index]) {
+			Map<K, V> map = partition(index);
+			V previous = map.get(key);
+			map.put(key, (previous == null || adder == null) ? value
+					: adder.add(previous, value));
+			
+			if (++ puts()[index] % SPILL_CHECK == 0) spill(index);
+			return previous;
+		}
+	}
+	
+	@Override
+	public V remove(Object key) {
+		int index = index(key);
+		synchronized (stripes()[index]) {
+			return partition(index).remove(key);
+		}
+	}
+	
+	/**
+	 * Spills the partition to disk, if the memory runs low. Must be
+	 * called with the lock of the partition held.
+	 */
+	private void spill(int index) {
+		long threshold = PDQConfig.current().getMinFree();
+		if (Runtime.getRuntime().freeMemory() >= threshold) return;
+		
+		try {
+			call(partialMap(index).externalize(true));
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot spill partition", e);
+		}
+	}
+	
+	private synchronized int[] puts() {
+		if (puts == null) puts = new int[partitions];
+		return puts;
+	}
+	
+	/**
+	 * Returns this map: the threads share the map.
+	 */
+	@Override
+	public Object replicate() {
+		return this;
+	}
+	
+	@Override
+	public boolean recycle(Object replicate) {
+		return false;
+	}
+	
+	@Override
+	public void mergeOne(Object replicate) {
+		// The entries are already in the map
+	}
+	
+	@Override
+	public void merge(Object... objects) throws IOException, InterruptedException {
+		// Only the final merge has anything to do
+		if (objects != null) return;
+		
+		// The partitions are merged (and exchanged between the JVMs)
+		// as the partial results of a PDQMap
+		for (int i = 0; i < partitions; i++) {
+			partialMap(i);
+		}
+		super.merge((Object[]) null);
+	}
+}
@@ -7,6 +7,7 @@ import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -14,6 +15,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -22,10 +24,16 @@ import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
+import pdqninja.metrics.Counter;
+import pdqninja.metrics.Histogram;
+import pdqninja.metrics.Metrics;
 import pdqninja.pdq.Adder;
-import pdqninja.pdq.Mergeable;
 import pdqninja.pdq.PDQ;
 import pdqninja.pdq.PDQConfig;
+import pdqninja.pdq.Profile;
+import pdqninja.pdq.Recyclable;
+import pdqninja.pdq.Snapshottable;
+import pdqninja.pdq.StreamingMergeable;
 import pdqninja.pdq.Splittable;
 import pdqninja.pdqio.FileStoreIterator;
 import pdqninja.pdqio.FileStores;
@@ -41,9 +49,15 @@ import pdqninja.util.WrappedSortedIterator;
  * @author mvarshney
  *
  */
-public class PDQMap<K, V> implements Map<K, V>, Splittable, Mergeable, Serializable {
+public class PDQMap<K, V> implements Map<K, V>, Splittable, Recyclable, 
+		StreamingMergeable, Snapshottable, Serializable {
 	static Logger logger = Logger.getLogger(PDQMap.class);
 	
+	static final Histogram mergeFanIn = Metrics.histogram("pdqmap.merge.fanin");
+	static final Histogram compactFanIn = Metrics.histogram("pdqmap.compact.fanin");
+	static final Histogram taskMetric = Metrics.histogram("pdqmap.tasks.ms");
+	static final Counter spillMetric = Metrics.counter("pdqmap.spills");
+	
 	private static final long serialVersionUID = -7015088132189967902L;
 	final List<Map<K, V>> delegates = new ArrayList<Map<K, V>>();
 	final int partitions;
@@ -55,6 +69,16 @@ public class PDQMap<K, V> implements Map<K, V>, Splittable, Mergeable, Serializa
 	transient Set<Map.Entry<K, V>> entrySet;
 	transient FileStoreIterator tmpStorage = null; 
 	transient FileStoreIterator sharedStorage = null; 
+	transient Object[] stripes;
+	transient Map<K, V> lastSnapshot;
+	transient long lastSnapshotAt;
+	transient long lastSnapshotCost;
+	
+	/**
+	 * A new snapshot is copied only after this many times the time
+	 * that the last copy took has passed since the last copy.
+	 */
+	static final int SNAPSHOT_RATIO = 10;
 	
 	/**
 	 * 
@@ -251,6 +275,7 @@ public class PDQMap<K, V> implements Map<K, V>, Splittable, Mergeable, Serializa
 		for (Map<K, V> map : delegates) {
 			map.clear();
 		}
+		lastSnapshot = null;
 	}
 
 	/**
@@ -360,7 +385,156 @@ public class PDQMap<K, V> implements Map<K, V>, Splittable, Mergeable, Serializa
 	public Object replicate() {
 		return new PDQMap<K, V>();
 	}
+	
+	/**
+	 * Empties the delegates of a merged replicate, so that their
+	 * hash tables keep their capacity for the next round. A delegate
+	 * that this map has adopted as its own (when the partition was
+	 * empty, see {@link PartialMap#createMergeTask(Object[])}) is
+	 * replaced in the replicate by a new one.
+	 */
+	@Override
+	public boolean recycle(Object replicate) {
+		if (! (replicate instanceof PDQMap)) return false;
+		
+		@SuppressWarnings("unchecked")
+		PDQMap<K, V> asMap = (PDQMap<K, V>) replicate;
+		if (asMap.partitions != partitions) return false;
+		
+		for (int i = 0; i < partitions; i++) {
+			Map<K, V> delegate = asMap.delegates.get(i);
+			
+			if (isDelegatePartial(i) 
+					&& ((PartialMap) delegates.get(i)).getCurrent() == delegate) {
+				asMap.delegates.set(i, asMap.createDelegate());
+			} else {
+				delegate.clear();
+			}
+		}
+		return true;
+	}
 
+	/**
+	 * Merges the partitions of the replicate into the partitions of
+	 * this map. Each partition is guarded by a lock of its own, so
+	 * that several threads can merge their replicates concurrently;
+	 * the threads start at different partitions to avoid waiting 
+	 * for each other. If the memory runs low, the partitions are 
+	 * externalized.
+	 */
+	@Override
+	public void mergeOne(Object replicate) throws IOException, InterruptedException {
+		if (replicate == null) return;
+		
+		@SuppressWarnings("unchecked")
+		PDQMap<K, V> asMap = (PDQMap<K, V>) replicate;
+		Object[] stripes = stripes();
+		int first = (int) (Thread.currentThread().getId() % partitions);
+		
+		for (int n = 0; n < partitions; n++) {
+			int i = (first + n) % partitions;
+			synchronized (stripes[i]) {
+				call(partialMap(i).createMergeTask(
+						new Object[] { asMap.delegates.get(i) }));
+			}
+		}
+		
+		long threshold = PDQConfig.current().getMinFree();
+		if (Runtime.getRuntime().freeMemory() < threshold) {
+			for (int n = 0; n < partitions; n++) {
+				int i = (first + n) % partitions;
+				synchronized (stripes[i]) {
+					call(partialMap(i).externalize(true));
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void finish() {
+		if (PDQConfig.current().isGarbageCollect())
+			System.gc();
+	}
+	
+	/**
+	 * Returns a read-only copy of the entries merged so far that
+	 * are held in memory; the entries that have been externalized
+	 * to disk are not included. Each partition is copied under its
+	 * lock, so that only the merges into that partition wait for
+	 * the copy. The values themselves are not copied.
+	 * <p>
+	 * The copy costs time and memory in proportion to the entries
+	 * held in memory, and holds up the merges meanwhile. The copies
+	 * are therefore rate-limited to about a tenth of the elapsed
+	 * time (see {@link #SNAPSHOT_RATIO}): until enough time has
+	 * passed since the last copy, the last copy is returned again.
+	 */
+	@Override
+	public Map<K, V> snapshot() {
+		Object[] stripes = stripes();
+		
+		synchronized (stripes) {
+			long now = System.currentTimeMillis();
+			if (lastSnapshot != null 
+					&& now - lastSnapshotAt < SNAPSHOT_RATIO * lastSnapshotCost)
+				return lastSnapshot;
+				
+			Map<K, V> snapshot = isSorted() ? new TreeMap<K, V>(comparator)
+					: new HashMap<K, V>();
+			for (int i = 0; i < partitions; i++) {
+				synchronized (stripes[i]) {
+					Map<K, V> map = delegates.get(i);
+					if (isDelegatePartial(i)) 
+						map = ((PartialMap) map).getCurrent();
+					if (map == null || map instanceof ExternalSortedMap) continue;
+					
+					snapshot.putAll(map);
+				}
+			}
+			
+			lastSnapshot = Collections.unmodifiableMap(snapshot);
+			lastSnapshotAt = System.currentTimeMillis();
+			lastSnapshotCost = lastSnapshotAt - now;
+			return lastSnapshot;
+		}
+	}
+	
+	synchronized Object[] stripes() {
+		if (stripes == null) {
+			stripes = new Object[partitions];
+			for (int i = 0; i < partitions; i++) {
+				stripes[i] = new Object();
+			}
+		}
+		return stripes;
+	}
+	
+	/**
+	 * Returns the partition as a {@link PartialMap}, converting it
+	 * if necessary.
+	 */
+	PartialMap partialMap(int index) {
+		if (! isDelegatePartial(index)) {
+			delegates.set(index, new PartialMap(delegates.get(index)));
+		}
+		return (PartialMap) delegates.get(index);
+	}
+	
+	/**
+	 * Runs the merge task in the calling thread.
+	 */
+	static void call(Callable<Long> task) throws IOException {
+		if (task == null) return;
+		
+		try {
+			task.call();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+	
 	@Override
 	public void merge(Object... objects) throws IOException, InterruptedException {
 		if (objects != null) {
@@ -391,15 +565,9 @@ public class PDQMap<K, V> implements Map<K, V>, Splittable, Mergeable, Serializa
 			List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
 			
 			for (int i = 0; i < partitions; i ++) {
-				Map<K, V> delegate = delegates.get(i);
-				
-				if (! isDelegatePartial(i)) {
-					delegates.set(i, new PartialMap(delegate));
-					delegate = delegates.get(i);
-				}
-				PartialMap partialMap = (PartialMap) delegate;
+				PartialMap partialMap = partialMap(i);
 				Callable<Long> task = partialMap.createMergeTask(args[i]);
-				if (task != null) tasks.add(task);
+				addTask(tasks, task, i);
 			}
 			runTasks("merging intermediate", tasks);
 			
@@ -422,7 +590,7 @@ public class PDQMap<K, V> implements Map<K, V>, Splittable, Mergeable, Serializa
 				for (int i = 0; i < partitions; i ++) {
 					PartialMap partialMap = (PartialMap) delegates.get(i);
 					Callable<Long> task = partialMap.externalize(true);
-					if (task != null) tasks.add(task);
+					addTask(tasks, task, i);
 				}
 				
 				runTasks("Externalizing intermediate", tasks);	
@@ -435,7 +603,7 @@ public class PDQMap<K, V> implements Map<K, V>, Splittable, Mergeable, Serializa
 				if (! isDelegatePartial(i)) continue;
 				PartialMap partialMap = (PartialMap) delegates.get(i);
 				Callable<Long> task = partialMap.externalize(false);
-				if (task != null) tasks.add(task);
+				addTask(tasks, task, i);
 			}
 			
 			runTasks("Externalizing final round", tasks);
@@ -443,12 +611,17 @@ public class PDQMap<K, V> implements Map<K, V>, Splittable, Mergeable, Serializa
 			// If distributed ..
 			PDQConfig config = PDQConfig.current();
 			if (config.isDistributable() && config.getNumWorkers() > 1) {
-				Object[][] remotePartialMaps;
 				int numThreads = config.getThreads();
 				int numWorkers = config.getNumWorkers();
-				int numDelegates = delegates.size();
 				int rank = PDQ.rank();
 				
+				/* remotePartialMaps[g][k][i] is the k-th partial map
+				 * of the partition group g (that is owned by rank g),
+				 * as computed by rank i.
+				 */
+				Object[][][] remotePartialMaps = 
+						new Object[numWorkers][][];
+				
 				if (rank == 0) {
 					logger.info("waiting to recv all");
 					Object[] allDelegates = PDQ.recvAll();
@@ -458,6 +631,9 @@ public class PDQMap<K, V> implements Map<K, V>, Splittable, Mergeable, Serializa
 							new Object[numWorkers][numThreads][numWorkers];
 					
 					for (int i = 0; i < numWorkers; i++) {
+						// Nothing is received from the lost workers
+						if (allDelegates[i] == null) continue;
+						
 						List<Map<K, V>> dlg = (List<Map<K, V>>) allDelegates[i];
 						for (int j = 0; j < numWorkers; j++) {
 							for (int k = 0; k < numThreads; k++) {
@@ -467,39 +643,56 @@ public class PDQMap<K, V> implements Map<K, V>, Splittable, Mergeable, Serializa
 					}
 					
 					PDQ.sendAll(data);
-					remotePartialMaps = data[0];
+					remotePartialMaps = data;
 				} else {
 					// If slave.. send my PartialMaps to the master
 					PDQ.sendTo(0, delegates);
 					
-					remotePartialMaps = (Object[][]) PDQ.recvFrom(0);
+					remotePartialMaps[rank] = (Object[][]) PDQ.recvFrom(0);
 				}
 				
 				logger.info("now to common code");
 				// remove partials this rank is not responsible for
 				for (int i = 0; i < numWorkers; i++) {
 					for (int j = 0; j < numThreads; j++) {
-						if (PDQ.rank() != i)
+						if (! isResponsible(i))
 							delegates.set(i * numThreads + j, null);
 					}
 				}
 				
 				// add the remote partial maps into our list
-				for (int i = 0; i < numThreads; i++) {
-					PartialMap partialMap = 
-							(PartialMap) delegates.get(rank*numThreads + i);
-					for (int j = 0; j < numWorkers; j++) {
-						if (j == rank) continue; // don't add my local partial map
-						partialMap.add((PartialMap) remotePartialMaps[i][j]);
+				for (int g = 0; g < numWorkers; g++) {
+					if (! isResponsible(g)) continue;
+					
+					for (int i = 0; i < numThreads; i++) {
+						int index = g * numThreads + i;
+						if (! isDelegatePartial(index)) {
+							delegates.set(index, new PartialMap(delegates.get(index)));
+						}
+						PartialMap partialMap = (PartialMap) delegates.get(index);
+						
+						for (int j = 0; j < numWorkers; j++) {
+							if (j == rank) continue; // don't add my local partial map
+							
+							// Workers that never merged have no partial results 
+							Object remote = remotePartialMaps[g][i][j];
+							if (remote instanceof PDQMap.PartialMap)
+								partialMap.add((PartialMap) remote);
+						}
+						
+						Callable<Long> task = partialMap.mergeRemote();
+						addTask(tasks, task, index);
 					}
 				}
+				
+				runTasks("Merging remote maps", tasks);
 			}
 			
 			for (int i = 0; i < partitions; i ++) {
 				if (! isDelegatePartial(i)) continue;
 				PartialMap partialMap = (PartialMap) delegates.get(i);
 				Callable<Long> task = partialMap.compact();
-				if (task != null) tasks.add(task);
+				addTask(tasks, task, i);
 			}
 			
 			runTasks("Merging external maps", tasks);
@@ -520,6 +713,10 @@ public class PDQMap<K, V> implements Map<K, V>, Splittable, Mergeable, Serializa
 				if (rank == 0) {
 					Object[] remoteDelegates = PDQ.recvAll();
 					for (int i = 1; i < numWorkers; i++) {
+						// The partitions of the lost workers were
+						// merged by this JVM
+						if (remoteDelegates[i] == null) continue;
+						
 						List<Map<K, V>> dlg = 
 								(List<Map<K, V>>) remoteDelegates[i];
 						for (int j = 0; j < numThreads; j++) {
@@ -535,11 +732,40 @@ public class PDQMap<K, V> implements Map<K, V>, Splittable, Mergeable, Serializa
 		}
 	}
 	
+	/**
+	 * Returns <tt>true</tt> if this JVM is responsible for merging 
+	 * the partitions owned by the specified rank. Each JVM merges
+	 * its own partitions; additionally, the master merges the 
+	 * partitions of the workers that have been lost.
+	 * 
+	 * @param owner the rank that owns the partitions
+	 * @return <tt>true</tt> if this JVM must merge the partitions
+	 */
+	private boolean isResponsible(int owner) {
+		int rank = PDQ.rank();
+		return (owner == rank) || (rank == 0 && ! PDQ.isAlive(owner));
+	}
+	
 	private boolean isDelegatePartial(int index) {
 		if (delegates.get(index) == null) return false;
 		return PartialMap.class.isAssignableFrom(delegates.get(index).getClass());
 	}
 	
+	/**
+	 * Adds the task on the partition (if any) to the list. If the
+	 * timeline of the computation is recorded, the task is recorded
+	 * under the name of the partition.
+	 */
+	private void addTask(List<Callable<Long>> tasks, Callable<Long> task, 
+			int partition) {
+		if (task == null) return;
+		
+		Profile profile = Profile.current();
+		if (profile != null)
+			task = profile.wrap(task, "partition " + partition, "pdqmap");
+		tasks.add(task);
+	}
+	
 	void runTasks(String description, List<Callable<Long>> callables) throws InterruptedException {
 		if (callables.size() == 0) return;
 
@@ -548,26 +774,32 @@ public class PDQMap<K, V> implements Map<K, V>, Splittable, Mergeable, Serializa
 		if (exec == null)
 			throw new IllegalStateException("merging when not in thread context");
 
+		long start = Profile.start();
 		
 		List<Future<Long>> results = exec.invokeAll(callables);
 		exec.awaitTermination(0, TimeUnit.SECONDS);
+		
+		Profile profile = Profile.current();
+		if (profile != null) profile.record(description, "pdqmap", start);
 
 		
-		if (logger.isInfoEnabled()) {
+		if (logger.isInfoEnabled() || Metrics.isEnabled()) {
 			int nresults = results.size();
 
 			long[] durations = new long[nresults];
 			for (int i = 0; i < nresults; i++) {
 				try {
 					durations[i] = results.get(i).get();
+					taskMetric.record(durations[i]);
 				} catch (ExecutionException e) {
 					e.printStackTrace();
 					durations[i] = -1L;
 				}
 			}
 
-			logger.info(String.format("%s in %s", description,
-					Arrays.toString(durations)));
+			if (logger.isInfoEnabled())
+				logger.info(String.format("%s in %s", description,
+						Arrays.toString(durations)));
 		}
 		
 		if (PDQConfig.current().isGarbageCollect())
@@ -638,6 +870,7 @@ public class PDQMap<K, V> implements Map<K, V>, Splittable, Mergeable, Serializa
 	final class PartialMap extends AbstractMap<K, V> implements Serializable {
 		private static final long serialVersionUID = 3348869134687861582L;
 		private final List<Map<K, V>> onDiskMaps = new ArrayList<Map<K, V>>();
+		private final List<Map<K, V>> remoteMaps = new ArrayList<Map<K, V>>();
 		private Map<K, V> current;
 		
 		PartialMap(Map<K, V> map) {
@@ -650,12 +883,64 @@ public class PDQMap<K, V> implements Map<K, V>, Splittable, Mergeable, Serializa
 		
 		void add(PartialMap second) {
 			onDiskMaps.addAll(second.onDiskMaps);
+			
+			// The in-memory part of a remote partial map
+			if (second.current != null && second.current.size() > 0)
+				remoteMaps.add(second.current);
+		}
+		
+		/**
+		 * Creates a task that merges the in-memory parts of the
+		 * partial maps received from the other JVMs. If the current
+		 * map is in memory, they are merged into it; otherwise, they
+		 * are externalized so that they can be merged with the
+		 * other on disk maps.
+		 * 
+		 * @return the merge task, or <tt>null</tt> if nothing
+		 * is to be merged
+		 * @throws IOException
+		 */
+		@SuppressWarnings("unchecked")
+		Callable<Long> mergeRemote() throws IOException {
+			if (remoteMaps.size() == 0) return null;
+			
+			Object[] maps = remoteMaps.toArray();
+			remoteMaps.clear();
+			
+			if (! (current instanceof ExternalSortedMap)) {
+				if (isMultimap()) {
+					return new MergeMultimap<K, V>(
+							(Multimap<K, V>) current, maps);
+				} else {
+					return new MergeMap<K, V>(current, adder, maps);
+				}
+			}
+			
+			final List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+			for (Object map: maps) {
+				ExternalSortedMap<K, V> external = newExternalMap(true);
+				onDiskMaps.add(external);
+				tasks.add(new PutAllCallable<K, V>(external, (Map<K, V>) map));
+			}
+			
+			return new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					long duration = 0;
+					for (Callable<Long> task: tasks) {
+						duration += task.call();
+					}
+					return duration;
+				}
+			};
 		}
 		
 		@SuppressWarnings("unchecked")
 		Callable<Long> createMergeTask(Object[] maps) throws IOException {
 			if (maps.length == 0) return null;
 			
+			mergeFanIn.record(maps.length);
+			
 			// If the current delegate is empty, no need to merge
 			// other maps to this empty map. Just copy one of the
 			// maps that have to be merged.
@@ -722,6 +1007,7 @@ public class PDQMap<K, V> implements Map<K, V>, Splittable, Mergeable, Serializa
 			if (force || (onDiskMaps.size() > 0)) {
 				ExternalSortedMap<K, V> external = newExternalMap(true);
 				onDiskMaps.add(external);
+				spillMetric.inc();
 				return new PutAllCallable<K, V>(external, current);
 			}
 			
@@ -740,6 +1026,8 @@ public class PDQMap<K, V> implements Map<K, V>, Splittable, Mergeable, Serializa
 			
 			if (current instanceof ExternalSortedMap)
 				onDiskMaps.add(current);
+			
+			compactFanIn.record(onDiskMaps.size());
 
 			// If there is only one map to merge; no need to 
 			// actual merge it. Just copy is over
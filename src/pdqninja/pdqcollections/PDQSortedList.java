@@ -0,0 +1,907 @@
+package pdqninja.pdqcollections;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import pdqninja.io.MapFile;
+import pdqninja.io.MapFileIndex;
+import pdqninja.metrics.Counter;
+import pdqninja.metrics.Metrics;
+import pdqninja.pdq.PDQ;
+import pdqninja.pdq.PDQConfig;
+import pdqninja.pdq.Splittable;
+import pdqninja.pdq.StreamingMergeable;
+import pdqninja.pdqio.FileStoreIterator;
+import pdqninja.pdqio.FileStores;
+import pdqninja.util.WrappedIterator;
+import pdqninja.util.WrappedSortedIterator;
+
+/**
+ * A list of records, kept sorted by an external sort. Unlike the keys
+ * of a {@link PDQSortedMap}, the records may have duplicates.
+ * <p>
+ * The records of a split are added to a replicate of the list (with
+ * the {@link #add(Object)} method). Once the split has been processed,
+ * the replicate is sorted by the thread that processed it, and kept in
+ * memory as a <em>run</em>; when the free memory falls below the
+ * threshold (see {@link PDQConfig#getMinFree()}), the runs in memory
+ * are merged into a run on disk. The runs are therefore generated in
+ * parallel, by all the threads of all the JVMs.
+ * <p>
+ * The runs are merged once the computation is done. The split points
+ * of the merge are sampled from the indexes of the runs, so that the
+ * records are divided into as many ranges as the partitions of a
+ * {@link PDQMap}, of about the same size. Each range is merged from
+ * all the runs, by a task of its own, into a file of its own. In the
+ * distributed mode, the runs are written to the shared storage; the
+ * master chooses the split points, each JVM merges its share of the
+ * ranges, and the master assembles the list.
+ * <p>
+ * The files of the list (see {@link #getFiles()}), in order, hold the
+ * sorted records. The list is {@link Splittable}: each split is a
+ * collection of the consecutive records of about a blocksize.
+ *
+ * <pre>
+ * PDQSortedList&lt;String&gt; list = new PDQSortedList&lt;String&gt;();
+ * PDQ.run(new PDQFileReader(files), new ParallelFunction&lt;Reader, PDQSortedList&lt;String&gt;&gt;() {
+ *     public void apply(Reader reader, PDQSortedList&lt;String&gt; output) throws Exception {
+ *         // add each line of the reader to the output
+ *     }
+ * }, list);
+ * </pre>
+ * The records must be serializable, and must not be <tt>null</tt>.
+ *
+ * @author mvarshney
+ */
+public class PDQSortedList<E> extends AbstractCollection<E>
+		implements Splittable, StreamingMergeable, Serializable {
+	static Logger logger = Logger.getLogger(PDQSortedList.class);
+	static final Counter runMetric = Metrics.counter("pdqsortedlist.runs");
+	
+	private static final long serialVersionUID = -2419935870526214653L;
+	
+	final Comparator<? super E> comparator;
+	final int partitions;
+	
+	/** the records added to this list, not yet sorted */
+	List<E> records = new ArrayList<E>();
+	/** the runs on disk, not yet merged */
+	final List<Run<E>> runs = new ArrayList<Run<E>>();
+	/** the sorted ranges of the list */
+	final List<Run<E>> parts = new ArrayList<Run<E>>();
+	
+	transient List<List<E>> memoryRuns;
+	transient FileStoreIterator tmpStorage = null;
+	transient FileStoreIterator sharedStorage = null;
+	
+	/**
+	 * Creates a PDQSortedList of records that implement the
+	 * Comparable interface.
+	 */
+	public PDQSortedList() {
+		this(null);
+	}
+	
+	/**
+	 * Creates a PDQSortedList of records ordered by the specified
+	 * comparator.
+	 *
+	 * @param comparator the comparator for the records, which must
+	 * be serializable in the distributed mode
+	 */
+	public PDQSortedList(Comparator<? super E> comparator) {
+		PDQConfig config = PDQConfig.current();
+		
+		this.partitions = config.isDistributable() ?
+				config.getNumWorkers() * config.getThreads() :
+				config.getThreads();
+		this.comparator = comparator;
+	}
+	
+	/**
+	 * Returns the comparator for the records.
+	 *
+	 * @return the comparator, or <tt>null</tt> if the records are
+	 * in their natural order
+	 */
+	public Comparator<? super E> comparator() {
+		return comparator;
+	}
+	
+	/**
+	 * Adds the record to the list. The record is in the list (that
+	 * is, in its iterator and its splits) once the list is merged.
+	 */
+	@Override
+	public boolean add(E e) {
+		if (e == null) throw new NullPointerException();
+		records.add(e);
+		return true;
+	}
+	
+	/**
+	 * Returns the number of sorted records.
+	 */
+	@Override
+	public int size() {
+		long size = 0;
+		for (Run<E> part: parts) {
+			size += part.size;
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Returns an iterator over the sorted records.
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		List<Iterator<E>> iterators = new ArrayList<Iterator<E>>(parts.size());
+		for (Run<E> part: parts) {
+			iterators.add(new RunIterator<E>(part.file, 0, part.size, null, null, null));
+		}
+		return new WrappedIterator<E>(iterators);
+	}
+	
+	/**
+	 * Deletes the files of the list.
+	 */
+	@Override
+	public void clear() {
+		delete(runs);
+		delete(parts);
+		records.clear();
+	}
+	
+	/**
+	 * Returns the files that hold the sorted records, in order.
+	 *
+	 * @return the files of the list
+	 */
+	public List<File> getFiles() {
+		List<File> files = new ArrayList<File>(parts.size());
+		for (Run<E> part: parts) {
+			files.add(part.file);
+		}
+		return files;
+	}
+	
+	@Override
+	public Iterator<?> getSplits() {
+		long blocksize = PDQConfig.current().getBlocksize();
+		List<Segment<E>> segments = new ArrayList<Segment<E>>();
+		for (Run<E> part: parts) {
+			part.addSegments(segments, blocksize);
+		}
+		return segments.iterator();
+	}
+	
+	@Override
+	public Object replicate() {
+		return new PDQSortedList<E>(comparator);
+	}
+	
+	/**
+	 * Sorts the records of the replicate in the calling thread, and
+	 * keeps them as a run in memory. If the memory runs low, the
+	 * runs in memory are merged into a run on disk, also in the
+	 * calling thread.
+	 */
+	@Override
+	public void mergeOne(Object replicate) throws IOException, InterruptedException {
+		if (replicate == null) return;
+		
+		@SuppressWarnings("unchecked")
+		PDQSortedList<E> asList = (PDQSortedList<E>) replicate;
+		List<E> run = asList.records;
+		if (run.size() == 0) return;
+		
+		asList.records = new ArrayList<E>();
+		Collections.sort(run, comparator);
+		
+		List<List<E>> spill = null;
+		synchronized (this) {
+			memoryRuns().add(run);
+			
+			long threshold = PDQConfig.current().getMinFree();
+			if (Runtime.getRuntime().freeMemory() < threshold) {
+				spill = memoryRuns;
+				memoryRuns = new ArrayList<List<E>>();
+			}
+		}
+		
+		if (spill != null) addRun(spill);
+	}
+	
+	@Override
+	public void finish() {
+		if (PDQConfig.current().isGarbageCollect())
+			System.gc();
+	}
+	
+	/**
+	 * Merges the replicates or, if the <tt>objects</tt> is
+	 * <tt>null</tt>, merges the runs into the sorted ranges of the
+	 * list. The ranges sorted previously are merged along with the
+	 * runs.
+	 */
+	@Override
+	public void merge(Object... objects) throws IOException, InterruptedException {
+		if (objects != null) {
+			for (Object object: objects) {
+				mergeOne(object);
+			}
+			return;
+		}
+		
+		// The records added to this list, rather than to its replicates
+		if (records.size() > 0) {
+			List<E> run = records;
+			records = new ArrayList<E>();
+			Collections.sort(run, comparator);
+			memoryRuns().add(run);
+		}
+		
+		// The runs in memory are written in as many groups as threads
+		List<List<E>> inMemory = memoryRuns();
+		memoryRuns = null;
+		
+		List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+		int groups = Math.min(PDQConfig.current().getThreads(), inMemory.size());
+		for (int g = 0; g < groups; g++) {
+			final List<List<E>> group = new ArrayList<List<E>>();
+			for (int i = g; i < inMemory.size(); i += groups) {
+				group.add(inMemory.get(i));
+			}
+			
+			tasks.add(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					long start = System.currentTimeMillis();
+					addRun(group);
+					return System.currentTimeMillis() - start;
+				}
+			});
+		}
+		runTasks("Writing runs", tasks);
+		inMemory = null;
+		
+		List<Run<E>> all = new ArrayList<Run<E>>(runs);
+		all.addAll(parts);
+		runs.clear();
+		parts.clear();
+		
+		if (isDistributed()) {
+			mergeDistributed(all);
+		} else if (all.size() == 1) {
+			// A single run is sorted already
+			parts.addAll(all);
+		} else {
+			List<E> points = splitPoints(all, partitions);
+			boolean[] ranges = new boolean[points.size() + 1];
+			Arrays.fill(ranges, true);
+			Object[] merged = new Object[ranges.length];
+			mergeRanges(all, points, ranges, merged);
+			addParts(merged);
+			delete(all);
+		}
+	}
+	
+	/**
+	 * Merges the runs of all the JVMs. The master receives the runs
+	 * of the workers, chooses the split points, and sends both to the
+	 * workers; each JVM then merges its share of the ranges, and the
+	 * master receives the ranges merged by the workers. The ranges of
+	 * the workers lost before the plan is sent are merged by the
+	 * master; a worker lost while the ranges are exchanged fails the
+	 * computation (see {@link PDQ#recvAll()}). Any range that is
+	 * still not received is merged by the master, rather than left
+	 * out of the list.
+	 */
+	@SuppressWarnings("unchecked")
+	private void mergeDistributed(List<Run<E>> all) throws IOException, InterruptedException {
+		int numWorkers = PDQConfig.current().getNumWorkers();
+		int rank = PDQ.rank();
+		Object[] plan;
+		
+		if (rank == 0) {
+			Object[] remoteRuns = PDQ.recvAll();
+			for (int i = 1; i < numWorkers; i++) {
+				// Nothing is received from the lost workers
+				if (remoteRuns[i] == null) continue;
+				all.addAll((List<Run<E>>) remoteRuns[i]);
+			}
+			
+			plan = new Object[] { all, splitPoints(all, partitions) };
+			Object[] data = new Object[numWorkers];
+			Arrays.fill(data, plan);
+			PDQ.sendAll(data);
+		} else {
+			PDQ.sendTo(0, all);
+			plan = (Object[]) PDQ.recvFrom(0);
+		}
+		
+		all = (List<Run<E>>) plan[0];
+		List<E> points = (List<E>) plan[1];
+		boolean[] ranges = new boolean[points.size() + 1];
+		for (int r = 0; r < ranges.length; r++) {
+			ranges[r] = isResponsible(r % numWorkers);
+		}
+		Object[] merged = new Object[ranges.length];
+		mergeRanges(all, points, ranges, merged);
+		
+		if (rank == 0) {
+			Object[] remoteParts = PDQ.recvAll();
+				
+			// The ranges that are neither merged here nor received are
+			// merged now, from the runs on the shared storage
+			boolean[] missing = new boolean[ranges.length];
+			int lost = 0;
+			for (int r = 0; r < ranges.length; r++) {
+				if (ranges[r]) continue;
+				
+				Object[] theirs = (Object[]) remoteParts[r % numWorkers];
+				if (theirs != null) {
+					merged[r] = theirs[r];
+				} else {
+					missing[r] = true;
+					lost ++;
+				}
+			}
+			
+			if (lost > 0) {
+				logger.warn(String.format("Merging %d ranges of lost workers", lost));
+				mergeRanges(all, points, missing, merged);
+			}
+			
+			addParts(merged);
+			delete(all);
+		} else {
+			// The list is assembled by the master
+			PDQ.sendTo(0, merged);
+		}
+	}
+	
+	/**
+	 * Merges the specified ranges, between the split points, one task
+	 * per range.
+	 *
+	 * @param all the runs to merge
+	 * @param points the split points
+	 * @param ranges whether each range is to be merged
+	 * @param merged receives the merged ranges; the ranges that are
+	 * empty are left <tt>null</tt>
+	 */
+	private void mergeRanges(List<Run<E>> all, List<E> points, boolean[] ranges,
+			Object[] merged) throws IOException, InterruptedException {
+		List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+		
+		for (int r = 0; r < ranges.length; r++) {
+			if (! ranges[r]) continue;
+			
+			E from = r == 0 ? null : points.get(r - 1);
+			E to = r == ranges.length - 1 ? null : points.get(r);
+			tasks.add(new MergeRange(all, from, to, merged, r));
+		}
+		
+		if (logger.isInfoEnabled()) {
+			logger.info(String.format("Merging %d runs in %d ranges",
+					all.size(), tasks.size()));
+		}
+		
+		runTasks("Merging ranges", tasks);
+	}
+	
+	/**
+	 * Returns the split points that divide the records of the runs
+	 * into (at most) the specified number of ranges. The points are
+	 * chosen among the keys of the indexes of the runs, which are
+	 * about equally spaced in the runs; a record that is equal to a
+	 * split point belongs to the range that begins with the point.
+	 */
+	List<E> splitPoints(List<Run<E>> all, int ranges) {
+		List<E> samples = new ArrayList<E>();
+		for (Run<E> run: all) {
+			for (int i = 0; i < run.index.size(); i++) {
+				samples.add(run.index.getIndex(i).getKey());
+			}
+		}
+		Collections.sort(samples, comparator);
+		
+		List<E> points = new ArrayList<E>();
+		if (samples.size() == 0) return points;
+		
+		for (int i = 1; i < ranges; i++) {
+			E point = samples.get((int) ((long) i * samples.size() / ranges));
+			
+			// The duplicates of a frequent record are not split
+			if (points.size() == 0 ||
+					compare(comparator, points.get(points.size() - 1), point) < 0) {
+				points.add(point);
+			}
+		}
+		return points;
+	}
+	
+	/**
+	 * Merges the sorted runs into a run on disk.
+	 */
+	void addRun(List<List<E>> lists) throws IOException {
+		if (lists.size() == 0) return;
+		
+		List<Iterator<E>> iterators = new ArrayList<Iterator<E>>(lists.size());
+		for (List<E> list: lists) {
+			iterators.add(list.iterator());
+		}
+		
+		Run<E> run = writeRun(new WrappedSortedIterator<E>(iterators, comparator), true);
+		lists.clear();
+		
+		synchronized (runs) {
+			runs.add(run);
+		}
+		
+		if (logger.isInfoEnabled()) {
+			logger.info(String.format("\tWrote a run of %d records to %s",
+					run.size, run.file.getPath()));
+		}
+	}
+	
+	/**
+	 * Writes the sorted records to a new file, indexed as the files of
+	 * the {@link ExternalSortedMap} are.
+	 *
+	 * @param it the sorted records
+	 * @param isIntermediate indicates if the file is a run, rather
+	 * than a sorted range of the list
+	 * @return the run
+	 * @throws IOException
+	 */
+	Run<E> writeRun(Iterator<E> it, boolean isIntermediate) throws IOException {
+		PDQConfig conf = PDQConfig.current();
+		File file = newFile(isIntermediate);
+		MapFileIndex<E> index = new MapFileIndex<E>(comparator);
+		
+		MapFile<E> mapfile = new MapFile<E>(file, "rw",
+				index,
+				conf.getExternalIndex(),
+				conf.getReset(),
+				(int) conf.getBuffer());
+		mapfile.setFrontCoding(true);
+		
+		long size = 0;
+		try {
+			while (it.hasNext()) {
+				mapfile.write(it.next());
+				size ++;
+			}
+			mapfile.flush();
+		} finally {
+			mapfile.close();
+		}
+		
+		if (isIntermediate) runMetric.inc();
+		return new Run<E>(file, index, size);
+	}
+	
+	/**
+	 * Returns a new file for a run, or for a sorted range. The files
+	 * that are shared with the other JVMs are created on the shared
+	 * storage, if any.
+	 */
+	synchronized File newFile(boolean isIntermediate) throws IOException {
+		if (! isIntermediate || isDistributed()) {
+			if (sharedStorage == null) {
+				try {
+					sharedStorage = FileStores.getSharedStorage();
+				} catch (IOException e) {
+					// The other JVMs read the files of a distributed list
+					if (isDistributed()) throw e;
+					logger.warn("Cannot use the shared storage; " +
+							"writing to the local disks", e);
+				}
+			}
+			
+			if (sharedStorage != null) {
+				sharedStorage.next();
+				return sharedStorage.createFile(isIntermediate ? "tmp" : "final");
+			}
+		}
+		
+		if (tmpStorage == null) {
+			tmpStorage = FileStores.getLocalStorage();
+		}
+		
+		tmpStorage.next();
+		return tmpStorage.createFile(isIntermediate ? "tmp" : "final");
+	}
+	
+	synchronized List<List<E>> memoryRuns() {
+		if (memoryRuns == null) {
+			memoryRuns = new ArrayList<List<E>>();
+		}
+		return memoryRuns;
+	}
+	
+	private void addParts(Object[] merged) {
+		for (Object part: merged) {
+			if (part == null) continue;
+			
+			@SuppressWarnings("unchecked")
+			Run<E> run = (Run<E>) part;
+			parts.add(run);
+		}
+	}
+	
+	private static <E> void delete(List<Run<E>> runs) {
+		for (Run<E> run: runs) {
+			run.file.delete();
+		}
+		runs.clear();
+	}
+	
+	private static boolean isDistributed() {
+		PDQConfig config = PDQConfig.current();
+		return config.isDistributable() && config.getNumWorkers() > 1;
+	}
+	
+	/**
+	 * Returns <tt>true</tt> if this JVM is responsible for merging
+	 * the ranges owned by the specified rank. Each JVM merges
+	 * its own ranges; additionally, the master merges the
+	 * ranges of the workers that have been lost.
+	 */
+	private static boolean isResponsible(int owner) {
+		int rank = PDQ.rank();
+		return (owner == rank) || (rank == 0 && ! PDQ.isAlive(owner));
+	}
+	
+	void runTasks(String description, List<Callable<Long>> callables)
+			throws IOException, InterruptedException {
+		if (callables.size() == 0) return;
+		
+		ExecutorService exec = PDQ.getExecutorService();
+		
+		if (exec == null)
+			throw new IllegalStateException("merging when not in thread context");
+		
+		List<Future<Long>> results = exec.invokeAll(callables);
+		
+		int nresults = results.size();
+		long[] durations = new long[nresults];
+		for (int i = 0; i < nresults; i++) {
+			try {
+				durations[i] = results.get(i).get();
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			}
+		}
+		
+		if (logger.isInfoEnabled())
+			logger.info(String.format("%s in %s", description,
+					Arrays.toString(durations)));
+		
+		callables.clear();
+	}
+	
+	@SuppressWarnings("unchecked")
+	static <E> int compare(Comparator<? super E> comparator, E first, E second) {
+		if (comparator != null) {
+			return comparator.compare(first, second);
+		} else {
+			return ((Comparable<E>) first).compareTo(second);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("PDQSortedList %s", getFiles());
+	}
+	
+	/**
+	 * Merges the records of a range, from all the runs, into a
+	 * sorted range of the list.
+	 */
+	final class MergeRange implements Callable<Long> {
+		final List<Run<E>> all;
+		final E from;
+		final E to;
+		final Object[] merged;
+		final int range;
+		
+		MergeRange(List<Run<E>> all, E from, E to, Object[] merged, int range) {
+			this.all = all;
+			this.from = from;
+			this.to = to;
+			this.merged = merged;
+			this.range = range;
+		}
+		
+		@Override
+		public Long call() throws Exception {
+			long start = System.currentTimeMillis();
+			
+			List<Iterator<E>> iterators = new ArrayList<Iterator<E>>(all.size());
+			for (Run<E> run: all) {
+				iterators.add(run.iterator(from, to, comparator));
+			}
+			
+			Run<E> run = writeRun(new WrappedSortedIterator<E>(iterators, comparator), false);
+			if (run.size == 0) {
+				run.file.delete();
+			} else {
+				merged[range] = run;
+			}
+			
+			return System.currentTimeMillis() - start;
+		}
+	}
+	
+	/**
+	 * A file of sorted records, and its index.
+	 */
+	static final class Run<E> implements Serializable {
+		private static final long serialVersionUID = 6803127480216650542L;
+		final File file;
+		final MapFileIndex<E> index;
+		final long size;
+		
+		Run(File file, MapFileIndex<E> index, long size) {
+			this.file = file;
+			this.index = index;
+			this.size = size;
+		}
+		
+		/**
+		 * Returns an iterator over the records of the run that are
+		 * greater than or equal to <tt>from</tt>, and less than
+		 * <tt>to</tt>. The iterator begins at the last index entry
+		 * before the range, or at the next one if all the records of
+		 * the entry's block are less than <tt>from</tt>.
+		 *
+		 * @param from the lower bound, or <tt>null</tt> if unbounded
+		 * @param to the upper bound, or <tt>null</tt> if unbounded
+		 * @param comparator the comparator for the records
+		 * @return an iterator over the records in the range
+		 */
+		Iterator<E> iterator(E from, E to, Comparator<? super E> comparator) {
+			long offset = 0;
+			long skipped = 0;
+			
+			if (from != null) {
+				// The entries equal to 'from' may follow its duplicates
+				int low = 0;
+				int high = index.size() - 1;
+				int found = -1;
+				while (low <= high) {
+					int mid = (low + high) >>> 1;
+					if (compare(comparator, index.getIndex(mid).getKey(), from) < 0) {
+						found = mid;
+						low = mid + 1;
+					} else {
+						high = mid - 1;
+					}
+				}
+				
+				// The block is skipped if its last record is before the range
+				if (found >= 0) {
+					E last = index.getIndex(found).getLastKey();
+					if (last != null && compare(comparator, last, from) < 0) {
+						found ++;
+						if (found == index.size())
+							return Collections.<E>emptyList().iterator();
+					}
+				}
+				
+				if (found >= 0) {
+					offset = index.getIndex(found).getOffset();
+					skipped = ordinal(found);
+				}
+			}
+			
+			return new RunIterator<E>(file, offset, size - skipped,
+					from, to, comparator);
+		}
+		
+		/**
+		 * Returns the position, in the run, of the record of the
+		 * specified index entry.
+		 */
+		long ordinal(int entry) {
+			long ordinal = entry;
+			for (int i = 0; i <= entry; i++) {
+				ordinal += index.getIndex(i).getSkipped();
+			}
+			return ordinal;
+		}
+		
+		/**
+		 * Divides the run, at its index entries, into segments of
+		 * about the specified size.
+		 */
+		void addSegments(List<Segment<E>> segments, long blocksize) {
+			long begin = 0;
+			long first = 0;
+			long ordinal = 0;
+			
+			for (int i = 0; i < index.size(); i++) {
+				MapFileIndex.Entry<E> entry = index.getIndex(i);
+				ordinal += entry.getSkipped();
+				
+				if (entry.getOffset() - begin >= blocksize) {
+					segments.add(new Segment<E>(file, begin, ordinal - first));
+					begin = entry.getOffset();
+					first = ordinal;
+				}
+				ordinal ++;
+			}
+			
+			if (size > first) {
+				segments.add(new Segment<E>(file, begin, size - first));
+			}
+		}
+	}
+	
+	/**
+	 * The consecutive records of a sorted range; a split of the list.
+	 */
+	static final class Segment<E> extends AbstractCollection<E> implements Serializable {
+		private static final long serialVersionUID = -4512962716153016218L;
+		final File file;
+		final long offset;
+		final long count;
+		
+		Segment(File file, long offset, long count) {
+			this.file = file;
+			this.offset = offset;
+			this.count = count;
+		}
+		
+		@Override
+		public Iterator<E> iterator() {
+			return new RunIterator<E>(file, offset, count, null, null, null);
+		}
+		
+		@Override
+		public int size() {
+			return (int) Math.min(count, Integer.MAX_VALUE);
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%s [offset=%d count=%d]", file.getPath(), offset, count);
+		}
+	}
+	
+	/**
+	 * Reads the records of a file, from an offset where the records
+	 * can be read (that is, the offset of an index entry). The file is
+	 * opened when the first record is asked for, and closed once the
+	 * records are read.
+	 */
+	static final class RunIterator<E> implements Iterator<E> {
+		private final File file;
+		private final long offset;
+		private final E from;
+		private final E to;
+		private final Comparator<? super E> comparator;
+		private long remaining;
+		private MapFile<E> mapfile;
+		private boolean opened = false;
+		private E next;
+		
+		/**
+		 * @param file the file
+		 * @param offset the offset of the first record to read
+		 * @param count the number of records from the offset
+		 * @param from the records less than <tt>from</tt> are skipped,
+		 * unless it is <tt>null</tt>
+		 * @param to the records are read until <tt>to</tt>, unless it
+		 * is <tt>null</tt>
+		 * @param comparator the comparator for the records
+		 */
+		RunIterator(File file, long offset, long count, E from, E to,
+				Comparator<? super E> comparator) {
+			this.file = file;
+			this.offset = offset;
+			this.remaining = count;
+			this.from = from;
+			this.to = to;
+			this.comparator = comparator;
+		}
+		
+		private void open() {
+			opened = true;
+			if (remaining == 0) return;
+			
+			try {
+				mapfile = new MapFile<E>(file, "r");
+				if (offset > 0) mapfile.seek(offset);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			
+			readNext();
+			while (next != null && from != null &&
+					compare(comparator, next, from) < 0) {
+				readNext();
+			}
+		}
+		
+		private void readNext() {
+			next = null;
+			if (remaining == 0) {
+				close();
+				return;
+			}
+			remaining --;
+			
+			try {
+				@SuppressWarnings("unchecked")
+				E record = (E) mapfile.readKey();
+				
+				if (to != null && compare(comparator, record, to) >= 0) {
+					close();
+					return;
+				}
+				next = record;
+			} catch (EOFException e) {
+				close();
+			} catch (IOException e) {
+				close();
+				throw new IllegalStateException(e);
+			} catch (ClassNotFoundException e) {
+				close();
+				throw new IllegalStateException(e);
+			}
+		}
+		
+		private void close() {
+			remaining = 0;
+			if (mapfile == null) return;
+			
+			try {
+				mapfile.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			mapfile = null;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if (! opened) open();
+			return next != null;
+		}
+		
+		@Override
+		public E next() {
+			if (! hasNext()) throw new NoSuchElementException();
+			
+			E record = next;
+			readNext();
+			return record;
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
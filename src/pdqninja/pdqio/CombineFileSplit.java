@@ -0,0 +1,110 @@
+package pdqninja.pdqio;
+
+import java.io.File;
+import java.io.IOException;
+
+import pdqninja.pdq.SplitDescriptor;
+
+/**
+ * Describes a split that combines pieces of several files, by the
+ * names of the files, and the offset and the length of each piece.
+ * The pieces are read one after the other, as a single
+ * InputStream, and each file is opened only when its piece is
+ * reached. The pieces that do not end with the separator of the
+ * records are followed by it (see {@link CombineFileSplitInputStream}).
+ *
+ * @author mvarshney
+ * @see CombineFileSplitIterator
+ */
+public class CombineFileSplit implements SplitDescriptor {
+	private static final long serialVersionUID = -2217160185373934419L;
+	
+	private final File[] files;
+	private final long[] begins;
+	private final long[] lengths;
+	private final byte[] separator;
+	private final long length;
+	
+	/**
+	 * @param separator the bytes that end the records, or
+	 * <tt>null</tt> if the pieces are read as they are
+	 */
+	CombineFileSplit(File[] files, long[] begins, long[] lengths,
+			byte[] separator) {
+		this.files = files;
+		this.begins = begins;
+		this.lengths = lengths;
+		this.separator = separator;
+		
+		long length = 0;
+		for (long l : lengths) length += l;
+		this.length = length;
+	}
+	
+	/**
+	 * @return the number of pieces
+	 */
+	public int size() {
+		return files.length;
+	}
+	
+	/**
+	 * @param i index of the piece
+	 * @return the file of the piece
+	 */
+	public File getFile(int i) {
+		return files[i];
+	}
+	
+	/**
+	 * @param i index of the piece
+	 * @return offset within the file where the piece begins
+	 */
+	public long getBegin(int i) {
+		return begins[i];
+	}
+	
+	/**
+	 * @param i index of the piece
+	 * @return length of the piece
+	 */
+	public long getLength(int i) {
+		return lengths[i];
+	}
+	
+	/**
+	 * @return total length of the pieces
+	 */
+	@Override
+	public long getLength() {
+		return length;
+	}
+	
+	/**
+	 * Returns the canonical path of the first file; all the files
+	 * of a split reside on the same disk.
+	 */
+	@Override
+	public String getLocation() {
+		try {
+			return files[0].getCanonicalPath();
+		} catch (IOException e) {
+			return files[0].getAbsolutePath();
+		}
+	}
+	
+	/**
+	 * Returns an InputStream that reads the pieces one after
+	 * the other.
+	 */
+	@Override
+	public CombineFileSplitInputStream open() throws IOException {
+		return new CombineFileSplitInputStream(files, begins, lengths, separator);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s[%d-%d]+%d", files[0].getPath(), begins[0],
+				begins[0] + lengths[0], files.length - 1);
+	}
+}
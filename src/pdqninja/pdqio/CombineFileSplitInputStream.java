@@ -0,0 +1,152 @@
+package pdqninja.pdqio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Creates an InputStream for the pieces of a {@link CombineFileSplit}:
+ * the pieces are read one after the other, each by a
+ * {@link FileSplitInputStream}, so that only one file is open at a
+ * time.
+ * <p>
+ * A piece that does not end with the separator (for example, the
+ * last line of a file without a trailing newline) is followed by
+ * the separator, so that its last record does not run into the
+ * first record of the next piece.
+ *
+ * @author mvarshney
+ */
+public final class CombineFileSplitInputStream extends InputStream {
+	private static final Logger logger = Logger.getLogger(CombineFileSplitInputStream.class);
+	
+	private final File[] files;
+	private final long[] begins;
+	private final long[] lengths;
+	private final byte[] separator;
+	private int index = -1;
+	private InputStream current;
+	
+	/**
+	 * The last bytes read from the current piece, and the number of
+	 * bytes of the separator that remain to be read.
+	 */
+	private final byte[] tail;
+	private int tailLength = 0;
+	private int pending = 0;
+	
+	CombineFileSplitInputStream(File[] files, long[] begins, long[] lengths,
+			byte[] separator) {
+		this.files = files;
+		this.begins = begins;
+		this.lengths = lengths;
+		this.separator = separator;
+		this.tail = new byte[separator == null ? 0 : separator.length];
+	}
+	
+	/**
+	 * @return the file being read, or <tt>null</tt> before the first
+	 * read and after the last piece
+	 */
+	public File getFile() {
+		return index >= 0 && index < files.length ? files[index] : null;
+	}
+	
+	private boolean openNext() throws IOException {
+		tailLength = 0;
+		while (++ index < files.length) {
+			RandomAccessFile raf;
+			try {
+				raf = new RandomAccessFile(files[index], "r");
+			} catch (IOException e) {
+				logger.warn(String.format("Cannot read %s: %s", files[index], e));
+				continue;
+			}
+			raf.seek(begins[index]);
+			current = new FileSplitInputStream(files[index], raf, lengths[index]);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Closes the current piece, and starts the separator if the
+	 * piece does not end with it.
+	 */
+	private void closeCurrent() throws IOException {
+		current.close();
+		current = null;
+		
+		if (tailLength == 0) return;
+		for (int i = 0; i < tail.length; i++) {
+			if (tailLength < tail.length || tail[i] != separator[i]) {
+				pending = separator.length;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Remembers the last bytes read from the current piece.
+	 */
+	private void remember(byte[] b, int off, int n) {
+		if (n >= tail.length) {
+			System.arraycopy(b, off + n - tail.length, tail, 0, tail.length);
+			tailLength = tail.length;
+			return;
+		}
+		
+		int keep = Math.min(tailLength, tail.length - n);
+		System.arraycopy(tail, tailLength - keep, tail, 0, keep);
+		System.arraycopy(b, off, tail, keep, n);
+		tailLength = keep + n;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		while (true) {
+			if (pending > 0) return separator[separator.length - pending --];
+			if (current == null && ! openNext()) return -1;
+			
+			int b = current.read();
+			if (b != -1) {
+				if (tail.length > 0) remember(new byte[] {(byte) b}, 0, 1);
+				return b;
+			}
+			closeCurrent();
+		}
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		
+		while (true) {
+			if (pending > 0) {
+				int n = Math.min(len, pending);
+				System.arraycopy(separator, separator.length - pending, b, off, n);
+				pending -= n;
+				return n;
+			}
+			if (current == null && ! openNext()) return -1;
+			
+			int n = current.read(b, off, len);
+			if (n != -1) {
+				if (n > 0 && tail.length > 0) remember(b, off, n);
+				return n;
+			}
+			closeCurrent();
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (current != null) current.close();
+		current = null;
+		pending = 0;
+		index = files.length;
+	}
+}
@@ -0,0 +1,253 @@
+package pdqninja.pdqio;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import pdqninja.pdq.PDQConfig;
+
+/**
+ * Generates splits that combine many files, or pieces of files, of
+ * a {@link FileStoreIterator}, so that small files do not cost a
+ * split (and its replicate and merge) each.
+ * <p>
+ * Like the {@link FileSplitIterator}, this iterator cuts the files
+ * with a {@link Splitter}; but it packs the pieces into one split
+ * until they add up to the blocksize: the small files whole, and
+ * the last piece of a large file together with the next files. The
+ * pieces of a split are all taken from the same directory of the
+ * FileStoreIterator, and therefore from the same disk; the
+ * iterator moves to the next directory for the next split.
+ * <p>
+ * The overriding classes implement
+ * {@link #createSplit(File[], long[], long[])}.
+ *
+ * @author mvarshney
+ */
+abstract class CombineFileSplitIterator<E> implements Iterator<E> {
+	private static final Logger logger = Logger.getLogger(CombineFileSplitIterator.class);
+	
+	/**
+	 * Maximum number of pieces in a split.
+	 */
+	static final int MaxFiles = 1024;
+	
+	private final FileStoreIterator fsIterator;
+	private final long blocksize;
+	private final PDQConfig config = PDQConfig.current();
+	private final Splitter splitter;
+	
+	/**
+	 * The bytes that end the records cut by the splitter.
+	 */
+	final byte[] separator;
+	
+	/**
+	 * The files that are split but not exhausted yet: at most one
+	 * per directory.
+	 */
+	private final Map<String, RandomAccessFile> openedRAFs =
+			new HashMap<String, RandomAccessFile>();
+	
+	private final List<File> files = new ArrayList<File>();
+	private final List<Long> begins = new ArrayList<Long>();
+	private final List<Long> lengths = new ArrayList<Long>();
+	
+	/**
+	 * Creates a CombineFileSplitIterator for a collection of files
+	 * in the specified FileStoreIterator by splitting them
+	 * using the specified Splitter and the specified
+	 * blocksize.
+	 *
+	 * @param fsIterator the FileStoreIterator
+	 * @param blocksize blocksize of the splits
+	 * @param splitter the Splitter used for splitting files
+	 * @throws IOException
+	 */
+	CombineFileSplitIterator(FileStoreIterator fsIterator,
+			long blocksize, Splitter splitter) throws IOException {
+		this.fsIterator = fsIterator;
+		this.blocksize = blocksize;
+		this.splitter = splitter;
+		this.separator = separator(splitter);
+		
+		loadNextSplit();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean hasNext() {
+		return ! files.isEmpty();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public E next() {
+		if (! hasNext()) return null;
+		
+		int n = files.size();
+		File[] f = files.toArray(new File[n]);
+		long[] b = new long[n];
+		long[] l = new long[n];
+		for (int i = 0; i < n; i++) {
+			b[i] = begins.get(i);
+			l[i] = lengths.get(i);
+		}
+		
+		E split = null;
+		try {
+			split = createSplit(f, b, l);
+			loadNextSplit();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		return split;
+	}
+	
+	/**
+	 * This operation is not supported.
+	 */
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+	
+	/**
+	 * Packs the pieces of the files in the current directory into
+	 * the next split, until they add up to the blocksize. The files
+	 * that are exhausted, or that cannot be read, are removed from
+	 * the FileStoreIterator.
+	 *
+	 * @throws IOException
+	 */
+	void loadNextSplitCurrentDir() throws IOException {
+		Collection<File> dirFiles = fsIterator.getFiles();
+		
+		if (dirFiles == null || dirFiles.size() == 0)
+			return;
+		
+		long blocksize = blocksize();
+		long total = 0;
+		
+		Iterator<File> it = dirFiles.iterator();
+		while (it.hasNext() && total < blocksize && files.size() < MaxFiles) {
+			File file = it.next();
+			String path = file.getAbsolutePath();
+			RandomAccessFile raf = openedRAFs.get(path);
+			if (raf == null) {
+				try {
+					raf = new RandomAccessFile(file, "r");
+				} catch (FileNotFoundException e) {
+					logger.warn(String.format("Cannot read %s: %s", path, e));
+					it.remove();
+					continue;
+				}
+				openedRAFs.put(path, raf);
+			}
+			
+			long begin = splitter.splitBegin(raf);
+			long end = begin;
+			if (begin != -1) {
+				raf.seek(begin);
+				end = splitter.splitEnd(raf, blocksize - total);
+			}
+			
+			if (begin == -1 || begin == end) {
+				openedRAFs.remove(path).close();
+				it.remove();
+				continue;
+			}
+			
+			files.add(file);
+			begins.add(begin);
+			lengths.add(end - begin);
+			total += end - begin;
+			
+			if (end >= raf.length()) {
+				// Exhausted: no need to keep it open
+				openedRAFs.remove(path).close();
+				it.remove();
+			} else {
+				raf.seek(end);
+				break;
+			}
+		}
+		
+		if (! files.isEmpty()) {
+			logger.debug(String.format("Generated Split. %d pieces %d bytes",
+					files.size(), total));
+		}
+	}
+	
+	/**
+	 * Returns the blocksize of the next split. If the configuration
+	 * is tuned, its blocksize is used, so that the splits follow
+	 * the adjustments of the {@link pdqninja.pdq.Tuner}.
+	 */
+	private long blocksize() {
+		return config.isTune() ? config.getBlocksize() : blocksize;
+	}
+	
+	/**
+	 * Loads the next split. This method will try each directory
+	 * until it can find one split.
+	 * @throws IOException
+	 */
+	void loadNextSplit() throws IOException {
+		files.clear();
+		begins.clear();
+		lengths.clear();
+		
+		if (! fsIterator.hasNext()) return;
+		
+		// Go through the loop for one iteration loop cycle only
+		int cycle = fsIterator.cycle();
+		
+		while (cycle > 0) {
+			fsIterator.next();
+			loadNextSplitCurrentDir();
+			if (hasNext())
+				break;
+			cycle --;
+		}
+	}
+	
+	/**
+	 * Returns the bytes that end the records cut by the splitter,
+	 * which follow the pieces that do not end with them; or
+	 * <tt>null</tt> if the records are not delimited, and the pieces
+	 * are read as they are.
+	 */
+	static byte[] separator(Splitter splitter) {
+		if (splitter instanceof DelimitedSplitter)
+			return ((DelimitedSplitter) splitter).separator();
+		if (splitter instanceof QuotedSplitter)
+			return DelimitedSplitter.NewLineDelimitedSplitter.separator();
+		return null;
+	}
+	
+	/**
+	 * Creates a split of the specified pieces of files.
+	 *
+	 * @param files the files of the pieces
+	 * @param begins offsets where the pieces begin
+	 * @param lengths lengths of the pieces
+	 * @return the split
+	 * @throws IOException
+	 */
+	abstract E createSplit(File[] files, long[] begins, long[] lengths) throws IOException;
+}
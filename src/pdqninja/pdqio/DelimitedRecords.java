@@ -0,0 +1,455 @@
+package pdqninja.pdqio;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+
+import pdqninja.io.DiskQueues;
+
+/**
+ * The records of a split of a delimited (CSV or TSV) file, as
+ * produced by the {@link PDQDelimitedFileSource}.
+ * <p>
+ * A <code>DelimitedRecords</code> is a cursor: the {@link #next()}
+ * method parses the next record, whose fields can then be read by
+ * their column (counting from 0). The fields are parsed in place,
+ * from the bytes read from the file: the {@link #getLong(int)},
+ * {@link #getInt(int)} and {@link #getDouble(int)} methods parse
+ * numbers without creating Strings, and the {@link #getString(int)}
+ * method decodes the field (as UTF-8). The fields are only valid
+ * until the next call to <code>next()</code>.
+ * <p>
+ * Fields may be quoted, in which case they may contain separators,
+ * newlines and quotes (which are doubled). If the source projects
+ * some of the columns, the fields of the other columns are skipped
+ * over, and cannot be read.
+ *
+ * @author mvarshney
+ */
+public final class DelimitedRecords implements Closeable {
+	static private final Charset UTF8 = Charset.forName("UTF-8");
+	static private final Charset ASCII = Charset.forName("ISO-8859-1");
+	
+	static private final double[] PowersOf10 = new double[23];
+	static {
+		PowersOf10[0] = 1;
+		for (int i = 1; i < PowersOf10.length; i++) {
+			PowersOf10[i] = PowersOf10[i - 1] * 10;
+		}
+	}
+	
+	private final RandomAccessFile raf;
+	private final InputStream in;
+	private final Format format;
+	private boolean skip;
+	
+	private byte[] buffer = LineSplit.take();
+	private int limit = 0;
+	private int next = 0;
+	private boolean eof = false;
+	
+	private int columns = 0;
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private boolean[] escaped = new boolean[16];
+	
+	/**
+	 * Creates the records of the split of the specified file that
+	 * begins at the current offset of the RandomAccessFile.
+	 *
+	 * @param file the file
+	 * @param raf the file, positioned at the beginning of the split
+	 * @param length the length of the split
+	 * @param format the format of the records
+	 * @param skip whether the first record (a header) is skipped
+	 * @throws IOException
+	 */
+	DelimitedRecords(File file, RandomAccessFile raf, long length,
+			Format format, boolean skip) throws IOException {
+		this.raf = raf;
+		this.in = DiskQueues.newInputStream(file, raf, length);
+		this.format = format;
+		this.skip = skip;
+	}
+	
+	/**
+	 * Moves to the next record.
+	 *
+	 * @return <tt>false</tt> if there are no more records in the split
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		if (skip) {
+			skip = false;
+			if (! next()) return false;
+		}
+		
+		columns = 0;
+		if (buffer == null) return false;
+		
+		while (true) {
+			if (next >= limit && eof) {
+				close();
+				return false;
+			}
+			if (next < limit && parse()) return true;
+			fill();
+		}
+	}
+	
+	/**
+	 * Parses the record that begins at <code>next</code>.
+	 *
+	 * @return <tt>false</tt> if the buffer ends before the record
+	 */
+	private boolean parse() {
+		byte[] b = buffer;
+		byte separator = format.separator;
+		byte quote = format.quote;
+		int i = next;
+		int column = 0;
+		
+		while (true) {
+			int from, to;
+			boolean quoted = false;
+			boolean esc = false;
+			
+			if (i < limit && b[i] == quote) {
+				quoted = true;
+				from = ++i;
+				while (true) {
+					if (i >= limit) {
+						// An unterminated quote ends with the split
+						if (! eof) return false;
+						break;
+					}
+					if (b[i] == quote) {
+						if (i + 1 >= limit && ! eof) return false;
+						if (i + 1 < limit && b[i + 1] == quote) {
+							esc = true;
+							i += 2;
+							continue;
+						}
+						break;
+					}
+					i ++;
+				}
+				to = i;
+				if (i < limit) i ++;
+				
+				// Anything after the closing quote is ignored
+				while (i < limit && b[i] != separator && b[i] != '\n') i ++;
+			} else {
+				from = i;
+				while (i < limit && b[i] != separator && b[i] != '\n') i ++;
+				to = i;
+			}
+			
+			if (i >= limit && ! eof) return false;
+			
+			boolean last = i >= limit || b[i] == '\n';
+			if (last && ! quoted && to > from && b[to - 1] == '\r') to --;
+			field(column ++, from, to, esc);
+			
+			if (last) {
+				columns = column;
+				next = Math.min(i + 1, limit);
+				return true;
+			}
+			i ++;
+		}
+	}
+	
+	private void field(int column, int from, int to, boolean esc) {
+		if (column >= starts.length) {
+			int size = starts.length * 2;
+			int[] s = new int[size];
+			int[] e = new int[size];
+			boolean[] q = new boolean[size];
+			System.arraycopy(starts, 0, s, 0, starts.length);
+			System.arraycopy(ends, 0, e, 0, ends.length);
+			System.arraycopy(escaped, 0, q, 0, escaped.length);
+			starts = s;
+			ends = e;
+			escaped = q;
+		}
+		
+		if (format.isProjected(column)) {
+			starts[column] = from;
+			ends[column] = to;
+			escaped[column] = esc;
+		} else {
+			starts[column] = -1;
+		}
+	}
+	
+	/**
+	 * Reads more bytes, after moving the unparsed record to the
+	 * beginning of the buffer (or growing the buffer, if the record
+	 * does not fit).
+	 */
+	private void fill() throws IOException {
+		if (next > 0) {
+			System.arraycopy(buffer, next, buffer, 0, limit - next);
+			limit -= next;
+			next = 0;
+		} else if (limit == buffer.length) {
+			byte[] larger = new byte[buffer.length * 2];
+			System.arraycopy(buffer, 0, larger, 0, limit);
+			LineSplit.give(buffer);
+			buffer = larger;
+		}
+		
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if (read == -1) {
+			eof = true;
+		} else {
+			limit += read;
+		}
+	}
+	
+	/**
+	 * @return the number of fields in the current record
+	 */
+	public int getColumnCount() {
+		return columns;
+	}
+	
+	private int start(int column) {
+		if (column < 0 || column >= columns)
+			throw new IndexOutOfBoundsException("Column " + column + " of " + columns);
+		int start = starts[column];
+		if (start < 0)
+			throw new IllegalArgumentException("Column " + column + " is not projected");
+		return start;
+	}
+	
+	/**
+	 * @return the buffer that holds the bytes of the current record
+	 */
+	public byte[] bytes() {
+		return buffer;
+	}
+	
+	/**
+	 * Returns the offset of the field in the buffer. The bytes of
+	 * a quoted field exclude the quotes, but its doubled quotes
+	 * are not undoubled.
+	 *
+	 * @param column the column of the field
+	 * @return the offset of the field in the buffer
+	 */
+	public int getOffset(int column) {
+		return start(column);
+	}
+	
+	/**
+	 * @param column the column of the field
+	 * @return the number of bytes of the field in the buffer
+	 */
+	public int getLength(int column) {
+		int start = start(column);
+		return ends[column] - start;
+	}
+	
+	/**
+	 * @param column the column of the field
+	 * @return <tt>true</tt> if the field is empty
+	 */
+	public boolean isEmpty(int column) {
+		return getLength(column) == 0;
+	}
+	
+	/**
+	 * @param column the column of the field
+	 * @return the field, decoded as UTF-8
+	 */
+	public String getString(int column) {
+		int from = start(column);
+		int to = ends[column];
+		if (! escaped[column]) {
+			return new String(buffer, from, to - from, UTF8);
+		}
+		
+		byte[] bytes = new byte[to - from];
+		int n = 0;
+		for (int i = from; i < to; i++) {
+			bytes[n ++] = buffer[i];
+			if (buffer[i] == format.quote) i ++;
+		}
+		return new String(bytes, 0, n, UTF8);
+	}
+	
+	/**
+	 * @param column the column of the field
+	 * @return the field, parsed as a decimal long
+	 * @throws NumberFormatException if the field is not a long
+	 */
+	public long getLong(int column) {
+		return parseLong(buffer, start(column), ends[column]);
+	}
+	
+	/**
+	 * @param column the column of the field
+	 * @return the field, parsed as a decimal int
+	 * @throws NumberFormatException if the field is not an int
+	 */
+	public int getInt(int column) {
+		long value = getLong(column);
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+			throw new NumberFormatException("Out of range: " + value);
+		return (int) value;
+	}
+	
+	/**
+	 * @param column the column of the field
+	 * @return the field, parsed as a double
+	 * @throws NumberFormatException if the field is not a double
+	 */
+	public double getDouble(int column) {
+		return parseDouble(buffer, start(column), ends[column]);
+	}
+	
+	/**
+	 * Parses a decimal long from the bytes. The value is accumulated
+	 * as a negative number, so that <code>Long.MIN_VALUE</code> does
+	 * not overflow.
+	 */
+	static long parseLong(byte[] b, int from, int to) {
+		int i = from;
+		boolean negative = false;
+		if (i < to && (b[i] == '-' || b[i] == '+')) {
+			negative = b[i] == '-';
+			i ++;
+		}
+		if (i >= to) throw invalid(b, from, to);
+		
+		long value = 0;
+		for (; i < to; i++) {
+			int digit = b[i] - '0';
+			if (digit < 0 || digit > 9) throw invalid(b, from, to);
+			if (value < (Long.MIN_VALUE + digit) / 10) throw invalid(b, from, to);
+			value = value * 10 - digit;
+		}
+		
+		if (negative) return value;
+		if (value == Long.MIN_VALUE) throw invalid(b, from, to);
+		return -value;
+	}
+	
+	/**
+	 * Parses a double from the bytes. Plain decimals of up to 15
+	 * digits are computed directly: both the digits and the power of
+	 * ten are exact doubles, so their quotient is correctly rounded.
+	 * Other numbers (with exponents, more digits, etc.) are parsed
+	 * by {@link Double#parseDouble(String)}.
+	 */
+	static double parseDouble(byte[] b, int from, int to) {
+		int i = from;
+		boolean negative = false;
+		if (i < to && (b[i] == '-' || b[i] == '+')) {
+			negative = b[i] == '-';
+			i ++;
+		}
+		
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean point = false;
+		boolean any = false;
+		
+		for (; i < to; i++) {
+			byte c = b[i];
+			if (c >= '0' && c <= '9') {
+				any = true;
+				if (point) scale ++;
+				if (mantissa == 0 && c == '0') continue;
+				if (++ digits > 15) return slowParseDouble(b, from, to);
+				mantissa = mantissa * 10 + (c - '0');
+			} else if (c == '.' && ! point) {
+				point = true;
+			} else {
+				return slowParseDouble(b, from, to);
+			}
+		}
+		
+		if (! any || scale >= PowersOf10.length) return slowParseDouble(b, from, to);
+		
+		double value = scale == 0 ? mantissa : mantissa / PowersOf10[scale];
+		return negative ? -value : value;
+	}
+	
+	private static double slowParseDouble(byte[] b, int from, int to) {
+		return Double.parseDouble(new String(b, from, to - from, ASCII));
+	}
+	
+	private static NumberFormatException invalid(byte[] b, int from, int to) {
+		return new NumberFormatException("For input string: \"" +
+				new String(b, from, to - from, UTF8) + "\"");
+	}
+	
+	/**
+	 * Closes the file, and returns the buffer to the pool.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (buffer == null) return;
+		
+		LineSplit.give(buffer);
+		buffer = null;
+		columns = 0;
+		in.close();
+		raf.close();
+	}
+	
+	/**
+	 * The format of the records: the separator and the quote, and
+	 * the projected columns.
+	 */
+	static final class Format implements Serializable {
+		private static final long serialVersionUID = 2875610403328915623L;
+		final byte separator;
+		final byte quote;
+		
+		/**
+		 * The projected columns, or <tt>null</tt> if all the
+		 * columns are projected.
+		 */
+		final boolean[] projected;
+		
+		Format(char separator, char quote, int[] columns) {
+			if (separator >= 0x80 || quote >= 0x80 || separator == quote
+					|| separator == '\n' || separator == '\r'
+					|| quote == '\n' || quote == '\r') {
+				throw new IllegalArgumentException(String.format(
+						"Invalid separator or quote: %c %c", separator, quote));
+			}
+			this.separator = (byte) separator;
+			this.quote = (byte) quote;
+			
+			if (columns == null || columns.length == 0) {
+				projected = null;
+			} else {
+				int max = 0;
+				for (int column: columns) {
+					if (column < 0)
+						throw new IllegalArgumentException("Invalid column: " + column);
+					max = Math.max(max, column);
+				}
+				projected = new boolean[max + 1];
+				for (int column: columns) {
+					projected[column] = true;
+				}
+			}
+		}
+		
+		boolean isProjected(int column) {
+			return projected == null ||
+					(column < projected.length && projected[column]);
+		}
+	}
+}
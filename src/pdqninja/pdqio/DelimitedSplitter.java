@@ -3,6 +3,9 @@ package pdqninja.pdqio;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Splits a file into chunks that are delimited by strings.
@@ -24,6 +27,16 @@ import java.io.Serializable;
  * delimiter (because it reached the end of the file), this
  * object will still output this incomplete chunk (the offset of 
  * the end of the chunk will be the last byte offset of the file). 
+ * <p>
+ * The delimiters are matched against the UTF-8 bytes of the
+ * strings. The file is scanned through a buffer that starts small
+ * (since records are usually short) and doubles, up to 
+ * {@value #MaxBufferSize} bytes, for every read that does not find
+ * the delimiter. Single-byte delimiters (such as the newline) are
+ * searched eight bytes at a time; longer delimiters are matched
+ * with the Knuth-Morris-Pratt algorithm, so that delimiters whose
+ * prefix repeats (such as <code>"\r\n\r\n"</code>) are found 
+ * wherever they occur.
  * 
  * @author mvarshney
  *
@@ -34,9 +47,11 @@ public class DelimitedSplitter implements Splitter, Serializable {
 	public static final DelimitedSplitter NewLineDelimitedSplitter = 
 			new DelimitedSplitter("\n");
 	
-	private static final int BufferSize = 128;  
-	private final String startDelim;
-	private final String endDelim;
+	static final int MinBufferSize = 4 * 1024;
+	static final int MaxBufferSize = 256 * 1024;
+	
+	private final Delimiter start;
+	private final Delimiter end;
 	
 	/**
 	 * Create a splitter that divides a file into chunks
@@ -45,8 +60,8 @@ public class DelimitedSplitter implements Splitter, Serializable {
 	 * @param delim string that indicates the end of a chunk
 	 */
 	public DelimitedSplitter(String delim) {
-		this.startDelim = null;
-		this.endDelim = delim;
+		this.start = null;
+		this.end = new Delimiter(delim);
 	}
 	
 	/**
@@ -59,38 +74,90 @@ public class DelimitedSplitter implements Splitter, Serializable {
 	 * @param endDelim string that indicates the end of a chunk
 	 */
 	public DelimitedSplitter(String startDelim, String endDelim) {
-		this.startDelim = startDelim;
-		this.endDelim = endDelim;
+		this.start = new Delimiter(startDelim);
+		this.end = new Delimiter(endDelim);
 	}
 	
+	/**
+	 * Reads the file from its current position up to (and
+	 * including) the first occurrence of the delimiter.
+	 * 
+	 * @return the number of bytes up to the end of the delimiter, or
+	 * up to the end of the file if the delimiter is not found
+	 */
+	long locateDelim(RandomAccessFile raf, Delimiter delim) throws IOException {
+		byte[] pattern = delim.bytes;
+		int[] next = delim.next;
+		int len = pattern.length;
+		if (len == 0) return 0;
 	
-	long locateDelim(RandomAccessFile raf, String delim) throws IOException {
 		long skipped = 0;
-		int ch = 0;
 		int matched = 0;
-		int delimLen = delim.length();
-		byte[] bytes = new byte[BufferSize];
+		byte[] buffer = new byte[MinBufferSize];
 		
 		while (true) {
-			int read = raf.read(bytes);
+			int read = raf.read(buffer);
 			if (read == -1) return skipped;
 			
-			for (int i = 0; i < read; i++) {
-				ch = bytes[i];
+			int i = 0;
+			while (i < read) {
+				if (matched == 0) {
+					// Skip to the next occurrence of the first byte
+					i = indexOf(buffer, i, read, pattern[0]);
+					if (i < 0) break;
+					if (len == 1) return skipped + i + 1;
+					matched = 1;
+					i ++;
+					continue;
+				}
 				
-				skipped ++;				
-				if (ch == delim.charAt(matched)) {
+				byte b = buffer[i];
+				while (matched > 0 && pattern[matched] != b) {
+					matched = next[matched - 1];
+				}
+				if (pattern[matched] == b) {
 					matched ++;
-					if (matched == delimLen) {
-						return skipped;
-					}
-				} else {
-					matched = 0;
+					if (matched == len) return skipped + i + 1;
 				}
+				i ++;
 			}
+			
+			skipped += read;
+			if (buffer.length < MaxBufferSize) 
+				buffer = new byte[buffer.length * 2];
 		}
 	}
 	
+	/**
+	 * Returns the index of the first occurrence of the value in the
+	 * range of the array, or <code>-1</code> if the value does not
+	 * occur. The array is read eight bytes at a time, and each word
+	 * is tested for the value with a few arithmetic operations.
+	 */
+	static int indexOf(byte[] bytes, int from, int to, byte value) {
+		int i = from;
+		
+		if (to - from >= 16) {
+			// In little endian order, the first byte is the least 
+			// significant: the borrows of the subtraction only mark 
+			// (falsely) the bytes that follow the first match
+			ByteBuffer words = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			long pattern = (value & 0xFFL) * 0x0101010101010101L;
+			
+			for (; i + 8 <= to; i += 8) {
+				long x = words.getLong(i) ^ pattern;
+				long found = (x - 0x0101010101010101L) & ~x & 0x8080808080808080L;
+				if (found != 0)
+					return i + (Long.numberOfTrailingZeros(found) >>> 3);
+			}
+		}
+		
+		for (; i < to; i++) {
+			if (bytes[i] == value) return i;
+		}
+		return -1;
+	}
+	
 	/**
 	 * Locates the beginning offset of the next split, or
 	 * return <code>-1</code> if there are no more splits.
@@ -103,12 +170,12 @@ public class DelimitedSplitter implements Splitter, Serializable {
 		if (current >= size)
 			return -1;
 		
-		if (startDelim != null) {
+		if (start != null) {
 			if (current > 0) current++;
-			current += locateDelim(raf, startDelim);
+			current += locateDelim(raf, start);
 			if (current >= size)
 				return -1;
-			current -= startDelim.length();
+			current -= start.bytes.length;
 		}
 		
 		return current;
@@ -129,7 +196,44 @@ public class DelimitedSplitter implements Splitter, Serializable {
 		}
 		
 		raf.seek(pos);
-		return pos + locateDelim(raf, endDelim);
+		return pos + locateDelim(raf, end);
+	}
+	
+	/**
+	 * Returns the end delimiter of a splitter whose chunks are end
+	 * delimited, or <tt>null</tt> if the chunks are start and end
+	 * delimited (and thus delimited by their start).
+	 */
+	byte[] separator() {
+		return start == null ? end.bytes.clone() : null;
+	}
+	
+	/**
+	 * The bytes of a delimiter, with the table of the
+	 * Knuth-Morris-Pratt algorithm: <code>next[i]</code> is the
+	 * length of the longest proper prefix of the first
+	 * <code>i + 1</code> bytes that is also their suffix.
+	 */
+	static final class Delimiter implements Serializable {
+		private static final long serialVersionUID = -6096207417658294411L;
+		final byte[] bytes;
+		final int[] next;
+		
+		Delimiter(String delim) {
+			try {
+				bytes = delim.getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+			
+			next = new int[bytes.length];
+			int k = 0;
+			for (int i = 1; i < bytes.length; i++) {
+				while (k > 0 && bytes[k] != bytes[i]) k = next[k - 1];
+				if (bytes[k] == bytes[i]) k++;
+				next[i] = k;
+			}
+		}
 	}
 
 }
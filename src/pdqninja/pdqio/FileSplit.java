@@ -0,0 +1,92 @@
+package pdqninja.pdqio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import pdqninja.pdq.SplitDescriptor;
+
+/**
+ * Describes a split of a file by the name of the file, and the
+ * offset and the length of the split within the file. The file
+ * is opened only when the split is opened, which may happen on
+ * a different JVM than the one where the split was created.
+ * <p>
+ * The subclasses decide what kind of object (for example, a 
+ * Reader or an InputStream) is created for the split.
+ * 
+ * @author mvarshney
+ */
+public abstract class FileSplit implements SplitDescriptor {
+	private static final long serialVersionUID = 3327407313416391825L;
+	
+	private final File file;
+	private final long begin;
+	private final long length;
+	
+	FileSplit(File file, long begin, long length) {
+		this.file = file;
+		this.begin = begin;
+		this.length = length;
+	}
+	
+	/**
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * @return offset within the file where the split begins
+	 */
+	public long getBegin() {
+		return begin;
+	}
+	
+	/**
+	 * @return length of the split
+	 */
+	@Override
+	public long getLength() {
+		return length;
+	}
+	
+	/**
+	 * Returns the canonical path of the file.
+	 */
+	@Override
+	public String getLocation() {
+		try {
+			return file.getCanonicalPath();
+		} catch (IOException e) {
+			return file.getAbsolutePath();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object open() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		raf.seek(begin);
+		return open(raf, length);
+	}
+	
+	/**
+	 * Creates the split for the RandomAccessFile that is already
+	 * positioned at the beginning offset of the split.
+	 * 
+	 * @param raf the RandomAccessFile
+	 * @param length length of the split
+	 * @return the split
+	 * @throws IOException
+	 */
+	abstract Object open(RandomAccessFile raf, long length) throws IOException;
+	
+	@Override
+	public String toString() {
+		return String.format("%s[%d-%d]", file.getPath(), begin, begin + length);
+	}
+}
@@ -1,33 +1,42 @@
 package pdqninja.pdqio;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 
+import pdqninja.io.DiskQueues;
+
 /**
  * Creates an InputStream for a chunk within a file. The InputStream
  * will begin reading where the chunk starts, and will return
  * <tt>EOF</tt> where the chunk ends.
+ * <p>
+ * The chunk is read ahead by the I/O queue of the disk where the 
+ * file resides (see {@link DiskQueues}).
+ * 
  * @author mvarshney
  *
  */
 class FileSplitInputStream extends FileInputStream {
-	long remaining;
 	final RandomAccessFile raf;
+	final InputStream in;
 	
 	/**
 	 * Creates a FileChunkInputStream for the specified RandomAccessFile,
 	 * where the chunk starts at the current offset of <tt>raf</tt>
 	 * and has a size of <tt>chunkSize</tt>.
 	 * 
+	 * @param file the file
 	 * @param raf the specified RandomAccessFile
 	 * @param remaining the size of the chunk
 	 * @throws IOException
 	 */
-	FileSplitInputStream(RandomAccessFile raf, long remaining) throws IOException {
+	FileSplitInputStream(File file, RandomAccessFile raf, long remaining) throws IOException {
 		super(raf.getFD());
 		this.raf = raf;
-		this.remaining = remaining;
+		this.in = DiskQueues.newInputStream(file, raf, remaining);
 	}
 	
 	/**
@@ -35,16 +44,7 @@ class FileSplitInputStream extends FileInputStream {
 	 */
 	@Override
 	public int read() throws IOException {
-		int n = -1;
-		if (remaining > 0) {
-			n = super.read();
-			remaining --;
-			if (n == -1) {
-				remaining = 0;
-			}
-		}
-		
-		return n;
+		return in.read();
 	}
 
 	/**
@@ -60,20 +60,7 @@ class FileSplitInputStream extends FileInputStream {
 	 */
 	@Override
 	public int read(byte[] b, int off, int len) throws IOException {
-		if (remaining <= 0) return -1;
-
-		long toread =  remaining;
-		if (toread > len)
-			toread = len;
-
-		int n = super.read(b, off, (int) toread);
-
-		if (n == -1) {
-			remaining = 0;
-		} else {
-			remaining -= n;
-		}
-		return n;
+		return in.read(b, off, len);
 	}
 
 	/**
@@ -81,11 +68,7 @@ class FileSplitInputStream extends FileInputStream {
 	 */
 	@Override
 	public long skip(long n) throws IOException {
-		if (remaining <= 0) return 0;
-		
-		long skipped = super.skip(n);
-		remaining -= skipped;
-		return skipped;
+		return in.skip(n);
 	}
 
 	/**
@@ -93,10 +76,7 @@ class FileSplitInputStream extends FileInputStream {
 	 */
 	@Override
 	public int available() throws IOException {
-		int n = super.available();
-		if (n > remaining)
-			n = (int) remaining;
-		return n;
+		return in.available();
 	}
 
 	/**
@@ -104,6 +84,7 @@ class FileSplitInputStream extends FileInputStream {
 	 */
 	@Override
 	public void close() throws IOException {
+		in.close();
 		super.close();
 		if (raf != null) {
 			raf.close();
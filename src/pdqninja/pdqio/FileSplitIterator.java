@@ -11,6 +11,8 @@ import java.util.Map;
 
 import org.apache.log4j.Logger;
 
+import pdqninja.pdq.PDQConfig;
+
 /**
  * Generates splits for a collection of files in a 
  * {@link FileStoreIterator} by using a specified
@@ -23,7 +25,9 @@ import org.apache.log4j.Logger;
  * <p>
  * This iterator is an abstract class, and the overriding
  * classes must implement the only abstract function:
- * {@link #createSplit(RandomAccessFile, long)}. 
+ * {@link #createSplit(RandomAccessFile, long)}. The
+ * {@link Descriptors} create {@link FileSplit} descriptors 
+ * instead, without opening the files.
  * 
  * @author mvarshney
  */
@@ -32,11 +36,13 @@ abstract class FileSplitIterator<E> implements Iterator<E> {
 	
 	private final FileStoreIterator fsIterator;
 	private final long blocksize;
+	private final PDQConfig config = PDQConfig.current();
 	private final Splitter splitter;
 	private final Map<String, RandomAccessFile> openedRAFs =
 			new HashMap<String, RandomAccessFile>();
 	
-	private RandomAccessFile currentRAF;
+	private File currentFile;
+	private long currentBegin;
 	private long currentLength;
 	
 	/**
@@ -64,7 +70,7 @@ abstract class FileSplitIterator<E> implements Iterator<E> {
 	 */
 	@Override
 	public boolean hasNext() {
-		return currentRAF != null;
+		return currentFile != null;
 	}
 
 	/**
@@ -76,7 +82,7 @@ abstract class FileSplitIterator<E> implements Iterator<E> {
 		
 		E split = null;
 		try {
-			split = createSplit(currentRAF, currentLength);
+			split = createSplit(currentFile, currentBegin, currentLength);
 			loadNextSplit();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -129,6 +135,17 @@ abstract class FileSplitIterator<E> implements Iterator<E> {
 					old.close();
 			}
 			
+			Splitter splitter;
+			try {
+				splitter = splitter(file);
+			} catch (IOException e) {
+				logger.warn(String.format("Cannot split %s: %s", 
+						file.getAbsolutePath(), e));
+				raf.close();
+				it.remove();
+				continue;
+			}
+			
 			long begin = splitter.splitBegin(raf);
 			if (begin == -1) {
 				raf.close();
@@ -138,7 +155,7 @@ abstract class FileSplitIterator<E> implements Iterator<E> {
 			
 			raf.seek(begin);
 			
-			long end = splitter.splitEnd(raf, blocksize);
+			long end = splitter.splitEnd(raf, blocksize());
 			
 			if (begin == end) {
 				raf.close();
@@ -147,8 +164,8 @@ abstract class FileSplitIterator<E> implements Iterator<E> {
 			}
 			raf.seek(end);
 			
-			currentRAF = new RandomAccessFile(file, "r");
-			currentRAF.seek(begin);
+			currentFile = file;
+			currentBegin = begin;
 			currentLength = end - begin;
 			
 			logger.debug(String.format("Generated Split. %s %d %d",
@@ -158,13 +175,37 @@ abstract class FileSplitIterator<E> implements Iterator<E> {
 		}
 	}
 	
+	/**
+	 * Returns the splitter of the specified file. By default, all
+	 * the files are split by the splitter of the iterator; the
+	 * overriding classes may use splitters that depend on the
+	 * file (such as the {@link GzipSplitter}, which needs the index
+	 * of the file).
+	 * 
+	 * @param file the file
+	 * @return the splitter of the file
+	 * @throws IOException
+	 */
+	Splitter splitter(File file) throws IOException {
+		return splitter;
+	}
+	
+	/**
+	 * Returns the blocksize of the next split. If the configuration
+	 * is tuned, its blocksize is used, so that the splits follow 
+	 * the adjustments of the {@link pdqninja.pdq.Tuner}.
+	 */
+	private long blocksize() {
+		return config.isTune() ? config.getBlocksize() : blocksize;
+	}
+	
 	/**
 	 * Loads the next split. This method will try each directory
 	 * until it can find one split. 
 	 * @throws IOException
 	 */
 	void loadNextSplit() throws IOException {
-		currentRAF = null;
+		currentFile = null;
 		
 		if (! fsIterator.hasNext()) return;
 
@@ -181,6 +222,31 @@ abstract class FileSplitIterator<E> implements Iterator<E> {
 		
 	}
 
+	/**
+	 * Returns the file of the split being created.
+	 */
+	File currentFile() {
+		return currentFile;
+	}
+	
+	/**
+	 * Creates a split of the specified file that begins at the
+	 * specified offset. By default, this method opens the file,
+	 * positions it at the beginning offset of the split and calls
+	 * {@link #createSplit(RandomAccessFile, long)}.
+	 * 
+	 * @param file the file
+	 * @param begin offset where the split begins
+	 * @param length length of the split
+	 * @return the split
+	 * @throws IOException
+	 */
+	E createSplit(File file, long begin, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		raf.seek(begin);
+		return createSplit(raf, length);
+	}
+	
 	/**
 	 * Creates a split for the RandomAccessFile that is already
 	 * positioned at the beginning offset of the split. 
@@ -191,4 +257,50 @@ abstract class FileSplitIterator<E> implements Iterator<E> {
 	 * @throws IOException
 	 */
 	abstract E createSplit(RandomAccessFile raf, long length) throws IOException;
+	
+	/**
+	 * Generates the {@link FileSplit} descriptors of the splits. 
+	 * The descriptors are created from the name of the file and
+	 * the offsets of the split, so that the master enumerates the
+	 * splits without opening a file per split.
+	 * 
+	 * @author mvarshney
+	 */
+	static abstract class Descriptors extends FileSplitIterator<FileSplit> {
+		Descriptors(FileStoreIterator fsIterator, long blocksize, 
+				Splitter splitter) throws IOException {
+			super(fsIterator, blocksize, splitter);
+		}
+		
+		/**
+		 * Creates the descriptor of a split.
+		 * 
+		 * @param file the file
+		 * @param begin offset where the split begins
+		 * @param length length of the split
+		 * @return the descriptor
+		 * @throws IOException
+		 */
+		abstract FileSplit describe(File file, long begin, long length) 
+				throws IOException;
+		
+		@Override
+		FileSplit createSplit(File file, long begin, long length) 
+				throws IOException {
+			return describe(file, begin, length);
+		}
+		
+		/**
+		 * Describes the split of an opened file, and closes the file.
+		 */
+		@Override
+		FileSplit createSplit(RandomAccessFile raf, long length) 
+				throws IOException {
+			try {
+				return describe(currentFile(), raf.getFilePointer(), length);
+			} finally {
+				raf.close();
+			}
+		}
+	}
 }
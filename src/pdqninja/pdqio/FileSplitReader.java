@@ -1,35 +1,46 @@
 package pdqninja.pdqio;
 
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
+import java.io.Reader;
 import java.nio.CharBuffer;
 
+import pdqninja.io.DiskQueues;
+
 /**
  * Creates a FileReader for a chunk within a file. The FileReader
  * will begin reading where the chunk starts, and will return
  * <tt>EOF</tt> where the chunk ends.
+ * <p>
+ * The bytes of the chunk are read ahead by the I/O queue of the disk
+ * where the file resides (see {@link DiskQueues}), and decoded with
+ * the default charset.
  * 
  * @author mvarshney
  *
  */
 class FileSplitReader extends FileReader {
-	long remaining;
 	final RandomAccessFile raf;
+	final Reader in;
 	
 	/**
 	 * Creates a FileChunkReader for the specified RandomAccessFile,
 	 * where the chunk starts at the current offset of <tt>raf</tt>
-	 * and has a size of <tt>chunkSize</tt>.
+	 * and has a size of <tt>chunkSize</tt> bytes.
 	 *  
+	 * @param file the file
 	 * @param raf the specified RandomAccessFile
 	 * @param chunkSize the size of the chunk
 	 * @throws IOException
 	 */
-	FileSplitReader(RandomAccessFile raf, long chunkSize) throws IOException {
+	FileSplitReader(File file, RandomAccessFile raf, long chunkSize) throws IOException {
 		super(raf.getFD());
 		this.raf = raf;
-		this.remaining = chunkSize;
+		this.in = new InputStreamReader(
+				DiskQueues.newInputStream(file, raf, chunkSize));
 	}
 
 
@@ -38,16 +49,7 @@ class FileSplitReader extends FileReader {
 	 */
 	@Override
 	public int read() throws IOException {
-		int n = -1;
-		if (remaining > 0) {
-			n = super.read();
-			remaining --;
-			if (n == -1) {
-				remaining = 0;
-			}
-		}
-		
-		return n;
+		return in.read();
 	}
 
 	/**
@@ -55,20 +57,7 @@ class FileSplitReader extends FileReader {
 	 */
 	@Override
 	public int read(char[] cbuf, int offset, int length) throws IOException {
-		if (remaining <= 0) return -1;
-		
-		long toread = remaining;
-		if (toread > length)
-			toread = length;
-
-		int n = super.read(cbuf, offset, (int) toread);
-		
-		if (n == -1) {
-			remaining = 0;
-		} else {
-			remaining -= n;
-		}
-		return n;
+		return in.read(cbuf, offset, length);
 	}
 
 	/**
@@ -76,17 +65,7 @@ class FileSplitReader extends FileReader {
 	 */
 	@Override
 	public int read(CharBuffer target) throws IOException {
-		if (remaining <= 0) return -1;
-		
-		int len = target.remaining();
-		if (len > remaining)
-			len = (int) remaining;
-		
-		char[] cbuf = new char[len];
-		int n = read(cbuf, 0, len);
-		if (n > 0)
-			target.put(cbuf, 0, n);
-		return n;
+		return in.read(target);
 	}
 
 	/**
@@ -102,19 +81,23 @@ class FileSplitReader extends FileReader {
 	 */
 	@Override
 	public long skip(long n) throws IOException {
-		if (remaining <= 0) return 0;
-		
-		long skipped = super.skip(n);
-		remaining -= skipped;
-		return skipped;
+		return in.skip(n);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean ready() throws IOException {
+		return in.ready();
+	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	public void close() throws IOException {
+		in.close();
 		super.close();
 		if (raf != null) {
 			raf.close();
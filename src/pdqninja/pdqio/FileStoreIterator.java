@@ -136,10 +136,10 @@ public class FileStoreIterator extends WeightedLoopIterator<File> {
 				if (file == null) continue;
 				
 				int i;
+				String fname = file.getCanonicalPath();
 				// .. and find the first directory whose name
 				// is prefix of this file
 				for (i = 0; i < len; i++) {
-					String fname = file.getCanonicalPath();
 					if (fname.startsWith(sortedDirs[i])) {
 						fileMap.put(sortedDirs[i], file);
 						break;
@@ -148,7 +148,7 @@ public class FileStoreIterator extends WeightedLoopIterator<File> {
 				
 				// When the file cannot be mapped to any directory
 				if (i == len) {
-					throw new IllegalArgumentException(file.getCanonicalPath() + 
+					throw new IllegalArgumentException(fname + 
 							" cannot be assigned to any directory");
 				}
 			}
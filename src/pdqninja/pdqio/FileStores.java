@@ -7,6 +7,7 @@ import java.util.Collection;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import pdqninja.io.DiskQueues;
 import pdqninja.pdq.PDQConfig;
 
 public class FileStores {
@@ -49,6 +50,14 @@ public class FileStores {
 			}
 		}
 
+		// Route the I/O on these directories through per-disk queues
+		int depth = PDQConfig.current().getIODepth();
+		if (depth > 0) {
+			for (File dir: dirs) {
+				if (dir != null) DiskQueues.register(dir, depth);
+			}
+		}
+
 		return new FileStoreIterator(dirs, weights, files);
 	}
 	
@@ -0,0 +1,300 @@
+package pdqninja.pdqio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
+
+/**
+ * The fixed-width records of a split of a file, as produced by the
+ * {@link PDQFixedRecordSource}.
+ * <p>
+ * The split is mapped in memory, and its records are read in place:
+ * a <code>FixedRecords</code> is a cursor (a flyweight) whose
+ * {@link #next()} method moves to the next record, and whose
+ * <code>get</code> methods read the fields of the current record at
+ * their offsets within the record. Nothing is allocated per record.
+ * The records can also be read at random, by their index within the
+ * split.
+ * <p>
+ * A column (a field at the same offset in every record) can be read
+ * in bulk: the <code>sum</code> methods aggregate the column over
+ * all the records of the split, and the <code>get</code> methods
+ * with an array copy a run of the column into the array, to be
+ * processed by tight loops over primitive arrays.
+ * <p>
+ * A trailing partial record, in a file whose length is not a
+ * multiple of the record length, is ignored.
+ *
+ * @author mvarshney
+ */
+public final class FixedRecords implements Closeable {
+	private ByteBuffer buffer;
+	private final int recordLength;
+	private int size;
+	private int record = -1;
+	private int base = 0;
+	
+	/**
+	 * Maps the records of the split that begins at the current
+	 * offset of the RandomAccessFile. The file is closed once
+	 * mapped.
+	 *
+	 * @param raf the file, positioned at the beginning of the split
+	 * @param length the length of the split
+	 * @param recordLength the length of the records
+	 * @param order the byte order of the fields
+	 * @throws IOException
+	 */
+	FixedRecords(RandomAccessFile raf, long length, int recordLength,
+			ByteOrder order) throws IOException {
+		try {
+			FileChannel channel = raf.getChannel();
+			this.buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+					raf.getFilePointer(), length).order(order);
+		} finally {
+			raf.close();
+		}
+		this.recordLength = recordLength;
+		this.size = (int) (length / recordLength);
+	}
+	
+	/**
+	 * @return the number of records in the split
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @return the length of the records
+	 */
+	public int getRecordLength() {
+		return recordLength;
+	}
+	
+	/**
+	 * Moves to the next record.
+	 *
+	 * @return <tt>true</tt> if there is a next record, and
+	 * <tt>false</tt> if the split is exhausted
+	 */
+	public boolean next() {
+		if (record + 1 >= size) {
+			record = size;
+			return false;
+		}
+		record ++;
+		base = record * recordLength;
+		return true;
+	}
+	
+	/**
+	 * Moves to the specified record; the following call to
+	 * {@link #next()} moves to the record after it.
+	 *
+	 * @param record index of the record within the split
+	 * @throws IndexOutOfBoundsException if the index is out of range
+	 */
+	public void seek(int record) {
+		if (record < 0 || record >= size)
+			throw new IndexOutOfBoundsException("Record " + record + " of " + size);
+		this.record = record;
+		this.base = record * recordLength;
+	}
+	
+	/**
+	 * @return index of the current record within the split
+	 */
+	public int getRecord() {
+		return record;
+	}
+	
+	private int index(int offset) {
+		if (record < 0 || record >= size)
+			throw new NoSuchElementException();
+		return base + offset;
+	}
+	
+	/**
+	 * @param offset offset of the field within the record
+	 * @return the byte at the offset of the current record
+	 */
+	public byte getByte(int offset) {
+		return buffer.get(index(offset));
+	}
+	
+	/**
+	 * @param offset offset of the field within the record
+	 * @return the short at the offset of the current record
+	 */
+	public short getShort(int offset) {
+		return buffer.getShort(index(offset));
+	}
+	
+	/**
+	 * @param offset offset of the field within the record
+	 * @return the int at the offset of the current record
+	 */
+	public int getInt(int offset) {
+		return buffer.getInt(index(offset));
+	}
+	
+	/**
+	 * @param offset offset of the field within the record
+	 * @return the long at the offset of the current record
+	 */
+	public long getLong(int offset) {
+		return buffer.getLong(index(offset));
+	}
+	
+	/**
+	 * @param offset offset of the field within the record
+	 * @return the float at the offset of the current record
+	 */
+	public float getFloat(int offset) {
+		return buffer.getFloat(index(offset));
+	}
+	
+	/**
+	 * @param offset offset of the field within the record
+	 * @return the double at the offset of the current record
+	 */
+	public double getDouble(int offset) {
+		return buffer.getDouble(index(offset));
+	}
+	
+	/**
+	 * Copies bytes of the current record.
+	 *
+	 * @param offset offset of the bytes within the record
+	 * @param dst the array into which the bytes are copied
+	 * @param off offset within the array
+	 * @param len number of bytes
+	 */
+	public void getBytes(int offset, byte[] dst, int off, int len) {
+		int index = index(offset);
+		for (int i = 0; i < len; i++) {
+			dst[off + i] = buffer.get(index + i);
+		}
+	}
+	
+	/**
+	 * Returns a read-only view of the records of the split, for
+	 * reads not covered by the other methods. The record
+	 * <code>i</code> begins at the index
+	 * <code>i * getRecordLength()</code>.
+	 *
+	 * @return the records of the split
+	 */
+	public ByteBuffer buffer() {
+		return buffer.asReadOnlyBuffer().order(buffer.order());
+	}
+	
+	/**
+	 * @param offset offset of an int field within the records
+	 * @return sum of the field over all the records of the split
+	 */
+	public long sumInt(int offset) {
+		ByteBuffer buffer = this.buffer;
+		long sum = 0;
+		for (int i = offset, end = size * recordLength; i < end; i += recordLength) {
+			sum += buffer.getInt(i);
+		}
+		return sum;
+	}
+	
+	/**
+	 * @param offset offset of a long field within the records
+	 * @return sum of the field over all the records of the split
+	 */
+	public long sumLong(int offset) {
+		ByteBuffer buffer = this.buffer;
+		long sum = 0;
+		for (int i = offset, end = size * recordLength; i < end; i += recordLength) {
+			sum += buffer.getLong(i);
+		}
+		return sum;
+	}
+	
+	/**
+	 * @param offset offset of a double field within the records
+	 * @return sum of the field over all the records of the split
+	 */
+	public double sumDouble(int offset) {
+		ByteBuffer buffer = this.buffer;
+		double sum = 0;
+		for (int i = offset, end = size * recordLength; i < end; i += recordLength) {
+			sum += buffer.getDouble(i);
+		}
+		return sum;
+	}
+	
+	/**
+	 * Copies an int field of consecutive records into an array.
+	 *
+	 * @param offset offset of the field within the records
+	 * @param from index of the first record
+	 * @param dst the array
+	 * @return number of records copied: the length of the array,
+	 * or less at the end of the split
+	 */
+	public int getInts(int offset, int from, int[] dst) {
+		int n = Math.max(0, Math.min(dst.length, size - from));
+		ByteBuffer buffer = this.buffer;
+		for (int i = 0, index = from * recordLength + offset; i < n; i++, index += recordLength) {
+			dst[i] = buffer.getInt(index);
+		}
+		return n;
+	}
+	
+	/**
+	 * Copies a long field of consecutive records into an array.
+	 *
+	 * @param offset offset of the field within the records
+	 * @param from index of the first record
+	 * @param dst the array
+	 * @return number of records copied: the length of the array,
+	 * or less at the end of the split
+	 */
+	public int getLongs(int offset, int from, long[] dst) {
+		int n = Math.max(0, Math.min(dst.length, size - from));
+		ByteBuffer buffer = this.buffer;
+		for (int i = 0, index = from * recordLength + offset; i < n; i++, index += recordLength) {
+			dst[i] = buffer.getLong(index);
+		}
+		return n;
+	}
+	
+	/**
+	 * Copies a double field of consecutive records into an array.
+	 *
+	 * @param offset offset of the field within the records
+	 * @param from index of the first record
+	 * @param dst the array
+	 * @return number of records copied: the length of the array,
+	 * or less at the end of the split
+	 */
+	public int getDoubles(int offset, int from, double[] dst) {
+		int n = Math.max(0, Math.min(dst.length, size - from));
+		ByteBuffer buffer = this.buffer;
+		for (int i = 0, index = from * recordLength + offset; i < n; i++, index += recordLength) {
+			dst[i] = buffer.getDouble(index);
+		}
+		return n;
+	}
+	
+	/**
+	 * Releases the mapping of the split (once it is garbage
+	 * collected).
+	 */
+	@Override
+	public void close() {
+		buffer = ByteBuffer.allocate(0);
+		size = 0;
+		record = 0;
+	}
+}
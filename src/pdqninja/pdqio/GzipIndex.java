@@ -0,0 +1,305 @@
+package pdqninja.pdqio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The offsets of the members of a gzip file, and their uncompressed
+ * sizes. Each member can be decompressed on its own, so the file
+ * can be split at any member.
+ * <p>
+ * The members of BGZF files record their compressed size in the
+ * header and their uncompressed size in the trailer, and are indexed
+ * by seeking from member to member. Other gzip files are indexed by
+ * decompressing them once.
+ * <p>
+ * The index is cached in a file next to the gzip file (with the
+ * {@value #SUFFIX} suffix), which is used as long as the length and
+ * the modification time of the gzip file are unchanged. If the index
+ * cannot be written there (for example, because the directory is
+ * read-only), it is built again by each computation.
+ *
+ * @author mvarshney
+ */
+final class GzipIndex {
+	private static final Logger logger = Logger.getLogger(GzipIndex.class);
+	
+	static final String SUFFIX = ".pdqidx";
+	static final int MAGIC = 0x50445147;
+	
+	/**
+	 * Offsets of the members, followed by the offset where the last
+	 * member ends.
+	 */
+	private final long[] offsets;
+	
+	/**
+	 * Uncompressed offsets of the members, followed by the
+	 * uncompressed size of the file.
+	 */
+	private final long[] positions;
+	
+	private GzipIndex(long[] offsets, long[] positions) {
+		this.offsets = offsets;
+		this.positions = positions;
+	}
+	
+	/**
+	 * @return the number of members
+	 */
+	int size() {
+		return offsets.length - 1;
+	}
+	
+	/**
+	 * @return the offset of the i-th member, or where the last member
+	 * ends if <code>i == size()</code>
+	 */
+	long offset(int i) {
+		return offsets[i];
+	}
+	
+	/**
+	 * @return the uncompressed offset of the i-th member, or the
+	 * uncompressed size of the file if <code>i == size()</code>
+	 */
+	long position(int i) {
+		return positions[i];
+	}
+	
+	/**
+	 * @return the offset where the last member ends
+	 */
+	long end() {
+		return offsets[offsets.length - 1];
+	}
+	
+	/**
+	 * Returns the member that begins at the specified offset, or the
+	 * first member that begins after it.
+	 */
+	int find(long offset) {
+		int i = Arrays.binarySearch(offsets, offset);
+		return i >= 0 ? i : -i - 1;
+	}
+	
+	/**
+	 * Returns the number of uncompressed bytes of the members that
+	 * begin within the specified range of offsets.
+	 */
+	long uncompressed(long begin, long end) {
+		return positions[find(end)] - positions[find(begin)];
+	}
+	
+	/**
+	 * Returns the index of the specified file, from the cache if it
+	 * is up to date.
+	 *
+	 * @param file the gzip file
+	 * @return the index
+	 * @throws IOException
+	 */
+	static GzipIndex load(File file) throws IOException {
+		File cache = new File(file.getPath() + SUFFIX);
+		if (cache.exists()) {
+			GzipIndex index = read(cache, file);
+			if (index != null) return index;
+		}
+		
+		long start = System.currentTimeMillis();
+		GzipIndex index = build(file);
+		if (logger.isInfoEnabled()) {
+			logger.info(String.format("Indexed %s: %d members in %dms",
+					file, index.size(), System.currentTimeMillis() - start));
+		}
+		
+		try {
+			index.write(cache, file);
+		} catch (IOException e) {
+			logger.debug(String.format("Cannot cache the index of %s: %s", file, e));
+		}
+		return index;
+	}
+	
+	static GzipIndex build(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			if (length == 0) return new GzipIndex(new long[] { 0 }, new long[] { 0 });
+			GzipIndex index = buildBGZF(raf, length);
+			return index != null ? index : buildMembers(file);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Indexes the BGZF blocks of the file, or returns <tt>null</tt>
+	 * if the file is not made of BGZF blocks.
+	 */
+	private static GzipIndex buildBGZF(RandomAccessFile raf, long length)
+			throws IOException {
+		LongList offsets = new LongList();
+		LongList positions = new LongList();
+		long offset = 0;
+		long position = 0;
+		byte[] trailer = new byte[4];
+		
+		while (offset < length) {
+			long size = bgzfSize(raf, offset);
+			if (size <= 0 || offset + size > length) return null;
+			
+			raf.seek(offset + size - 4);
+			raf.readFully(trailer);
+			offsets.add(offset);
+			positions.add(position);
+			position += le(trailer, 0, 4);
+			offset += size;
+		}
+		
+		offsets.add(offset);
+		positions.add(position);
+		return new GzipIndex(offsets.toArray(), positions.toArray());
+	}
+	
+	private static GzipIndex buildMembers(File file) throws IOException {
+		LongList offsets = new LongList();
+		LongList positions = new LongList();
+		long position = 0;
+		
+		GzipMemberInputStream in = new GzipMemberInputStream(new FileInputStream(file));
+		try {
+			while (true) {
+				long offset = in.consumed();
+				long size = in.skipMember();
+				if (size == -1) {
+					offsets.add(offset);
+					positions.add(position);
+					break;
+				}
+				offsets.add(offset);
+				positions.add(position);
+				position += size;
+			}
+		} finally {
+			in.close();
+		}
+		return new GzipIndex(offsets.toArray(), positions.toArray());
+	}
+	
+	/**
+	 * Returns the size of the BGZF block at the specified offset,
+	 * or <code>-1</code> if the member there is not a BGZF block.
+	 */
+	static long bgzfSize(RandomAccessFile raf, long offset) throws IOException {
+		byte[] header = new byte[12];
+		raf.seek(offset);
+		if (raf.read(header) < header.length) return -1;
+		if ((header[0] & 0xFF) != 0x1f || (header[1] & 0xFF) != 0x8b
+				|| header[2] != 8 || (header[3] & GzipMemberInputStream.FEXTRA) == 0)
+			return -1;
+		
+		byte[] extra = new byte[(int) le(header, 10, 2)];
+		if (raf.read(extra) < extra.length) return -1;
+		for (int i = 0; i + 4 <= extra.length; ) {
+			int length = (int) le(extra, i + 2, 2);
+			if (extra[i] == 'B' && extra[i + 1] == 'C' && length == 2
+					&& i + 6 <= extra.length) {
+				return le(extra, i + 4, 2) + 1;
+			}
+			i += 4 + length;
+		}
+		return -1;
+	}
+	
+	private static long le(byte[] b, int off, int len) {
+		long value = 0;
+		for (int i = len - 1; i >= 0; i--) {
+			value = (value << 8) | (b[off + i] & 0xFF);
+		}
+		return value;
+	}
+	
+	/**
+	 * Reads the cached index, or returns <tt>null</tt> if it is not
+	 * the index of the current contents of the file.
+	 */
+	static GzipIndex read(File cache, File file) {
+		try {
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(cache)));
+			try {
+				if (in.readInt() != MAGIC || in.readLong() != file.length()
+						|| in.readLong() != file.lastModified())
+					return null;
+				
+				int n = in.readInt();
+				long[] offsets = new long[n];
+				long[] positions = new long[n];
+				for (int i = 0; i < n; i++) {
+					offsets[i] = in.readLong();
+					positions[i] = in.readLong();
+				}
+				return new GzipIndex(offsets, positions);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Writes the index to the cache, via a temporary file so that
+	 * concurrent readers do not see a partial index.
+	 */
+	void write(File cache, File file) throws IOException {
+		File temp = new File(cache.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeLong(file.length());
+			out.writeLong(file.lastModified());
+			out.writeInt(offsets.length);
+			for (int i = 0; i < offsets.length; i++) {
+				out.writeLong(offsets[i]);
+				out.writeLong(positions[i]);
+			}
+		} finally {
+			out.close();
+		}
+		
+		if (! temp.renameTo(cache)) {
+			temp.delete();
+			throw new IOException("Cannot rename " + temp);
+		}
+	}
+	
+	/**
+	 * A growable array of longs.
+	 */
+	private static final class LongList {
+		long[] values = new long[64];
+		int size = 0;
+		
+		void add(long value) {
+			if (size == values.length) values = Arrays.copyOf(values, size * 2);
+			values[size ++] = value;
+		}
+		
+		long[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package pdqninja.pdqio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses the consecutive gzip members of a stream, until the
+ * end of the stream. Unlike the {@link java.util.zip.GZIPInputStream},
+ * it does not rely on {@link InputStream#available()} to find out
+ * whether another member follows, and it keeps count of the
+ * compressed bytes of the members (so that the members can be
+ * indexed).
+ * <p>
+ * BGZF files (as written by <code>bgzip</code>) are gzip files whose
+ * members are blocks of at most 64KB.
+ *
+ * @author mvarshney
+ */
+final class GzipMemberInputStream extends InputStream {
+	static final int BufferSize = 64 * 1024;
+	
+	// Flags of the header
+	static final int FHCRC = 2;
+	static final int FEXTRA = 4;
+	static final int FNAME = 8;
+	static final int FCOMMENT = 16;
+	
+	private final InputStream in;
+	private final Inflater inflater = new Inflater(true);
+	private final byte[] buffer = new byte[BufferSize];
+	private int pos = 0;
+	private int limit = 0;
+	
+	/**
+	 * Number of compressed bytes consumed, up to <code>pos</code>.
+	 */
+	private long consumed = 0;
+	private boolean member = false;
+	private boolean closed = false;
+	private final byte[] one = new byte[1];
+	
+	GzipMemberInputStream(InputStream in) {
+		this.in = in;
+	}
+	
+	/**
+	 * @return the number of compressed bytes of the members that have
+	 * been read, including the current member (if any) up to where it
+	 * has been read
+	 */
+	long consumed() {
+		return consumed;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		int n;
+		while ((n = read(one, 0, 1)) == 0);
+		return n == -1 ? -1 : one[0] & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		
+		while (true) {
+			if (! member) {
+				if (! readHeader()) return -1;
+				member = true;
+			}
+			
+			int n = inflate(b, off, len);
+			if (n > 0) return n;
+		}
+	}
+	
+	/**
+	 * Skips the next member without decompressing it into the
+	 * caller's buffer.
+	 *
+	 * @return the number of uncompressed bytes of the member, or
+	 * <code>-1</code> at the end of the stream
+	 * @throws IOException
+	 */
+	long skipMember() throws IOException {
+		if (! member) {
+			if (! readHeader()) return -1;
+			member = true;
+		}
+		
+		byte[] scratch = new byte[BufferSize];
+		long size = 0;
+		while (member) {
+			size += inflate(scratch, 0, scratch.length);
+		}
+		return size;
+	}
+	
+	/**
+	 * Decompresses the current member, up to its end.
+	 *
+	 * @return the number of bytes decompressed, which may be 0
+	 */
+	private int inflate(byte[] b, int off, int len) throws IOException {
+		if (inflater.needsInput()) {
+			if (pos == limit && ! fill())
+				throw new EOFException("Unexpected end of gzip member");
+			inflater.setInput(buffer, pos, limit - pos);
+			consumed += limit - pos;
+			pos = limit;
+		}
+		
+		int n;
+		try {
+			n = inflater.inflate(b, off, len);
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		}
+		
+		if (inflater.finished()) {
+			int remaining = inflater.getRemaining();
+			pos = limit - remaining;
+			consumed -= remaining;
+			skip(8); // CRC32 and ISIZE
+			inflater.reset();
+			member = false;
+		} else if (inflater.needsDictionary()) {
+			throw new ZipException("Unexpected dictionary in gzip member");
+		}
+		return n;
+	}
+	
+	/**
+	 * Reads the header of the next member.
+	 *
+	 * @return <tt>false</tt> at the end of the stream
+	 */
+	private boolean readHeader() throws IOException {
+		if (pos == limit && ! fill()) return false;
+		
+		if (readByte() != 0x1f || readByte() != 0x8b)
+			throw new ZipException("Not in gzip format");
+		if (readByte() != 8)
+			throw new ZipException("Unsupported gzip compression method");
+		int flags = readByte();
+		skip(6); // MTIME, XFL and OS
+		
+		if ((flags & FEXTRA) != 0) {
+			int xlen = readByte() | (readByte() << 8);
+			skip(xlen);
+		}
+		if ((flags & FNAME) != 0) {
+			while (readByte() != 0);
+		}
+		if ((flags & FCOMMENT) != 0) {
+			while (readByte() != 0);
+		}
+		if ((flags & FHCRC) != 0) {
+			skip(2);
+		}
+		return true;
+	}
+	
+	private int readByte() throws IOException {
+		if (pos == limit && ! fill())
+			throw new EOFException("Unexpected end of gzip member");
+		consumed ++;
+		return buffer[pos ++] & 0xFF;
+	}
+	
+	private void skip(int n) throws IOException {
+		for (int i = 0; i < n; i++) readByte();
+	}
+	
+	private boolean fill() throws IOException {
+		if (closed) return false;
+		int n = in.read(buffer, 0, buffer.length);
+		if (n <= 0) {
+			pos = limit = 0;
+			return false;
+		}
+		pos = 0;
+		limit = n;
+		return true;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		inflater.end();
+		in.close();
+	}
+}
@@ -0,0 +1,123 @@
+package pdqninja.pdqio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import pdqninja.io.DiskQueues;
+
+/**
+ * Creates an InputStream for the uncompressed data of a split of a
+ * gzip file, which begins at a member of the file.
+ * <p>
+ * If the split is aligned to lines, the stream returns the lines
+ * that begin within the split: it skips the first line of the split
+ * (unless the split begins the file), which belongs to the previous
+ * split, and it reads on past the end of the split up to the end of
+ * the line that begins the next split. Whether or not a line ends
+ * exactly at the boundary, each line is read by exactly one split.
+ * <p>
+ * The compressed data is read ahead by the I/O queue of the disk
+ * where the file resides (see {@link DiskQueues}).
+ *
+ * @author mvarshney
+ */
+final class GzipSplitInputStream extends InputStream {
+	private final RandomAccessFile raf;
+	private final GzipMemberInputStream in;
+	private final long size;
+	private final boolean lines;
+	
+	/**
+	 * Number of uncompressed bytes read, including the skipped ones.
+	 */
+	private long count = 0;
+	private boolean skip;
+	private boolean done = false;
+	
+	/**
+	 * Creates a GzipSplitInputStream for the split that begins at
+	 * the current offset of the RandomAccessFile.
+	 *
+	 * @param file the file
+	 * @param raf the file, positioned at the beginning of the split
+	 * @param length the compressed length of the split
+	 * @param size the uncompressed length of the split
+	 * @param lines whether the split is aligned to lines
+	 * @throws IOException
+	 */
+	GzipSplitInputStream(File file, RandomAccessFile raf, long length,
+			long size, boolean lines) throws IOException {
+		long begin = raf.getFilePointer();
+		this.raf = raf;
+		this.size = size;
+		this.lines = lines;
+		this.skip = lines && begin > 0;
+		
+		// Lines may continue into the following splits
+		long remaining = lines ? raf.length() - begin : length;
+		this.in = new GzipMemberInputStream(DiskQueues.newInputStream(file, raf, remaining));
+	}
+	
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (done) return -1;
+		if (len == 0) return 0;
+		
+		if (skip) {
+			skip = false;
+			int c;
+			while ((c = in.read()) != -1) {
+				count ++;
+				if (c == '\n') break;
+			}
+			if (c == -1 || count > size) {
+				done = true;
+				return -1;
+			}
+		}
+		
+		if (count < size) {
+			int n = in.read(b, off, (int) Math.min(len, size - count));
+			if (n == -1) {
+				done = true;
+				return -1;
+			}
+			count += n;
+			return n;
+		}
+		
+		if (! lines) {
+			done = true;
+			return -1;
+		}
+		
+		// Past the end of the split: up to the end of the line
+		int n = 0;
+		while (n < len) {
+			int c = in.read();
+			if (c == -1 || c == '\n') {
+				done = true;
+				if (c == '\n') b[off + n ++] = (byte) c;
+				break;
+			}
+			b[off + n ++] = (byte) c;
+		}
+		count += n;
+		return n == 0 ? -1 : n;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		done = true;
+		in.close();
+		raf.close();
+	}
+}
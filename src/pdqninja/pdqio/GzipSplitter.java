@@ -0,0 +1,46 @@
+package pdqninja.pdqio;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Splits a gzip file at the members listed in its
+ * {@link GzipIndex}. Each split holds the members that begin after
+ * the previous split, until they add up to the blocksize of
+ * <em>uncompressed</em> data (and at least one member).
+ * <p>
+ * A gzip file written in one go (by <code>gzip</code>, for
+ * example) has a single member, and therefore a single split; files
+ * written by <code>bgzip</code>, or by concatenating gzip files,
+ * have many.
+ *
+ * @author mvarshney
+ */
+final class GzipSplitter implements Splitter {
+	private final GzipIndex index;
+	
+	GzipSplitter(GzipIndex index) {
+		this.index = index;
+	}
+	
+	GzipIndex getIndex() {
+		return index;
+	}
+	
+	@Override
+	public long splitBegin(RandomAccessFile raf) throws IOException {
+		int i = index.find(raf.getFilePointer());
+		return i >= index.size() ? -1 : index.offset(i);
+	}
+	
+	@Override
+	public long splitEnd(RandomAccessFile raf, long blocksize)
+			throws IOException {
+		int i = index.find(raf.getFilePointer());
+		int j = i + 1;
+		while (j < index.size() && index.position(j) - index.position(i) < blocksize) {
+			j ++;
+		}
+		return index.offset(j);
+	}
+}
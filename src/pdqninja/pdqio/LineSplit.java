@@ -0,0 +1,371 @@
+package pdqninja.pdqio;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pdqninja.io.DiskQueues;
+
+/**
+ * The lines of a split of a file, as produced by the
+ * {@link PDQLineReader}.
+ * <p>
+ * A <code>LineSplit</code> is a cursor: the {@link #next()} method
+ * moves to the next line, whose bytes can then be read in place via
+ * the {@link #bytes()}, {@link #offset()} and {@link #length()}
+ * methods, or as characters via the {@link #line()} method. The
+ * line ends before its <code>"\n"</code> (or <code>"\r\n"</code>)
+ * terminator. Neither the bytes nor the characters are copied for
+ * each line: they are only valid until the next call to
+ * <code>next()</code>, and must be copied (for example, with
+ * <code>line().toString()</code>) to be kept.
+ * <p>
+ * The characters are decoded only when asked for. Lines in ASCII are
+ * decoded by widening the bytes, and UTF-8 is decoded directly; the
+ * other charsets are decoded with a {@link CharsetDecoder}, reused
+ * for all the lines. Malformed input is replaced with
+ * <code>'\uFFFD'</code>.
+ * <p>
+ * The buffers of the splits come from a pool, and are returned to it
+ * when the split is closed (or is exhausted).
+ *
+ * @author mvarshney
+ */
+public final class LineSplit implements Closeable {
+	static final int BufferSize = 64 * 1024;
+	
+	/**
+	 * Maximum number of buffers kept in the pool.
+	 */
+	static final int PoolSize = 64;
+	
+	static private final ConcurrentLinkedQueue<byte[]> pool =
+			new ConcurrentLinkedQueue<byte[]>();
+	static private final AtomicInteger pooled = new AtomicInteger();
+	
+	private final RandomAccessFile raf;
+	private final InputStream in;
+	private final Charset charset;
+	private final boolean utf8;
+	private CharsetDecoder decoder;
+	
+	private byte[] buffer = take();
+	private int limit = 0;
+	private int scanned = 0;
+	private int next = 0;
+	private int start = 0;
+	private int end = 0;
+	private boolean eof = false;
+	
+	private char[] chars = new char[256];
+	private int nchars = 0;
+	private boolean decoded = false;
+	private final Chars line = new Chars();
+	
+	/**
+	 * Creates the lines of the split of the specified file that
+	 * begins at the current offset of the RandomAccessFile.
+	 *
+	 * @param file the file
+	 * @param raf the file, positioned at the beginning of the split
+	 * @param length the length of the split
+	 * @param charset the charset of the file
+	 * @throws IOException
+	 */
+	LineSplit(File file, RandomAccessFile raf, long length, Charset charset)
+			throws IOException {
+		this.raf = raf;
+		this.in = DiskQueues.newInputStream(file, raf, length);
+		this.charset = charset;
+		this.utf8 = charset.name().equals("UTF-8");
+	}
+	
+	/**
+	 * Moves to the next line.
+	 *
+	 * @return <tt>false</tt> if there are no more lines in the split
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		decoded = false;
+		if (buffer == null) return false;
+		
+		while (true) {
+			int nl = DelimitedSplitter.indexOf(buffer, scanned, limit, (byte) '\n');
+			if (nl >= 0) {
+				setLine(next, nl);
+				next = scanned = nl + 1;
+				return true;
+			}
+			scanned = limit;
+			
+			if (eof) {
+				if (next < limit) {
+					setLine(next, limit);
+					next = scanned = limit;
+					return true;
+				}
+				close();
+				return false;
+			}
+			
+			fill();
+		}
+	}
+	
+	private void setLine(int from, int to) {
+		if (to > from && buffer[to - 1] == '\r') to --;
+		start = from;
+		end = to;
+	}
+	
+	/**
+	 * Reads more bytes, after moving the remainder of the current
+	 * line to the beginning of the buffer (or growing the buffer, if
+	 * the line does not fit).
+	 */
+	private void fill() throws IOException {
+		if (next > 0) {
+			System.arraycopy(buffer, next, buffer, 0, limit - next);
+			limit -= next;
+			scanned -= next;
+			next = 0;
+		} else if (limit == buffer.length) {
+			byte[] larger = new byte[buffer.length * 2];
+			System.arraycopy(buffer, 0, larger, 0, limit);
+			give(buffer);
+			buffer = larger;
+		}
+		
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if (read == -1) {
+			eof = true;
+		} else {
+			limit += read;
+		}
+	}
+	
+	/**
+	 * @return the buffer that holds the bytes of the current line
+	 */
+	public byte[] bytes() {
+		return buffer;
+	}
+	
+	/**
+	 * @return the offset of the current line in the buffer
+	 */
+	public int offset() {
+		return start;
+	}
+	
+	/**
+	 * @return the number of bytes in the current line, without
+	 * the terminator
+	 */
+	public int length() {
+		return end - start;
+	}
+	
+	/**
+	 * @return the charset of the file
+	 */
+	public Charset charset() {
+		return charset;
+	}
+	
+	/**
+	 * Returns the characters of the current line. The returned
+	 * object is reused for all the lines of the split.
+	 *
+	 * @return the characters of the current line
+	 */
+	public CharSequence line() {
+		if (! decoded) {
+			decode();
+			decoded = true;
+		}
+		return line;
+	}
+	
+	private void decode() {
+		int len = end - start;
+		if (chars.length < len) chars = new char[Math.max(len, 2 * chars.length)];
+		
+		byte[] b = buffer;
+		int off = start;
+		int i = 0;
+		while (i < len && b[off + i] >= 0) {
+			chars[i] = (char) b[off + i];
+			i ++;
+		}
+		
+		if (i == len) {
+			nchars = len;
+		} else if (utf8) {
+			nchars = decodeUTF8(b, off + i, off + len, i);
+		} else {
+			nchars = decodeCharset(b, off + i, off + len, i);
+		}
+	}
+	
+	/**
+	 * Decodes UTF-8 bytes, from the specified position in the
+	 * characters on. A sequence of <i>n</i> bytes decodes to at most
+	 * <i>n</i> characters, so the characters (as large as the line)
+	 * never overflow.
+	 *
+	 * @return the number of characters
+	 */
+	private int decodeUTF8(byte[] b, int from, int to, int n) {
+		char[] c = chars;
+		int i = from;
+		
+		while (i < to) {
+			int b0 = b[i] & 0xFF;
+			if (b0 < 0x80) {
+				c[n ++] = (char) b0;
+				i ++;
+				continue;
+			}
+			
+			int count;
+			int cp;
+			if (b0 >= 0xC2 && b0 <= 0xDF) {
+				count = 1;
+				cp = b0 & 0x1F;
+			} else if (b0 >= 0xE0 && b0 <= 0xEF) {
+				count = 2;
+				cp = b0 & 0x0F;
+			} else if (b0 >= 0xF0 && b0 <= 0xF4) {
+				count = 3;
+				cp = b0 & 0x07;
+			} else {
+				c[n ++] = '\uFFFD';
+				i ++;
+				continue;
+			}
+			
+			int j = 1;
+			for (; j <= count && i + j < to; j++) {
+				int bj = b[i + j] & 0xFF;
+				if ((bj & 0xC0) != 0x80) break;
+				cp = (cp << 6) | (bj & 0x3F);
+			}
+			
+			// Truncated, overlong or surrogate code points
+			if (j <= count
+					|| (count == 2 && (cp < 0x800 || (cp >= 0xD800 && cp <= 0xDFFF)))
+					|| (count == 3 && (cp < 0x10000 || cp > 0x10FFFF))) {
+				c[n ++] = '\uFFFD';
+				i += j;
+				continue;
+			}
+			
+			if (cp >= 0x10000) {
+				c[n ++] = Character.highSurrogate(cp);
+				c[n ++] = Character.lowSurrogate(cp);
+			} else {
+				c[n ++] = (char) cp;
+			}
+			i += count + 1;
+		}
+		
+		return n;
+	}
+	
+	/**
+	 * Decodes the bytes with the decoder of the charset, from the
+	 * specified position in the characters on.
+	 *
+	 * @return the number of characters
+	 */
+	private int decodeCharset(byte[] b, int from, int to, int n) {
+		if (decoder == null) {
+			decoder = charset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+		
+		int max = n + (int) Math.ceil((to - from) * decoder.maxCharsPerByte());
+		if (chars.length < max) {
+			char[] larger = new char[max];
+			System.arraycopy(chars, 0, larger, 0, n);
+			chars = larger;
+		}
+		
+		CharBuffer out = CharBuffer.wrap(chars, n, chars.length - n);
+		decoder.reset();
+		decoder.decode(ByteBuffer.wrap(b, from, to - from), out, true);
+		decoder.flush(out);
+		return out.position();
+	}
+	
+	/**
+	 * Closes the file, and returns the buffer to the pool.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (buffer == null) return;
+		
+		give(buffer);
+		buffer = null;
+		start = end = 0;
+		in.close();
+		raf.close();
+	}
+	
+	static byte[] take() {
+		byte[] buffer = pool.poll();
+		if (buffer == null) return new byte[BufferSize];
+		pooled.decrementAndGet();
+		return buffer;
+	}
+	
+	static void give(byte[] buffer) {
+		if (buffer.length != BufferSize) return;
+		if (pooled.incrementAndGet() > PoolSize) {
+			pooled.decrementAndGet();
+			return;
+		}
+		pool.offer(buffer);
+	}
+	
+	/**
+	 * The characters of the current line.
+	 */
+	final class Chars implements CharSequence {
+		@Override
+		public int length() {
+			return nchars;
+		}
+		
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= nchars)
+				throw new IndexOutOfBoundsException(Integer.toString(index));
+			return chars[index];
+		}
+		
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			if (from < 0 || to > nchars || from > to)
+				throw new IndexOutOfBoundsException();
+			return new String(chars, from, to - from);
+		}
+		
+		@Override
+		public String toString() {
+			return new String(chars, 0, nchars);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package pdqninja.pdqio;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Iterator;
+
+import pdqninja.pdq.DescribedSplittable;
+import pdqninja.pdq.PDQConfig;
+
+/**
+ * Reads a collection of files, like the {@link PDQFileInputStream},
+ * but combines many small files into each split.
+ * <p>
+ * Every split of a {@link PDQFileInputStream} holds a piece of one
+ * file, so a collection of many small files yields as many splits,
+ * each of which opens its file and is replicated and merged by the
+ * computation. The splits of a PDQCombineFileInputStream instead
+ * hold about a blocksize of pieces of files, taken from the same
+ * disk, and read as one InputStream (see {@link CombineFileSplit}).
+ * Files larger than the blocksize are cut with the splitter, and
+ * their last pieces are combined with the next files.
+ *
+ * @author mvarshney
+ */
+public class PDQCombineFileInputStream extends InputStream implements DescribedSplittable, Serializable {
+	private static final long serialVersionUID = -4386011250734567260L;
+	
+	/**
+	 * The files that the PDQCombineFileInputStream will read.
+	 */
+	private final Collection<? extends File> files;
+	
+	/**
+	 * Splitter object used to split files.
+	 */
+	private final Splitter splitter;
+	
+	private final long blocksize;
+	
+	/**
+	 * Iterator for the files.
+	 */
+	transient private Iterator<? extends File> filesIterator;
+	
+	/**
+	 * InputStream for the currently opened file.
+	 */
+	transient private FileInputStream currentInputStream = null;
+	
+	/**
+	 * Creates a PDQCombineFileInputStream for the specified collection
+	 * of files, whose lines are not split.
+	 *
+	 * @param files the specified collection of files
+	 * @throws IOException
+	 */
+	public PDQCombineFileInputStream(Collection<? extends File> files) throws IOException {
+		this(files, DelimitedSplitter.NewLineDelimitedSplitter);
+	}
+	
+	/**
+	 * Creates a PDQCombineFileInputStream for the specified collection
+	 * of files and splitter.
+	 *
+	 * @param files the specified collection of files
+	 * @param splitter the splitter to split the files in pieces
+	 * @throws IOException
+	 */
+	public PDQCombineFileInputStream(Collection<? extends File> files,
+			Splitter splitter) throws IOException {
+		this.blocksize = PDQConfig.current().getBlocksize();
+		this.files = files;
+		this.splitter = splitter;
+		this.filesIterator = files.iterator();
+		openNextFile();
+	}
+	
+	boolean openNextFile() throws IOException {
+		if (currentInputStream != null)
+			currentInputStream.close();
+		currentInputStream = null;
+		
+		if (filesIterator.hasNext()) {
+			currentInputStream = new FileInputStream(filesIterator.next());
+			return true;
+		}
+		
+		return false;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if (currentInputStream == null) return -1;
+		
+		int b = currentInputStream.read();
+		if (b == -1 && openNextFile()) {
+			return read();
+		}
+		return b;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (currentInputStream == null) return -1;
+		
+		int bytesRead = currentInputStream.read(b, off, len);
+		if (bytesRead == -1 && openNextFile()) {
+			return read(b, off, len);
+		}
+		return bytesRead;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (currentInputStream != null)
+			currentInputStream.close();
+		currentInputStream = null;
+		
+		// drain the iterator
+		while (filesIterator.hasNext())
+			filesIterator.next();
+	}
+	
+	@Override
+	public Iterator<?> getSplits() {
+		try {
+			FileStoreIterator fsIt = FileStores.getDiskStorage(files);
+			return new SplitIterator(fsIt, blocksize, splitter);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
+	@Override
+	public Iterator<CombineFileSplit> getSplitDescriptors() {
+		try {
+			FileStoreIterator fsIt = FileStores.getDiskStorage(files);
+			return new DescriptorIterator(fsIt, blocksize, splitter);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	static final class SplitIterator extends CombineFileSplitIterator<InputStream> {
+		SplitIterator(FileStoreIterator fsIterator, long blocksize,
+				Splitter splitter) throws IOException {
+			super(fsIterator, blocksize, splitter);
+		}
+		
+		@Override
+		InputStream createSplit(File[] files, long[] begins, long[] lengths) {
+			return new CombineFileSplitInputStream(files, begins, lengths, separator);
+		}
+	}
+	
+	static final class DescriptorIterator extends CombineFileSplitIterator<CombineFileSplit> {
+		DescriptorIterator(FileStoreIterator fsIterator, long blocksize,
+				Splitter splitter) throws IOException {
+			super(fsIterator, blocksize, splitter);
+		}
+		
+		@Override
+		CombineFileSplit createSplit(File[] files, long[] begins, long[] lengths) {
+			return new CombineFileSplit(files, begins, lengths, separator);
+		}
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		
+		filesIterator = files.iterator();
+	}
+}
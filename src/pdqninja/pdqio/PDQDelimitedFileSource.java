@@ -0,0 +1,197 @@
+package pdqninja.pdqio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+
+import pdqninja.pdq.DescribedSplittable;
+import pdqninja.pdq.PDQConfig;
+
+/**
+ * Splits a collection of delimited (CSV or TSV) files at record
+ * boundaries, and reads each split record by record as a
+ * {@link DelimitedRecords}:
+ * <pre>
+ *	&#064;Parallel
+ *	void total(Map&lt;String, Long&gt; totals, DelimitedRecords records) {
+ *		while (records.next()) {
+ *			String key = records.getString(0);
+ *			long amount = records.getLong(3);
+ *			...
+ *		}
+ *	}
+ *
+ *	PDQDelimitedFileSource source = new PDQDelimitedFileSource(files, ',', '"', 0, 3);
+ * </pre>
+ * Fields may be quoted, and quoted fields may span lines. The
+ * splits are located by the {@link QuotedSplitter}, which resyncs
+ * with the records at each split boundary, so that the records are
+ * not broken at the newlines within quoted fields.
+ * <p>
+ * If some of the columns are projected, the fields of the other
+ * columns are skipped over while parsing. If the files have a
+ * header, it can be skipped with {@link #setHeader(boolean)}.
+ *
+ * @author mvarshney
+ */
+public class PDQDelimitedFileSource implements DescribedSplittable, Serializable {
+	private static final long serialVersionUID = -3106893530411985482L;
+	
+	/**
+	 * The files that the source will read.
+	 */
+	private final Collection<? extends File> files;
+	
+	private final DelimitedRecords.Format format;
+	private final QuotedSplitter splitter;
+	private final long blocksize;
+	
+	/**
+	 * Whether the first record of each file is a header.
+	 */
+	private boolean header = false;
+	
+	/**
+	 * Creates a source for the specified file, with the specified
+	 * separator and <code>'"'</code> quotes.
+	 *
+	 * @param file the specified file
+	 * @param separator the separator of the fields (such as
+	 * <code>','</code> or <code>'\t'</code>)
+	 */
+	public PDQDelimitedFileSource(File file, char separator) {
+		this(Arrays.asList(file), separator, '"');
+	}
+	
+	/**
+	 * Creates a source for the specified collection of files, with
+	 * the specified separator and <code>'"'</code> quotes.
+	 *
+	 * @param files the specified collection of files
+	 * @param separator the separator of the fields
+	 */
+	public PDQDelimitedFileSource(Collection<? extends File> files, char separator) {
+		this(files, separator, '"');
+	}
+	
+	/**
+	 * Creates a source for the specified collection of files, with
+	 * the specified separator and quote, that parses the specified
+	 * columns only.
+	 *
+	 * @param files the specified collection of files
+	 * @param separator the separator of the fields
+	 * @param quote the quote of the fields
+	 * @param columns the columns to parse (counting from 0), or none
+	 * to parse all the columns
+	 * @throws IllegalArgumentException if the separator or the
+	 * quote are not ASCII characters (other than newlines), or if a
+	 * column is negative
+	 */
+	public PDQDelimitedFileSource(Collection<? extends File> files,
+			char separator, char quote, int... columns) {
+		this.files = files;
+		this.format = new DelimitedRecords.Format(separator, quote, columns);
+		this.splitter = new QuotedSplitter(format.separator, format.quote);
+		this.blocksize = PDQConfig.current().getBlocksize();
+	}
+	
+	/**
+	 * Sets whether the first record of each file is a header, which
+	 * is skipped.
+	 *
+	 * @param header whether the files have a header
+	 */
+	public void setHeader(boolean header) {
+		this.header = header;
+	}
+	
+	/**
+	 * @return whether the first record of each file is skipped
+	 */
+	public boolean isHeader() {
+		return header;
+	}
+	
+	@Override
+	public Iterator<?> getSplits() {
+		try {
+			FileStoreIterator fsIt = FileStores.getDiskStorage(files);
+			return new SplitIterator(fsIt, this);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
+	@Override
+	public Iterator<FileSplit> getSplitDescriptors() {
+		try {
+			FileStoreIterator fsIt = FileStores.getDiskStorage(files);
+			return new DescriptorIterator(fsIt, this);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	static final class SplitIterator extends FileSplitIterator<DelimitedRecords> {
+		private final DelimitedRecords.Format format;
+		private final boolean header;
+		
+		SplitIterator(FileStoreIterator fsIterator,
+				PDQDelimitedFileSource source) throws IOException {
+			super(fsIterator, source.blocksize, source.splitter);
+			this.format = source.format;
+			this.header = source.header;
+		}
+		
+		@Override
+		DelimitedRecords createSplit(RandomAccessFile raf, long length)
+				throws IOException {
+			return new DelimitedRecords(currentFile(), raf, length, format, 
+					header && raf.getFilePointer() == 0);
+		}
+	}
+	
+	static final class DescriptorIterator extends FileSplitIterator.Descriptors {
+		private final DelimitedRecords.Format format;
+		private final boolean header;
+		
+		DescriptorIterator(FileStoreIterator fsIterator,
+				PDQDelimitedFileSource source) throws IOException {
+			super(fsIterator, source.blocksize, source.splitter);
+			this.format = source.format;
+			this.header = source.header;
+		}
+		
+		@Override
+		FileSplit describe(File file, long begin, long length) {
+			return new Split(file, begin, length, format, header && begin == 0);
+		}
+	}
+	
+	/**
+	 * Describes a split that is read record by record.
+	 */
+	static final class Split extends FileSplit {
+		private static final long serialVersionUID = 8410235794117204361L;
+		private final DelimitedRecords.Format format;
+		private final boolean header;
+		
+		Split(File file, long begin, long length,
+				DelimitedRecords.Format format, boolean header) {
+			super(file, begin, length);
+			this.format = format;
+			this.header = header;
+		}
+		
+		@Override
+		Object open(RandomAccessFile raf, long length) throws IOException {
+			return new DelimitedRecords(getFile(), raf, length, format, header);
+		}
+	}
+}
@@ -0,0 +1,346 @@
+package pdqninja.pdqio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Serializable;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+
+import pdqninja.pdq.DescribedSplittable;
+import pdqninja.pdq.PDQConfig;
+
+/**
+ * Reads the text files of a directory (and, optionally, of its
+ * subdirectories) whose names match a glob pattern, such as
+ * <code>"*.log"</code>.
+ * <p>
+ * Unlike the {@link PDQFileReader}, which needs the list of all the
+ * files before it splits them, the directory is enumerated lazily:
+ * the splits are generated as the files are discovered, so that the
+ * computation starts right away even on directories with millions
+ * of files. The files are packed into {@link CombineFileSplit}s of
+ * about a blocksize: a split may hold many small files, while files
+ * larger than the blocksize are cut at newlines, and their last
+ * pieces are combined with the next files. Each split is a Reader
+ * of its files, one after the other (decoded with the default
+ * charset); the {@link SplitReader#getFile()} method tells the file
+ * being read.
+ * <p>
+ * The splits are described by the paths of their files, so the
+ * directory is enumerated only by the master JVM in the distributed
+ * mode. The directory should not change while it is read, or the
+ * {@link #getSplits()} and {@link #getSplitDescriptors()} iterators
+ * may disagree.
+ *
+ * @author mvarshney
+ */
+public class PDQDirectorySource implements DescribedSplittable, Serializable {
+	private static final long serialVersionUID = -8254108386130367452L;
+	private static final Logger logger = Logger.getLogger(PDQDirectorySource.class);
+	
+	/**
+	 * Maximum number of files in a split, which bounds the size of
+	 * the descriptors.
+	 */
+	static final int MaxFiles = CombineFileSplitIterator.MaxFiles;
+	
+	private final File dir;
+	private final String glob;
+	private final boolean recursive;
+	private final long blocksize;
+	
+	/**
+	 * Creates a source for all the files of the specified directory
+	 * (but not its subdirectories).
+	 *
+	 * @param dir the directory
+	 */
+	public PDQDirectorySource(File dir) {
+		this(dir, "*", false);
+	}
+	
+	/**
+	 * Creates a source for the files of the specified directory,
+	 * and optionally of its subdirectories, whose names match the
+	 * glob pattern.
+	 *
+	 * @param dir the directory
+	 * @param glob the pattern of the names of the files, in the
+	 * syntax of {@link java.nio.file.FileSystem#getPathMatcher(String)}
+	 * (without the <code>glob:</code> prefix)
+	 * @param recursive whether the files of the subdirectories are
+	 * read as well
+	 */
+	public PDQDirectorySource(File dir, String glob, boolean recursive) {
+		if (! dir.isDirectory())
+			throw new IllegalArgumentException(dir + " is not a directory");
+		this.dir = dir;
+		this.glob = glob;
+		this.recursive = recursive;
+		this.blocksize = PDQConfig.current().getBlocksize();
+	}
+	
+	@Override
+	public Iterator<?> getSplits() {
+		final Iterator<CombineFileSplit> splits = getSplitDescriptors();
+		return new Iterator<Reader>() {
+			@Override
+			public boolean hasNext() {
+				return splits.hasNext();
+			}
+			
+			@Override
+			public Reader next() {
+				try {
+					return new SplitReader(splits.next().open());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				return null;
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	@Override
+	public Iterator<CombineFileSplit> getSplitDescriptors() {
+		try {
+			// Registers the disks with their I/O queues
+			FileStores.getDiskStorage(Collections.<File>emptyList());
+			return new Walker(dir, glob, recursive, blocksize);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Enumerates the directories depth first, with a stack of open
+	 * directory streams, and packs the files into splits.
+	 */
+	static final class Walker implements Iterator<CombineFileSplit> {
+		private final PathMatcher matcher;
+		private final boolean recursive;
+		private final long blocksize;
+		private final Splitter splitter = DelimitedSplitter.NewLineDelimitedSplitter;
+		private final byte[] separator = CombineFileSplitIterator.separator(splitter);
+		
+		private final Deque<DirectoryStream<Path>> streams =
+				new ArrayDeque<DirectoryStream<Path>>();
+		private final Deque<Iterator<Path>> iterators =
+				new ArrayDeque<Iterator<Path>>();
+		
+		/**
+		 * The file larger than the blocksize that is being cut, if
+		 * any; it is kept open until its last piece is packed.
+		 */
+		private File large;
+		private RandomAccessFile raf;
+		
+		/**
+		 * The size of the file returned by {@link #nextPath()}.
+		 */
+		private long pathSize;
+		private CombineFileSplit next;
+		
+		Walker(File dir, String glob, boolean recursive, long blocksize) throws IOException {
+			this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+			this.recursive = recursive;
+			this.blocksize = blocksize;
+			// Resolves the directory once, so that the paths of the
+			// files are canonical without a system call per file
+			open(dir.getCanonicalFile().toPath());
+			next = pack();
+		}
+		
+		private void open(Path dir) throws IOException {
+			DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+			streams.push(stream);
+			iterators.push(stream.iterator());
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+		
+		@Override
+		public CombineFileSplit next() {
+			if (next == null) throw new NoSuchElementException();
+			CombineFileSplit split = next;
+			try {
+				next = pack();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return split;
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		/**
+		 * Packs the next files, or pieces of files, into a split,
+		 * until the split holds a blocksize (or 
+		 * {@link PDQDirectorySource#MaxFiles} files). The files up to
+		 * a blocksize are packed whole, without being opened; the
+		 * larger files are cut at newlines.
+		 *
+		 * @return the split, or <tt>null</tt> if there are no more
+		 * files
+		 */
+		private CombineFileSplit pack() throws IOException {
+			List<File> files = new ArrayList<File>();
+			List<Long> begins = new ArrayList<Long>();
+			List<Long> lengths = new ArrayList<Long>();
+			long total = 0;
+			
+			while (total < blocksize && files.size() < MaxFiles) {
+				if (raf == null) {
+					Path path = nextPath();
+					if (path == null) break;
+					
+					long size = pathSize;
+					File file = new File(path.toString());
+					if (size <= blocksize) {
+						files.add(file);
+						begins.add(0L);
+						lengths.add(size);
+						total += size;
+						continue;
+					}
+					
+					try {
+						raf = new RandomAccessFile(file, "r");
+						large = file;
+					} catch (IOException e) {
+						logger.warn(String.format("Cannot read %s: %s", file, e));
+						continue;
+					}
+				}
+				
+				long begin = splitter.splitBegin(raf);
+				long end = begin;
+				if (begin != -1) {
+					raf.seek(begin);
+					end = splitter.splitEnd(raf, blocksize - total);
+				}
+				
+				if (begin == -1 || begin == end) {
+					closeLarge();
+					continue;
+				}
+				
+				files.add(large);
+				begins.add(begin);
+				lengths.add(end - begin);
+				total += end - begin;
+				
+				if (end >= raf.length()) {
+					closeLarge();
+				} else {
+					raf.seek(end);
+				}
+			}
+			
+			if (files.isEmpty()) return null;
+			
+			int n = files.size();
+			long[] b = new long[n];
+			long[] l = new long[n];
+			for (int i = 0; i < n; i++) {
+				b[i] = begins.get(i);
+				l[i] = lengths.get(i);
+			}
+			return new CombineFileSplit(files.toArray(new File[n]), b, l, separator);
+		}
+		
+		private void closeLarge() throws IOException {
+			raf.close();
+			raf = null;
+			large = null;
+		}
+			
+		/**
+		 * Returns the path of the next non-empty regular file whose
+		 * name matches the pattern, or <tt>null</tt> if there are
+		 * no more files. The size of the file is left in
+		 * {@link #pathSize}.
+		 */
+		private Path nextPath() throws IOException {
+			while (! iterators.isEmpty()) {
+				Iterator<Path> it = iterators.peek();
+				if (! it.hasNext()) {
+					iterators.pop();
+					streams.pop().close();
+					continue;
+				}
+				
+				Path path = it.next();
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(path, BasicFileAttributes.class);
+				} catch (IOException e) {
+					// Removed since it was listed
+					continue;
+				}
+				
+				if (attrs.isDirectory()) {
+					if (recursive) open(path);
+					continue;
+				}
+				if (attrs.isRegularFile() && attrs.size() > 0
+						&& matcher.matches(path.getFileName())) {
+					pathSize = attrs.size();
+					return path;
+				}
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * Reads a split, decoded with the default charset.
+	 */
+	public static final class SplitReader extends InputStreamReader {
+		private final CombineFileSplitInputStream in;
+		
+		SplitReader(CombineFileSplitInputStream in) {
+			super(in);
+			this.in = in;
+		}
+		
+		/**
+		 * Returns the file being read. The decoder reads ahead, so
+		 * this is the file of the last bytes decoded, rather than of
+		 * the last characters returned.
+		 *
+		 * @return the file, or <tt>null</tt> before the first read
+		 * and after the last piece
+		 */
+		public File getFile() {
+			return in.getFile();
+		}
+	}
+}
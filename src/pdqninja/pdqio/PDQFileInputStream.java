@@ -12,10 +12,10 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 
+import pdqninja.pdq.DescribedSplittable;
 import pdqninja.pdq.PDQConfig;
-import pdqninja.pdq.Splittable;
 
-public class PDQFileInputStream extends InputStream implements Splittable, Serializable {
+public class PDQFileInputStream extends InputStream implements DescribedSplittable, Serializable {
 	private static final long serialVersionUID = 2607506068983257403L;
 	
 	/**
@@ -133,6 +133,16 @@ public class PDQFileInputStream extends InputStream implements Splittable, Seria
 		return null;
 	}
 	
+	@Override
+	public Iterator<FileSplit> getSplitDescriptors() {
+		try {
+			FileStoreIterator fsIt = FileStores.getDiskStorage(files);
+			return new DescriptorIterator(fsIt, blocksize, splitter);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
 	static final class SplitIterator extends FileSplitIterator<FileInputStream> {
 		SplitIterator(FileStoreIterator fsIterator, long blocksize,
 				Splitter splitter) throws IOException {
@@ -142,9 +152,37 @@ public class PDQFileInputStream extends InputStream implements Splittable, Seria
 		@Override
 		FileInputStream createSplit(RandomAccessFile raf, long length)
 				throws IOException {
-			return new FileSplitInputStream(raf, length);
+			return new FileSplitInputStream(currentFile(), raf, length);
 		}	
 	}
+	
+	static final class DescriptorIterator extends FileSplitIterator.Descriptors {
+		DescriptorIterator(FileStoreIterator fsIterator, long blocksize,
+				Splitter splitter) throws IOException {
+			super(fsIterator, blocksize, splitter);
+		}
+
+		@Override
+		FileSplit describe(File file, long begin, long length) {
+			return new Split(file, begin, length);
+		}
+	}
+	
+	/**
+	 * Describes a split that is read by a FileInputStream.
+	 */
+	static final class Split extends FileSplit {
+		private static final long serialVersionUID = 4409875232188340716L;
+
+		Split(File file, long begin, long length) {
+			super(file, begin, length);
+		}
+
+		@Override
+		Object open(RandomAccessFile raf, long length) throws IOException {
+			return new FileSplitInputStream(getFile(), raf, length);
+		}
+	}
 
 	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
 		in.defaultReadObject();
@@ -11,15 +11,15 @@ import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import pdqninja.pdq.DescribedSplittable;
 import pdqninja.pdq.PDQConfig;
-import pdqninja.pdq.Splittable;
 
 /**
  * 
  * @author mvarshney
  *
  */
-public class PDQFileReader extends Reader implements Splittable, Serializable {
+public class PDQFileReader extends Reader implements DescribedSplittable, Serializable {
 	
 	private static final long serialVersionUID = -6093922434714383969L;
 		
@@ -149,6 +149,16 @@ public class PDQFileReader extends Reader implements Splittable, Serializable {
 		return null;
 	}
 
+	@Override
+	public Iterator<FileSplit> getSplitDescriptors() {
+		try {
+			FileStoreIterator fsIt = FileStores.getDiskStorage(files);
+			return new DescriptorIterator(fsIt, blocksize, splitter);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
 	static final class SplitIterator extends FileSplitIterator<FileReader> {
 		SplitIterator(FileStoreIterator fsIterator, long blocksize,
 				Splitter splitter) throws IOException {
@@ -158,10 +168,38 @@ public class PDQFileReader extends Reader implements Splittable, Serializable {
 		@Override
 		FileReader createSplit(RandomAccessFile raf, long length)
 				throws IOException {
-			return new FileSplitReader(raf, length);
+			return new FileSplitReader(currentFile(), raf, length);
 		}	
 	}
 	
+	static final class DescriptorIterator extends FileSplitIterator.Descriptors {
+		DescriptorIterator(FileStoreIterator fsIterator, long blocksize,
+				Splitter splitter) throws IOException {
+			super(fsIterator, blocksize, splitter);
+		}
+
+		@Override
+		FileSplit describe(File file, long begin, long length) {
+			return new Split(file, begin, length);
+		}
+	}
+	
+	/**
+	 * Describes a split that is read by a FileReader.
+	 */
+	static final class Split extends FileSplit {
+		private static final long serialVersionUID = -7125370254712896153L;
+
+		Split(File file, long begin, long length) {
+			super(file, begin, length);
+		}
+
+		@Override
+		Object open(RandomAccessFile raf, long length) throws IOException {
+			return new FileSplitReader(getFile(), raf, length);
+		}
+	}
+	
 	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
 		in.defaultReadObject();
 		
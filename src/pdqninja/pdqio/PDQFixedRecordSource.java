@@ -0,0 +1,221 @@
+package pdqninja.pdqio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+
+import pdqninja.pdq.DescribedSplittable;
+import pdqninja.pdq.PDQConfig;
+
+/**
+ * Reads a collection of binary files of fixed-width records, such as
+ * the 64-byte records of a sensor.
+ * <p>
+ * The files are split at record boundaries (after an optional
+ * header of the specified length). Each split is a
+ * {@link FixedRecords}, which maps the split in memory and reads
+ * the fields of the records in place, by their offsets within the
+ * record: for example, <code>records.getLong(8)</code> reads the
+ * long that begins at the ninth byte of the current record.
+ *
+ * <pre>
+ * PDQFixedRecordSource source = new PDQFixedRecordSource(files, 64);
+ * ...
+ * // in the replicated method, for each split
+ * FixedRecords records = (FixedRecords) split;
+ * total += records.sumDouble(16);
+ * records.close();
+ * </pre>
+ *
+ * @author mvarshney
+ */
+public class PDQFixedRecordSource implements DescribedSplittable, Serializable {
+	private static final long serialVersionUID = 5386419960732265471L;
+	
+	private final Collection<? extends File> files;
+	private final int recordLength;
+	private final long header;
+	private final boolean littleEndian;
+	private final long blocksize;
+	
+	/**
+	 * Creates a PDQFixedRecordSource for the specified file of
+	 * big-endian records.
+	 *
+	 * @param file the specified file
+	 * @param recordLength the length of the records
+	 */
+	public PDQFixedRecordSource(File file, int recordLength) {
+		this(Arrays.asList(file), recordLength);
+	}
+	
+	/**
+	 * Creates a PDQFixedRecordSource for the specified collection of
+	 * files of big-endian records.
+	 *
+	 * @param files the specified collection of files
+	 * @param recordLength the length of the records
+	 */
+	public PDQFixedRecordSource(Collection<? extends File> files, int recordLength) {
+		this(files, recordLength, 0, ByteOrder.BIG_ENDIAN);
+	}
+	
+	/**
+	 * Creates a PDQFixedRecordSource for the specified collection of
+	 * files.
+	 *
+	 * @param files the specified collection of files
+	 * @param recordLength the length of the records
+	 * @param header the length of the header of each file, which is
+	 * skipped
+	 * @param order the byte order of the fields of the records
+	 */
+	public PDQFixedRecordSource(Collection<? extends File> files, int recordLength,
+			long header, ByteOrder order) {
+		if (recordLength <= 0)
+			throw new IllegalArgumentException("Record length must be positive: " + recordLength);
+		this.files = files;
+		this.recordLength = recordLength;
+		this.header = header;
+		this.littleEndian = order == ByteOrder.LITTLE_ENDIAN;
+		this.blocksize = PDQConfig.current().getBlocksize();
+	}
+	
+	/**
+	 * @return the length of the records
+	 */
+	public int getRecordLength() {
+		return recordLength;
+	}
+	
+	private ByteOrder order() {
+		return littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+	}
+	
+	@Override
+	public Iterator<?> getSplits() {
+		try {
+			FileStoreIterator fsIt = FileStores.getDiskStorage(files);
+			return new SplitIterator(fsIt, blocksize,
+					new RecordSplitter(header, recordLength), order());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
+	@Override
+	public Iterator<FileSplit> getSplitDescriptors() {
+		try {
+			FileStoreIterator fsIt = FileStores.getDiskStorage(files);
+			return new DescriptorIterator(fsIt, blocksize,
+					new RecordSplitter(header, recordLength), littleEndian);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Splits the files at the records that follow the header. Unlike
+	 * the {@link FixedSizeSplitter}, the records are aligned to the
+	 * end of the header rather than to the beginning of the file, and
+	 * a trailing partial record is left out.
+	 */
+	static final class RecordSplitter implements Splitter, Serializable {
+		private static final long serialVersionUID = -6511305733400193818L;
+		private final long header;
+		private final long recordLength;
+		
+		RecordSplitter(long header, long recordLength) {
+			this.header = header;
+			this.recordLength = recordLength;
+		}
+		
+		/**
+		 * @return the end of the last whole record of the file
+		 */
+		private long end(RandomAccessFile raf) throws IOException {
+			long size = raf.length();
+			if (size < header) return header;
+			return size - (size - header) % recordLength;
+		}
+		
+		@Override
+		public long splitBegin(RandomAccessFile raf) throws IOException {
+			long current = Math.max(raf.getFilePointer(), header);
+			return current >= end(raf) ? -1 : current;
+		}
+		
+		@Override
+		public long splitEnd(RandomAccessFile raf, long blocksize)
+				throws IOException {
+			long current = raf.getFilePointer();
+			long records = Math.max(1, (blocksize + recordLength - 1) / recordLength);
+			// A mapped split is at most 2GB
+			records = Math.min(records, Integer.MAX_VALUE / recordLength);
+			return Math.min(current + records * recordLength, end(raf));
+		}
+	}
+	
+	static final class SplitIterator extends FileSplitIterator<FixedRecords> {
+		private final int recordLength;
+		private final ByteOrder order;
+		
+		SplitIterator(FileStoreIterator fsIterator, long blocksize,
+				RecordSplitter splitter, ByteOrder order) throws IOException {
+			super(fsIterator, blocksize, splitter);
+			this.recordLength = (int) splitter.recordLength;
+			this.order = order;
+		}
+		
+		@Override
+		FixedRecords createSplit(RandomAccessFile raf, long length)
+				throws IOException {
+			return new FixedRecords(raf, length, recordLength, order);
+		}
+	}
+	
+	static final class DescriptorIterator extends FileSplitIterator.Descriptors {
+		private final int recordLength;
+		private final boolean littleEndian;
+		
+		DescriptorIterator(FileStoreIterator fsIterator, long blocksize,
+				RecordSplitter splitter, boolean littleEndian) throws IOException {
+			super(fsIterator, blocksize, splitter);
+			this.recordLength = (int) splitter.recordLength;
+			this.littleEndian = littleEndian;
+		}
+		
+		@Override
+		FileSplit describe(File file, long begin, long length) {
+			return new Split(file, begin, length, recordLength, littleEndian);
+		}
+	}
+	
+	/**
+	 * Describes a split that is read as {@link FixedRecords}.
+	 */
+	static final class Split extends FileSplit {
+		private static final long serialVersionUID = -1932250812407365838L;
+		private final int recordLength;
+		private final boolean littleEndian;
+		
+		Split(File file, long begin, long length, int recordLength,
+				boolean littleEndian) {
+			super(file, begin, length);
+			this.recordLength = recordLength;
+			this.littleEndian = littleEndian;
+		}
+		
+		@Override
+		Object open(RandomAccessFile raf, long length) throws IOException {
+			return new FixedRecords(raf, length, recordLength,
+					littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		}
+	}
+}
@@ -0,0 +1,271 @@
+package pdqninja.pdqio;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import pdqninja.pdq.DescribedSplittable;
+import pdqninja.pdq.PDQConfig;
+
+/**
+ * Reads a collection of gzip files, and splits them at their
+ * members, so that each file can be processed by many threads.
+ * <p>
+ * The members of each file are indexed when the file is first split
+ * (see {@link GzipIndex}), and the index is cached next to the file.
+ * Each split holds about a blocksize of <em>uncompressed</em> data,
+ * and its InputStream returns the uncompressed data. A file can only
+ * be split at its members: files written by <code>bgzip</code> (whose
+ * members are blocks of 64KB), or by concatenating gzip files, have
+ * many; a file written by <code>gzip</code> has one, and is read by
+ * a single thread.
+ * <p>
+ * By default, the splits are aligned to lines: the stream of a split
+ * returns the lines that begin within the split, whole, even though
+ * the members are not aligned to lines. Otherwise, the stream
+ * returns the uncompressed data of the members of the split.
+ *
+ * @author mvarshney
+ */
+public class PDQGzipFileInputStream extends InputStream implements DescribedSplittable, Serializable {
+	private static final long serialVersionUID = -5560148627542915034L;
+	
+	/**
+	 * The files that the PDQGzipFileInputStream will read.
+	 */
+	private final Collection<? extends File> files;
+	
+	/**
+	 * Whether the splits are aligned to lines.
+	 */
+	private final boolean lines;
+	
+	private final long blocksize;
+	
+	/**
+	 * Iterator for the files.
+	 */
+	transient private Iterator<? extends File> filesIterator;
+	
+	/**
+	 * InputStream for the currently opened file.
+	 */
+	transient private InputStream currentInputStream = null;
+	
+	/**
+	 * Creates a PDQGzipFileInputStream for the specified file, with
+	 * splits aligned to lines.
+	 *
+	 * @param file the specified file
+	 * @throws IOException
+	 */
+	public PDQGzipFileInputStream(File file) throws IOException {
+		this(Arrays.asList(file), true);
+	}
+	
+	/**
+	 * Creates a PDQGzipFileInputStream for the specified collection of
+	 * files, with splits aligned to lines.
+	 *
+	 * @param files the specified collection of files
+	 * @throws IOException
+	 */
+	public PDQGzipFileInputStream(Collection<? extends File> files) throws IOException {
+		this(files, true);
+	}
+	
+	/**
+	 * Creates a PDQGzipFileInputStream for the specified collection of
+	 * files.
+	 *
+	 * @param files the specified collection of files
+	 * @param lines whether the splits are aligned to lines
+	 * @throws IOException
+	 */
+	public PDQGzipFileInputStream(Collection<? extends File> files,
+			boolean lines) throws IOException {
+		this.blocksize = PDQConfig.current().getBlocksize();
+		this.files = files;
+		this.lines = lines;
+		this.filesIterator = files.iterator();
+		openNextFile();
+	}
+	
+	boolean openNextFile() throws IOException {
+		if (currentInputStream != null)
+			currentInputStream.close();
+		currentInputStream = null;
+		
+		if (filesIterator.hasNext()) {
+			currentInputStream = new GzipMemberInputStream(
+					new FileInputStream(filesIterator.next()));
+			return true;
+		}
+		
+		return false;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if (currentInputStream == null) return -1;
+		
+		int b = currentInputStream.read();
+		if (b == -1 && openNextFile()) {
+			return read();
+		}
+		return b;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (currentInputStream == null) return -1;
+		
+		int bytesRead = currentInputStream.read(b, off, len);
+		if (bytesRead == -1 && openNextFile()) {
+			return read(b, off, len);
+		}
+		return bytesRead;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (currentInputStream != null)
+			currentInputStream.close();
+		currentInputStream = null;
+		
+		// drain the iterator
+		while (filesIterator.hasNext())
+			filesIterator.next();
+	}
+	
+	@Override
+	public Iterator<?> getSplits() {
+		try {
+			FileStoreIterator fsIt = FileStores.getDiskStorage(files);
+			return new SplitIterator(fsIt, blocksize, lines);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
+	@Override
+	public Iterator<FileSplit> getSplitDescriptors() {
+		try {
+			FileStoreIterator fsIt = FileStores.getDiskStorage(files);
+			return new DescriptorIterator(fsIt, blocksize, lines);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Splits the files with the GzipSplitters of their indexes.
+	 */
+	static abstract class GzipSplitIterator<E> extends FileSplitIterator<E> {
+		// Created on first use: the super constructor already splits
+		private Map<String, GzipSplitter> splitters;
+		final boolean lines;
+		
+		GzipSplitIterator(FileStoreIterator fsIterator, long blocksize,
+				boolean lines) throws IOException {
+			super(fsIterator, blocksize, null);
+			this.lines = lines;
+		}
+		
+		@Override
+		GzipSplitter splitter(File file) throws IOException {
+			if (splitters == null) splitters = new HashMap<String, GzipSplitter>();
+			GzipSplitter splitter = splitters.get(file.getAbsolutePath());
+			if (splitter == null) {
+				splitter = new GzipSplitter(GzipIndex.load(file));
+				splitters.put(file.getAbsolutePath(), splitter);
+			}
+			return splitter;
+		}
+		
+		/**
+		 * @return the uncompressed length of the split
+		 */
+		long size(File file, long begin, long length) throws IOException {
+			return splitter(file).getIndex().uncompressed(begin, begin + length);
+		}
+	}
+	
+	static final class SplitIterator extends GzipSplitIterator<InputStream> {
+		SplitIterator(FileStoreIterator fsIterator, long blocksize,
+				boolean lines) throws IOException {
+			super(fsIterator, blocksize, lines);
+		}
+		
+		@Override
+		InputStream createSplit(RandomAccessFile raf, long length)
+				throws IOException {
+			File file = currentFile();
+			return new GzipSplitInputStream(file, raf, length,
+					size(file, raf.getFilePointer(), length), lines);
+		}
+	}
+	
+	static final class DescriptorIterator extends GzipSplitIterator<FileSplit> {
+		DescriptorIterator(FileStoreIterator fsIterator, long blocksize,
+				boolean lines) throws IOException {
+			super(fsIterator, blocksize, lines);
+		}
+		
+		@Override
+		FileSplit createSplit(File file, long begin, long length)
+				throws IOException {
+			return new Split(file, begin, length, size(file, begin, length), lines);
+		}
+		
+		/**
+		 * Describes the split of an opened file, and closes the file.
+		 */
+		@Override
+		FileSplit createSplit(RandomAccessFile raf, long length)
+				throws IOException {
+			try {
+				return createSplit(currentFile(), raf.getFilePointer(), length);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+	
+	/**
+	 * Describes a split of a gzip file, with its uncompressed length
+	 * (so that the index is not needed to open the split).
+	 */
+	static final class Split extends FileSplit {
+		private static final long serialVersionUID = 1739050561482046374L;
+		private final long size;
+		private final boolean lines;
+		
+		Split(File file, long begin, long length, long size, boolean lines) {
+			super(file, begin, length);
+			this.size = size;
+			this.lines = lines;
+		}
+		
+		@Override
+		Object open(RandomAccessFile raf, long length) throws IOException {
+			return new GzipSplitInputStream(getFile(), raf, length, size, lines);
+		}
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		
+		filesIterator = files.iterator();
+	}
+}
@@ -0,0 +1,173 @@
+package pdqninja.pdqio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+
+import pdqninja.pdq.DescribedSplittable;
+import pdqninja.pdq.PDQConfig;
+
+/**
+ * Splits a collection of text files at line boundaries, and reads
+ * each split line by line as a {@link LineSplit}.
+ * <p>
+ * Unlike the {@link PDQFileReader}, whose splits are Readers that
+ * decode every character into the buffer of the caller, the splits
+ * of the PDQLineReader hand out each line in place: as a slice of
+ * the bytes read from the file, and as a reusable CharSequence that
+ * is decoded only when asked for. Neither is copied per line, so
+ * scanning large files makes little garbage:
+ * <pre>
+ *	&#064;Parallel
+ *	void count(Map&lt;String, Integer&gt; counts, LineSplit lines) {
+ *		while (lines.next()) {
+ *			CharSequence line = lines.line();
+ *			...
+ *		}
+ *	}
+ * </pre>
+ * The charset of the files is explicit (UTF-8, if not specified),
+ * and must encode the newline as the single byte <code>'\n'</code>
+ * (as ASCII, UTF-8 and the ISO-8859 charsets do).
+ *
+ * @author mvarshney
+ */
+public class PDQLineReader implements DescribedSplittable, Serializable {
+	private static final long serialVersionUID = 6514217046734290271L;
+	
+	/**
+	 * The files that the PDQLineReader will read.
+	 */
+	private final Collection<? extends File> files;
+	
+	/**
+	 * The name of the charset of the files (a Charset is not
+	 * serializable).
+	 */
+	private final String charset;
+	
+	private final long blocksize;
+	
+	/**
+	 * Creates a PDQLineReader for the specified file in UTF-8.
+	 *
+	 * @param file the specified file
+	 */
+	public PDQLineReader(File file) {
+		this(Arrays.asList(file), "UTF-8");
+	}
+	
+	/**
+	 * Creates a PDQLineReader for the specified collection of
+	 * files in UTF-8.
+	 *
+	 * @param files the specified collection of files
+	 */
+	public PDQLineReader(Collection<? extends File> files) {
+		this(files, "UTF-8");
+	}
+	
+	/**
+	 * Creates a PDQLineReader for the specified collection of
+	 * files in the specified charset.
+	 *
+	 * @param files the specified collection of files
+	 * @param charsetName the name of the charset of the files
+	 * @throws java.nio.charset.UnsupportedCharsetException if the
+	 * charset is not supported
+	 * @throws IllegalArgumentException if the charset does not
+	 * encode the newline as a single <code>'\n'</code> byte
+	 */
+	public PDQLineReader(Collection<? extends File> files, String charsetName) {
+		Charset cs = Charset.forName(charsetName);
+		if (! cs.canEncode() || ! Arrays.equals("\n".getBytes(cs), new byte[] { '\n' })) {
+			throw new IllegalArgumentException("Lines cannot be split in " + charsetName);
+		}
+		
+		this.blocksize = PDQConfig.current().getBlocksize();
+		this.files = files;
+		this.charset = cs.name();
+	}
+	
+	/**
+	 * @return the charset of the files
+	 */
+	public Charset getCharset() {
+		return Charset.forName(charset);
+	}
+	
+	@Override
+	public Iterator<?> getSplits() {
+		try {
+			FileStoreIterator fsIt = FileStores.getDiskStorage(files);
+			return new SplitIterator(fsIt, blocksize, getCharset());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
+	@Override
+	public Iterator<FileSplit> getSplitDescriptors() {
+		try {
+			FileStoreIterator fsIt = FileStores.getDiskStorage(files);
+			return new DescriptorIterator(fsIt, blocksize, charset);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	static final class SplitIterator extends FileSplitIterator<LineSplit> {
+		private final Charset charset;
+		
+		SplitIterator(FileStoreIterator fsIterator, long blocksize,
+				Charset charset) throws IOException {
+			super(fsIterator, blocksize, DelimitedSplitter.NewLineDelimitedSplitter);
+			this.charset = charset;
+		}
+		
+		@Override
+		LineSplit createSplit(RandomAccessFile raf, long length)
+				throws IOException {
+			return new LineSplit(currentFile(), raf, length, charset);
+		}
+	}
+	
+	static final class DescriptorIterator extends FileSplitIterator.Descriptors {
+		private final String charset;
+		
+		DescriptorIterator(FileStoreIterator fsIterator, long blocksize,
+				String charset) throws IOException {
+			super(fsIterator, blocksize, DelimitedSplitter.NewLineDelimitedSplitter);
+			this.charset = charset;
+		}
+		
+		@Override
+		FileSplit describe(File file, long begin, long length) {
+			return new Split(file, begin, length, charset);
+		}
+	}
+	
+	/**
+	 * Describes a split that is read line by line.
+	 */
+	static final class Split extends FileSplit {
+		private static final long serialVersionUID = -2617830958117412469L;
+		private final String charset;
+		
+		Split(File file, long begin, long length, String charset) {
+			super(file, begin, length);
+			this.charset = charset;
+		}
+		
+		@Override
+		Object open(RandomAccessFile raf, long length) throws IOException {
+			return new LineSplit(getFile(), raf, length, Charset.forName(charset));
+		}
+	}
+}
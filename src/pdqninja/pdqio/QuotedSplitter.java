@@ -0,0 +1,154 @@
+package pdqninja.pdqio;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+
+/**
+ * Splits a delimited (CSV or TSV) file at record boundaries, where
+ * records end with newlines that are not within quoted fields.
+ * <p>
+ * Whether a newline is within a quoted field depends on all the
+ * quotes before it, which the splitter does not read. Instead, it
+ * <em>resyncs</em> at the first newline after the blocksize: the
+ * newline either ends a record, or is within a quoted field. Each
+ * hypothesis is checked by parsing the bytes that follow, until
+ * one of them breaks the grammar (for example, when a quote is
+ * found in the middle of an unquoted field, or when a closing quote
+ * is followed by something other than a separator or a newline).
+ * If the newline ends a record, the split ends after it; otherwise,
+ * the split ends after the first newline that ends a record. If
+ * both hypotheses hold for {@value #Window} bytes, the newline is
+ * taken to end a record.
+ *
+ * @author mvarshney
+ */
+final class QuotedSplitter implements Splitter, Serializable {
+	private static final long serialVersionUID = -4319011473506470858L;
+	
+	/**
+	 * Number of bytes after which the splitter stops checking the
+	 * hypotheses.
+	 */
+	static final int Window = 256 * 1024;
+	
+	static private final DelimitedSplitter.Delimiter NewLine =
+			new DelimitedSplitter.Delimiter("\n");
+	
+	// Parser states
+	static final int FieldStart = 0;
+	static final int Unquoted = 1;
+	static final int Quoted = 2;
+	static final int QuoteInQuoted = 3;
+	static final int Closed = 4;
+	static final int Invalid = 5;
+	
+	private final byte separator;
+	private final byte quote;
+	
+	QuotedSplitter(byte separator, byte quote) {
+		this.separator = separator;
+		this.quote = quote;
+	}
+	
+	@Override
+	public long splitBegin(RandomAccessFile raf) throws IOException {
+		long current = raf.getFilePointer();
+		return current >= raf.length() ? -1 : current;
+	}
+	
+	@Override
+	public long splitEnd(RandomAccessFile raf, long blocksize)
+			throws IOException {
+		long current = raf.getFilePointer();
+		long size = raf.length();
+		long pos = current + blocksize;
+		
+		if (pos >= size) {
+			return size;
+		}
+		
+		raf.seek(pos);
+		long candidate = pos + DelimitedSplitter.NewLineDelimitedSplitter.locateDelim(raf, NewLine);
+		if (candidate >= size) {
+			return size;
+		}
+		
+		raf.seek(candidate);
+		return resync(raf, candidate, size);
+	}
+	
+	/**
+	 * Returns the end of the split, given the offset just after the
+	 * newline where the split would end if the newline ends a record.
+	 */
+	long resync(RandomAccessFile raf, long candidate, long size) throws IOException {
+		byte[] buffer = new byte[DelimitedSplitter.MinBufferSize];
+		
+		// The newline ends a record; or it is within a quoted field,
+		// in which case the split ends after the record that it is in
+		int ends = FieldStart;
+		int within = Quoted;
+		long end = -1;
+		long offset = candidate;
+		
+		while (true) {
+			int read = raf.read(buffer);
+			if (read == -1) {
+				// A quoted field cannot remain open at the end of the file
+				if (ends == Invalid && within != Quoted) 
+					return end >= 0 ? end : size;
+				return candidate;
+			}
+			
+			for (int i = 0; i < read; i++) {
+				byte c = buffer[i];
+				
+				int previous = within;
+				within = step(within, c);
+				if (within == Invalid) return candidate;
+				if (end < 0 && c == '\n' && previous != Quoted) {
+					end = offset + i + 1;
+				}
+				
+				if (ends != Invalid) {
+					ends = step(ends, c);
+				}
+				if (ends == Invalid && end >= 0) return end;
+			}
+			
+			offset += read;
+			if (ends != Invalid && offset - candidate >= Window) {
+				return candidate;
+			}
+			if (buffer.length < DelimitedSplitter.MaxBufferSize)
+				buffer = new byte[buffer.length * 2];
+		}
+	}
+	
+	/**
+	 * Returns the state of the parser after the specified byte.
+	 */
+	int step(int state, byte c) {
+		switch (state) {
+		case FieldStart:
+			if (c == quote) return Quoted;
+			if (c == separator || c == '\n') return FieldStart;
+			return Unquoted;
+		case Unquoted:
+			if (c == quote) return Invalid;
+			if (c == separator || c == '\n') return FieldStart;
+			return Unquoted;
+		case Quoted:
+			return c == quote ? QuoteInQuoted : Quoted;
+		case QuoteInQuoted:
+		case Closed:
+			if (c == quote && state == QuoteInQuoted) return Quoted;
+			if (c == separator || c == '\n') return FieldStart;
+			if (c == '\r') return Closed;
+			return Invalid;
+		default:
+			return Invalid;
+		}
+	}
+}
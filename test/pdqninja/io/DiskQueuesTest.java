@@ -0,0 +1,111 @@
+package pdqninja.io;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiskQueuesTest {
+	File dir;
+	File file;
+	
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(UUID.randomUUID().toString());
+		dir.mkdir();
+		file = new File(dir, "data");
+		DiskQueues.register(dir, 1);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		file.delete();
+		dir.delete();
+	}
+	
+	@Test
+	public void testQueueFor() throws IOException {
+		assertNotNull(DiskQueues.queueFor(file));
+		assertNull(DiskQueues.queueFor(new File(dir.getPath() + "x", "data")));
+	}
+	
+	@Test
+	public void testWriteRead() throws IOException {
+		int length = 3 * DiskQueues.CHUNK_SIZE + 12345;
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		OutputStream out = DiskQueues.newOutputStream(file, raf);
+		assertFalse(out instanceof FileOutputStream);
+		
+		for (int i = 0; i < length; i++) {
+			out.write(i % 251);
+		}
+		out.close();
+		raf.close();
+		
+		assertEquals(length, file.length());
+		
+		// Read a region that spans several chunks
+		long begin = DiskQueues.CHUNK_SIZE - 10;
+		raf = new RandomAccessFile(file, "r");
+		raf.seek(begin);
+		InputStream in = DiskQueues.newInputStream(file, raf, length - begin);
+		
+		byte[] buffer = new byte[4096];
+		long position = begin;
+		int n;
+		while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+			for (int i = 0; i < n; i++) {
+				assertEquals((position + i) % 251, buffer[i] & 0xff);
+			}
+			position += n;
+		}
+		assertEquals(length, position);
+		
+		in.close();
+		raf.close();
+	}
+	
+	@Test
+	public void testShortFile() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.write(new byte[] {1, 2, 3});
+		raf.seek(1);
+		
+		// Region extends beyond the end of the file
+		InputStream in = DiskQueues.newInputStream(file, raf, 100);
+		assertEquals(2, in.read());
+		assertEquals(3, in.read());
+		assertEquals(-1, in.read());
+		
+		in.close();
+		raf.close();
+	}
+	
+	@Test
+	public void testThreadLocalsNotInherited() throws Exception {
+		final InheritableThreadLocal<String> local = 
+				new InheritableThreadLocal<String>();
+		local.set("computation");
+		
+		// The thread of the queue is created by this thread
+		String inherited = DiskQueues.queueFor(file).submit(
+				new Callable<String>() {
+					@Override
+					public String call() {
+						return local.get();
+					}
+				}).get();
+		assertNull(inherited);
+	}
+}
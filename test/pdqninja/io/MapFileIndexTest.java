@@ -198,4 +198,32 @@ public class MapFileIndexTest {
 		
 	}
 
+	@Test
+	public void testBlockForKey() {
+		MapFileIndex<Integer> id = new MapFileIndex<Integer>();
+		
+		// Blocks of [0, 3], [10, 13] and [20, 23]
+		for (int i = 0; i < 30; i++) {
+			if ((i % 10) == 0)
+				id.createIndex(i, i);
+			else if ((i % 10) < 4)
+				id.skip();
+			else
+				continue;
+			id.setLastKey(i);
+		}
+		
+		assertEquals(3, id.size());
+		assertEquals(Integer.valueOf(13), id.getIndex(1).getLastKey());
+		
+		assertEquals(0, id.getBlockForKey(0).getOffset());
+		assertEquals(0, id.getBlockForKey(3).getOffset());
+		assertEquals(10, id.getBlockForKey(12).getOffset());
+		assertEquals(20, id.getBlockForKey(23).getOffset());
+		assertNull(id.getBlockForKey(-1));
+		assertNull(id.getBlockForKey(5));
+		assertNull(id.getBlockForKey(14));
+		assertNull(id.getBlockForKey(24));
+	}
+
 }
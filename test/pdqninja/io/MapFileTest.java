@@ -4,6 +4,8 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.util.UUID;
 
 import org.junit.Test;
@@ -138,4 +140,183 @@ public class MapFileTest {
 		file.delete();
 	}
 
+	File writeUrls(boolean frontCoding) throws IOException {
+		File file = new File(UUID.randomUUID().toString());
+		file.createNewFile();
+		
+		MapFile<String> writer = 
+				new MapFile<String>(file, "rw",
+						new MapFileIndex<String>(), 1000, 100, 0);
+		writer.setFrontCoding(frontCoding);
+		
+		for (int i = 0; i < 1000; i++) {
+			writer.write(String.format("http://www.example.com/path/to/page%05d", i), i);
+		}
+		writer.write(String.format("http://www.example.com/path/to/page%05dz", 999), 1000);
+		writer.close();
+		return file;
+	}
+	
+	@Test
+	public void testFrontCoding() throws IOException, ClassNotFoundException {
+		File plain = writeUrls(false);
+		File file = writeUrls(true);
+		assertTrue(file.length() < plain.length() / 2);
+		plain.delete();
+		
+		// The format is read from the file
+		MapFile<String> reader = new MapFile<String>(file, "r");
+		assertTrue(reader.isFrontCoding());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(String.format("http://www.example.com/path/to/page%05d", i), 
+					reader.readKey());
+			assertEquals(i, reader.read());
+		}
+		assertEquals(String.format("http://www.example.com/path/to/page%05dz", 999), 
+				reader.readKey());
+		assertEquals(1000, reader.read());
+		
+		try {
+			reader.setFrontCoding(false);
+			fail("The format of the file was changed");
+		} catch (IllegalStateException e) {
+		}
+		reader.close();
+		file.delete();
+	}
+	
+	@Test
+	public void testFrontCodingSeek() throws IOException, ClassNotFoundException {
+		File file = new File(UUID.randomUUID().toString());
+		file.createNewFile();
+		
+		MapFile<Object> writer = 
+				new MapFile<Object>(file, "rw",
+						new MapFileIndex<Object>(), 200, 100, 0);
+		writer.setFrontCoding(true);
+		for (int i = 0; i < 100; i++) {
+			// Keys that are not Strings are not front coded
+			if (i % 10 == 9) 
+				writer.write(i, i);
+			else
+				writer.write("key" + i / 10 + "." + i, i);
+		}
+		writer.close();
+		
+		MapFileIndex<Object> index = writer.getIndex();
+		assertTrue(index.size() > 2);
+		
+		MapFile<Object> reader = new MapFile<Object>(file, "r");
+		for (int e = index.size() - 1; e >= 0; e--) {
+			MapFileIndex.Entry<Object> entry = index.getIndex(e);
+			reader.seek(entry.getOffset());
+			assertEquals(entry.getKey(), reader.readKey());
+			int i = (Integer) reader.read();
+			
+			for (i++; i < 100 && i < 105; i++) {
+				Object key = reader.readKey();
+				assertEquals(i % 10 == 9 ? (Object) i : "key" + i / 10 + "." + i, key);
+				assertEquals(i, reader.read());
+			}
+		}
+		reader.close();
+		file.delete();
+	}
+
+	@Test
+	public void testColumnar() throws IOException, ClassNotFoundException {
+		File file = new File(UUID.randomUUID().toString());
+		file.createNewFile();
+		
+		MapFile<String> writer = 
+				new MapFile<String>(file, "rw",
+						new MapFileIndex<String>(), 1000, 100, 0);
+		writer.setFrontCoding(true);
+		writer.setColumnar(true);
+		for (int i = 0; i < 1000; i++) {
+			writer.write(String.format("key%05d", i), i);
+		}
+		writer.close();
+		
+		MapFileIndex<String> index = writer.getIndex();
+		assertTrue(index.size() > 2);
+		
+		MapFile<String> reader = new MapFile<String>(file, "r");
+		assertTrue(reader.isColumnar());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(String.format("key%05d", i), reader.readKey());
+			assertEquals(i, reader.read());
+		}
+		
+		// Each block is an entry, with the range of its keys
+		int first = 0;
+		for (int e = 0; e < index.size(); e++) {
+			MapFileIndex.Entry<String> entry = index.getIndex(e);
+			first += entry.getSkipped();
+			int last = e + 1 < index.size() ? 
+					first + index.getIndex(e + 1).getSkipped() : 999;
+			assertEquals(String.format("key%05d", first), entry.getKey());
+			assertEquals(String.format("key%05d", last), entry.getLastKey());
+			
+			reader.seek(entry.getOffset());
+			assertEquals(entry.getKey(), reader.readKey());
+			assertEquals(first, reader.read());
+			first ++;
+		}
+		
+		// The values alone
+		reader.seek(0);
+		for (int i = 0; i < 1000; i++) {
+			reader.skipKey();
+			assertEquals(i, reader.read());
+		}
+		reader.close();
+		file.delete();
+	}
+	
+	/**
+	 * A value that cannot be read back.
+	 */
+	static final class Unreadable implements Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		private void readObject(ObjectInputStream in) throws IOException {
+			throw new IOException("The value was read");
+		}
+	}
+	
+	@Test
+	public void testColumnarKeys() throws IOException, ClassNotFoundException {
+		File file = new File(UUID.randomUUID().toString());
+		file.createNewFile();
+		
+		MapFile<Integer> writer = 
+				new MapFile<Integer>(file, "rw",
+						new MapFileIndex<Integer>(), 200, 100, 0);
+		writer.setColumnar(true);
+		for (int i = 0; i < 100; i++) {
+			writer.write(i, new Unreadable());
+		}
+		writer.flush();
+		
+		// The value column is not read
+		MapFile<Integer> reader = new MapFile<Integer>(file, "r");
+		for (int i = 0; i < 100; i++) {
+			assertEquals(i, reader.readKey());
+			reader.skipValue();
+		}
+		
+		try {
+			reader.seek(0);
+			reader.readKey();
+			reader.read();
+			fail("The value column was not read");
+		} catch (IOException e) {
+		}
+		
+		reader.close();
+		writer.close();
+		file.delete();
+	}
+
 }
@@ -0,0 +1,79 @@
+package pdqninja.metrics;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class HistogramTest {
+	
+	@After
+	public void tearDown() {
+		Metrics.enabled = false;
+		Metrics.reset();
+	}
+	
+	@Test
+	public void testBuckets() {
+		for (long value = 0; value < 100000; value++) {
+			int index = Histogram.index(value);
+			assertTrue(value <= Histogram.highest(index));
+			if (index > 0)
+				assertTrue(value > Histogram.highest(index - 1));
+		}
+		
+		assertTrue(Histogram.index(Long.MAX_VALUE) < Histogram.BUCKETS);
+	}
+	
+	@Test
+	public void testPercentiles() {
+		Metrics.enabled = true;
+		Histogram histogram = Metrics.histogram("test.percentiles");
+		
+		for (int i = 1; i <= 10000; i++) {
+			histogram.record(i);
+		}
+		
+		assertEquals(10000, histogram.getCount());
+		assertEquals(10000, histogram.getMax());
+		assertEquals(5000.5, histogram.getMean(), 0.001);
+		
+		assertEquals(5000, histogram.getPercentile(50), 5000 * 0.04);
+		assertEquals(9900, histogram.getPercentile(99), 9900 * 0.04);
+		assertEquals(10000, histogram.getPercentile(100));
+		assertEquals(1, histogram.getPercentile(0));
+	}
+	
+	@Test
+	public void testDisabled() {
+		Histogram histogram = Metrics.histogram("test.disabled");
+		Counter counter = Metrics.counter("test.disabled");
+		
+		histogram.record(10);
+		counter.inc();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, counter.getCount());
+		
+		Metrics.enabled = true;
+		histogram.record(10);
+		counter.inc(5);
+		assertEquals(1, histogram.getCount());
+		assertEquals(5, counter.getCount());
+		
+		assertSame(histogram, Metrics.histogram("test.disabled"));
+		assertSame(counter, Metrics.counter("test.disabled"));
+	}
+	
+	@Test
+	public void testHeap() {
+		Gauge used = Metrics.gauge("jvm.heap.used");
+		Metrics.sampleHeap();
+		assertEquals(0, used.getValue());
+		
+		Metrics.enabled = true;
+		Metrics.sampleHeap();
+		assertTrue(used.getValue() > 0);
+		assertTrue(used.getValue() <= Metrics.gauge("jvm.heap.total").getValue());
+		assertEquals(used.getValue(), Metrics.attributes().get("jvm.heap.used"));
+	}
+}
@@ -0,0 +1,93 @@
+package pdqninja.pdq;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.Test;
+
+import pdqninja.pdq.Broadcast.SharedArg;
+
+public class BroadcastTest {
+
+	int[] table(int size) {
+		int[] table = new int[size];
+		Random random = new Random(42);
+		for (int i = 0; i < size; i++) {
+			table[i] = random.nextInt();
+		}
+		return table;
+	}
+
+	@Test
+	public void testChunks() throws Exception {
+		int[] table = table(600 * 1024);
+		SharedArg arg = SharedArg.of(table);
+
+		assertTrue(arg.chunks.size() > 1);
+		assertArrayEquals(table, (int[]) arg.toObject());
+		assertEquals(arg.hash, SharedArg.of(table(600 * 1024)).hash);
+
+		table[0] ++;
+		assertFalse(arg.hash.equals(SharedArg.of(table).hash));
+
+		SharedArg ref = arg.reference();
+		assertTrue(ref.isReference());
+		assertEquals(arg.hash, ref.hash);
+	}
+
+	/**
+	 * Accepts the connections of a worker daemon.
+	 */
+	static ServerSocket daemon() throws IOException {
+		final ServerSocket server = new ServerSocket(0);
+		final ExecutorService connections = PDQWorker.newConnectionExecutor(
+				PDQWorker.DEFAULT_MAX_CONNECTIONS);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						PDQWorker.accept(server.accept(), connections);
+					}
+				} catch (IOException e) {
+
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		return server;
+	}
+
+	@Test
+	public void testRelay() throws Exception {
+		ServerSocket first = daemon();
+		ServerSocket second = daemon();
+
+		// A worker that is not running
+		ServerSocket closed = new ServerSocket(0);
+		closed.close();
+
+		String a = "127.0.0.1:" + first.getLocalPort();
+		String b = "127.0.0.1:" + closed.getLocalPort();
+		String c = "127.0.0.1:" + second.getLocalPort();
+		List<String> chain = Arrays.asList(a, b, c);
+
+		SharedArg arg = SharedArg.of(table(600 * 1024));
+		Set<String> delivered = Broadcast.relay(arg, "relay-test", chain);
+
+		assertEquals(2, delivered.size());
+		assertTrue(delivered.contains(a));
+		assertTrue(delivered.contains(c));
+
+		first.close();
+		second.close();
+	}
+}
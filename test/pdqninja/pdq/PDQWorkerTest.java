@@ -0,0 +1,411 @@
+package pdqninja.pdq;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import pdqninja.pdqcollections.PDQMap;
+import pdqninja.pdqcollections.PDQSortedList;
+import pdqninja.pdqcollections.TestSplittable;
+import pdqninja.util.PrimitiveAdders;
+
+public class PDQWorkerTest {
+	static final AtomicInteger failures = new AtomicInteger();
+	static final Set<Integer> ranks =
+			Collections.synchronizedSet(new HashSet<Integer>());
+	
+	ServerSocket daemon;
+	
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		Logger.getLogger("pdqninja").setLevel(Level.OFF);
+	}
+	
+	@Before
+	public void setUp() throws Exception {
+		PDQConfig conf = PDQConfig.current();
+		conf.setThreads(2);
+		conf.setMinFree(4L);
+		conf.setSharedDir(conf.getLocalDir());
+		failures.set(0);
+		ranks.clear();
+		daemon = BroadcastTest.daemon();
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		PDQConfig.current().setWorkers(null);
+		PDQConfig.current().setDisks("");
+		daemon.close();
+	}
+	
+	List<Integer> splits(int count) {
+		List<Integer> splits = new ArrayList<Integer>();
+		for (int i = 0; i < count; i++) {
+			splits.add(i);
+		}
+		return splits;
+	}
+	
+	/**
+	 * Fails on the workers; the master takes its time, so that the
+	 * workers get their share of the splits.
+	 */
+	static final class FailOnWorker implements ParallelFunction<Integer, Map<Integer, Integer>> {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		public void apply(Integer i, Map<Integer, Integer> map) throws Exception {
+			if (PDQ.rank() != 0) {
+				failures.incrementAndGet();
+				throw new IllegalStateException("split " + i + " failed");
+			}
+			
+			Thread.sleep(20);
+			map.put(i, 1);
+		}
+	}
+	
+	@Test
+	public void testFailedSplitsReexecuted() throws Exception {
+		PDQConfig.current().setWorkers("127.0.0.1:" + daemon.getLocalPort());
+		
+		PDQMap<Integer, Integer> map = new PDQMap<Integer, Integer>(
+				PrimitiveAdders.IntegerAdder);
+		PDQ.run(new TestSplittable<Integer>(splits(32)), new FailOnWorker(), map);
+		
+		// The splits of the failed worker are processed by the master,
+		// and the worker's partial results are not merged
+		assertTrue(failures.get() > 0);
+		assertEquals(32, map.size());
+		for (int i = 0; i < 32; i++) {
+			assertEquals(Integer.valueOf(1), map.get(i));
+		}
+	}
+	
+	static final class FailOnSplit implements ParallelFunction<Integer, Map<Integer, Integer>> {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		public void apply(Integer i, Map<Integer, Integer> map) {
+			map.put(i, 1);
+			if (i == 2) throw new IllegalStateException("split " + i + " failed");
+		}
+	}
+	
+	@Test
+	public void testFailedSplit() throws Exception {
+		PDQMap<Integer, Integer> map = new PDQMap<Integer, Integer>(
+				PrimitiveAdders.IntegerAdder);
+		try {
+			PDQ.run(new TestSplittable<Integer>(splits(4)), new FailOnSplit(), map);
+			fail("The failure of a split must fail the computation");
+		} catch (IOException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+	
+	/**
+	 * Records the ranks that the splits are processed on; slow
+	 * enough that the worker gets its share of the splits.
+	 */
+	static final class CountOnRanks implements ParallelFunction<Integer, Map<Integer, Integer>> {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		public void apply(Integer i, Map<Integer, Integer> map) throws Exception {
+			ranks.add(PDQ.rank());
+			Thread.sleep(10);
+			map.put(i, 1);
+		}
+	}
+	
+	Map<Integer, Integer> count(int splits) throws Exception {
+		PDQMap<Integer, Integer> map = new PDQMap<Integer, Integer>(
+				PrimitiveAdders.IntegerAdder);
+		PDQ.run(new TestSplittable<Integer>(splits(splits)), new CountOnRanks(), map);
+		return map;
+	}
+	
+	void assertCounted(int splits, Map<Integer, Integer> map) {
+		assertEquals(splits, map.size());
+		for (int i = 0; i < splits; i++) {
+			assertEquals(Integer.valueOf(1), map.get(i));
+		}
+	}
+	
+	@Test
+	public void testConcurrentJobs() throws Exception {
+		PDQConfig.current().setWorkers("127.0.0.1:" + daemon.getLocalPort());
+		
+		ExecutorService masters = Executors.newFixedThreadPool(2);
+		try {
+			List<Future<Map<Integer, Integer>>> jobs = 
+					new ArrayList<Future<Map<Integer, Integer>>>();
+			for (int i = 0; i < 2; i++) {
+				jobs.add(masters.submit(new Callable<Map<Integer, Integer>>() {
+					@Override
+					public Map<Integer, Integer> call() throws Exception {
+						return count(32);
+					}
+				}));
+			}
+			
+			// Each job sees its own results only
+			for (Future<Map<Integer, Integer>> job: jobs) {
+				assertCounted(32, job.get());
+			}
+		} finally {
+			masters.shutdown();
+		}
+		
+		assertTrue(ranks.contains(1));
+	}
+	
+	@Test
+	public void testPooledConnection() throws Exception {
+		String address = "127.0.0.1:" + daemon.getLocalPort();
+		PDQConfig.current().setWorkers(address);
+		
+		assertCounted(16, count(16));
+		
+		// The connection to the worker is kept for the next job
+		Distributor.Connection conn = Distributor.Connection.take(address);
+		assertNotNull(conn);
+		Distributor.Connection.release(conn);
+		
+		ranks.clear();
+		assertCounted(16, count(16));
+		assertTrue(ranks.contains(1));
+		
+		conn = Distributor.Connection.take(address);
+		assertNotNull(conn);
+		conn.close();
+	}
+	
+	@Test
+	public void testConnectionLimit() throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		ExecutorService connections = PDQWorker.newConnectionExecutor(1);
+		try {
+			Socket first = new Socket("127.0.0.1", server.getLocalPort());
+			PDQWorker.accept(server.accept(), connections);
+			
+			// The second connection is refused while the first is served
+			Socket second = new Socket("127.0.0.1", server.getLocalPort());
+			PDQWorker.accept(server.accept(), connections);
+			second.setSoTimeout(5000);
+			assertEquals(-1, second.getInputStream().read());
+			
+			second.close();
+			first.close();
+		} finally {
+			connections.shutdown();
+			server.close();
+		}
+	}
+	
+	/**
+	 * Integers described by {@link IntegerDescriptor}s, all of which
+	 * are located in the specified directory.
+	 */
+	static final class DescribedIntegers implements DescribedSplittable, Serializable {
+		private static final long serialVersionUID = 1L;
+		final int count;
+		final String location;
+		
+		DescribedIntegers(int count, String location) {
+			this.count = count;
+			this.location = location;
+		}
+		
+		@Override
+		public Iterator<?> getSplits() {
+			List<Integer> splits = new ArrayList<Integer>();
+			for (int i = 0; i < count; i++) {
+				splits.add(i);
+			}
+			return splits.iterator();
+		}
+		
+		@Override
+		public Iterator<? extends SplitDescriptor> getSplitDescriptors() {
+			List<IntegerDescriptor> descriptors = new ArrayList<IntegerDescriptor>();
+			for (int i = 0; i < count; i++) {
+				descriptors.add(new IntegerDescriptor(i, location));
+			}
+			return descriptors.iterator();
+		}
+	}
+	
+	static final class IntegerDescriptor implements SplitDescriptor {
+		private static final long serialVersionUID = 1L;
+		final int value;
+		final String location;
+		
+		IntegerDescriptor(int value, String location) {
+			this.value = value;
+			this.location = location;
+		}
+		
+		@Override
+		public Object open() {
+			return value;
+		}
+		
+		@Override
+		public String getLocation() {
+			return location;
+		}
+		
+		@Override
+		public long getLength() {
+			return 1;
+		}
+	}
+	
+	/**
+	 * Loses the worker when the master logs the assignment of the 
+	 * splits, that is, after every worker has finished computing.
+	 */
+	static final class LoseOnAssignedLog extends AppenderSkeleton {
+		@Override
+		protected void append(LoggingEvent event) {
+			if (String.valueOf(event.getMessage()).startsWith("Splits assigned")) {
+				PDQ.context().distributor.markDead(1, 
+						new IOException("lost after the last heartbeat"));
+			}
+		}
+		
+		@Override
+		public void close() {
+		}
+		
+		@Override
+		public boolean requiresLayout() {
+			return false;
+		}
+	}
+	
+	@Test
+	public void testLostFinishedWorker() throws Exception {
+		PDQConfig conf = PDQConfig.current();
+		conf.setWorkers("127.0.0.1:" + daemon.getLocalPort());
+		String disk = new File(conf.getLocalDir()).getCanonicalPath();
+		conf.setDisks(disk);
+		
+		Logger logger = Logger.getLogger(PDQ.class);
+		Appender appender = new LoseOnAssignedLog();
+		logger.setLevel(Level.INFO);
+		logger.setAdditivity(false);
+		logger.addAppender(appender);
+		try {
+			PDQMap<Integer, Integer> map = new PDQMap<Integer, Integer>(
+					PrimitiveAdders.IntegerAdder);
+			PDQ.run(new DescribedIntegers(32, disk), 
+					new CountOnRanks(), map);
+			
+			// The splits of the worker, released after the master has
+			// stopped taking the splits, are processed by the master
+			assertTrue(ranks.contains(1));
+			assertCounted(32, map);
+		} finally {
+			logger.removeAppender(appender);
+			logger.setAdditivity(true);
+			logger.setLevel(null);
+		}
+	}
+	
+	/**
+	 * Fails on the workers while they merge their ranges, that is,
+	 * after the master has sent the plan of the merge.
+	 */
+	static final class FailOnWorkerMerge implements Comparator<Integer>, Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		public int compare(Integer a, Integer b) {
+			if (PDQ.rank() != 0 && isMerging()) {
+				failures.incrementAndGet();
+				throw new IllegalStateException("merge failed");
+			}
+			return a.compareTo(b);
+		}
+		
+		private static boolean isMerging() {
+			for (StackTraceElement frame: new Throwable().getStackTrace()) {
+				if (frame.getClassName().endsWith("$MergeRange")) return true;
+			}
+			return false;
+		}
+	}
+	
+	static final class AddAll implements ParallelFunction<Integer, PDQSortedList<Integer>> {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		public void apply(Integer i, PDQSortedList<Integer> list) throws Exception {
+			for (int j = 0; j < 100; j++) {
+				list.add(j * 32 + i);
+			}
+			Thread.sleep(10);
+		}
+	}
+	
+	@Test
+	public void testLostWorkerMerge() throws Exception {
+		PDQConfig.current().setWorkers("127.0.0.1:" + daemon.getLocalPort());
+		
+		PDQSortedList<Integer> list = 
+				new PDQSortedList<Integer>(new FailOnWorkerMerge());
+		try {
+			PDQ.run(new TestSplittable<Integer>(splits(32)), new AddAll(), list);
+			fail("The ranges of the lost worker must not be dropped");
+		} catch (IllegalStateException e) {
+			assertTrue(failures.get() > 0);
+		}
+	}
+	
+	@Test
+	public void testDistributedSort() throws Exception {
+		PDQConfig.current().setWorkers("127.0.0.1:" + daemon.getLocalPort());
+		
+		PDQSortedList<Integer> list = new PDQSortedList<Integer>();
+		PDQ.run(new TestSplittable<Integer>(splits(32)), new AddAll(), list);
+		
+		// The ranges merged by the worker are assembled by the master
+		List<Integer> sorted = new ArrayList<Integer>(list);
+		assertEquals(3200, sorted.size());
+		for (int i = 0; i < sorted.size(); i++) {
+			assertEquals(Integer.valueOf(i), sorted.get(i));
+		}
+		list.clear();
+	}
+}
@@ -0,0 +1,84 @@
+package pdqninja.pdq;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import pdqninja.util.ByteUnit;
+
+public class TunerTest {
+	
+	@Test
+	public void testThreads() {
+		PDQConfig config = new PDQConfig();
+		assertNull(config.getTuner());
+		assertEquals(2, config.getThreads());
+		
+		config.setTune(true);
+		assertNotNull(config.getTuner());
+		assertSame(config.getTuner(), config.getTuner());
+		assertEquals(Runtime.getRuntime().availableProcessors(), config.getThreads());
+		
+		// Explicit threads are kept
+		config = new PDQConfig();
+		config.setThreads(3);
+		config.setTune(true);
+		assertEquals(3, config.getThreads());
+		assertNotSame(config.getTuner(), config.clone().getTuner());
+	}
+	
+	@Test
+	public void testBlocksize() {
+		PDQConfig config = new PDQConfig();
+		config.setTune(true);
+		config.setSplitLatency(1000);
+		long blocksize = config.getBlocksize();
+		Tuner tuner = config.getTuner();
+		
+		// Splits of 32MB take 4s: shrink, by at most a half
+		tuner.processed(blocksize, 4000);
+		assertEquals(blocksize / 2, config.getBlocksize());
+		
+		// Splits of 16MB take 2s: converge towards 8MB
+		tuner.processed(blocksize / 2, 2000);
+		assertEquals(blocksize / 4, config.getBlocksize());
+		
+		// Within 10% of the target: no change
+		tuner.processed(blocksize / 4, 1050);
+		assertEquals(blocksize / 4, config.getBlocksize());
+		
+		// Fast splits: grow, by at most a factor of two
+		for (int i = 0; i < 10; i++) {
+			tuner.processed(config.getBlocksize(), 10);
+		}
+		assertEquals(Tuner.MAX_BLOCKSIZE, config.getBlocksize());
+		
+		// Slow splits: never below the minimum
+		for (int i = 0; i < 30; i++) {
+			tuner.processed(1024, 1000);
+		}
+		assertEquals(Tuner.MIN_BLOCKSIZE, config.getBlocksize());
+		assertEquals(0, config.getBlocksize() % (64 * 1024));
+	}
+	
+	@Test
+	public void testBuffer() {
+		PDQConfig config = new PDQConfig();
+		config.setTune(true);
+		Tuner tuner = config.getTuner();
+		
+		// 100MB/s: 200KB per 2ms, rounded down to 128KB
+		tuner.written(ByteUnit.parse("100MB"), 1000);
+		assertEquals(ByteUnit.parse("128KB"), config.getBuffer());
+		
+		// Slow streams keep the minimum
+		config = new PDQConfig();
+		config.setTune(true);
+		config.getTuner().written(1024, 1000);
+		assertEquals(Tuner.MIN_BUFFER, config.getBuffer());
+		
+		// Nothing observed
+		config.getTuner().processed(0, 0);
+		assertEquals(Tuner.MIN_BUFFER, config.getBuffer());
+	}
+}
@@ -179,6 +179,34 @@ public class ExternalMapTest {
 		assertNull(map.get(-1));
 		
 		
+		map.close();
+		
+		file.delete();
+	}
+	
+	@Test
+	public void testGetBetweenBlocks() throws IOException {
+		File file = new File(UUID.randomUUID().toString());
+		file.createNewFile();
+		
+		PDQConfig.current().setBlocksize(4);
+		PDQConfig.current().setExternalIndex(4);
+		
+		ExternalSortedMap<Integer, String> map =
+				new ExternalSortedMap<Integer, String>(file, null, true);
+		
+		for (int i = 0; i < 10; i++)
+			map.put(i * 2, "value" + i * 2);
+		
+		map.flush();
+		
+		for (int i = 0; i < 20; i++) {
+			if (i % 2 == 0)
+				assertEquals("value" + i, map.get(i));
+			else
+				assertNull(map.get(i));
+		}
+		
 		map.close();
 		
 		file.delete();
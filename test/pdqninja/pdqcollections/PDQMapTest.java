@@ -2,9 +2,15 @@ package pdqninja.pdqcollections;
 
 import static org.junit.Assert.*;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.BasicConfigurator;
@@ -19,6 +25,10 @@ import org.junit.Test;
 import pdqninja.pdq.PDQ;
 import pdqninja.pdq.PDQConfig;
 import pdqninja.pdq.Parallel;
+import pdqninja.pdq.ParallelFunction;
+import pdqninja.pdq.Progress;
+import pdqninja.pdq.ProgressListener;
+import pdqninja.pdqio.PDQFileReader;
 import pdqninja.util.PrimitiveAdders;
 
 public class PDQMapTest {
@@ -67,6 +77,298 @@ public class PDQMapTest {
 		doSimple();
 	}
 	
+	static final class AddOne implements ParallelFunction<Integer, Map<Integer, Integer>> {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		public void apply(Integer i, Map<Integer, Integer> map) {
+			map.put(i, i);
+		}
+	}
+	
+	@Test
+	public void testFunction() throws Exception {
+		PDQConfig.current().setThreads(2);
+		PDQConfig.current().setMinFree(4L);
+		
+		TestSplittable<Integer> input = 
+				new TestSplittable<Integer>(Arrays.asList(1, 1, 1, 1));
+		
+		PDQMap<Integer, Integer> map = new PDQMap<Integer, Integer>(
+				PrimitiveAdders.IntegerAdder);
+		
+		PDQ.run(input, new AddOne(), map);
+		
+		assertEquals(1, map.size());
+		assertEquals(Integer.valueOf(4), map.get(1));
+	}
+	
+	@Test
+	public void testRecycle() throws Exception {
+		PDQConfig.current().setThreads(2);
+		PDQConfig.current().setMinFree(4L);
+		
+		// Several rounds, so that the replicates are recycled
+		TestSplittable<Integer> input =
+				new TestSplittable<Integer>(Arrays.asList(1, 2, 1, 2, 1, 2, 1, 2));
+		
+		PDQMap<Integer, Integer> map = new PDQMap<Integer, Integer>(
+				PrimitiveAdders.IntegerAdder);
+		
+		PDQ.run(input, new AddOne(), map);
+		
+		assertEquals(2, map.size());
+		assertEquals(Integer.valueOf(4), map.get(1));
+		assertEquals(Integer.valueOf(8), map.get(2));
+		
+		PDQMap<Integer, Integer> replicate =
+				(PDQMap<Integer, Integer>) map.replicate();
+		replicate.put(3, 3);
+		assertTrue(map.recycle(replicate));
+		assertTrue(replicate.isEmpty());
+		assertFalse(map.recycle(new Object()));
+	}
+	
+	@Test
+	public void testMergeOne() throws Exception {
+		PDQConfig.current().setThreads(2);
+		PDQConfig.current().setMinFree(4L);
+		
+		final PDQMap<Integer, Integer> map = new PDQMap<Integer, Integer>(
+				PrimitiveAdders.IntegerAdder);
+		
+		// Merge the replicates concurrently
+		Thread[] threads = new Thread[4];
+		final Exception[] errors = new Exception[threads.length];
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int round = 0; round < 10; round++) {
+							@SuppressWarnings("unchecked")
+							PDQMap<Integer, Integer> replicate =
+									(PDQMap<Integer, Integer>) map.replicate();
+							for (int i = 0; i < 1000; i++)
+								replicate.put(i, 1);
+							map.mergeOne(replicate);
+						}
+					} catch (Exception e) {
+						errors[id] = e;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		map.finish();
+		
+		for (Exception e: errors) {
+			assertNull(e);
+		}
+		// The partitions are merged until the final merge(null)
+		int size = 0;
+		for (int i = 0; i < map.partitions; i++) {
+			Map<Integer, Integer> partition = 
+					((PDQMap<Integer, Integer>.PartialMap) map.delegates.get(i)).getCurrent();
+			for (Integer value: partition.values())
+				assertEquals(Integer.valueOf(40), value);
+			size += partition.size();
+		}
+		assertEquals(1000, size);
+	}
+	
+	@Test
+	public void testConcurrent() throws Exception {
+		PDQConfig.current().setThreads(2);
+		PDQConfig.current().setMinFree(4L);
+		
+		TestSplittable<Integer> input =
+				new TestSplittable<Integer>(Arrays.asList(1, 2, 1, 2, 1, 2, 1, 2));
+		
+		PDQMap<Integer, Integer> map = new PDQConcurrentMap<Integer, Integer>(
+				PrimitiveAdders.IntegerAdder);
+		assertSame(map, map.replicate());
+		
+		PDQ.run(input, new AddOne(), map);
+		
+		assertEquals(2, map.size());
+		assertEquals(Integer.valueOf(4), map.get(1));
+		assertEquals(Integer.valueOf(8), map.get(2));
+	}
+	
+	@Test
+	public void testVirtual() throws Exception {
+		PDQConfig.current().setThreads(2);
+		PDQConfig.current().setMinFree(4L);
+		PDQConfig.current().fromArgs(new String[] {"-PDQ:Executor=virtual"});
+		
+		try {
+			TestSplittable<Integer> input =
+					new TestSplittable<Integer>(Arrays.asList(1, 2, 1, 2, 1, 2, 1, 2));
+			
+			PDQMap<Integer, Integer> map = new PDQMap<Integer, Integer>(
+					PrimitiveAdders.IntegerAdder);
+			
+			PDQ.run(input, new AddOne(), map);
+			
+			assertEquals(2, map.size());
+			assertEquals(Integer.valueOf(4), map.get(1));
+			assertEquals(Integer.valueOf(8), map.get(2));
+		} finally {
+			PDQConfig.current().setExecutor("platform");
+		}
+	}
+	
+	@Test
+	public void testProgress() throws Exception {
+		PDQConfig.current().setThreads(2);
+		PDQConfig.current().setMinFree(4L);
+		PDQConfig.current().setWorkers(null);
+		
+		TestSplittable<Integer> input =
+				new TestSplittable<Integer>(Arrays.asList(1, 2, 1, 2, 1, 2, 1, 2));
+		
+		PDQMap<Integer, Integer> map = new PDQMap<Integer, Integer>(
+				PrimitiveAdders.IntegerAdder);
+		
+		final List<Progress> reported = new ArrayList<Progress>();
+		final List<Map<?, ?>> snapshots = new ArrayList<Map<?, ?>>();
+		PDQConfig.current().setProgressListener(new ProgressListener() {
+			@Override
+			public void progress(Progress progress) {
+				reported.add(progress);
+				snapshots.add((Map<?, ?>) progress.snapshot(1));
+			}
+		});
+		
+		try {
+			PDQ.run(input, new AddOne(), map);
+		} finally {
+			PDQConfig.current().setProgressListener(null);
+		}
+		
+		// The last round is always reported
+		assertFalse(reported.isEmpty());
+		Progress last = reported.get(reported.size() - 1);
+		assertEquals(8, last.getSplitsDone());
+		assertEquals(-1, last.getSplitsTotal());
+		assertEquals(Integer.valueOf(4), snapshots.get(snapshots.size() - 1).get(1));
+		assertEquals(Integer.valueOf(8), map.get(2));
+	}
+	
+	static final class CountLines implements ParallelFunction<Reader, Map<Integer, Integer>> {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		public void apply(Reader reader, Map<Integer, Integer> map) throws Exception {
+			BufferedReader lines = new BufferedReader(reader);
+			int count = 0;
+			while (lines.readLine() != null) count ++;
+			lines.close();
+			map.put(0, count);
+		}
+	}
+	
+	@Test
+	public void testProgressBytes() throws Exception {
+		PDQConfig.current().setThreads(2);
+		PDQConfig.current().setMinFree(4L);
+		PDQConfig.current().setWorkers(null);
+		
+		File file = File.createTempFile("progress", ".txt");
+		file.deleteOnExit();
+		TestFile.createIntegerFile(file, 1000, 4);
+		
+		PDQMap<Integer, Integer> map = new PDQMap<Integer, Integer>(
+				PrimitiveAdders.IntegerAdder);
+		
+		final List<Progress> reported = new ArrayList<Progress>();
+		PDQConfig.current().setProgressListener(new ProgressListener() {
+			@Override
+			public void progress(Progress progress) {
+				reported.add(progress);
+			}
+		});
+		
+		try {
+			PDQ.run(new PDQFileReader(file), new CountLines(), map);
+		} finally {
+			PDQConfig.current().setProgressListener(null);
+		}
+		
+		// The bytes of the splits of a local job are counted
+		Progress last = reported.get(reported.size() - 1);
+		assertEquals(file.length(), last.getBytesProcessed());
+		assertEquals(Integer.valueOf(1000), map.get(0));
+		file.delete();
+	}
+	
+	@Test
+	public void testSnapshot() throws Exception {
+		PDQConfig.current().setThreads(2);
+		PDQConfig.current().setMinFree(4L);
+		
+		TestSplittable<Integer> input =
+				new TestSplittable<Integer>(Arrays.asList(1, 2, 1, 2));
+		
+		PDQMap<Integer, Integer> map = new PDQMap<Integer, Integer>(
+				PrimitiveAdders.IntegerAdder);
+		PDQ.run(input, new AddOne(), map);
+		
+		Map<Integer, Integer> snapshot = map.snapshot();
+		assertEquals(Integer.valueOf(2), snapshot.get(1));
+		
+		// The last copy is returned until it is due again
+		map.lastSnapshotCost = 60 * 1000;
+		assertSame(snapshot, map.snapshot());
+		map.lastSnapshotCost = 0;
+		assertNotSame(snapshot, map.snapshot());
+	}
+	
+	@Test
+	public void testProfile() throws Exception {
+		PDQConfig.current().setThreads(2);
+		PDQConfig.current().setMinFree(4L);
+		PDQConfig.current().setWorkers(null);
+		
+		TestSplittable<Integer> input =
+				new TestSplittable<Integer>(Arrays.asList(1, 2, 1, 2));
+		
+		PDQMap<Integer, Integer> map = new PDQMap<Integer, Integer>(
+				PrimitiveAdders.IntegerAdder);
+		
+		File file = File.createTempFile("profile", ".json");
+		file.deleteOnExit();
+		PDQConfig.current().setProfile(file.getPath());
+		try {
+			PDQ.run(input, new AddOne(), map);
+		} finally {
+			PDQConfig.current().setProfile(null);
+		}
+		
+		StringBuilder sb = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) sb.append(line);
+		} finally {
+			reader.close();
+		}
+		String json = sb.toString();
+		
+		assertTrue(json.startsWith("{\"traceEvents\":["));
+		for (int i = 0; i < 4; i++) {
+			assertTrue(json.contains("\"name\":\"split " + i + "\""));
+		}
+		assertTrue(json.contains("\"cat\":\"round\""));
+		assertTrue(json.contains("\"process_name\""));
+		assertEquals(Integer.valueOf(4), map.get(2));
+	}
+	
 	@Test
 	public void testSimpleDistributedMemory() throws Exception {
 		PDQConfig.current().setMinFree(4L);
@@ -0,0 +1,159 @@
+package pdqninja.pdqcollections;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import pdqninja.pdq.PDQ;
+import pdqninja.pdq.PDQConfig;
+import pdqninja.pdq.ParallelFunction;
+
+public class PDQSortedListTest {
+	long blocksize;
+	long externalIndex;
+	long minFree;
+	
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		Logger.getLogger("pdqninja").setLevel(Level.OFF);
+	}
+	
+	@Before
+	public void setUp() throws Exception {
+		PDQConfig conf = PDQConfig.current();
+		blocksize = conf.getBlocksize();
+		externalIndex = conf.getExternalIndex();
+		minFree = conf.getMinFree();
+		
+		conf.setThreads(4);
+		conf.setExternalIndex(256);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		PDQConfig conf = PDQConfig.current();
+		conf.setBlocksize(blocksize);
+		conf.setExternalIndex(externalIndex);
+		conf.setMinFree(minFree);
+	}
+	
+	static final class AddAll<E> implements ParallelFunction<List<E>, PDQSortedList<E>> {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		public void apply(List<E> split, PDQSortedList<E> output) {
+			output.addAll(split);
+		}
+	}
+	
+	/**
+	 * Returns 20 splits of random numbers, with many duplicates.
+	 */
+	List<List<Integer>> splits(List<Integer> all) {
+		Random random = new Random(7);
+		List<List<Integer>> splits = new ArrayList<List<Integer>>();
+		for (int i = 0; i < 20; i++) {
+			List<Integer> split = new ArrayList<Integer>();
+			for (int j = 0; j < 500; j++) {
+				split.add(random.nextInt(1000));
+			}
+			splits.add(split);
+			all.addAll(split);
+		}
+		return splits;
+	}
+	
+	@Test
+	public void testSortOnDisk() throws Exception {
+		// Every replicate is written as a run
+		PDQConfig.current().setMinFree(Long.MAX_VALUE);
+		
+		List<Integer> expected = new ArrayList<Integer>();
+		TestSplittable<List<Integer>> input =
+				new TestSplittable<List<Integer>>(splits(expected));
+		Collections.sort(expected);
+		
+		PDQSortedList<Integer> list = new PDQSortedList<Integer>();
+		PDQ.run(input, new AddAll<Integer>(), list);
+		
+		assertEquals(expected.size(), list.size());
+		assertEquals(expected, new ArrayList<Integer>(list));
+		
+		// The ranges are merged into files of their own
+		List<File> files = list.getFiles();
+		assertTrue(files.size() > 1);
+		for (File file: files) {
+			assertTrue(file.exists());
+		}
+		
+		list.clear();
+		for (File file: files) {
+			assertFalse(file.exists());
+		}
+	}
+	
+	@Test
+	public void testSortInMemory() throws Exception {
+		PDQConfig.current().setMinFree(4L);
+		
+		List<String> expected = new ArrayList<String>();
+		List<List<String>> splits = new ArrayList<List<String>>();
+		for (List<Integer> split: splits(new ArrayList<Integer>())) {
+			List<String> strings = new ArrayList<String>();
+			for (Integer i: split) {
+				strings.add("record-" + i);
+			}
+			splits.add(strings);
+			expected.addAll(strings);
+		}
+		Collections.sort(expected, Collections.reverseOrder());
+		
+		PDQSortedList<String> list =
+				new PDQSortedList<String>(Collections.<String>reverseOrder());
+		PDQ.run(new TestSplittable<List<String>>(splits), new AddAll<String>(), list);
+		
+		assertEquals(expected, new ArrayList<String>(list));
+		list.clear();
+	}
+	
+	@Test
+	public void testSplits() throws Exception {
+		PDQConfig.current().setMinFree(Long.MAX_VALUE);
+		
+		List<Integer> expected = new ArrayList<Integer>();
+		TestSplittable<List<Integer>> input =
+				new TestSplittable<List<Integer>>(splits(expected));
+		Collections.sort(expected);
+		
+		PDQSortedList<Integer> list = new PDQSortedList<Integer>();
+		PDQ.run(input, new AddAll<Integer>(), list);
+		
+		PDQConfig.current().setBlocksize(1024);
+		List<Integer> records = new ArrayList<Integer>();
+		int splits = 0;
+		for (Iterator<?> it = list.getSplits(); it.hasNext(); splits++) {
+			@SuppressWarnings("unchecked")
+			Collection<Integer> split = (Collection<Integer>) it.next();
+			int size = records.size();
+			records.addAll(split);
+			assertEquals(split.size(), records.size() - size);
+		}
+		
+		assertTrue(splits > list.getFiles().size());
+		assertEquals(expected, records);
+		list.clear();
+	}
+}
@@ -0,0 +1,180 @@
+package pdqninja.pdqio;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * Measures the time to split a file with the {@link DelimitedSplitter},
+ * against the byte-by-byte scan through a 128 byte buffer that it
+ * replaces, on records of random lengths (64KB on average, by
+ * default). Not run with the tests:
+ * <pre>
+ *	java pdqninja.pdqio.DelimitedSplitterBenchmark [MB] [record length]
+ * </pre>
+ *
+ * @author mvarshney
+ */
+public class DelimitedSplitterBenchmark {
+	static final int ROUNDS = 5;
+	
+	public static void main(String[] args) throws IOException {
+		int mb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int record = args.length > 1 ? Integer.parseInt(args[1]) : 64 * 1024;
+		
+		File file = File.createTempFile("splitter", ".txt");
+		file.deleteOnExit();
+		write(file, mb * 1024L * 1024, record);
+		
+		for (String delim: new String[] { "\n", "\r\n\r\n" }) {
+			DelimitedSplitter splitter = new DelimitedSplitter(delim);
+			Naive naive = new Naive(delim);
+			String name = delim.equals("\n") ? "\\n" : "\\r\\n\\r\\n";
+			
+			for (int round = 0; round < ROUNDS; round++) {
+				long start = System.nanoTime();
+				long splits = split(file, splitter);
+				long split = System.nanoTime() - start;
+				
+				start = System.nanoTime();
+				long scanned = scan(file, new Fast(splitter, delim));
+				long scan = System.nanoTime() - start;
+				
+				start = System.nanoTime();
+				long naiveScanned = scan(file, naive);
+				long naiveScan = System.nanoTime() - start;
+				
+				if (scanned != naiveScanned && delim.length() == 1)
+					throw new IllegalStateException("Scans differ");
+				
+				System.out.println(String.format("delim=%s splits=%d split=%dms " +
+						"scan=%.1fMB/s naive=%.1fMB/s",
+						name, splits, split / 1000000,
+						1e3 * mb / (scan / 1e6), 1e3 * mb / (naiveScan / 1e6)));
+			}
+		}
+	}
+	
+	/**
+	 * Writes records of random lengths (averaging the specified
+	 * length), each ending with a newline and every tenth with an
+	 * empty line.
+	 */
+	static void write(File file, long size, int record) throws IOException {
+		Random random = new Random(1);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		long written = 0;
+		int n = 0;
+		while (written < size) {
+			int len = 1 + random.nextInt(2 * record);
+			for (int i = 0; i < len; i++) {
+				out.write('a' + (i % 26));
+			}
+			out.write('\r');
+			out.write('\n');
+			written += len + 2;
+			if (++n % 10 == 0) {
+				out.write('\r');
+				out.write('\n');
+				written += 2;
+			}
+		}
+		out.close();
+	}
+	
+	/**
+	 * Splits the file into splits of 1MB.
+	 */
+	static long split(File file, Splitter splitter) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		long splits = 0;
+		try {
+			long begin;
+			while ((begin = splitter.splitBegin(raf)) != -1) {
+				raf.seek(begin);
+				long end = splitter.splitEnd(raf, 1024 * 1024);
+				raf.seek(end);
+				splits ++;
+			}
+		} finally {
+			raf.close();
+		}
+		return splits;
+	}
+	
+	/**
+	 * Locates every delimiter of the file.
+	 */
+	static long scan(File file, Locator locator) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		long found = 0;
+		try {
+			long size = raf.length();
+			long pos = 0;
+			while (pos < size) {
+				raf.seek(pos);
+				pos += locator.locate(raf);
+				found ++;
+			}
+		} finally {
+			raf.close();
+		}
+		return found;
+	}
+	
+	interface Locator {
+		long locate(RandomAccessFile raf) throws IOException;
+	}
+	
+	static final class Fast implements Locator {
+		final DelimitedSplitter splitter;
+		final DelimitedSplitter.Delimiter delim;
+		
+		Fast(DelimitedSplitter splitter, String delim) {
+			this.splitter = splitter;
+			this.delim = new DelimitedSplitter.Delimiter(delim);
+		}
+		
+		@Override
+		public long locate(RandomAccessFile raf) throws IOException {
+			return splitter.locateDelim(raf, delim);
+		}
+	}
+	
+	/**
+	 * The scan that the splitter used to do.
+	 */
+	static final class Naive implements Locator {
+		final String delim;
+		
+		Naive(String delim) {
+			this.delim = delim;
+		}
+		
+		@Override
+		public long locate(RandomAccessFile raf) throws IOException {
+			long skipped = 0;
+			int matched = 0;
+			byte[] bytes = new byte[128];
+			
+			while (true) {
+				int read = raf.read(bytes);
+				if (read == -1) return skipped;
+				
+				for (int i = 0; i < read; i++) {
+					skipped ++;
+					if (bytes[i] == delim.charAt(matched)) {
+						matched ++;
+						if (matched == delim.length()) return skipped;
+					} else {
+						matched = 0;
+					}
+				}
+			}
+		}
+	}
+}
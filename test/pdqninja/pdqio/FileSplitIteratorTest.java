@@ -2,10 +2,12 @@ package pdqninja.pdqio;
 
 import static org.junit.Assert.*;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.Reader;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -291,6 +293,43 @@ public class FileSplitIteratorTest {
 			assertFalse(it.hasNext());
 	}
 	
+	@Test
+	public void testSplitDescriptors() throws IOException {
+		File[] dirs = {Dirs.get("a"), Dirs.get("b")};
+		File[] files = {Files.get("a/1"), Files.get("b/3")};
+		int[] weights = {1, 1};
+		
+		long blocksize = 5;
+		
+		FileStoreIterator fsIterator = 
+				new FileStoreIterator(dirs, weights, Arrays.asList(files));
+		
+		PDQFileReader.DescriptorIterator it = 
+				new PDQFileReader.DescriptorIterator(fsIterator, blocksize,
+				DelimitedSplitter.NewLineDelimitedSplitter);
+		
+		for (int i = 0; i < 4; i++) {
+			assertDescriptor(it, Files.get("a/1"), i * 10, "111111111");
+			assertDescriptor(it, Files.get("b/3"), i * 10, "333333333");
+		}
+		
+		assertFalse(it.hasNext());
+	}
+	
+	void assertDescriptor(PDQFileReader.DescriptorIterator it, File file,
+			long begin, String expectedLine) throws IOException {
+		assertTrue(it.hasNext());
+		FileSplit split = it.next();
+		assertEquals(file.getAbsolutePath(), split.getFile().getAbsolutePath());
+		assertEquals(begin, split.getBegin());
+		assertEquals(10, split.getLength());
+		
+		BufferedReader reader = new BufferedReader((Reader) split.open());
+		assertEquals(expectedLine, reader.readLine());
+		assertNull(reader.readLine());
+		reader.close();
+	}
+	
 	void assertLine(SplitIterator it, String expectedLine) throws IOException {
 		assertTrue(it.hasNext());
 		Split split = it.next();
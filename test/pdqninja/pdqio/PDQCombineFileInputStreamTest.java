@@ -0,0 +1,173 @@
+package pdqninja.pdqio;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pdqninja.pdq.PDQConfig;
+
+public class PDQCombineFileInputStreamTest {
+	List<File> files;
+	List<String> expected;
+	long blocksize;
+	
+	@Before
+	public void setUp() throws Exception {
+		blocksize = PDQConfig.current().getBlocksize();
+		PDQConfig.current().setBlocksize(4 * 1024);
+		
+		files = new ArrayList<File>();
+		expected = new ArrayList<String>();
+		for (int i = 0; i < 300; i++) {
+			write("small" + i, 3);
+		}
+		write("large", 3000);
+		for (int i = 0; i < 10; i++) {
+			write("after" + i, 3);
+		}
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		PDQConfig.current().setBlocksize(blocksize);
+		for (File file : files) file.delete();
+	}
+	
+	void write(String prefix, int lines) throws IOException {
+		File file = File.createTempFile(prefix, ".txt");
+		file.deleteOnExit();
+		Writer out = new FileWriter(file);
+		for (int i = 0; i < lines; i++) {
+			String line = prefix + " line " + i;
+			out.write(line + "\n");
+			expected.add(line);
+		}
+		out.close();
+		files.add(file);
+	}
+	
+	static List<String> lines(InputStream in) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		String line;
+		while ((line = reader.readLine()) != null) lines.add(line);
+		reader.close();
+		return lines;
+	}
+	
+	@Test
+	public void testSplits() throws IOException {
+		PDQCombineFileInputStream source = new PDQCombineFileInputStream(files);
+		
+		List<String> lines = new ArrayList<String>();
+		int splits = 0;
+		for (Iterator<?> it = source.getSplits(); it.hasNext(); splits++) {
+			lines.addAll(lines((InputStream) it.next()));
+		}
+		source.close();
+		
+		// 14KB of small files and 48KB of the large one
+		assertTrue(splits > 10);
+		assertTrue(splits < 30);
+		
+		Collections.sort(expected);
+		Collections.sort(lines);
+		assertEquals(expected, lines);
+	}
+	
+	@Test
+	public void testDescriptors() throws IOException {
+		PDQCombineFileInputStream source = new PDQCombineFileInputStream(files);
+		
+		Iterator<?> splits = source.getSplits();
+		Iterator<CombineFileSplit> it = source.getSplitDescriptors();
+		int pieces = 0;
+		while (it.hasNext()) {
+			CombineFileSplit split = it.next();
+			pieces += split.size();
+			
+			long length = 0;
+			for (int i = 0; i < split.size(); i++) length += split.getLength(i);
+			assertEquals(split.getLength(), length);
+			assertTrue(split.getLength() < 2 * 4 * 1024);
+			
+			assertEquals(lines((InputStream) splits.next()), lines(split.open()));
+		}
+		assertFalse(splits.hasNext());
+		assertTrue(pieces >= files.size());
+		source.close();
+	}
+	
+	@Test
+	public void testSequential() throws IOException {
+		PDQCombineFileInputStream source = new PDQCombineFileInputStream(files);
+		assertEquals(expected, lines(source));
+	}
+	
+	File write(String content) throws IOException {
+		File file = File.createTempFile("piece", ".txt");
+		file.deleteOnExit();
+		Writer out = new FileWriter(file);
+		out.write(content);
+		out.close();
+		files.add(file);
+		return file;
+	}
+	
+	static byte[] bytes(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1) out.write(b);
+		in.close();
+		return out.toByteArray();
+	}
+	
+	@Test
+	public void testNoTrailingNewline() throws IOException {
+		List<File> pieces = Arrays.asList(write("a1\na2"), write("b1\nb2\n"), write("c1"));
+		PDQCombineFileInputStream source = new PDQCombineFileInputStream(pieces);
+		
+		List<String> lines = new ArrayList<String>();
+		for (Iterator<?> it = source.getSplits(); it.hasNext(); ) {
+			lines.addAll(lines((InputStream) it.next()));
+		}
+		
+		// The last line of a file is not joined to the first of the next
+		Collections.sort(lines);
+		assertEquals(Arrays.asList("a1", "a2", "b1", "b2", "c1"), lines);
+		
+		// The separator is read byte by byte, too
+		Iterator<CombineFileSplit> it = source.getSplitDescriptors();
+		assertEquals("a1\na2\nb1\nb2\nc1\n", new String(bytes(it.next().open())));
+		source.close();
+	}
+	
+	@Test
+	public void testNotDelimited() throws IOException {
+		List<File> pieces = Arrays.asList(write("0123"), write("4567"));
+		PDQCombineFileInputStream source =
+				new PDQCombineFileInputStream(pieces, new FixedSizeSplitter());
+		
+		// Pieces that are not cut at delimiters are read as they are
+		Iterator<?> it = source.getSplits();
+		assertEquals("01234567", new String(bytes((InputStream) it.next())));
+		assertFalse(it.hasNext());
+		source.close();
+	}
+}
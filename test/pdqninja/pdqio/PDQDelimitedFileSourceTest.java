@@ -0,0 +1,216 @@
+package pdqninja.pdqio;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pdqninja.pdq.PDQConfig;
+
+public class PDQDelimitedFileSourceTest {
+	File file;
+	long blocksize;
+	
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("records", ".csv");
+		file.deleteOnExit();
+		blocksize = PDQConfig.current().getBlocksize();
+		PDQConfig.current().setBlocksize(4 * 1024);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		PDQConfig.current().setBlocksize(blocksize);
+		file.delete();
+	}
+	
+	void write(String text) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(text.getBytes("UTF-8"));
+		out.close();
+	}
+	
+	static List<List<String>> read(DelimitedRecords records) throws IOException {
+		List<List<String>> result = new ArrayList<List<String>>();
+		try {
+			while (records.next()) {
+				List<String> fields = new ArrayList<String>();
+				for (int i = 0; i < records.getColumnCount(); i++) {
+					fields.add(records.getString(i));
+				}
+				result.add(fields);
+			}
+		} finally {
+			records.close();
+		}
+		return result;
+	}
+	
+	static List<List<String>> readSplits(PDQDelimitedFileSource source) throws IOException {
+		List<List<String>> result = new ArrayList<List<String>>();
+		Iterator<?> it = source.getSplits();
+		while (it.hasNext()) {
+			result.addAll(read((DelimitedRecords) it.next()));
+		}
+		return result;
+	}
+	
+	static List<List<String>> readDescriptors(PDQDelimitedFileSource source) throws IOException {
+		List<List<String>> result = new ArrayList<List<String>>();
+		Iterator<FileSplit> it = source.getSplitDescriptors();
+		while (it.hasNext()) {
+			result.addAll(read((DelimitedRecords) it.next().open()));
+		}
+		return result;
+	}
+	
+	static String quote(String field) {
+		return "\"" + field.replace("\"", "\"\"") + "\"";
+	}
+	
+	@Test
+	public void testQuotedAcrossSplits() throws IOException {
+		// Quoted fields with many lines, so that the split boundaries
+		// fall within them
+		Random random = new Random(7);
+		List<List<String>> expected = new ArrayList<List<String>>();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			StringBuilder text = new StringBuilder();
+			int lines = random.nextInt(40);
+			for (int j = 0; j < lines; j++) {
+				text.append("line ").append(j).append(j % 5 == 0 ? ", \"quoted\"" : "").append('\n');
+			}
+			List<String> fields = Arrays.asList(Integer.toString(i), text.toString(), "x" + i);
+			expected.add(fields);
+			sb.append(fields.get(0)).append(',').append(quote(fields.get(1)))
+					.append(',').append(fields.get(2)).append(i % 2 == 0 ? "\r\n" : "\n");
+		}
+		write(sb.toString());
+		
+		PDQDelimitedFileSource source = new PDQDelimitedFileSource(file, ',');
+		assertEquals(expected, readSplits(source));
+		assertEquals(expected, readDescriptors(source));
+		
+		// More than one split
+		Iterator<FileSplit> it = source.getSplitDescriptors();
+		it.next();
+		assertTrue(it.hasNext());
+	}
+	
+	@Test
+	public void testResync() throws IOException {
+		QuotedSplitter splitter = new QuotedSplitter((byte) ',', (byte) '"');
+		write("a,\"b\nc\",d\ne,f\n");
+		
+		// The first newline is within a quoted field
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			assertEquals(0, splitter.splitBegin(raf));
+			assertEquals(10, splitter.splitEnd(raf, 1));
+			
+			raf.seek(10);
+			assertEquals(10, splitter.splitBegin(raf));
+			assertEquals(14, splitter.splitEnd(raf, 1));
+			raf.seek(14);
+			assertEquals(-1, splitter.splitBegin(raf));
+		} finally {
+			raf.close();
+		}
+		
+		// The first newline ends a record
+		write("\"a\nb\",c\nd,e\nf\n");
+		raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(5);
+			assertEquals(8, splitter.splitEnd(raf, 1));
+		} finally {
+			raf.close();
+		}
+	}
+	
+	@Test
+	public void testColumns() throws IOException {
+		write("id\tprice\tname\tcount\n" +
+				"1\t2.5\t\"a\tb\"\t-7\n" +
+				"2\t-0.125\tc\t9223372036854775807\n");
+		
+		PDQDelimitedFileSource source = new PDQDelimitedFileSource(
+				Arrays.asList(file), '\t', '"', 1, 3);
+		source.setHeader(true);
+		
+		DelimitedRecords records = (DelimitedRecords) source.getSplits().next();
+		assertTrue(records.next());
+		assertEquals(4, records.getColumnCount());
+		assertEquals(2.5, records.getDouble(1), 0);
+		assertEquals(-7, records.getInt(3));
+		try {
+			records.getString(2);
+			fail();
+		} catch (IllegalArgumentException e) { }
+		try {
+			records.getString(4);
+			fail();
+		} catch (IndexOutOfBoundsException e) { }
+		
+		assertTrue(records.next());
+		assertEquals(-0.125, records.getDouble(1), 0);
+		assertEquals(Long.MAX_VALUE, records.getLong(3));
+		try {
+			records.getInt(3);
+			fail();
+		} catch (NumberFormatException e) { }
+		assertFalse(records.next());
+		records.close();
+	}
+	
+	static byte[] bytes(String s) {
+		return s.getBytes();
+	}
+	
+	@Test
+	public void testParse() {
+		String[] longs = { "0", "-1", "+42", "9223372036854775807", "-9223372036854775808" };
+		for (String s: longs) {
+			assertEquals(Long.parseLong(s), DelimitedRecords.parseLong(bytes(s), 0, s.length()));
+		}
+		for (String s: new String[] { "", "-", "1a", "9223372036854775808", "--1" }) {
+			try {
+				DelimitedRecords.parseLong(bytes(s), 0, s.length());
+				fail(s);
+			} catch (NumberFormatException e) { }
+		}
+		
+		String[] doubles = { "0", "-0", "1.5", ".5", "5.", "0.001", "-123.456",
+				"3.141592653589793", "1e10", "1.7976931348623157E308", "0.1", "99999999999999999" };
+		for (String s: doubles) {
+			assertEquals(s, Double.parseDouble(s),
+					DelimitedRecords.parseDouble(bytes(s), 0, s.length()), 0);
+		}
+		assertTrue(1 / DelimitedRecords.parseDouble(bytes("-0"), 0, 2) < 0);
+		
+		Random random = new Random(1);
+		for (int i = 0; i < 10000; i++) {
+			String s = String.format("%d.%0" + (1 + random.nextInt(8)) + "d",
+					random.nextInt(1000000), random.nextInt(1000));
+			assertEquals(s, Double.parseDouble(s),
+					DelimitedRecords.parseDouble(bytes(s), 0, s.length()), 0);
+		}
+		try {
+			DelimitedRecords.parseDouble(bytes("x"), 0, 1);
+			fail();
+		} catch (NumberFormatException e) { }
+	}
+}
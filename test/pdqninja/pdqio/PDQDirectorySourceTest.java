@@ -0,0 +1,162 @@
+package pdqninja.pdqio;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pdqninja.pdq.PDQConfig;
+
+public class PDQDirectorySourceTest {
+	File dir;
+	long blocksize;
+	List<String> expected;
+	
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("dir", "");
+		dir.delete();
+		dir.mkdir();
+		File sub = new File(dir, "sub");
+		sub.mkdir();
+		blocksize = PDQConfig.current().getBlocksize();
+		PDQConfig.current().setBlocksize(4 * 1024);
+		
+		expected = new ArrayList<String>();
+		for (int i = 0; i < 200; i++) {
+			write(new File(i % 4 == 0 ? sub : dir, "small" + i + ".txt"), "small" + i, 3);
+		}
+		write(new File(dir, "large.txt"), "large", 2000);
+		write(new File(dir, "skipped.log"), "skipped", 5);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		PDQConfig.current().setBlocksize(blocksize);
+		delete(dir);
+	}
+	
+	void write(File file, String prefix, int lines) throws IOException {
+		Writer out = new FileWriter(file);
+		for (int i = 0; i < lines; i++) {
+			String line = prefix + " line " + i;
+			out.write(line + "\n");
+			if (file.getName().endsWith(".txt")) expected.add(line);
+		}
+		out.close();
+	}
+	
+	static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files) delete(f);
+		}
+		file.delete();
+	}
+	
+	static List<String> lines(Reader reader) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(reader);
+		String line;
+		while ((line = in.readLine()) != null) lines.add(line);
+		in.close();
+		return lines;
+	}
+	
+	@Test
+	public void testSplits() throws IOException {
+		PDQDirectorySource source = new PDQDirectorySource(dir, "*.txt", true);
+		
+		List<String> lines = new ArrayList<String>();
+		int splits = 0;
+		for (Iterator<?> it = source.getSplits(); it.hasNext(); splits++) {
+			lines.addAll(lines((Reader) it.next()));
+		}
+		
+		// Small files are packed together, the large file is split
+		assertTrue(splits < 20);
+		assertTrue(splits > 8);
+		
+		Collections.sort(expected);
+		Collections.sort(lines);
+		assertEquals(expected, lines);
+	}
+	
+	@Test
+	public void testDescriptors() throws IOException {
+		PDQDirectorySource source = new PDQDirectorySource(dir, "*.txt", true);
+		
+		Iterator<?> splits = source.getSplits();
+		Iterator<CombineFileSplit> it = source.getSplitDescriptors();
+		String root = dir.getCanonicalPath();
+		while (it.hasNext()) {
+			CombineFileSplit split = it.next();
+			assertTrue(split.size() <= PDQDirectorySource.MaxFiles);
+			assertTrue(split.getLocation().startsWith(root));
+			
+			List<String> lines = lines(new InputStreamReader(split.open()));
+			int length = 0;
+			for (String line : lines) length += line.length() + 1;
+			assertEquals(split.getLength(), length);
+			assertEquals(lines((Reader) splits.next()), lines);
+		}
+		assertFalse(splits.hasNext());
+	}
+	
+	@Test
+	public void testFilters() throws IOException {
+		int count = 0;
+		for (Iterator<?> it = new PDQDirectorySource(dir).getSplits(); it.hasNext(); ) {
+			PDQDirectorySource.SplitReader reader = (PDQDirectorySource.SplitReader) it.next();
+			for (String line : lines(reader)) {
+				assertFalse(line.startsWith("small0 "));
+				count ++;
+			}
+		}
+		// Not recursive, all the patterns
+		assertEquals(150 * 3 + 2000 + 5, count);
+		
+		count = 0;
+		for (Iterator<?> it = new PDQDirectorySource(dir, "small1*", false).getSplits(); it.hasNext(); ) {
+			count += lines((Reader) it.next()).size();
+		}
+		// small1, small10 .. small19, small100 .. small199, without the
+		// multiples of 4
+		assertEquals(84 * 3, count);
+	}
+	
+	@Test
+	public void testNoTrailingNewline() throws IOException {
+		File other = new File(dir, "other");
+		other.mkdir();
+		Writer out = new FileWriter(new File(other, "a.txt"));
+		out.write("a1\na2");
+		out.close();
+		out = new FileWriter(new File(other, "b.txt"));
+		out.write("b1\nb2");
+		out.close();
+		
+		List<String> lines = new ArrayList<String>();
+		for (Iterator<?> it = new PDQDirectorySource(other).getSplits(); it.hasNext(); ) {
+			lines.addAll(lines((Reader) it.next()));
+		}
+		
+		// The last line of a file is not joined to the first of the next
+		Collections.sort(lines);
+		assertEquals(Arrays.asList("a1", "a2", "b1", "b2"), lines);
+	}
+}
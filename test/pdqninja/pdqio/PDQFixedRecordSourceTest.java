@@ -0,0 +1,152 @@
+package pdqninja.pdqio;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pdqninja.pdq.PDQConfig;
+
+public class PDQFixedRecordSourceTest {
+	static final int RecordLength = 64;
+	static final int Records = 1000;
+	static final int Header = 10;
+	
+	File file;
+	long blocksize;
+	
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("records", ".bin");
+		file.deleteOnExit();
+		blocksize = PDQConfig.current().getBlocksize();
+		PDQConfig.current().setBlocksize(4 * 1000);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		PDQConfig.current().setBlocksize(blocksize);
+		file.delete();
+	}
+	
+	/**
+	 * Writes a header, the records (an int, a long and a double, then
+	 * padding) and a trailing partial record.
+	 */
+	void write(ByteOrder order) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(Header + Records * RecordLength + 5).order(order);
+		buffer.position(Header);
+		for (int i = 0; i < Records; i++) {
+			buffer.putInt(i);
+			buffer.putLong(i * 1000000000L);
+			buffer.putDouble(i / 4.0);
+			buffer.position(buffer.position() + RecordLength - 20);
+		}
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(buffer.array());
+		out.close();
+	}
+	
+	void assertRecords(Iterator<?> it) throws IOException {
+		int splits = 0;
+		int next = 0;
+		long ints = 0;
+		double doubles = 0;
+		for (; it.hasNext(); splits++) {
+			FixedRecords records = (FixedRecords) it.next();
+			assertTrue(records.size() > 0);
+			ints += records.sumInt(0);
+			doubles += records.sumDouble(12);
+			
+			while (records.next()) {
+				assertEquals(next, records.getInt(0));
+				assertEquals(next * 1000000000L, records.getLong(4));
+				assertEquals(next / 4.0, records.getDouble(12), 0);
+				next ++;
+			}
+			records.close();
+		}
+		
+		assertEquals(Records, next);
+		assertEquals((long) Records * (Records - 1) / 2, ints);
+		assertEquals(Records * (Records - 1) / 8.0, doubles, 0);
+		// 63 records (4032 bytes) per split
+		assertEquals((Records + 62) / 63, splits);
+	}
+	
+	@Test
+	public void testSplits() throws IOException {
+		write(ByteOrder.BIG_ENDIAN);
+		PDQFixedRecordSource source = new PDQFixedRecordSource(Arrays.asList(file),
+				RecordLength, Header, ByteOrder.BIG_ENDIAN);
+		assertRecords(source.getSplits());
+	}
+	
+	@Test
+	public void testDescriptors() throws IOException {
+		write(ByteOrder.LITTLE_ENDIAN);
+		PDQFixedRecordSource source = new PDQFixedRecordSource(Arrays.asList(file),
+				RecordLength, Header, ByteOrder.LITTLE_ENDIAN);
+		
+		final Iterator<FileSplit> it = source.getSplitDescriptors();
+		assertRecords(new Iterator<Object>() {
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+			
+			@Override
+			public Object next() {
+				try {
+					FileSplit split = it.next();
+					assertEquals(0, (split.getBegin() - Header) % RecordLength);
+					return split.open();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		});
+	}
+	
+	@Test
+	public void testColumns() throws IOException {
+		write(ByteOrder.BIG_ENDIAN);
+		PDQConfig.current().setBlocksize(1 << 20);
+		PDQFixedRecordSource source = new PDQFixedRecordSource(Arrays.asList(file),
+				RecordLength, Header, ByteOrder.BIG_ENDIAN);
+		
+		Iterator<?> it = source.getSplits();
+		FixedRecords records = (FixedRecords) it.next();
+		assertFalse(it.hasNext());
+		assertEquals(Records, records.size());
+		
+		long[] longs = new long[300];
+		assertEquals(300, records.getLongs(4, 100, longs));
+		assertEquals(100 * 1000000000L, longs[0]);
+		assertEquals(399 * 1000000000L, longs[299]);
+		
+		int[] ints = new int[300];
+		assertEquals(100, records.getInts(0, 900, ints));
+		assertEquals(999, ints[99]);
+		
+		records.seek(500);
+		assertEquals(500, records.getInt(0));
+		assertTrue(records.next());
+		assertEquals(501, records.getInt(0));
+		records.close();
+	}
+}
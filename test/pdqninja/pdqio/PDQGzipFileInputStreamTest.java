@@ -0,0 +1,239 @@
+package pdqninja.pdqio;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pdqninja.pdq.PDQConfig;
+
+public class PDQGzipFileInputStreamTest {
+	File file;
+	long blocksize;
+	byte[] text;
+	
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("input", ".gz");
+		file.deleteOnExit();
+		blocksize = PDQConfig.current().getBlocksize();
+		PDQConfig.current().setBlocksize(4 * 1024);
+		
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			sb.append("line ").append(i);
+			// Some lines end exactly at the members
+			for (int j = 0; j < i % 13; j++) sb.append('.');
+			sb.append('\n');
+		}
+		sb.append("last");
+		text = sb.toString().getBytes("UTF-8");
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		PDQConfig.current().setBlocksize(blocksize);
+		file.delete();
+		new File(file.getPath() + GzipIndex.SUFFIX).delete();
+	}
+	
+	/**
+	 * Writes the text as gzip members of the specified size.
+	 */
+	void writeMembers(int size) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		for (int i = 0; i < text.length; i += size) {
+			GZIPOutputStream gzip = new GZIPOutputStream(new NonClosing(out));
+			gzip.write(text, i, Math.min(size, text.length - i));
+			gzip.close();
+		}
+		out.close();
+	}
+	
+	/**
+	 * Writes the text as BGZF blocks of the specified size, followed
+	 * by the empty block that ends BGZF files.
+	 */
+	void writeBGZF(int size) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		for (int i = 0; i < text.length; i += size) {
+			block(out, text, i, Math.min(size, text.length - i));
+		}
+		block(out, text, 0, 0);
+		out.close();
+	}
+	
+	static void block(OutputStream out, byte[] b, int off, int len) throws IOException {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(b, off, len);
+		deflater.finish();
+		byte[] compressed = new byte[len + 1024];
+		int n = deflater.deflate(compressed);
+		deflater.end();
+		
+		CRC32 crc = new CRC32();
+		crc.update(b, off, len);
+		int bsize = 18 + n + 8 - 1;
+		
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		block.write(new byte[] { 0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff,
+				6, 0, 'B', 'C', 2, 0, (byte) bsize, (byte) (bsize >> 8) });
+		block.write(compressed, 0, n);
+		le(block, crc.getValue());
+		le(block, len);
+		out.write(block.toByteArray());
+	}
+	
+	static void le(OutputStream out, long value) throws IOException {
+		for (int i = 0; i < 4; i++) out.write((int) (value >> (8 * i)));
+	}
+	
+	static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1000];
+		int n;
+		while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+		in.close();
+		return out.toByteArray();
+	}
+	
+	static List<String> lines(InputStream in) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		String line;
+		while ((line = reader.readLine()) != null) lines.add(line);
+		reader.close();
+		return lines;
+	}
+	
+	List<String> expectedLines() throws IOException {
+		return Arrays.asList(new String(text, "UTF-8").split("\n"));
+	}
+	
+	void assertSplits(boolean descriptors) throws IOException {
+		PDQGzipFileInputStream aligned = new PDQGzipFileInputStream(file);
+		PDQGzipFileInputStream raw = new PDQGzipFileInputStream(Arrays.asList(file), false);
+		
+		List<String> lines = new ArrayList<String>();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		int splits = 0;
+		if (descriptors) {
+			for (Iterator<FileSplit> it = aligned.getSplitDescriptors(); it.hasNext(); splits++) {
+				lines.addAll(lines((InputStream) it.next().open()));
+			}
+			for (Iterator<FileSplit> it = raw.getSplitDescriptors(); it.hasNext(); ) {
+				bytes.write(readAll((InputStream) it.next().open()));
+			}
+		} else {
+			for (Iterator<?> it = aligned.getSplits(); it.hasNext(); splits++) {
+				lines.addAll(lines((InputStream) it.next()));
+			}
+			for (Iterator<?> it = raw.getSplits(); it.hasNext(); ) {
+				bytes.write(readAll((InputStream) it.next()));
+			}
+		}
+		
+		assertTrue(splits > 10);
+		assertEquals(expectedLines(), lines);
+		assertArrayEquals(text, bytes.toByteArray());
+		
+		// Sequentially
+		assertArrayEquals(text, readAll(aligned));
+		raw.close();
+	}
+	
+	@Test
+	public void testMembers() throws IOException {
+		writeMembers(1000);
+		assertSplits(false);
+		assertSplits(true);
+	}
+	
+	@Test
+	public void testBGZF() throws IOException {
+		writeBGZF(1 << 10);
+		
+		GzipIndex index = GzipIndex.build(file);
+		assertEquals((text.length + 1023) / 1024 + 1, index.size());
+		assertEquals(text.length, index.position(index.size()));
+		assertEquals(file.length(), index.end());
+		
+		assertSplits(false);
+		assertSplits(true);
+	}
+	
+	@Test
+	public void testIndexCache() throws IOException {
+		writeMembers(1000);
+		File cache = new File(file.getPath() + GzipIndex.SUFFIX);
+		assertFalse(cache.exists());
+		
+		GzipIndex index = GzipIndex.load(file);
+		assertTrue(cache.exists());
+		GzipIndex cached = GzipIndex.read(cache, file);
+		assertNotNull(cached);
+		assertEquals(index.size(), cached.size());
+		for (int i = 0; i <= index.size(); i++) {
+			assertEquals(index.offset(i), cached.offset(i));
+			assertEquals(index.position(i), cached.position(i));
+		}
+		
+		// A stale cache is not used
+		writeMembers(2000);
+		file.setLastModified(file.lastModified() + 2000);
+		assertNull(GzipIndex.read(cache, file));
+		assertEquals((text.length + 1999) / 2000, GzipIndex.load(file).size());
+	}
+	
+	@Test
+	public void testSingleMember() throws IOException {
+		writeMembers(text.length);
+		
+		Iterator<?> it = new PDQGzipFileInputStream(file).getSplits();
+		assertEquals(expectedLines(), lines((InputStream) it.next()));
+		assertFalse(it.hasNext());
+	}
+	
+	/**
+	 * Lets GZIPOutputStreams write their members to the same stream.
+	 */
+	static final class NonClosing extends OutputStream {
+		final OutputStream out;
+		
+		NonClosing(OutputStream out) {
+			this.out = out;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package pdqninja.pdqio;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pdqninja.pdq.PDQConfig;
+
+public class PDQLineReaderTest {
+	File file;
+	long blocksize;
+	
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("lines", ".txt");
+		file.deleteOnExit();
+		blocksize = PDQConfig.current().getBlocksize();
+		PDQConfig.current().setBlocksize(4 * 1024);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		PDQConfig.current().setBlocksize(blocksize);
+		file.delete();
+	}
+	
+	void write(byte[] bytes) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(bytes);
+		out.close();
+	}
+	
+	static List<String> read(LineSplit split) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		try {
+			while (split.next()) {
+				lines.add(split.line().toString());
+			}
+		} finally {
+			split.close();
+		}
+		return lines;
+	}
+	
+	List<String> readSplits(PDQLineReader reader) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		Iterator<?> it = reader.getSplits();
+		while (it.hasNext()) {
+			lines.addAll(read((LineSplit) it.next()));
+		}
+		return lines;
+	}
+	
+	List<String> readDescriptors(PDQLineReader reader) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		Iterator<FileSplit> it = reader.getSplitDescriptors();
+		while (it.hasNext()) {
+			lines.addAll(read((LineSplit) it.next().open()));
+		}
+		return lines;
+	}
+	
+	@Test
+	public void testLines() throws IOException {
+		List<String> expected = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			String line = "line " + i;
+			if (i % 1000 == 7) {
+				// Longer than the splits and the buffers
+				char[] chars = new char[100 * 1024 + i];
+				Arrays.fill(chars, 'x');
+				line = new String(chars);
+			}
+			expected.add(line);
+			sb.append(line).append(i % 3 == 0 ? "\r\n" : "\n");
+		}
+		expected.add("");
+		expected.add("last");
+		sb.append("\nlast");
+		write(sb.toString().getBytes("UTF-8"));
+		
+		PDQLineReader reader = new PDQLineReader(file);
+		assertEquals(expected, readSplits(reader));
+		assertEquals(expected, readDescriptors(reader));
+	}
+	
+	@Test
+	public void testSlices() throws IOException {
+		write("ab\r\ncde\n".getBytes("UTF-8"));
+		
+		LineSplit split = (LineSplit) new PDQLineReader(file).getSplits().next();
+		assertTrue(split.next());
+		assertEquals(2, split.length());
+		assertEquals('a', split.bytes()[split.offset()]);
+		assertEquals("ab", split.line().toString());
+		
+		assertTrue(split.next());
+		assertEquals(3, split.length());
+		CharSequence line = split.line();
+		assertEquals(3, line.length());
+		assertEquals('e', line.charAt(2));
+		assertEquals("de", line.subSequence(1, 3));
+		try {
+			line.charAt(3);
+			fail();
+		} catch (IndexOutOfBoundsException e) { }
+		
+		assertFalse(split.next());
+		assertFalse(split.next());
+		split.close();
+	}
+	
+	@Test
+	public void testUTF8() throws IOException {
+		String[] lines = { "h\u00e9llo w\u00f6rld", "\u20ac 100", "\ud834\udd1e clef", "plain" };
+		StringBuilder sb = new StringBuilder();
+		for (String line: lines) sb.append(line).append('\n');
+		byte[] text = sb.toString().getBytes("UTF-8");
+		
+		// Followed by a truncated sequence, and a lone continuation byte
+		byte[] bytes = Arrays.copyOf(text, text.length + 5);
+		bytes[text.length] = 'a';
+		bytes[text.length + 1] = (byte) 0xE2;
+		bytes[text.length + 2] = (byte) 0x82;
+		bytes[text.length + 3] = 'b';
+		bytes[text.length + 4] = (byte) 0x80;
+		write(bytes);
+		
+		List<String> expected = new ArrayList<String>(Arrays.asList(lines));
+		expected.add("a\uFFFDb\uFFFD");
+		assertEquals(expected, readSplits(new PDQLineReader(file)));
+	}
+	
+	@Test
+	public void testCharset() throws IOException {
+		write("caf\u00e9\nna\u00efve\n".getBytes("ISO-8859-1"));
+		
+		PDQLineReader reader = new PDQLineReader(Arrays.asList(file), "ISO-8859-1");
+		assertEquals(Arrays.asList("caf\u00e9", "na\u00efve"), readSplits(reader));
+		assertEquals(Arrays.asList("caf\u00e9", "na\u00efve"), readDescriptors(reader));
+		
+		try {
+			new PDQLineReader(Arrays.asList(file), "UTF-16");
+			fail();
+		} catch (IllegalArgumentException e) { }
+	}
+}
@@ -5,6 +5,7 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.RandomAccessFile;
+import java.util.Random;
 import java.util.UUID;
 
 import org.junit.After;
@@ -108,6 +109,83 @@ public class SplitterTest {
 		raf.close();
 	}
 	
+	@Test
+	public void testDelimitedOverlapping() throws Exception {
+		File file = new File(UUID.randomUUID().toString());
+		file.deleteOnExit();
+		
+		FileWriter writer = new FileWriter(file);
+		writer.write("ab\r\n\r\r\n\r\ncd\r\n\r\nef");
+		writer.close();
+		
+		Splitter sp = new DelimitedSplitter("\r\n\r\n");
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		
+		assertSplit(sp, raf, 1, 0, 9);
+		assertSplit(sp, raf, 1, 9, 15);
+		assertSplit(sp, raf, 1, 15, 17);
+		assertSplit(sp, raf, 1, -1, -1);
+		
+		raf.close();
+		file.delete();
+	}
+	
+	@Test
+	public void testDelimitedLongRecords() throws Exception {
+		File file = new File(UUID.randomUUID().toString());
+		file.deleteOnExit();
+		
+		// Delimiters across the boundaries of the reads
+		int[] lengths = { DelimitedSplitter.MinBufferSize - 2, 
+				3 * DelimitedSplitter.MinBufferSize + 1, 
+				DelimitedSplitter.MaxBufferSize * 2 };
+		StringBuilder sb = new StringBuilder();
+		FileWriter writer = new FileWriter(file);
+		for (int length: lengths) {
+			sb.setLength(0);
+			for (int i = 0; i < length; i++) sb.append('x');
+			writer.write(sb.toString());
+			writer.write("\r\n\r\n");
+		}
+		writer.close();
+		
+		Splitter sp = new DelimitedSplitter("\r\n\r\n");
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		long begin = 0;
+		for (int length: lengths) {
+			assertSplit(sp, raf, 1, begin, begin + length + 4);
+			begin += length + 4;
+		}
+		assertSplit(sp, raf, 1, -1, -1);
+		raf.close();
+		file.delete();
+	}
+	
+	@Test
+	public void testIndexOf() {
+		Random random = new Random(7);
+		byte[] bytes = new byte[100];
+		
+		for (int n = 0; n < 1000; n++) {
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = (byte) (random.nextInt(8) | (random.nextBoolean() ? 0x80 : 0));
+			}
+			byte value = (byte) random.nextInt(8);
+			if (random.nextBoolean()) value = (byte) (value | 0x80);
+			int from = random.nextInt(bytes.length);
+			int to = from + random.nextInt(bytes.length - from + 1);
+			
+			int expected = -1;
+			for (int i = from; i < to; i++) {
+				if (bytes[i] == value) {
+					expected = i;
+					break;
+				}
+			}
+			assertEquals(expected, DelimitedSplitter.indexOf(bytes, from, to, value));
+		}
+	}
+	
 	@Test
 	public void testFixedSize() throws Exception {
 		Splitter sp = new FixedSizeSplitter();